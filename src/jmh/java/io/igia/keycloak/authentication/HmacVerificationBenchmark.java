@@ -0,0 +1,113 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.keycloak.TokenVerifier;
+import org.keycloak.common.util.Base64;
+import org.keycloak.common.util.Time;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.representations.JsonWebToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Verifications per second of an external launch app token, comparing the
+ * original per-request key decoding and {@link TokenVerifier} path with the
+ * cached {@link HmacVerificationKey}, and the kid lookup of a rotated
+ * {@link HmacKeySet} with trying each of its keys in turn.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HmacVerificationBenchmark {
+	private String secret;
+	private String appToken;
+	private HmacVerificationKey verificationKey;
+	private String keyedAppToken;
+	private HmacKeySet keySet;
+	private HmacVerificationKey[] rotatedKeys;
+
+	@Setup
+	public void setup() throws Exception {
+		byte[] keyBytes = new byte[32];
+		new SecureRandom().nextBytes(keyBytes);
+		secret = Base64.encodeBytes(keyBytes);
+
+		JsonWebToken token = new JsonWebToken();
+		token.id("launch-id").issuedNow().expiration(Integer.MAX_VALUE);
+		token.setOtherClaims("patient", "12345");
+		token.setOtherClaims("encounter", "67890");
+		appToken = new JWSBuilder().jsonContent(token).hmac256(keyBytes);
+
+		verificationKey = HmacVerificationKey.fromBase64(secret);
+
+		// three keys in rotation, the token signed with the last one
+		StringBuilder keyset = new StringBuilder();
+		rotatedKeys = new HmacVerificationKey[3];
+		for (int i = 0; i < rotatedKeys.length; i++) {
+			byte[] rotatedBytes = new byte[32];
+			new SecureRandom().nextBytes(rotatedBytes);
+			keyset.append("key").append(i).append(':').append(Base64.encodeBytes(rotatedBytes)).append(' ');
+			rotatedKeys[i] = HmacVerificationKey.fromBase64(Base64.encodeBytes(rotatedBytes));
+			if (i == rotatedKeys.length - 1) {
+				keyedAppToken = new JWSBuilder().kid("key" + i).jsonContent(token).hmac256(rotatedBytes);
+			}
+		}
+		keySet = HmacKeySet.compile(keyset.toString(), null);
+	}
+
+	@Benchmark
+	public Object perRequestKey() throws Exception {
+		SecretKeySpec keySpec = new SecretKeySpec(Base64.decode(secret), HmacVerificationKey.HMAC_SHA256_ALGORITHM);
+		return TokenVerifier.create(appToken, JsonWebToken.class).secretKey(keySpec).verify();
+	}
+
+	@Benchmark
+	public boolean cachedKey() throws Exception {
+		return verificationKey.verify(new JWSInput(appToken));
+	}
+
+	@Benchmark
+	public boolean keySetByKid() throws Exception {
+		JWSInput jws = new JWSInput(keyedAppToken);
+		return keySet.select(jws.getHeader().getKeyId(), Time.currentTime(), SmartAppTokenVerifier.ALLOWED_CLOCK_SKEW_SECONDS).verify(jws);
+	}
+
+	@Benchmark
+	public boolean trialVerification() throws Exception {
+		JWSInput jws = new JWSInput(keyedAppToken);
+		for (HmacVerificationKey key : rotatedKeys) {
+			if (key.verify(jws)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.sessions.infinispan.changes.SessionEntityWrapper;
+import org.keycloak.models.sessions.infinispan.entities.AuthenticatedClientSessionEntity;
+import org.keycloak.models.sessions.infinispan.entities.UserSessionEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.igia.keycloak.protocol.smart.SmartLaunchContext;
+
+/**
+ * Session cache entries and retained heap of 10k SMART launches with the
+ * launch app token minted in session and in stateless token mode. Each launch
+ * writes the Keycloak session entities to local sessions and clientSessions
+ * Infinispan caches the way the Infinispan user session provider does. In
+ * session mode the launch creates the user session and a client session for
+ * the launch client; a completed login then reuses that user session, keyed by
+ * the root authentication session id, and adds the client session of the app.
+ * In stateless mode the login creates both. With completed=false the user never
+ * returns from the launch app.
+ * <p>
+ * The sessionEntries and retainedBytes counters are measured after a full GC
+ * at the end of each invocation; JMH sums them over iterations, so there is a
+ * single measurement iteration. The time is not meaningful.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 1, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx512m", "-XX:+UseSerialGC" })
+@State(Scope.Benchmark)
+public class LaunchSessionFootprintBenchmark {
+	private static final int LAUNCHES = 10000;
+	private static final int USERS = 100;
+	private static final String REALM_ID = "igia";
+	private static final String LAUNCH_CLIENT_ID = KeycloakModelUtils.generateId();
+	private static final String APP_CLIENT_ID = KeycloakModelUtils.generateId();
+
+	@Param({ "session", "stateless" })
+	private String tokenMode;
+
+	@Param({ "true", "false" })
+	private boolean completed;
+
+	private DefaultCacheManager cacheManager;
+	private Cache<String, SessionEntityWrapper<UserSessionEntity>> sessions;
+	private Cache<UUID, SessionEntityWrapper<AuthenticatedClientSessionEntity>> clientSessions;
+	private final String[] userIds = new String[USERS];
+	private long baseline;
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Footprint {
+		public long sessionEntries;
+		public long retainedBytes;
+	}
+
+	@Setup(Level.Trial)
+	public void startCaches() {
+		GlobalConfigurationBuilder global = new GlobalConfigurationBuilder();
+		global.defaultCacheName("default").globalJmxStatistics().allowDuplicateDomains(true).enabled(false);
+		cacheManager = new DefaultCacheManager(global.build(), new ConfigurationBuilder().build());
+		sessions = cacheManager.getCache("sessions");
+		clientSessions = cacheManager.getCache("clientSessions");
+		for (int i = 0; i < USERS; i++) {
+			userIds[i] = KeycloakModelUtils.generateId();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void stopCaches() {
+		cacheManager.stop();
+	}
+
+	@Setup(Level.Invocation)
+	public void clearCaches() {
+		sessions.clear();
+		clientSessions.clear();
+		baseline = usedHeap();
+	}
+
+	@TearDown(Level.Invocation)
+	public void measure(Footprint footprint) {
+		footprint.sessionEntries = sessions.size() + clientSessions.size();
+		footprint.retainedBytes = usedHeap() - baseline;
+	}
+
+	@Benchmark
+	public void launches() {
+		for (int i = 0; i < LAUNCHES; i++) {
+			String rootSessionId = KeycloakModelUtils.generateId();
+			String userId = userIds[i % USERS];
+			if (SmartLaunchContextAuthenticatorFactory.TOKEN_MODE_SESSION.equals(tokenMode)) {
+				UserSessionEntity userSession = createUserSession(rootSessionId, userId, "auth");
+				createClientSession(userSession, LAUNCH_CLIENT_ID, null);
+			}
+			if (completed) {
+				SessionEntityWrapper<UserSessionEntity> launchSession = sessions.get(rootSessionId);
+				UserSessionEntity userSession = launchSession != null ? launchSession.getEntity()
+						: createUserSession(rootSessionId, userId, "openid-connect");
+				userSession.setState(UserSessionModel.State.LOGGED_IN);
+				createClientSession(userSession, APP_CLIENT_ID, appClientNotes());
+			}
+		}
+	}
+
+	private UserSessionEntity createUserSession(String id, String userId, String authMethod) {
+		UserSessionEntity entity = new UserSessionEntity();
+		entity.setId(id);
+		entity.setRealmId(REALM_ID);
+		entity.setUser(userId);
+		entity.setLoginUsername("user");
+		entity.setIpAddress("127.0.0.1");
+		entity.setAuthMethod(authMethod);
+		int started = Time.currentTime();
+		entity.setStarted(started);
+		entity.setLastSessionRefresh(started);
+		sessions.put(id, new SessionEntityWrapper<>(entity));
+		return entity;
+	}
+
+	private void createClientSession(UserSessionEntity userSession, String clientId, Map<String, String> notes) {
+		AuthenticatedClientSessionEntity entity = new AuthenticatedClientSessionEntity(UUID.randomUUID());
+		entity.setRealmId(REALM_ID);
+		entity.setTimestamp(Time.currentTime());
+		if (notes != null) {
+			entity.setAuthMethod("openid-connect");
+			entity.setRedirectUri(notes.get("redirect_uri"));
+			entity.getNotes().putAll(notes);
+		}
+		clientSessions.put(entity.getId(), new SessionEntityWrapper<>(entity));
+		userSession.getAuthenticatedClientSessions().put(clientId, entity.getId());
+	}
+
+	// client notes an authorization code login copies from the authentication session
+	private static Map<String, String> appClientNotes() {
+		Map<String, String> notes = new LinkedHashMap<>();
+		notes.put("iss", "http://localhost:9080/auth/realms/igia");
+		notes.put("response_type", "code");
+		notes.put("redirect_uri", "http://localhost:8096/");
+		notes.put("state", KeycloakModelUtils.generateId());
+		notes.put("scope", "openid launch/patient patient/*.read");
+		notes.put("client_request_param_aud", "http://localhost:8081/fhir");
+		notes.put(SmartLaunchContext.LAUNCH_CONTEXT_NOTE, SmartLaunchContext.of(Collections.singletonMap("patient", "12345")).encoded());
+		return notes;
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
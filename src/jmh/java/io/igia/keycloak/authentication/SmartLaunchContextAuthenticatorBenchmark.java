@@ -0,0 +1,208 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MultivaluedHashMap;
+
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.common.util.Base64;
+import org.keycloak.common.util.Time;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientScopeModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakUriInfo;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.TokenManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.UserSessionProvider;
+import org.keycloak.protocol.oidc.OIDCLoginProtocol;
+import org.keycloak.protocol.oidc.endpoints.AuthorizationEndpoint;
+import org.keycloak.representations.JsonWebToken;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The browser flow entry ({@code authenticate()}, up to the external launch
+ * redirect) and the external app callback ({@code action()}) of the SMART launch
+ * authenticator, with clients carrying a growing number of client scopes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SmartLaunchContextAuthenticatorBenchmark {
+	private static final byte[] SECRET_BYTES = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+	private static final String SECRET = Base64.encodeBytes(SECRET_BYTES);
+
+	@Param({ "5", "20", "50" })
+	public int clientScopes;
+
+	private SmartLaunchContextAuthenticator authenticator;
+	private AuthenticationFlowContext authenticateContext;
+	private AuthenticationFlowContext actionContext;
+	private MultivaluedHashMap<String, String> actionQueryParameters = new MultivaluedHashMap<>();
+	private long appTokenSequence;
+
+	@Setup
+	public void setup() throws Exception {
+		authenticator = new SmartLaunchContextAuthenticator();
+		authenticateContext = createContext(false);
+		actionContext = createContext(true);
+	}
+
+	@Setup(Level.Invocation)
+	public void nextAppToken() {
+		// app tokens are single use, sign a new one for every callback
+		JsonWebToken appToken = new JsonWebToken();
+		appToken.id("app-token-" + appTokenSequence++).issuedNow().expiration(Time.currentTime() + 60);
+		appToken.setOtherClaims("patient", "12345");
+		appToken.setOtherClaims("encounter", "67890");
+		actionQueryParameters.putSingle(SmartLaunchContextAuthenticatorFactory.QUERY_PARAM_APP_TOKEN,
+				new JWSBuilder().jsonContent(appToken).hmac256(SECRET_BYTES));
+	}
+
+	@Benchmark
+	public AuthenticationFlowContext authenticate() {
+		authenticator.authenticate(authenticateContext);
+		return authenticateContext;
+	}
+
+	@Benchmark
+	public AuthenticationFlowContext action() {
+		authenticator.action(actionContext);
+		return actionContext;
+	}
+
+	private AuthenticationFlowContext createContext(boolean callback) throws Exception {
+		AuthenticationFlowContext context = stub(AuthenticationFlowContext.class);
+		AuthenticationSessionModel authSession = stub(AuthenticationSessionModel.class);
+		RootAuthenticationSessionModel rootSession = stub(RootAuthenticationSessionModel.class);
+		AuthenticatorConfigModel authenticatorConfigModel = new AuthenticatorConfigModel();
+		RealmModel realm = stub(RealmModel.class);
+		KeycloakSession session = stub(KeycloakSession.class);
+		KeycloakContext keycloakContext = stub(KeycloakContext.class);
+		KeycloakUriInfo uriInfo = stub(KeycloakUriInfo.class);
+		UserModel user = stub(UserModel.class);
+		ClientConnection clientConnection = stub(ClientConnection.class);
+		UserSessionProvider userSessionProvider = stub(UserSessionProvider.class);
+		UserSessionModel userSession = stub(UserSessionModel.class);
+		AuthenticatedClientSessionModel launchClientSession = stub(AuthenticatedClientSessionModel.class);
+		ClientModel client = stub(ClientModel.class);
+		ClientModel launchClient = stub(ClientModel.class);
+		TokenManager tokenManager = stub(TokenManager.class);
+		AuthenticationExecutionModel execution = stub(AuthenticationExecutionModel.class);
+
+		// app client with a mix of SMART resource scopes and a default launch scope
+		Map<String, ClientScopeModel> defaultScopes = new HashMap<>();
+		StringBuilder requestedScope = new StringBuilder("openid launch/patient");
+		for (int i = 0; i < clientScopes; i++) {
+			String name = i == 0 ? "launch/encounter" : "patient/Resource" + i + ".read";
+			defaultScopes.put(name, stub(ClientScopeModel.class));
+			requestedScope.append(' ').append(name);
+		}
+
+		Map<String, String> config = new HashMap<>();
+		config.put(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SUPPORTED_PARAMS, "patient encounter");
+		config.put(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_URL, "http://externallaunch.com?token={TOKEN}");
+		config.put(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_CLIENT_ID, "launchClientid");
+		config.put(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SECRET_KEY, SECRET);
+		authenticatorConfigModel.setId("configId");
+		authenticatorConfigModel.setConfig(config);
+
+		Mockito.when(session.getContext()).thenReturn(keycloakContext);
+		Mockito.when(keycloakContext.getUri()).thenReturn(uriInfo);
+		Mockito.when(session.sessions()).thenReturn(userSessionProvider);
+		Mockito.when(session.tokens()).thenReturn(tokenManager);
+		Mockito.when(tokenManager.encode(any())).thenReturn("encodedtoken");
+		Mockito.when(realm.getName()).thenReturn("realmName");
+		Mockito.when(realm.getClientByClientId("launchClientid")).thenReturn(launchClient);
+		Mockito.when(context.getRealm()).thenReturn(realm);
+		Mockito.when(context.getSession()).thenReturn(session);
+		Mockito.when(context.getAuthenticationSession()).thenReturn(authSession);
+		Mockito.when(context.getUser()).thenReturn(user);
+		Mockito.when(context.getConnection()).thenReturn(clientConnection);
+		Mockito.when(context.getAuthenticatorConfig()).thenReturn(authenticatorConfigModel);
+		Mockito.when(context.getUriInfo()).thenReturn(uriInfo);
+		Mockito.when(context.getExecution()).thenReturn(execution);
+		Mockito.when(execution.getId()).thenReturn("executionId");
+		Mockito.when(clientConnection.getRemoteAddr()).thenReturn("remoteAddr");
+		Mockito.when(uriInfo.getBaseUri()).thenReturn(URI.create("http://keycloak"));
+		Mockito.when(authSession.getParentSession()).thenReturn(rootSession);
+		Mockito.when(rootSession.getId()).thenReturn("rootSessionId");
+		Mockito.when(authSession.getAuthenticatedUser()).thenReturn(user);
+		Mockito.when(authSession.getClientNote(OIDCLoginProtocol.SCOPE_PARAM)).thenReturn(requestedScope.toString());
+		Mockito.when(authSession.getClientNote(AuthorizationEndpoint.LOGIN_SESSION_NOTE_ADDITIONAL_REQ_PARAMS_PREFIX + "aud"))
+				.thenReturn("http://fhirserver.org");
+		Mockito.when(authSession.getClient()).thenReturn(client);
+		Mockito.when(authSession.getTabId()).thenReturn("tabId");
+		Mockito.when(user.getUsername()).thenReturn("userName");
+		Mockito.when(user.getId()).thenReturn("userId");
+		Mockito.when(userSession.getUser()).thenReturn(user);
+		Mockito.when(userSession.getNote(AuthenticationManager.AUTH_TIME)).thenReturn("1234567890");
+		Mockito.when(userSessionProvider.createUserSession(anyString(), any(), any(), anyString(), anyString(), anyString(), eq(false), isNull(), isNull()))
+				.thenReturn(userSession);
+		Mockito.when(userSessionProvider.createClientSession(any(), any(), any())).thenReturn(launchClientSession);
+		Mockito.when(client.getId()).thenReturn("clientInternalId");
+		Mockito.when(client.getClientId()).thenReturn("clientId");
+		Mockito.when(client.getClientScopes(true, true)).thenReturn(defaultScopes);
+		Mockito.when(launchClient.getClientId()).thenReturn("launchClientid");
+		Mockito.when(launchClient.getClientScopes(true, true)).thenReturn(new HashMap<String, ClientScopeModel>());
+		Mockito.when(launchClientSession.getClient()).thenReturn(launchClient);
+		Mockito.when(launchClientSession.getUserSession()).thenReturn(userSession);
+
+		if (callback) {
+			Mockito.when(uriInfo.getQueryParameters()).thenReturn(actionQueryParameters);
+			Mockito.when(authSession.getAuthNote(SmartLaunchContextAuthenticatorFactory.INITIATED_BY_SMART_LAUNCH_EXT_APP))
+					.thenReturn("true");
+		}
+		return context;
+	}
+
+	private static <T> T stub(Class<T> type) {
+		return Mockito.mock(type, Mockito.withSettings().stubOnly());
+	}
+}
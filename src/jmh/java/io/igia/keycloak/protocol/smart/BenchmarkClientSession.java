@@ -0,0 +1,147 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+
+/**
+ * Plain map backed client session, so benchmarks measure note handling rather
+ * than mock invocation overhead.
+ */
+public class BenchmarkClientSession implements AuthenticatedClientSessionModel {
+	private final Map<String, String> notes = new HashMap<>();
+
+	/**
+	 * Creates a client session holding the given launch context plus filler notes
+	 * similar to the ones Keycloak keeps on every client session.
+	 */
+	public static BenchmarkClientSession withNotes(Map<String, String> launchParams, int totalNotes) {
+		BenchmarkClientSession clientSession = new BenchmarkClientSession();
+		clientSession.setNote(SmartLaunchContext.LAUNCH_CONTEXT_NOTE, SmartLaunchContext.of(launchParams).encoded());
+		for (int i = clientSession.notes.size(); i < totalNotes; i++) {
+			clientSession.setNote("client_request_param_" + i, "value-" + i);
+		}
+		return clientSession;
+	}
+
+	@Override
+	public String getId() {
+		return "clientSessionId";
+	}
+
+	@Override
+	public int getTimestamp() {
+		return 0;
+	}
+
+	@Override
+	public void setTimestamp(int timestamp) {
+		// not tracked
+	}
+
+	@Override
+	public void detachFromUserSession() {
+		// not tracked
+	}
+
+	@Override
+	public UserSessionModel getUserSession() {
+		return null;
+	}
+
+	@Override
+	public String getCurrentRefreshToken() {
+		return null;
+	}
+
+	@Override
+	public void setCurrentRefreshToken(String currentRefreshToken) {
+		// not tracked
+	}
+
+	@Override
+	public int getCurrentRefreshTokenUseCount() {
+		return 0;
+	}
+
+	@Override
+	public void setCurrentRefreshTokenUseCount(int currentRefreshTokenUseCount) {
+		// not tracked
+	}
+
+	@Override
+	public String getNote(String name) {
+		return notes.get(name);
+	}
+
+	@Override
+	public void setNote(String name, String value) {
+		notes.put(name, value);
+	}
+
+	@Override
+	public void removeNote(String name) {
+		notes.remove(name);
+	}
+
+	@Override
+	public Map<String, String> getNotes() {
+		return notes;
+	}
+
+	@Override
+	public String getRedirectUri() {
+		return null;
+	}
+
+	@Override
+	public void setRedirectUri(String uri) {
+		// not tracked
+	}
+
+	@Override
+	public RealmModel getRealm() {
+		return null;
+	}
+
+	@Override
+	public ClientModel getClient() {
+		return null;
+	}
+
+	@Override
+	public String getAction() {
+		return null;
+	}
+
+	@Override
+	public void setAction(String action) {
+		// not tracked
+	}
+
+	@Override
+	public String getProtocol() {
+		return SmartOIDCLoginProtocolFactory.LOGIN_PROTOCOL;
+	}
+
+	@Override
+	public void setProtocol(String method) {
+		// not tracked
+	}
+}
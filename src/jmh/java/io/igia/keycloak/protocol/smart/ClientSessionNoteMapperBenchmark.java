@@ -0,0 +1,80 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.IDToken;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.igia.keycloak.authentication.SmartLaunchContextAuthenticator;
+
+/**
+ * Claim mapping of a single launch note, for client sessions carrying a
+ * growing number of notes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientSessionNoteMapperBenchmark {
+	@Param({ "10", "50", "200" })
+	public int clientSessionNotes;
+
+	private ClientSessionNoteMapper mapper;
+	private ProtocolMapperModel mappingModel;
+	private BenchmarkClientSession clientSession;
+	private UserSessionModel userSession;
+	private KeycloakSession session;
+
+	@Setup
+	public void setup() {
+		Map<String, String> launchParams = new LinkedHashMap<>();
+		launchParams.put("patient", "12345");
+		launchParams.put("encounter", "67890");
+		clientSession = BenchmarkClientSession.withNotes(launchParams, clientSessionNotes);
+
+		mapper = new ClientSessionNoteMapper();
+		mappingModel = ClientSessionNoteMapper.createClaimMapper("patient", 
+				SmartLaunchContextAuthenticator.LAUNCH_SCOPE_PREFIX + "patient", "patient", "String", true, true);
+		mappingModel.setId("patient-mapper");
+		userSession = Mockito.mock(UserSessionModel.class, Mockito.withSettings().stubOnly());
+		session = Mockito.mock(KeycloakSession.class, Mockito.withSettings().stubOnly());
+	}
+
+	@Benchmark
+	public IDToken setClaim() {
+		IDToken token = new AccessToken();
+		mapper.setClaim(token, mappingModel, userSession, session, clientSession);
+		return token;
+	}
+}
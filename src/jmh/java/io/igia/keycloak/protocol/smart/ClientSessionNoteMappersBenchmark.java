@@ -0,0 +1,103 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.IDToken;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.igia.keycloak.authentication.SmartLaunchContextAuthenticator;
+
+/**
+ * Access, ID and userinfo token transformation by a client with 20 client
+ * session note mappers, a mix of launch params and plain notes with nested
+ * claim names and typed claims.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientSessionNoteMappersBenchmark {
+	static final int MAPPERS = 20;
+
+	private ClientSessionNoteMapper mapper;
+	private ProtocolMapperModel[] mappingModels;
+	private BenchmarkClientSession clientSession;
+	private UserSessionModel userSession;
+	private KeycloakSession session;
+
+	@Setup
+	public void setup() {
+		String[] jsonTypes = { "String", "long", "boolean", "int" };
+		Map<String, String> launchParams = new LinkedHashMap<>();
+		mapper = new ClientSessionNoteMapper();
+		mappingModels = new ProtocolMapperModel[MAPPERS];
+		for (int i = 0; i < MAPPERS; i++) {
+			String jsonType = jsonTypes[i % jsonTypes.length];
+			String value = "boolean".equals(jsonType) ? "true" : String.valueOf(1000 + i);
+			String note;
+			if (i % 2 == 0) {
+				launchParams.put("param" + i, value);
+				note = SmartLaunchContextAuthenticator.LAUNCH_SCOPE_PREFIX + "param" + i;
+			} else {
+				note = "note" + i;
+			}
+			String claimName = i % 3 == 0 ? "smart.context.claim" + i : "claim" + i;
+			mappingModels[i] = ClientSessionNoteMapper.createClaimMapper("mapper" + i, note, claimName, jsonType, true, true);
+			mappingModels[i].getConfig().put("userinfo.token.claim", "true");
+			mappingModels[i].setId("mapper-" + i);
+		}
+		clientSession = BenchmarkClientSession.withNotes(launchParams, 30);
+		for (int i = 1; i < MAPPERS; i += 2) {
+			String jsonType = jsonTypes[i % jsonTypes.length];
+			clientSession.setNote("note" + i, "boolean".equals(jsonType) ? "false" : String.valueOf(2000 + i));
+		}
+		userSession = Mockito.mock(UserSessionModel.class, Mockito.withSettings().stubOnly());
+		session = Mockito.mock(KeycloakSession.class, Mockito.withSettings().stubOnly());
+	}
+
+	@Benchmark
+	public void transformTokens(Blackhole blackhole) {
+		AccessToken accessToken = new AccessToken();
+		IDToken idToken = new IDToken();
+		AccessToken userInfo = new AccessToken();
+		for (ProtocolMapperModel mappingModel : mappingModels) {
+			mapper.transformAccessToken(accessToken, mappingModel, session, userSession, clientSession);
+			mapper.transformIDToken(idToken, mappingModel, session, userSession, clientSession);
+			mapper.transformUserInfoToken(userInfo, mappingModel, session, userSession, clientSession);
+		}
+		blackhole.consume(accessToken);
+		blackhole.consume(idToken);
+		blackhole.consume(userInfo);
+	}
+}
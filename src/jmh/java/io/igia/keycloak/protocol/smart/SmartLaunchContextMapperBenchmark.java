@@ -0,0 +1,96 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.AccessToken;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.igia.keycloak.authentication.SmartLaunchContextAuthenticator;
+
+/**
+ * Access token claim mapping of every launch param, with one client session
+ * note mapper per param compared to a single launch context mapper.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SmartLaunchContextMapperBenchmark {
+	@Param({ "2", "6" })
+	public int launchParams;
+
+	private ClientSessionNoteMapper noteMapper;
+	private ProtocolMapperModel[] noteMappingModels;
+	private SmartLaunchContextMapper launchContextMapper;
+	private ProtocolMapperModel launchContextMappingModel;
+	private BenchmarkClientSession clientSession;
+	private UserSessionModel userSession;
+	private KeycloakSession session;
+
+	@Setup
+	public void setup() {
+		String[] names = { "patient", "encounter", "location", "resource", "intent", "tenant" };
+		Map<String, String> params = new LinkedHashMap<>();
+		noteMapper = new ClientSessionNoteMapper();
+		noteMappingModels = new ProtocolMapperModel[launchParams];
+		for (int i = 0; i < launchParams; i++) {
+			params.put(names[i], "value-" + i);
+			noteMappingModels[i] = ClientSessionNoteMapper.createClaimMapper(names[i], 
+					SmartLaunchContextAuthenticator.LAUNCH_SCOPE_PREFIX + names[i], names[i], "String", true, true);
+			noteMappingModels[i].setId(names[i] + "-mapper");
+		}
+		clientSession = BenchmarkClientSession.withNotes(params, 10);
+
+		launchContextMapper = new SmartLaunchContextMapper();
+		launchContextMappingModel = SmartLaunchContextMapper.createLaunchContextMapper("launch",
+				String.join(" ", Arrays.copyOf(names, launchParams)), true, true, true);
+		launchContextMappingModel.setId("launch-mapper");
+		userSession = Mockito.mock(UserSessionModel.class, Mockito.withSettings().stubOnly());
+		session = Mockito.mock(KeycloakSession.class, Mockito.withSettings().stubOnly());
+	}
+
+	@Benchmark
+	public AccessToken clientSessionNoteMappers() {
+		AccessToken token = new AccessToken();
+		for (ProtocolMapperModel mappingModel : noteMappingModels) {
+			noteMapper.transformAccessToken(token, mappingModel, session, userSession, clientSession);
+		}
+		return token;
+	}
+
+	@Benchmark
+	public AccessToken launchContextMapper() {
+		return launchContextMapper.transformAccessToken(new AccessToken(), launchContextMappingModel, session, userSession, clientSession);
+	}
+}
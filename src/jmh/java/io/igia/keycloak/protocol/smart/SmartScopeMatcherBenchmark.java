@@ -0,0 +1,74 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.igia.keycloak.protocol.smart.SmartScope.Compartment;
+import io.igia.keycloak.protocol.smart.SmartScope.Permission;
+
+/**
+ * Single threaded access decisions on the scopes granted to a token, with a
+ * growing number of v2 resource scopes, one of them query constrained.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SmartScopeMatcherBenchmark {
+	@Param({ "5", "50", "500" })
+	public int resourceScopes;
+
+	private SmartScopeMatcher matcher;
+	private Map<String, String> laboratory = Collections.singletonMap("category", "laboratory");
+
+	@Setup
+	public void setup() {
+		StringBuilder scope = new StringBuilder("openid fhirUser launch/patient patient/Observation.rs?category=laboratory");
+		for (int i = 0; i < resourceScopes; i++) {
+			scope.append(" patient/Resource").append(i).append(".rs");
+		}
+		matcher = SmartScopes.parse(scope.toString()).getMatcher();
+	}
+
+	@Benchmark
+	public boolean unconditional() {
+		return matcher.isAllowed(Compartment.PATIENT, "Resource0", Permission.READ);
+	}
+
+	@Benchmark
+	public boolean constrained() {
+		return matcher.isAllowed(Compartment.PATIENT, "Observation", Permission.SEARCH, laboratory);
+	}
+
+	@Benchmark
+	public boolean denied() {
+		return matcher.isAllowed(Compartment.PATIENT, "Condition", Permission.CREATE);
+	}
+}
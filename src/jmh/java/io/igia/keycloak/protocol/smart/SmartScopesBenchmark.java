@@ -0,0 +1,65 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.igia.keycloak.authentication.SmartLaunchMatcher;
+import io.igia.keycloak.protocol.smart.SmartScope.Compartment;
+import io.igia.keycloak.protocol.smart.SmartScope.Permission;
+
+/**
+ * Launch context and permission queries on the scope parameter of an
+ * authentication session, through the interned scope model and by tokenizing
+ * the raw string as before.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SmartScopesBenchmark {
+	public String scope = "openid fhirUser offline_access launch/patient launch/encounter patient/Patient.read"
+			+ " patient/Observation.read patient/Condition.read patient/MedicationRequest.read user/Practitioner.read";
+
+	@Benchmark
+	public boolean scopes() {
+		SmartScopes scopes = SmartScopes.parse(scope);
+		return scopes.hasLaunchContext("patient") && scopes.hasLaunchContext("encounter")
+				&& scopes.isPermitted(Compartment.PATIENT, "Observation", Permission.READ);
+	}
+
+	@Benchmark
+	public boolean tokenize() {
+		boolean patient = false;
+		boolean encounter = false;
+		boolean observation = false;
+		for (String token : SmartLaunchMatcher.tokenize(scope)) {
+			patient |= token.equals("launch/" + "patient");
+			encounter |= token.equals("launch/" + "encounter");
+			observation |= token.equals("patient/Observation.read") || token.equals("patient/*.read");
+		}
+		return patient && encounter && observation;
+	}
+}
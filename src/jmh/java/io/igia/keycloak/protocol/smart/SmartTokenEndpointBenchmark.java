@@ -0,0 +1,65 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.models.RealmModel;
+import org.keycloak.protocol.oidc.endpoints.TokenEndpoint;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-request resolution of the SMART token endpoint: protocol service creation
+ * and sub-resource injection, compared to a new token manager and a reflective
+ * injectProperties call on every request.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SmartTokenEndpointBenchmark {
+	private RealmModel realm;
+	private EventBuilder event;
+
+	@Setup
+	public void setup() {
+		realm = Mockito.mock(RealmModel.class, Mockito.withSettings().stubOnly());
+		event = Mockito.mock(EventBuilder.class, Mockito.withSettings().stubOnly());
+	}
+
+	@Benchmark
+	public Object tokenEndpoint() {
+		return new SmartOIDCLoginProtocolService(realm, event).token();
+	}
+
+	@Benchmark
+	public Object tokenEndpointReflectiveInjection() {
+		TokenEndpoint endpoint = new SmartTokenEndpoint(new SmartTokenManager(), realm, event);
+		ResteasyProviderFactory.getInstance().injectProperties(endpoint);
+		return endpoint;
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.common.util.Time;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.crypto.RSAProvider;
+import org.keycloak.models.ActionTokenKeyModel;
+import org.keycloak.models.ActionTokenStoreProvider;
+import org.keycloak.models.ActionTokenValueModel;
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.UserSessionProvider;
+import org.keycloak.representations.AccessToken;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resource servers concurrently introspecting a hot set of access tokens. A
+ * miss verifies the RS256 signature and reads the launch context from the
+ * session; a TTL of 0 disables the introspection cache. In reference format a
+ * miss first resolves the reference in the action token store, stubbed by an
+ * in-memory map standing for a local replicated cache hit. The Authorization
+ * header size of both formats is printed at setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class SmartTokenIntrospectionBenchmark {
+	@Param({ "0", "10" })
+	public int ttlSeconds;
+
+	@Param({ "1", "1000" })
+	public int hotTokens;
+
+	@Param({ "jwt", "reference" })
+	public String tokenFormat;
+
+	private String[] tokens;
+	private SmartTokenIntrospectionProvider provider;
+
+	@Setup
+	public void setup() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair keyPair = generator.generateKeyPair();
+		tokens = new String[hotTokens];
+		for (int i = 0; i < hotTokens; i++) {
+			AccessToken accessToken = new AccessToken();
+			accessToken.id("token-" + i);
+			accessToken.issuedFor("smart-app");
+			accessToken.setSessionState("session-id");
+			accessToken.expiration(Time.currentTime() + 3600);
+			accessToken.setScope("openid fhirUser launch launch/patient launch/encounter offline_access"
+					+ " patient/Patient.rs patient/Observation.rs patient/Condition.rs patient/MedicationRequest.rs"
+					+ " patient/AllergyIntolerance.rs patient/Procedure.rs patient/Immunization.rs patient/DiagnosticReport.rs"
+					+ " user/Practitioner.rs user/Organization.rs");
+			accessToken.setOtherClaims("patient", "12345");
+			accessToken.setOtherClaims("encounter", "67890");
+			accessToken.setOtherClaims("fhirContext", "[{\"reference\":\"Encounter/67890\"},{\"reference\":\"ServiceRequest/24680\"}]");
+			tokens[i] = new JWSBuilder().jsonContent(accessToken).rsa256(keyPair.getPrivate());
+		}
+
+		RealmModel realm = Mockito.mock(RealmModel.class, Mockito.withSettings().stubOnly());
+		Mockito.when(realm.getId()).thenReturn("realm-id");
+		KeycloakContext context = Mockito.mock(KeycloakContext.class, Mockito.withSettings().stubOnly());
+		Mockito.when(context.getRealm()).thenReturn(realm);
+		KeycloakSession session = Mockito.mock(KeycloakSession.class, Mockito.withSettings().stubOnly());
+		Mockito.when(session.getContext()).thenReturn(context);
+		ClientModel client = Mockito.mock(ClientModel.class, Mockito.withSettings().stubOnly());
+		Mockito.when(client.getId()).thenReturn("client-id");
+		Mockito.when(realm.getClientByClientId("smart-app")).thenReturn(client);
+		AuthenticatedClientSessionModel clientSession = Mockito.mock(AuthenticatedClientSessionModel.class, Mockito.withSettings().stubOnly());
+		Mockito.when(clientSession.getNote(SmartLaunchContext.LAUNCH_CONTEXT_NOTE))
+				.thenReturn(SmartLaunchContext.of(Collections.singletonMap("patient", "12345")).encoded());
+		UserSessionModel userSession = Mockito.mock(UserSessionModel.class, Mockito.withSettings().stubOnly());
+		Mockito.when(userSession.getAuthenticatedClientSessionByClient("client-id")).thenReturn(clientSession);
+		UserSessionProvider sessions = Mockito.mock(UserSessionProvider.class, Mockito.withSettings().stubOnly());
+		Mockito.when(sessions.getUserSession(realm, "session-id")).thenReturn(userSession);
+		Mockito.when(session.sessions()).thenReturn(sessions);
+
+		Map<UUID, Map<String, String>> entries = new ConcurrentHashMap<>();
+		ActionTokenStoreProvider actionTokenStore = Mockito.mock(ActionTokenStoreProvider.class, Mockito.withSettings().stubOnly());
+		Mockito.doAnswer(invocation -> entries.put(invocation.<ActionTokenKeyModel>getArgument(0).getActionVerificationNonce(),
+				invocation.getArgument(1))).when(actionTokenStore)
+				.put(ArgumentMatchers.any(ActionTokenKeyModel.class), ArgumentMatchers.<Map<String, String>>any());
+		Mockito.when(actionTokenStore.get(ArgumentMatchers.any(ActionTokenKeyModel.class))).thenAnswer(invocation -> {
+			Map<String, String> notes = entries.get(invocation.<ActionTokenKeyModel>getArgument(0).getActionVerificationNonce());
+			if (notes == null) {
+				return null;
+			}
+			return new ActionTokenValueModel() {
+				@Override
+				public Map<String, String> getNotes() {
+					return notes;
+				}
+
+				@Override
+				public String getNote(String name) {
+					return notes.get(name);
+				}
+			};
+		});
+		Mockito.when(session.getProvider(ActionTokenStoreProvider.class)).thenReturn(actionTokenStore);
+		if ("reference".equals(tokenFormat)) {
+			SmartReferenceTokenStore store = new SmartReferenceTokenStore(session);
+			String signed = tokens[0];
+			for (int i = 0; i < hotTokens; i++) {
+				tokens[i] = store.issue(realm, tokens[i], Time.currentTime() + 3600);
+			}
+			System.out.println("Authorization header bytes: jwt " + ("Bearer " + signed).length()
+					+ ", reference " + ("Bearer " + tokens[0]).length());
+		}
+
+		IntrospectionCache cache = new IntrospectionCache();
+		cache.configure(TimeUnit.SECONDS.toMillis(ttlSeconds), IntrospectionCache.DEFAULT_MAX_ENTRIES);
+		provider = new SmartTokenIntrospectionProvider(session, cache) {
+			@Override
+			protected AccessToken verifyAccessToken(String token) {
+				// signature check of Keycloak without the key and session lookups
+				try {
+					JWSInput jws = new JWSInput(token);
+					return RSAProvider.verify(jws, keyPair.getPublic()) ? jws.readJsonContent(AccessToken.class) : null;
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	}
+
+	@Benchmark
+	public byte[] introspect() {
+		return provider.introspectCached(tokens[ThreadLocalRandom.current().nextInt(hotTokens)]).response;
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.events.EventBuilder;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.AccessTokenResponse;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import io.igia.keycloak.protocol.smart.SmartTokenManager.SmartAccessTokenResponseBuilder;
+
+/**
+ * Token response building with SMART launch claims, for client sessions
+ * carrying a growing number of notes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SmartTokenManagerBenchmark {
+	@Param({ "10", "100", "200" })
+	public int clientSessionNotes;
+
+	private SmartAccessTokenResponseBuilder builder;
+
+	@Setup
+	public void setup() {
+		Map<String, String> launchParams = new LinkedHashMap<>();
+		launchParams.put("patient", "12345");
+		launchParams.put("encounter", "67890");
+		launchParams.put("location", "loc-1");
+		BenchmarkClientSession clientSession = BenchmarkClientSession.withNotes(launchParams, clientSessionNotes);
+
+		ClientSessionContext clientSessionCtx = Mockito.mock(ClientSessionContext.class, Mockito.withSettings().stubOnly());
+		Mockito.when(clientSessionCtx.getClientSession()).thenReturn(clientSession);
+
+		SmartTokenManager tokenManager = new SmartTokenManager();
+		builder = tokenManager.new SmartAccessTokenResponseBuilder(
+				Mockito.mock(RealmModel.class, Mockito.withSettings().stubOnly()),
+				Mockito.mock(ClientModel.class, Mockito.withSettings().stubOnly()),
+				Mockito.mock(EventBuilder.class, Mockito.withSettings().stubOnly()),
+				Mockito.mock(KeycloakSession.class, Mockito.withSettings().stubOnly()),
+				Mockito.mock(UserSessionModel.class, Mockito.withSettings().stubOnly()),
+				clientSessionCtx) {
+			@Override
+			protected AccessTokenResponse buildAccessTokenResponse() {
+				// isolate the SMART specific work from the signing done by Keycloak
+				return new AccessTokenResponse();
+			}
+		};
+	}
+
+	@Benchmark
+	public AccessTokenResponse build() {
+		return builder.build();
+	}
+}
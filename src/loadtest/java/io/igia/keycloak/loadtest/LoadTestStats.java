@@ -0,0 +1,92 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.loadtest;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.igia.keycloak.loadtest.SmartLaunchFlow.Step;
+import io.igia.keycloak.protocol.smart.LatencyHistogram;
+
+/**
+ * Latency and error counts of each flow step, plus whole flows, for one
+ * measurement window.
+ */
+public class LoadTestStats {
+	private final Map<Step, LatencyHistogram> latencies = new EnumMap<>(Step.class);
+	private final Map<Step, LongAdder> errors = new EnumMap<>(Step.class);
+	// first message of each distinct error, to tell failures apart in the report
+	private final ConcurrentMap<String, LongAdder> errorMessages = new ConcurrentHashMap<>();
+	private final LatencyHistogram flows = new LatencyHistogram();
+	private final LongAdder failedFlows = new LongAdder();
+	private final long startNanos = System.nanoTime();
+
+	public LoadTestStats() {
+		for (Step step : Step.values()) {
+			latencies.put(step, new LatencyHistogram());
+			errors.put(step, new LongAdder());
+		}
+	}
+
+	public void record(Step step, long startNanos, boolean success) {
+		if (success) {
+			latencies.get(step).record(System.nanoTime() - startNanos);
+		} else {
+			errors.get(step).increment();
+		}
+	}
+
+	public void recordError(Step step, Exception e) {
+		String message = step + ": " + e.getMessage();
+		if (errorMessages.size() < 20 || errorMessages.containsKey(message)) {
+			errorMessages.computeIfAbsent(message, key -> new LongAdder()).increment();
+		}
+	}
+
+	public void recordFlow(long startNanos, boolean success) {
+		if (success) {
+			flows.record(System.nanoTime() - startNanos);
+		} else {
+			failedFlows.increment();
+		}
+	}
+
+	public long getCompletedFlows() {
+		return flows.getCount();
+	}
+
+	public void report(PrintStream out) {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		out.printf("%-12s %10s %8s %10s %10s %10s%n", "step", "count", "errors", "p50 ms", "p99 ms", "mean ms");
+		for (Step step : Step.values()) {
+			line(out, step.name().toLowerCase(), latencies.get(step), errors.get(step).sum());
+		}
+		line(out, "flow", flows, failedFlows.sum());
+		out.printf("%nthroughput: %.1f launches/s over %.1f s (%d completed, %d failed)%n",
+				flows.getCount() / seconds, seconds, flows.getCount(), failedFlows.sum());
+		for (Map.Entry<String, LongAdder> error : errorMessages.entrySet()) {
+			out.printf("error x%d: %s%n", error.getValue().sum(), error.getKey());
+		}
+	}
+
+	private static void line(PrintStream out, String name, LatencyHistogram histogram, long errors) {
+		long count = histogram.getCount();
+		out.printf("%-12s %10d %8d %10.2f %10.2f %10.2f%n", name, count, errors,
+				histogram.quantileNanos(0.5) / 1e6, histogram.quantileNanos(0.99) / 1e6,
+				count == 0 ? 0d : histogram.getSumNanos() / 1e6 / count);
+	}
+}
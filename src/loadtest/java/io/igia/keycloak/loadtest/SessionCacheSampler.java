@@ -0,0 +1,106 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Samples the active user and client session counts of the realm through the
+ * admin REST API, to follow session cache growth during the run.
+ */
+public class SessionCacheSampler {
+	private final SmartLaunchLoadTest.Options options;
+	private final CloseableHttpClient httpClient;
+	private final List<long[]> samples = new ArrayList<>();
+	private final long startMillis = System.currentTimeMillis();
+
+	public SessionCacheSampler(SmartLaunchLoadTest.Options options, CloseableHttpClient httpClient) {
+		this.options = options;
+		this.httpClient = httpClient;
+	}
+
+	/**
+	 * Records the current count of active sessions of all realm clients. Returns
+	 * false when the admin API is not reachable with the configured credentials.
+	 */
+	public synchronized boolean sample() {
+		try {
+			HttpGet stats = new HttpGet(options.url + "/admin/realms/" + options.realm + "/client-session-stats");
+			stats.setHeader("Authorization", "Bearer " + adminToken());
+			long active = 0;
+			for (JsonNode client : read(stats)) {
+				active += client.path("active").asLong();
+			}
+			samples.add(new long[] { System.currentTimeMillis() - startMillis, active });
+			return true;
+		} catch (IOException e) {
+			System.err.println("Session stats not available: " + e.getMessage());
+			return false;
+		}
+	}
+
+	public synchronized void report(PrintStream out, long completedFlows) {
+		if (samples.isEmpty()) {
+			return;
+		}
+		long first = samples.get(0)[1];
+		long last = samples.get(samples.size() - 1)[1];
+		long peak = 0;
+		out.printf("%nactive client sessions:%n");
+		for (long[] sample : samples) {
+			peak = Math.max(peak, sample[1]);
+			out.printf("  %7.1f s %10d%n", sample[0] / 1000d, sample[1]);
+		}
+		double seconds = Math.max(1, samples.get(samples.size() - 1)[0] - samples.get(0)[0]) / 1000d;
+		out.printf("session growth: %d -> %d (peak %d), %.1f sessions/s, %.2f sessions per launch%n",
+				first, last, peak, (last - first) / seconds, completedFlows == 0 ? 0d : (last - first) / (double) completedFlows);
+	}
+
+	private String adminToken() throws IOException {
+		HttpPost token = new HttpPost(options.url + "/realms/master/protocol/openid-connect/token");
+		token.setEntity(new UrlEncodedFormEntity(Arrays.asList(
+				new BasicNameValuePair(OAuth2Constants.GRANT_TYPE, OAuth2Constants.PASSWORD),
+				new BasicNameValuePair(OAuth2Constants.CLIENT_ID, "admin-cli"),
+				new BasicNameValuePair("username", options.adminUsername),
+				new BasicNameValuePair("password", options.adminPassword)), StandardCharsets.UTF_8));
+		return read(token).path(OAuth2Constants.ACCESS_TOKEN).asText();
+	}
+
+	private JsonNode read(HttpUriRequest request) throws IOException {
+		try (CloseableHttpResponse response = httpClient.execute(request)) {
+			String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+			if (response.getStatusLine().getStatusCode() != 200) {
+				throw new IOException(request.getURI().getPath() + " returned " + response.getStatusLine());
+			}
+			return JsonSerialization.readValue(body, JsonNode.class);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * One standalone SMART launch as a new browser would run it: authorize, login
+ * form, external launch app, smart-launch-context callback and the code to
+ * token exchange. Redirects are followed by hand so every hop is timed as its
+ * own step.
+ */
+public class SmartLaunchFlow {
+	public enum Step {
+		AUTHORIZE, LOGIN, LAUNCH_APP, CALLBACK, TOKEN
+	}
+
+	private static final Pattern LOGIN_FORM_ACTION = Pattern.compile("<form[^>]*id=\"kc-form-login\"[^>]*action=\"([^\"]+)\"");
+	private static final int MAX_REDIRECTS = 10;
+
+	private final SmartLaunchLoadTest.Options options;
+	private final CloseableHttpClient httpClient;
+
+	public SmartLaunchFlow(SmartLaunchLoadTest.Options options, CloseableHttpClient httpClient) {
+		this.options = options;
+		this.httpClient = httpClient;
+	}
+
+	/**
+	 * Runs one launch, recording each step into the given stats. Returns whether
+	 * the launch ended with an access token carrying the patient context.
+	 */
+	public boolean run(LoadTestStats stats) {
+		HttpClientContext context = HttpClientContext.create();
+		context.setCookieStore(new BasicCookieStore());
+		Step step = Step.AUTHORIZE;
+		long start = System.nanoTime();
+		try {
+			String page = execute(new HttpGet(authorizeUri()), context, 200);
+			stats.record(step, start, true);
+
+			step = Step.LOGIN;
+			start = System.nanoTime();
+			HttpPost login = new HttpPost(loginFormAction(page));
+			login.setEntity(form("username", options.username, "password", options.password, "login", "Log in"));
+			String location = redirect(login, context);
+			stats.record(step, start, true);
+
+			String code = null;
+			for (int i = 0; code == null && i < MAX_REDIRECTS; i++) {
+				URI uri = URI.create(location);
+				code = authorizationCode(location);
+				if (code != null) {
+					break;
+				}
+				if (uri.getPath() != null && uri.getPath().endsWith("/smart-launch-context")) {
+					step = Step.CALLBACK;
+					start = System.nanoTime();
+					location = redirect(new HttpGet(uri), context);
+				} else {
+					step = Step.LAUNCH_APP;
+					start = System.nanoTime();
+					location = redirect(new HttpGet(stubLaunchUri(location)), context);
+				}
+				stats.record(step, start, true);
+			}
+			if (code == null) {
+				throw new IOException("No authorization code after " + MAX_REDIRECTS + " redirects");
+			}
+
+			step = Step.TOKEN;
+			start = System.nanoTime();
+			HttpPost token = new HttpPost(options.protocolUrl() + "/token");
+			token.setEntity(form(OAuth2Constants.GRANT_TYPE, OAuth2Constants.AUTHORIZATION_CODE, OAuth2Constants.CODE, code,
+					OAuth2Constants.CLIENT_ID, options.clientId, OAuth2Constants.REDIRECT_URI, options.redirectUri));
+			JsonNode tokenResponse = JsonSerialization.readValue(execute(token, context, 200), JsonNode.class);
+			if (!tokenResponse.hasNonNull(OAuth2Constants.ACCESS_TOKEN) || !tokenResponse.hasNonNull("patient")) {
+				throw new IOException("Token response without access token or patient: " + tokenResponse);
+			}
+			stats.record(step, start, true);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			stats.record(step, start, false);
+			stats.recordError(step, e);
+			return false;
+		}
+	}
+
+	// authorization runs through the openid-connect protocol with the SMART browser flow
+	private URI authorizeUri() throws IOException {
+		try {
+			return new URIBuilder(options.url + "/realms/" + options.realm + "/protocol/openid-connect/auth")
+					.addParameter(OAuth2Constants.RESPONSE_TYPE, OAuth2Constants.CODE)
+					.addParameter(OAuth2Constants.CLIENT_ID, options.clientId)
+					.addParameter(OAuth2Constants.REDIRECT_URI, options.redirectUri)
+					.addParameter(OAuth2Constants.SCOPE, options.scope)
+					.addParameter(OAuth2Constants.STATE, UUID.randomUUID().toString())
+					.addParameter("aud", options.aud)
+					.build();
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * The configured external launch URL may keep its query in the fragment of
+	 * a single page app, the stub is called with that query either way.
+	 */
+	private URI stubLaunchUri(String location) {
+		String query = location.substring(location.indexOf('?') + 1);
+		return URI.create("http://127.0.0.1:" + options.stubPort + StubLaunchApp.LAUNCH_PATH + "?" + query);
+	}
+
+	private String authorizationCode(String location) throws IOException {
+		if (!location.startsWith(options.redirectUri)) {
+			return null;
+		}
+		String error = StubLaunchApp.queryParam(URI.create(location).getRawQuery(), OAuth2Constants.ERROR);
+		if (error != null) {
+			throw new IOException("Authorization failed: " + error);
+		}
+		return StubLaunchApp.queryParam(URI.create(location).getRawQuery(), OAuth2Constants.CODE);
+	}
+
+	private String redirect(HttpUriRequest request, HttpClientContext context) throws IOException {
+		try (CloseableHttpResponse response = httpClient.execute(request, context)) {
+			EntityUtils.consumeQuietly(response.getEntity());
+			if (response.getStatusLine().getStatusCode() != 302 && response.getStatusLine().getStatusCode() != 303) {
+				throw unexpected(request, response);
+			}
+			return response.getFirstHeader("Location").getValue();
+		}
+	}
+
+	private String execute(HttpUriRequest request, HttpClientContext context, int expectedStatus) throws IOException {
+		try (CloseableHttpResponse response = httpClient.execute(request, context)) {
+			String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+			if (response.getStatusLine().getStatusCode() != expectedStatus) {
+				throw unexpected(request, response);
+			}
+			return body;
+		}
+	}
+
+	private static IOException unexpected(HttpUriRequest request, HttpResponse response) {
+		return new IOException(request.getMethod() + " " + request.getURI().getPath() + " returned " + response.getStatusLine());
+	}
+
+	private static String loginFormAction(String page) throws IOException {
+		Matcher matcher = LOGIN_FORM_ACTION.matcher(page);
+		if (!matcher.find()) {
+			throw new IOException("Login form not found");
+		}
+		return matcher.group(1).replace("&amp;", "&");
+	}
+
+	private static UrlEncodedFormEntity form(String... nameValues) {
+		List<NameValuePair> params = new ArrayList<>();
+		for (int i = 0; i < nameValues.length; i += 2) {
+			params.add(new BasicNameValuePair(nameValues[i], nameValues[i + 1]));
+		}
+		return new UrlEncodedFormEntity(params, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.loadtest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+
+/**
+ * End to end load test of the standalone SMART launch against a running
+ * Keycloak with this provider and the igia realm, for example the
+ * docker-compose setup of src/main/docker. Starts the stub external launch
+ * app, runs concurrent launches for the configured duration after a warm up
+ * and reports throughput, per step latency and active session growth.
+ * <p>
+ * Options are passed as key=value arguments, see {@link Options}.
+ */
+public class SmartLaunchLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		Options options = Options.parse(args);
+		StubLaunchApp stub = new StubLaunchApp(options.secret, options.patient, options.stubPort, options.users);
+		stub.start();
+		CloseableHttpClient httpClient = HttpClients.custom()
+				.setMaxConnTotal(options.users * 2)
+				.setMaxConnPerRoute(options.users * 2)
+				.disableRedirectHandling()
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectTimeout(10000).setSocketTimeout(30000).build())
+				.build();
+		SessionCacheSampler sampler = new SessionCacheSampler(options, httpClient);
+		ExecutorService users = Executors.newFixedThreadPool(options.users);
+		try {
+			System.out.printf("SMART launch load test: %d users, %d s warm up, %d s measurement, %s realm %s, client %s%n",
+					options.users, options.warmup, options.duration, options.url, options.realm, options.clientId);
+			boolean sampling = sampler.sample();
+
+			LoadTestRun warmup = new LoadTestRun(options, httpClient);
+			warmup.start(users);
+			Thread.sleep(TimeUnit.SECONDS.toMillis(options.warmup));
+			warmup.stop();
+
+			LoadTestRun measurement = new LoadTestRun(options, httpClient);
+			measurement.start(users);
+			long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(options.duration);
+			while (System.currentTimeMillis() < end) {
+				Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(options.sampleInterval), Math.max(1, end - System.currentTimeMillis())));
+				if (sampling) {
+					sampler.sample();
+				}
+			}
+			measurement.stop();
+
+			System.out.println();
+			measurement.getStats().report(System.out);
+			sampler.report(System.out, warmup.getStats().getCompletedFlows() + measurement.getStats().getCompletedFlows());
+			System.out.printf("stub launch app served %d launches%n", stub.getLaunches());
+		} finally {
+			users.shutdownNow();
+			users.awaitTermination(30, TimeUnit.SECONDS);
+			httpClient.close();
+			stub.stop();
+		}
+	}
+
+	/**
+	 * Virtual users running launches back to back until stopped.
+	 */
+	static final class LoadTestRun {
+		private final Options options;
+		private final CloseableHttpClient httpClient;
+		private final LoadTestStats stats = new LoadTestStats();
+		private final List<Future<?>> futures = new ArrayList<>();
+		private volatile boolean running = true;
+
+		LoadTestRun(Options options, CloseableHttpClient httpClient) {
+			this.options = options;
+			this.httpClient = httpClient;
+		}
+
+		void start(ExecutorService users) {
+			for (int i = 0; i < options.users; i++) {
+				futures.add(users.submit(() -> {
+					SmartLaunchFlow flow = new SmartLaunchFlow(options, httpClient);
+					while (running && !Thread.currentThread().isInterrupted()) {
+						long start = System.nanoTime();
+						stats.recordFlow(start, flow.run(stats));
+					}
+				}));
+			}
+		}
+
+		void stop() throws Exception {
+			running = false;
+			for (Future<?> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		}
+
+		LoadTestStats getStats() {
+			return stats;
+		}
+	}
+
+	/**
+	 * Load test settings. Defaults match the igia realm of src/main/docker.
+	 */
+	public static final class Options {
+		// Keycloak base URL, including the /auth context
+		String url = "http://localhost:9080/auth";
+		String realm = "igia";
+		String clientId = "patient_data_manager";
+		String redirectUri = "http://localhost:8096/";
+		String scope = "openid launch/patient";
+		String aud = "http://localhost:8081/fhir";
+		String username = "user";
+		String password = "user";
+		String adminUsername = "admin";
+		String adminPassword = "admin";
+		// External SMART Launch Secret Key of the authenticator config
+		String secret = "aSqzP4reFgWR4j94BDT1r+81QYp/NYbY9SBwXtqV1ko=";
+		String patient = "12345";
+		// port of the External SMART Launch URL, 9081 in the igia realm
+		int stubPort = 9081;
+		int users = 16;
+		int warmup = 10;
+		int duration = 60;
+		int sampleInterval = 5;
+
+		static Options parse(String[] args) {
+			Map<String, String> values = new HashMap<>();
+			for (String arg : args) {
+				int separator = arg.indexOf('=');
+				if (separator <= 0) {
+					throw new IllegalArgumentException("Expected key=value argument: " + arg);
+				}
+				values.put(arg.substring(0, separator), arg.substring(separator + 1));
+			}
+			Options options = new Options();
+			options.url = values.getOrDefault("url", options.url);
+			options.realm = values.getOrDefault("realm", options.realm);
+			options.clientId = values.getOrDefault("client", options.clientId);
+			options.redirectUri = values.getOrDefault("redirect", options.redirectUri);
+			options.scope = values.getOrDefault("scope", options.scope);
+			options.aud = values.getOrDefault("aud", options.aud);
+			options.username = values.getOrDefault("username", options.username);
+			options.password = values.getOrDefault("password", options.password);
+			options.adminUsername = values.getOrDefault("admin-username", options.adminUsername);
+			options.adminPassword = values.getOrDefault("admin-password", options.adminPassword);
+			options.secret = values.getOrDefault("secret", options.secret);
+			options.patient = values.getOrDefault("patient", options.patient);
+			options.stubPort = Integer.parseInt(values.getOrDefault("stub-port", String.valueOf(options.stubPort)));
+			options.users = Integer.parseInt(values.getOrDefault("users", String.valueOf(options.users)));
+			options.warmup = Integer.parseInt(values.getOrDefault("warmup", String.valueOf(options.warmup)));
+			options.duration = Integer.parseInt(values.getOrDefault("duration", String.valueOf(options.duration)));
+			options.sampleInterval = Integer.parseInt(values.getOrDefault("sample-interval", String.valueOf(options.sampleInterval)));
+			return options;
+		}
+
+		String protocolUrl() {
+			return url + "/realms/" + realm + "/protocol/smart-openid-connect";
+		}
+	}
+}
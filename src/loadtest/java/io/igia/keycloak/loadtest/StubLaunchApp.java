@@ -0,0 +1,134 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.keycloak.common.util.Base64;
+import org.keycloak.common.util.Time;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.representations.JsonWebToken;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the external SMART launch app. The browser redirect
+ * carries the Keycloak callback URL in the token query parameter; the stub
+ * signs an app-token holding the launch context with the authenticator
+ * HmacSHA256 secret and redirects back to the callback. A POST to
+ * {@value #BACKCHANNEL_PATH} answers the backchannel launch mode.
+ */
+public class StubLaunchApp {
+	static final String LAUNCH_PATH = "/launch";
+	static final String BACKCHANNEL_PATH = "/launch-context";
+	private static final String TOKEN_PARAM = "token";
+	private static final String APP_TOKEN_PLACEHOLDER = "%7BAPP_TOKEN%7D";
+	private static final int APP_TOKEN_LIFESPAN_SECONDS = 60;
+
+	private final SecretKey secretKey;
+	private final String patient;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final LongAdder launches = new LongAdder();
+
+	public StubLaunchApp(String secret, String patient, int port, int threads) throws IOException {
+		this.secretKey = new SecretKeySpec(Base64.decode(secret), "HmacSHA256");
+		this.patient = patient;
+		this.server = HttpServer.create(new InetSocketAddress(port), 256);
+		this.executor = Executors.newFixedThreadPool(threads);
+		server.createContext(LAUNCH_PATH, this::launch);
+		server.createContext(BACKCHANNEL_PATH, this::backchannel);
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public long getLaunches() {
+		return launches.sum();
+	}
+
+	String signAppToken() {
+		JsonWebToken appToken = new JsonWebToken();
+		appToken.id(UUID.randomUUID().toString()).issuedNow().expiration(Time.currentTime() + APP_TOKEN_LIFESPAN_SECONDS);
+		appToken.setOtherClaims("patient", patient);
+		return new JWSBuilder().jsonContent(appToken).hmac256(secretKey);
+	}
+
+	private void launch(HttpExchange exchange) throws IOException {
+		String callback = queryParam(exchange.getRequestURI().getRawQuery(), TOKEN_PARAM);
+		if (callback == null || !callback.contains(APP_TOKEN_PLACEHOLDER)) {
+			respond(exchange, 400, "missing token parameter");
+			return;
+		}
+		launches.increment();
+		exchange.getResponseHeaders().set("Location", callback.replace(APP_TOKEN_PLACEHOLDER, signAppToken()));
+		respond(exchange, 302, "");
+	}
+
+	private void backchannel(HttpExchange exchange) throws IOException {
+		try (InputStream body = exchange.getRequestBody()) {
+			while (body.read() != -1) {
+				// launch params are not needed to sign the fixed launch context
+			}
+		}
+		launches.increment();
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		respond(exchange, 200, "{\"app-token\":\"" + signAppToken() + "\"}");
+	}
+
+	static String queryParam(String rawQuery, String name) throws UnsupportedEncodingException {
+		if (rawQuery == null) {
+			return null;
+		}
+		for (String pair : rawQuery.split("&")) {
+			int separator = pair.indexOf('=');
+			if (separator > 0 && pair.substring(0, separator).equals(name)) {
+				return URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8.name());
+			}
+		}
+		return null;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.authenticators.client.JWTClientAuthenticator;
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.common.util.PemUtils;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.jose.jwk.JWK;
+import org.keycloak.jose.jwk.JWKParser;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.protocol.oidc.OIDCAdvancedConfigWrapper;
+import org.keycloak.protocol.oidc.utils.JWKSHttpUtils;
+
+/**
+ * Parsed signature verification keys of clients authenticating with signed JWT
+ * assertions. The keys come from the client JWKS URL or, without one, from its
+ * registered certificate, and are parsed once per load. An assertion with an
+ * unknown kid reloads the keys so rotated keys are picked up, at most once per
+ * {@link #MIN_REFRESH_INTERVAL_MILLIS} per client; only one thread reloads
+ * while the others keep using the loaded keys.
+ */
+public class ClientPublicKeyCache {
+	private static final Logger LOG = Logger.getLogger(ClientPublicKeyCache.class);
+
+	static final long MIN_REFRESH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+	static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+	static final int MAX_CLIENTS = 10_000;
+	static final String JWKS_URL_ATTR = "jwks.url";
+	static final String JWKS_SOURCE = "jwks:";
+	static final String CERTIFICATE_SOURCE = "cert:";
+
+	private static final String EC_KEY_TYPE = "EC";
+	private static final Map<String, String> CURVES = new HashMap<>();
+
+	static {
+		CURVES.put("P-256", "secp256r1");
+		CURVES.put("P-384", "secp384r1");
+		CURVES.put("P-521", "secp521r1");
+	}
+
+	private final ConcurrentMap<String, ClientKeys> clients = new ConcurrentHashMap<>();
+	private final KeyLoader loader;
+
+	public ClientPublicKeyCache() {
+		this(ClientPublicKeyCache::loadKeys);
+	}
+
+	ClientPublicKeyCache(KeyLoader loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * Returns the client key with the kid, or the only key of the client when
+	 * the assertion has no kid or the key is a certificate. Returns null when
+	 * the client has no such key.
+	 */
+	public PublicKey getKey(KeycloakSession session, ClientModel client, String kid) throws IOException {
+		String source = keySource(client);
+		if (source == null) {
+			throw new IOException("Client " + client.getClientId() + " has no JWKS URL or certificate");
+		}
+
+		long now = System.currentTimeMillis();
+		ClientKeys keys = clients.get(client.getId());
+		if (keys == null || !keys.source.equals(source)) {
+			keys = load(session, client, source, now, 0);
+		} else if (now - keys.loadedAt >= MAX_AGE_MILLIS && keys.startRefresh(now)) {
+			keys = reload(session, client, keys, now);
+		}
+
+		PublicKey key = keys.get(kid);
+		if (key == null && keys.startRefresh(now)) {
+			LOG.debugf("Unknown key %s of client %s, reloading its keys", kid, client.getClientId());
+			key = reload(session, client, keys, now).get(kid);
+		}
+		return key;
+	}
+
+	private ClientKeys reload(KeycloakSession session, ClientModel client, ClientKeys keys, long now) throws IOException {
+		try {
+			return load(session, client, keys.source, now, now);
+		} catch (IOException e) {
+			// keep serving the loaded keys until they can be reloaded
+			LOG.warnf("Failed to reload keys of client %s: %s", client.getClientId(), e.getMessage());
+			return keys;
+		}
+	}
+
+	private ClientKeys load(KeycloakSession session, ClientModel client, String source, long now, long refreshedAt)
+			throws IOException {
+		ClientKeys keys = new ClientKeys(source, new HashMap<>(loader.load(session, source)), now, refreshedAt);
+		if (clients.size() >= MAX_CLIENTS) {
+			clients.clear();
+		}
+		clients.put(client.getId(), keys);
+		return keys;
+	}
+
+	static String keySource(ClientModel client) {
+		String jwksUrl = client.getAttribute(JWKS_URL_ATTR);
+		if (jwksUrl == null || jwksUrl.isEmpty()) {
+			jwksUrl = OIDCAdvancedConfigWrapper.fromClientModel(client).isUseJwksUrl()
+					? OIDCAdvancedConfigWrapper.fromClientModel(client).getJwksUrl() : null;
+		}
+		if (jwksUrl != null && !jwksUrl.isEmpty()) {
+			return JWKS_SOURCE + jwksUrl;
+		}
+		String certificate = client.getAttribute(JWTClientAuthenticator.CERTIFICATE_ATTR);
+		if (certificate != null && !certificate.isEmpty()) {
+			return CERTIFICATE_SOURCE + certificate;
+		}
+		return null;
+	}
+
+	private static Map<String, PublicKey> loadKeys(KeycloakSession session, String source) throws IOException {
+		if (source.startsWith(JWKS_SOURCE)) {
+			return signatureKeys(JWKSHttpUtils.sendJwksRequest(session, source.substring(JWKS_SOURCE.length())));
+		}
+		return certificateKeys(source);
+	}
+
+	/**
+	 * Parses the RSA and EC signature keys of the set. EC keys are decoded
+	 * here, the JWK parser of this Keycloak version needs a BouncyCastle
+	 * provider for them.
+	 */
+	static Map<String, PublicKey> signatureKeys(JSONWebKeySet jwks) throws IOException {
+		if (jwks == null || jwks.getKeys() == null) {
+			throw new IOException("JWKS has no keys");
+		}
+		Map<String, PublicKey> keys = new HashMap<>();
+		for (JWK jwk : jwks.getKeys()) {
+			String use = jwk.getPublicKeyUse();
+			if (use != null && !JWK.Use.SIG.asString().equals(use)) {
+				continue;
+			}
+			try {
+				if (EC_KEY_TYPE.equals(jwk.getKeyType())) {
+					keys.put(jwk.getKeyId(), ecPublicKey(jwk));
+				} else if (JWKParser.create(jwk).isKeyTypeSupported(jwk.getKeyType())) {
+					keys.put(jwk.getKeyId(), JWKParser.create(jwk).toPublicKey());
+				}
+			} catch (GeneralSecurityException | RuntimeException e) {
+				LOG.warnf("Ignoring invalid JWKS key %s: %s", jwk.getKeyId(), e.getMessage());
+			}
+		}
+		return keys;
+	}
+
+	private static PublicKey ecPublicKey(JWK jwk) throws GeneralSecurityException {
+		String curve = CURVES.get(String.valueOf(jwk.getOtherClaims().get("crv")));
+		Object x = jwk.getOtherClaims().get("x");
+		Object y = jwk.getOtherClaims().get("y");
+		if (curve == null || x == null || y == null) {
+			throw new GeneralSecurityException("Unsupported EC key");
+		}
+		AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+		parameters.init(new ECGenParameterSpec(curve));
+		ECPoint point = new ECPoint(new BigInteger(1, Base64Url.decode(x.toString())),
+				new BigInteger(1, Base64Url.decode(y.toString())));
+		return KeyFactory.getInstance("EC")
+				.generatePublic(new ECPublicKeySpec(point, parameters.getParameterSpec(ECParameterSpec.class)));
+	}
+
+	static Map<String, PublicKey> certificateKeys(String source) throws IOException {
+		try {
+			return Collections.singletonMap(null,
+					PemUtils.decodeCertificate(source.substring(CERTIFICATE_SOURCE.length())).getPublicKey());
+		} catch (Exception e) {
+			throw new IOException("Invalid client certificate", e);
+		}
+	}
+
+	public void removeClient(String id) {
+		if (id != null) {
+			clients.remove(id);
+		}
+	}
+
+	public void clear() {
+		clients.clear();
+	}
+
+	int size() {
+		return clients.size();
+	}
+
+	interface KeyLoader {
+		Map<String, PublicKey> load(KeycloakSession session, String source) throws IOException;
+	}
+
+	private static final class ClientKeys {
+		private final String source;
+		private final Map<String, PublicKey> keys;
+		private final long loadedAt;
+		private final AtomicLong lastRefresh;
+
+		// a first load may be refreshed right away, a key may have rotated since the client was seen
+		ClientKeys(String source, Map<String, PublicKey> keys, long loadedAt, long refreshedAt) {
+			this.source = source;
+			this.keys = keys;
+			this.loadedAt = loadedAt;
+			this.lastRefresh = new AtomicLong(refreshedAt);
+		}
+
+		PublicKey get(String kid) {
+			PublicKey key = kid != null ? keys.get(kid) : null;
+			if (key == null && (kid == null || source.startsWith(CERTIFICATE_SOURCE)) && keys.size() == 1) {
+				key = keys.values().iterator().next();
+			}
+			return key;
+		}
+
+		// true for the one caller allowed to reload now
+		boolean startRefresh(long now) {
+			long last = lastRefresh.get();
+			return now - last >= MIN_REFRESH_INTERVAL_MILLIS && lastRefresh.compareAndSet(last, now);
+		}
+	}
+}
@@ -0,0 +1,467 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.jboss.logging.Logger;
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Patient search behind the built-in launch patient picker. Pages of the FHIR
+ * Patient search are cached per user and query for a short time, concurrent
+ * requests for the same page share a single FHIR call, and the page after the
+ * one served is fetched in the background so paging forward does not wait on
+ * the FHIR server. Pages after the first are reached through the Bundle next
+ * link, which is only followed when it points back to the configured server.
+ */
+public class FhirPatientSearch {
+	private static final Logger LOG = Logger.getLogger(FhirPatientSearch.class);
+
+	public static final int DEFAULT_PAGE_SIZE = 10;
+	public static final int DEFAULT_TIMEOUT_MILLIS = 5000;
+	static final long DEFAULT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+	static final int MAX_ENTRIES = 10_000;
+	static final int MAX_PAGES = 50;
+	static final int MAX_RESPONSE_LENGTH = 1024 * 1024;
+	private static final int MAX_CONCURRENT_PREFETCHES = 16;
+	private static final String FHIR_JSON = "application/fhir+json";
+
+	private final ConcurrentMap<String, CachedPage> pages = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, CompletableFuture<Page>> inFlight = new ConcurrentHashMap<>();
+	private final ExecutorService prefetchExecutor;
+	private final long ttlMillis;
+
+	public FhirPatientSearch() {
+		this(newExecutor(), DEFAULT_TTL_MILLIS);
+	}
+
+	FhirPatientSearch(ExecutorService prefetchExecutor, long ttlMillis) {
+		this.prefetchExecutor = prefetchExecutor;
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Returns the page of patients matching the query and starts loading the
+	 * following page. The access token supplier is called at most once, on the
+	 * calling thread, and only when the FHIR server has to be asked.
+	 */
+	public Page search(HttpClient httpClient, Query query, int pageIndex, Supplier<String> accessToken) throws IOException {
+		if (pageIndex < 0 || pageIndex >= MAX_PAGES) {
+			throw new IOException("Patient search page out of range: " + pageIndex);
+		}
+		Supplier<String> token = new ResolvedOnce(accessToken);
+		Page page = page(httpClient, query, pageIndex, token);
+		if (page.hasNext()) {
+			prefetch(httpClient, query, pageIndex + 1, token);
+		}
+		return page;
+	}
+
+	private Page page(HttpClient httpClient, Query query, int pageIndex, Supplier<String> accessToken) throws IOException {
+		String key = query.key(pageIndex);
+		CachedPage cached = fresh(key);
+		if (cached != null) {
+			return cached.page;
+		}
+
+		// the first caller loads the page, everyone else waits for its result
+		CompletableFuture<Page> load = new CompletableFuture<>();
+		CompletableFuture<Page> running = inFlight.putIfAbsent(key, load);
+		if (running != null) {
+			return await(running, query.timeoutMillis);
+		}
+		return complete(httpClient, query, pageIndex, accessToken, key, load);
+	}
+
+	private Page complete(HttpClient httpClient, Query query, int pageIndex, Supplier<String> accessToken, String key,
+			CompletableFuture<Page> load) throws IOException {
+		try {
+			Page page = load(httpClient, query, pageIndex, accessToken);
+			store(key, page);
+			load.complete(page);
+			return page;
+		} catch (IOException | RuntimeException e) {
+			load.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, load);
+		}
+	}
+
+	private Page load(HttpClient httpClient, Query query, int pageIndex, Supplier<String> accessToken) throws IOException {
+		if (pageIndex == 0) {
+			return fetch(httpClient, query.firstPageUrl(), accessToken.get(), query, 0);
+		}
+		Page previous = page(httpClient, query, pageIndex - 1, accessToken);
+		if (previous.nextUrl == null) {
+			return new Page(pageIndex, Collections.<Patient>emptyList(), null, previous.total);
+		}
+		return fetch(httpClient, previous.nextUrl, accessToken.get(), query, pageIndex);
+	}
+
+	private void prefetch(HttpClient httpClient, Query query, int pageIndex, Supplier<String> accessToken) {
+		if (pageIndex >= MAX_PAGES) {
+			return;
+		}
+		String key = query.key(pageIndex);
+		if (fresh(key) != null) {
+			return;
+		}
+		CompletableFuture<Page> load = new CompletableFuture<>();
+		if (inFlight.putIfAbsent(key, load) != null) {
+			return;
+		}
+		CachedPage stored = fresh(key);
+		if (stored != null) {
+			// stored between the check and the claim
+			inFlight.remove(key, load);
+			load.complete(stored.page);
+			return;
+		}
+
+		// resolved here only on a miss, token suppliers may depend on the request bound session
+		String token;
+		try {
+			token = accessToken.get();
+		} catch (RuntimeException e) {
+			abandon(key, load, e);
+			return;
+		}
+		try {
+			prefetchExecutor.execute(() -> {
+				try {
+					complete(httpClient, query, pageIndex, () -> token, key, load);
+				} catch (IOException | RuntimeException e) {
+					LOG.debugf("Prefetch of patient search page %d failed: %s", pageIndex, e.getMessage());
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// prefetch is best effort, the page is loaded on demand instead
+			abandon(key, load, e);
+		}
+	}
+
+	private CachedPage fresh(String key) {
+		CachedPage cached = pages.get(key);
+		return cached != null && !cached.isExpired(System.currentTimeMillis(), ttlMillis) ? cached : null;
+	}
+
+	private void abandon(String key, CompletableFuture<Page> load, Exception cause) {
+		inFlight.remove(key, load);
+		load.completeExceptionally(new IOException("Prefetch of patient search page abandoned", cause));
+	}
+
+	private static Page fetch(HttpClient httpClient, String url, String accessToken, Query query, int pageIndex)
+			throws IOException {
+		HttpGet get = new HttpGet(url);
+		get.setConfig(RequestConfig.custom()
+				.setConnectionRequestTimeout(query.timeoutMillis)
+				.setConnectTimeout(query.timeoutMillis)
+				.setSocketTimeout(query.timeoutMillis)
+				.build());
+		if (accessToken != null) {
+			get.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + accessToken);
+		}
+		get.setHeader(HttpHeaders.ACCEPT, FHIR_JSON);
+
+		HttpResponse response = httpClient.execute(get);
+		HttpEntity entity = response.getEntity();
+		try {
+			int status = response.getStatusLine().getStatusCode();
+			if (status != 200) {
+				throw new IOException("Patient search returned status " + status);
+			}
+			if (entity == null || entity.getContentLength() > MAX_RESPONSE_LENGTH) {
+				throw new IOException("Patient search response missing or too large");
+			}
+			JsonNode bundle;
+			try (InputStream content = new LimitedInputStream(entity.getContent(), MAX_RESPONSE_LENGTH, get::abort)) {
+				bundle = JsonSerialization.readValue(content, JsonNode.class);
+			}
+			if (bundle == null || !"Bundle".equals(bundle.path("resourceType").asText())) {
+				throw new IOException("Patient search response is not a Bundle");
+			}
+			return Page.fromBundle(pageIndex, bundle, query.fhirBaseUrl);
+		} finally {
+			// return the connection to the pool
+			EntityUtils.consumeQuietly(entity);
+		}
+	}
+
+	private static Page await(CompletableFuture<Page> running, int timeoutMillis) throws IOException {
+		try {
+			return running.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new IOException("Patient search timed out after " + timeoutMillis + " ms", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Patient search interrupted", e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+					: new IOException("Patient search failed", e.getCause());
+		}
+	}
+
+	private void store(String key, Page page) {
+		long now = System.currentTimeMillis();
+		if (pages.size() >= MAX_ENTRIES) {
+			pages.values().removeIf(cached -> cached.isExpired(now, ttlMillis));
+			if (pages.size() >= MAX_ENTRIES) {
+				pages.clear();
+			}
+		}
+		pages.put(key, new CachedPage(page, now));
+	}
+
+	int size() {
+		return pages.size();
+	}
+
+	public void clear() {
+		pages.clear();
+	}
+
+	private static ExecutorService newExecutor() {
+		AtomicInteger threads = new AtomicInteger();
+		ThreadFactory threadFactory = runnable -> {
+			Thread thread = new Thread(runnable, "smart-launch-patient-search-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		return new ThreadPoolExecutor(0, MAX_CONCURRENT_PREFETCHES, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), threadFactory);
+	}
+
+	public void close() {
+		prefetchExecutor.shutdownNow();
+	}
+
+	/**
+	 * A patient search of one user against one FHIR server. The search text is
+	 * normalized so that queries differing only in case or spacing share pages.
+	 */
+	public static final class Query {
+		private final String fhirBaseUrl;
+		private final String userId;
+		private final String text;
+		private final int pageSize;
+		private final int timeoutMillis;
+
+		public Query(String fhirBaseUrl, String userId, String text, int pageSize, int timeoutMillis) {
+			this.fhirBaseUrl = fhirBaseUrl.endsWith("/") ? fhirBaseUrl.substring(0, fhirBaseUrl.length() - 1) : fhirBaseUrl;
+			this.userId = userId;
+			this.text = normalize(text);
+			this.pageSize = pageSize;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		String key(int pageIndex) {
+			return fhirBaseUrl + '\n' + userId + '\n' + pageSize + '\n' + pageIndex + '\n' + text;
+		}
+
+		String firstPageUrl() throws IOException {
+			StringBuilder url = new StringBuilder(fhirBaseUrl).append("/Patient?_count=").append(pageSize);
+			if (!text.isEmpty()) {
+				url.append("&name=").append(URLEncoder.encode(text, "UTF-8"));
+			}
+			return url.toString();
+		}
+
+		private static String normalize(String text) {
+			if (text == null) {
+				return "";
+			}
+			return String.join(" ", SmartLaunchMatcher.tokenize(text)).toLowerCase(Locale.ROOT);
+		}
+	}
+
+	public static final class Page {
+		private final int index;
+		private final List<Patient> patients;
+		private final String nextUrl;
+		private final Integer total;
+
+		Page(int index, List<Patient> patients, String nextUrl, Integer total) {
+			this.index = index;
+			this.patients = patients;
+			this.nextUrl = nextUrl;
+			this.total = total;
+		}
+
+		static Page fromBundle(int index, JsonNode bundle, String fhirBaseUrl) {
+			List<Patient> patients = new ArrayList<>();
+			for (JsonNode entry : bundle.path("entry")) {
+				JsonNode resource = entry.path("resource");
+				String id = resource.path("id").asText();
+				// skip included resources and search outcome entries
+				if ("Patient".equals(resource.path("resourceType").asText()) && !id.isEmpty()) {
+					patients.add(new Patient(id, displayName(resource), text(resource, "birthDate"), text(resource, "gender")));
+				}
+			}
+
+			String nextUrl = null;
+			for (JsonNode link : bundle.path("link")) {
+				if ("next".equals(link.path("relation").asText())) {
+					nextUrl = text(link, "url");
+				}
+			}
+			// the access token is only ever sent to the configured FHIR server
+			if (nextUrl != null && !nextUrl.startsWith(fhirBaseUrl + "/") && !nextUrl.startsWith(fhirBaseUrl + "?")) {
+				LOG.warnf("Ignoring patient search next link outside of %s", fhirBaseUrl);
+				nextUrl = null;
+			}
+
+			JsonNode total = bundle.get("total");
+			return new Page(index, Collections.unmodifiableList(patients), nextUrl,
+					total != null && total.canConvertToInt() ? total.asInt() : null);
+		}
+
+		private static String displayName(JsonNode patient) {
+			JsonNode name = patient.path("name").path(0);
+			String text = text(name, "text");
+			if (text != null) {
+				return text;
+			}
+			List<String> parts = new ArrayList<>();
+			for (JsonNode given : name.path("given")) {
+				parts.add(given.asText());
+			}
+			// family is a single string since STU3 and a list in DSTU2
+			JsonNode family = name.path("family");
+			if (family.isArray()) {
+				for (JsonNode part : family) {
+					parts.add(part.asText());
+				}
+			} else if (family.isTextual()) {
+				parts.add(family.asText());
+			}
+			return parts.isEmpty() ? null : String.join(" ", parts);
+		}
+
+		private static String text(JsonNode node, String field) {
+			JsonNode value = node.get(field);
+			return value != null && value.isTextual() && !value.asText().isEmpty() ? value.asText() : null;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public List<Patient> getPatients() {
+			return patients;
+		}
+
+		public Integer getTotal() {
+			return total;
+		}
+
+		public boolean hasNext() {
+			return nextUrl != null;
+		}
+	}
+
+	public static final class Patient {
+		private final String id;
+		private final String name;
+		private final String birthDate;
+		private final String gender;
+
+		Patient(String id, String name, String birthDate, String gender) {
+			this.id = id;
+			this.name = name;
+			this.birthDate = birthDate;
+			this.gender = gender;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getBirthDate() {
+			return birthDate;
+		}
+
+		public String getGender() {
+			return gender;
+		}
+	}
+
+	private static final class CachedPage {
+		private final Page page;
+		private final long loadedAt;
+
+		CachedPage(Page page, long loadedAt) {
+			this.page = page;
+			this.loadedAt = loadedAt;
+		}
+
+		boolean isExpired(long now, long ttlMillis) {
+			return now - loadedAt >= ttlMillis;
+		}
+	}
+
+	private static final class ResolvedOnce implements Supplier<String> {
+		private final Supplier<String> supplier;
+		private boolean resolved;
+		private String value;
+
+		ResolvedOnce(Supplier<String> supplier) {
+			this.supplier = supplier;
+		}
+
+		@Override
+		public synchronized String get() {
+			if (!resolved) {
+				value = supplier != null ? supplier.get() : null;
+				resolved = true;
+			}
+			return value;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Compiled HmacSHA256 keyset of the external launch app, so the secret can be
+ * rotated without failed launches. Each key has a kid and an optional validity
+ * window, written as {@code kid:secret[:notBefore[:notAfter]]} with the bounds
+ * as yyyy-MM-dd (UTC) or epoch seconds, for example
+ * {@code 2026-10:c2VjcmV0...:2026-10-01 2026-04:b2xk...::2026-10-15}. Keys are
+ * decoded once and indexed by kid, so a token selects its key in one lookup.
+ * Tokens without kid, or with a kid not in the keyset, use the key of the
+ * legacy single secret property when it is set. Otherwise tokens without kid
+ * use the active key, the valid key with the latest notBefore.
+ */
+public final class HmacKeySet {
+	private final String keyset;
+	private final String secret;
+	private final Map<String, WindowedKey> keys;
+	// latest notBefore first, the first valid one is the active key
+	private final WindowedKey[] byNotBefore;
+	private final WindowedKey defaultKey;
+
+	private HmacKeySet(String keyset, String secret, Map<String, WindowedKey> keys, WindowedKey[] byNotBefore,
+			WindowedKey defaultKey) {
+		this.keyset = keyset;
+		this.secret = secret;
+		this.keys = keys;
+		this.byNotBefore = byNotBefore;
+		this.defaultKey = defaultKey;
+	}
+
+	public static HmacKeySet of(HmacVerificationKey key) {
+		return new HmacKeySet(null, null, Collections.<String, WindowedKey>emptyMap(), new WindowedKey[0],
+				new WindowedKey(null, key, Long.MIN_VALUE, Long.MAX_VALUE));
+	}
+
+	/**
+	 * Compiles the keyset and the legacy single secret, either of which may be
+	 * null. Fails when neither is set or an entry is malformed.
+	 */
+	public static HmacKeySet compile(String keyset, String secret) throws IOException {
+		Map<String, WindowedKey> keys = new HashMap<>();
+		List<WindowedKey> byNotBefore = new ArrayList<>();
+		if (keyset != null) {
+			// admin console multivalued strings are joined with ##
+			for (String entry : SmartLaunchMatcher.tokenize(keyset.replace("##", " "))) {
+				WindowedKey key = parseEntry(entry);
+				if (keys.put(key.kid, key) != null) {
+					throw new IOException("Duplicate kid " + key.kid + " in external SMART launch keyset");
+				}
+				byNotBefore.add(key);
+			}
+		}
+		WindowedKey defaultKey = secret == null || secret.isEmpty() ? null
+				: new WindowedKey(null, HmacVerificationKey.fromBase64(secret), Long.MIN_VALUE, Long.MAX_VALUE);
+		if (keys.isEmpty() && defaultKey == null) {
+			throw new IOException("External SMART launch secret key not configured");
+		}
+		byNotBefore.sort((a, b) -> Long.compare(b.notBefore, a.notBefore));
+		return new HmacKeySet(keyset, secret, Collections.unmodifiableMap(keys),
+				byNotBefore.toArray(new WindowedKey[byNotBefore.size()]), defaultKey);
+	}
+
+	private static WindowedKey parseEntry(String entry) throws IOException {
+		String[] fields = entry.split(":", -1);
+		if (fields.length < 2 || fields.length > 4 || fields[0].isEmpty() || fields[1].isEmpty()) {
+			throw new IOException("External SMART launch keyset entry must be kid:secret[:notBefore[:notAfter]]");
+		}
+		long notBefore = fields.length > 2 ? parseTime(fields[2], Long.MIN_VALUE) : Long.MIN_VALUE;
+		long notAfter = fields.length > 3 ? parseTime(fields[3], Long.MAX_VALUE) : Long.MAX_VALUE;
+		return new WindowedKey(fields[0], HmacVerificationKey.fromBase64(fields[1]), notBefore, notAfter);
+	}
+
+	private static long parseTime(String value, long unset) throws IOException {
+		if (value.isEmpty()) {
+			return unset;
+		}
+		try {
+			if (value.chars().allMatch(Character::isDigit)) {
+				return Long.parseLong(value);
+			}
+			return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+		} catch (NumberFormatException | DateTimeParseException e) {
+			throw new IOException("Invalid external SMART launch key validity " + value, e);
+		}
+	}
+
+	public boolean isFor(String keyset, String secret) {
+		return Objects.equals(this.keyset, keyset) && Objects.equals(this.secret, secret);
+	}
+
+	/**
+	 * Returns the key of the kid, or the key for tokens without kid, if it is
+	 * within its validity window at the given time (epoch seconds, with the
+	 * given clock skew), otherwise null.
+	 */
+	public HmacVerificationKey select(String kid, long now, int skewSeconds) {
+		WindowedKey key = kid != null ? keys.get(kid) : null;
+		if (key == null) {
+			// a single candidate either way, keys are never tried one after the other
+			key = defaultKey != null ? defaultKey : kid == null ? active(now) : null;
+		}
+		return key != null && key.isValid(now, skewSeconds) ? key.key : null;
+	}
+
+	private WindowedKey active(long now) {
+		for (WindowedKey key : byNotBefore) {
+			if (key.isValid(now, 0)) {
+				return key;
+			}
+		}
+		return null;
+	}
+
+	private static final class WindowedKey {
+		private final String kid;
+		private final HmacVerificationKey key;
+		private final long notBefore;
+		private final long notAfter;
+
+		WindowedKey(String kid, HmacVerificationKey key, long notBefore, long notAfter) {
+			this.kid = kid;
+			this.key = key;
+			this.notBefore = notBefore;
+			this.notAfter = notAfter;
+		}
+
+		boolean isValid(long now, int skewSeconds) {
+			return (notBefore == Long.MIN_VALUE || now + skewSeconds >= notBefore)
+					&& (notAfter == Long.MAX_VALUE || now - skewSeconds < notAfter);
+		}
+	}
+}
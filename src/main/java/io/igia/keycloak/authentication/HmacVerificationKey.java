@@ -0,0 +1,78 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.keycloak.common.util.Base64;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.crypto.HMACProvider;
+
+/**
+ * Decoded HmacSHA256 key for verifying external launch app tokens. Each thread
+ * keeps its own {@link Mac} already initialized with the key, so verification
+ * does no key decoding and no JCA provider lookup.
+ */
+public final class HmacVerificationKey {
+	public static final String HMAC_SHA256_ALGORITHM = "HmacSHA256";
+
+	private final String secret;
+	private final SecretKeySpec secretKey;
+	private final ThreadLocal<Mac> macs;
+
+	private HmacVerificationKey(String secret, SecretKeySpec secretKey) {
+		this.secret = secret;
+		this.secretKey = secretKey;
+		this.macs = ThreadLocal.withInitial(this::createMac);
+	}
+
+	public static HmacVerificationKey fromBase64(String secret) throws IOException {
+		return new HmacVerificationKey(secret, new SecretKeySpec(Base64.decode(secret), HMAC_SHA256_ALGORITHM));
+	}
+
+	public boolean isFor(String secret) {
+		return this.secret.equals(secret);
+	}
+
+	public SecretKeySpec getSecretKey() {
+		return secretKey;
+	}
+
+	public boolean verify(JWSInput input) {
+		String algorithm = JwsAlgorithms.of(input);
+		if (JwsAlgorithms.HS256.equals(algorithm)) {
+			byte[] expected = macs.get().doFinal(input.getEncodedSignatureInput().getBytes(StandardCharsets.UTF_8));
+			return MessageDigest.isEqual(expected, input.getSignature());
+		}
+		if (JwsAlgorithms.isHmac(algorithm)) {
+			return HMACProvider.verify(input, secretKey);
+		}
+		return false;
+	}
+
+	private Mac createMac() {
+		try {
+			Mac mac = Mac.getInstance(HMAC_SHA256_ALGORITHM);
+			mac.init(secretKey);
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
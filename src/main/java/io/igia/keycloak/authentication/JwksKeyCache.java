@@ -0,0 +1,307 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.jboss.logging.Logger;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Refresh-ahead cache of the public keys external launch apps sign their app
+ * tokens with, keyed by key source: a JWKS URL or a registered certificate, as
+ * built by {@link ClientPublicKeyCache#keySource}. Keys older than
+ * {@link #REFRESH_AFTER_MILLIS} keep being served while a single background
+ * load replaces them, so launch callbacks only wait on the network for the
+ * very first load of a source and for a kid that is not known yet. Failed loads
+ * and unknown kids are remembered for {@link #NEGATIVE_TTL_MILLIS} so a broken
+ * JWKS endpoint or tokens with made up kids do not cause a fetch per request.
+ */
+public class JwksKeyCache {
+	private static final Logger LOG = Logger.getLogger(JwksKeyCache.class);
+
+	public static final int DEFAULT_TIMEOUT_MILLIS = 2000;
+	static final long REFRESH_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	static final long EXPIRE_AFTER_MILLIS = TimeUnit.HOURS.toMillis(24);
+	static final long MIN_REFRESH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+	static final long NEGATIVE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	static final int MAX_SOURCES = 1000;
+	static final int MAX_UNKNOWN_KIDS = 100;
+	static final int MAX_RESPONSE_LENGTH = 256 * 1024;
+	private static final int MAX_CONCURRENT_LOADS = 16;
+
+	private final ConcurrentMap<String, SourceKeys> sources = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, CompletableFuture<SourceKeys>> loads = new ConcurrentHashMap<>();
+	private final KeyLoader loader;
+	private final ExecutorService executor;
+	private final long refreshAfterMillis;
+	private final long expireAfterMillis;
+	private final long minRefreshIntervalMillis;
+	private final long negativeTtlMillis;
+
+	public JwksKeyCache() {
+		this(JwksKeyCache::loadKeys, newExecutor(), REFRESH_AFTER_MILLIS, EXPIRE_AFTER_MILLIS,
+				MIN_REFRESH_INTERVAL_MILLIS, NEGATIVE_TTL_MILLIS);
+	}
+
+	JwksKeyCache(KeyLoader loader, ExecutorService executor, long refreshAfterMillis, long expireAfterMillis,
+			long minRefreshIntervalMillis, long negativeTtlMillis) {
+		this.loader = loader;
+		this.executor = executor;
+		this.refreshAfterMillis = refreshAfterMillis;
+		this.expireAfterMillis = expireAfterMillis;
+		this.minRefreshIntervalMillis = minRefreshIntervalMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+	}
+
+	/**
+	 * Returns the key with the kid, or the only key of the source when the token
+	 * has no kid or the source is a certificate. Returns null when the source has
+	 * no such key, and fails with an IOException when the keys of the source
+	 * could not be loaded within the timeout.
+	 */
+	public PublicKey getKey(HttpClient httpClient, String source, String kid, int timeoutMillis) throws IOException {
+		long now = System.currentTimeMillis();
+		SourceKeys keys = sources.get(source);
+		if (keys == null || now - keys.loadedAt >= expireAfterMillis) {
+			keys = await(load(httpClient, source, keys), timeoutMillis);
+		} else if (now - keys.loadedAt >= refreshAfterMillis) {
+			// served as is, the next callback sees the refreshed keys
+			load(httpClient, source, keys);
+		}
+
+		PublicKey key = keys.get(kid);
+		if (key == null && kid != null && !keys.isKnownMissing(kid, now)) {
+			// the app may have rotated its key, every caller waits on the same load
+			LOG.debugf("Unknown app token key %s, reloading %s", kid, source);
+			keys = await(load(httpClient, source, keys), timeoutMillis);
+			key = keys.get(kid);
+			if (key == null) {
+				keys.markMissing(kid, System.currentTimeMillis() + negativeTtlMillis);
+			}
+		}
+		if (key == null && keys.error != null) {
+			throw new IOException("App token keys of " + source + " not available: " + keys.error);
+		}
+		return key;
+	}
+
+	/**
+	 * Starts loading the keys of the source in the background when they are
+	 * missing or due for refresh, so the callback that follows finds them.
+	 */
+	public void prefetch(HttpClient httpClient, String source) {
+		SourceKeys keys = sources.get(source);
+		if (keys == null || System.currentTimeMillis() - keys.loadedAt >= refreshAfterMillis) {
+			load(httpClient, source, keys);
+		}
+	}
+
+	// single flight: concurrent callers for a source share one load
+	private CompletableFuture<SourceKeys> load(HttpClient httpClient, String source, SourceKeys previous) {
+		CompletableFuture<SourceKeys> running = loads.get(source);
+		if (running != null) {
+			return running;
+		}
+		if (previous != null && System.currentTimeMillis() < previous.retryAfter) {
+			return CompletableFuture.completedFuture(previous);
+		}
+		CompletableFuture<SourceKeys> future = new CompletableFuture<>();
+		running = loads.putIfAbsent(source, future);
+		if (running != null) {
+			return running;
+		}
+
+		try {
+			executor.execute(() -> {
+				SourceKeys keys;
+				try {
+					keys = store(source, loadSource(httpClient, source, previous));
+				} finally {
+					loads.remove(source, future);
+				}
+				future.complete(keys);
+			});
+		} catch (RejectedExecutionException e) {
+			loads.remove(source, future);
+			future.complete(previous != null ? previous : new SourceKeys(Collections.emptyMap(), 0, 0, "too many concurrent loads"));
+		}
+		return future;
+	}
+
+	private SourceKeys loadSource(HttpClient httpClient, String source, SourceKeys previous) {
+		long now = System.currentTimeMillis();
+		try {
+			Map<String, PublicKey> keys = loader.load(httpClient, source);
+			return new SourceKeys(new HashMap<>(keys), now, now + minRefreshIntervalMillis, null);
+		} catch (IOException | RuntimeException e) {
+			LOG.warnf("Failed to load app token keys from %s: %s", source, e.getMessage());
+			if (previous != null && previous.error == null) {
+				// keep serving the loaded keys, retried once the negative ttl passed
+				return previous.retryAt(now + negativeTtlMillis);
+			}
+			return new SourceKeys(Collections.emptyMap(), now, now + negativeTtlMillis, e.getMessage());
+		}
+	}
+
+	private SourceKeys store(String source, SourceKeys keys) {
+		if (sources.size() >= MAX_SOURCES) {
+			sources.clear();
+		}
+		sources.put(source, keys);
+		return keys;
+	}
+
+	private static SourceKeys await(CompletableFuture<SourceKeys> load, int timeoutMillis) throws IOException {
+		try {
+			return load.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new IOException("Loading app token keys timed out after " + timeoutMillis + " ms", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Loading app token keys interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Loading app token keys failed", e.getCause());
+		}
+	}
+
+	private static Map<String, PublicKey> loadKeys(HttpClient httpClient, String source) throws IOException {
+		if (!source.startsWith(ClientPublicKeyCache.JWKS_SOURCE)) {
+			return ClientPublicKeyCache.certificateKeys(source);
+		}
+
+		HttpGet get = new HttpGet(source.substring(ClientPublicKeyCache.JWKS_SOURCE.length()));
+		get.setConfig(RequestConfig.custom()
+				.setConnectionRequestTimeout(DEFAULT_TIMEOUT_MILLIS)
+				.setConnectTimeout(DEFAULT_TIMEOUT_MILLIS)
+				.setSocketTimeout(DEFAULT_TIMEOUT_MILLIS)
+				.build());
+		get.setHeader(HttpHeaders.ACCEPT, "application/json");
+		HttpResponse response = httpClient.execute(get);
+		HttpEntity entity = response.getEntity();
+		try {
+			int status = response.getStatusLine().getStatusCode();
+			if (status != 200) {
+				throw new IOException("JWKS request returned status " + status);
+			}
+			if (entity == null || entity.getContentLength() > MAX_RESPONSE_LENGTH) {
+				throw new IOException("JWKS response missing or too large");
+			}
+			JSONWebKeySet jwks;
+			try (InputStream content = new LimitedInputStream(entity.getContent(), MAX_RESPONSE_LENGTH, get::abort)) {
+				jwks = JsonSerialization.readValue(content, JSONWebKeySet.class);
+			}
+			return ClientPublicKeyCache.signatureKeys(jwks);
+		} finally {
+			// return the connection to the pool
+			EntityUtils.consumeQuietly(entity);
+		}
+	}
+
+	private static ExecutorService newExecutor() {
+		AtomicInteger threads = new AtomicInteger();
+		ThreadFactory threadFactory = runnable -> {
+			Thread thread = new Thread(runnable, "smart-launch-jwks-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		return new ThreadPoolExecutor(0, MAX_CONCURRENT_LOADS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), threadFactory);
+	}
+
+	public void clear() {
+		sources.clear();
+	}
+
+	public void close() {
+		executor.shutdownNow();
+		sources.clear();
+	}
+
+	int size() {
+		return sources.size();
+	}
+
+	interface KeyLoader {
+		Map<String, PublicKey> load(HttpClient httpClient, String source) throws IOException;
+	}
+
+	private static final class SourceKeys {
+		private final Map<String, PublicKey> keys;
+		private final long loadedAt;
+		private final long retryAfter;
+		private final String error;
+		private final ConcurrentMap<String, Long> missingKids;
+
+		SourceKeys(Map<String, PublicKey> keys, long loadedAt, long retryAfter, String error) {
+			this(keys, loadedAt, retryAfter, error, new ConcurrentHashMap<>());
+		}
+
+		private SourceKeys(Map<String, PublicKey> keys, long loadedAt, long retryAfter, String error,
+				ConcurrentMap<String, Long> missingKids) {
+			this.keys = keys;
+			this.loadedAt = loadedAt;
+			this.retryAfter = retryAfter;
+			this.error = error;
+			this.missingKids = missingKids;
+		}
+
+		SourceKeys retryAt(long retryAfter) {
+			return new SourceKeys(keys, loadedAt, retryAfter, null, missingKids);
+		}
+
+		PublicKey get(String kid) {
+			PublicKey key = kid != null ? keys.get(kid) : null;
+			if (key == null && (kid == null || keys.containsKey(null)) && keys.size() == 1) {
+				key = keys.values().iterator().next();
+			}
+			return key;
+		}
+
+		boolean isKnownMissing(String kid, long now) {
+			Long until = missingKids.get(kid);
+			return until != null && now < until;
+		}
+
+		void markMissing(String kid, long until) {
+			if (missingKids.size() >= MAX_UNKNOWN_KIDS) {
+				missingKids.clear();
+			}
+			missingKids.put(kid, until);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import org.keycloak.jose.jws.JWSInput;
+
+/**
+ * JWS algorithm names the app token and client assertion checks dispatch on.
+ * The algorithm enum of this Keycloak version is deprecated and its header has
+ * no raw algorithm accessor, so the parsed header algorithm is reduced to its
+ * name once and compared as a string.
+ */
+final class JwsAlgorithms {
+	static final String HS256 = "HS256";
+	static final String HS384 = "HS384";
+	static final String HS512 = "HS512";
+	static final String RS256 = "RS256";
+	static final String RS384 = "RS384";
+	static final String RS512 = "RS512";
+	static final String ES256 = "ES256";
+	static final String ES384 = "ES384";
+	static final String ES512 = "ES512";
+
+	private JwsAlgorithms() {
+	}
+
+	/**
+	 * Returns the alg header of the JWS, or null when it is missing or not
+	 * known to the JWS parser.
+	 */
+	static String of(JWSInput jws) {
+		try {
+			Enum<?> algorithm = jws.getHeader().getAlgorithm();
+			return algorithm == null ? null : algorithm.name();
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	static boolean isHmac(String algorithm) {
+		return HS256.equals(algorithm) || HS384.equals(algorithm) || HS512.equals(algorithm);
+	}
+
+	static boolean isRsa(String algorithm) {
+		return RS256.equals(algorithm) || RS384.equals(algorithm) || RS512.equals(algorithm);
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that fails once more than a given number of bytes is read, so
+ * a chunked response without Content-Length cannot exceed the size limit
+ * either. The limit action runs before the failure, to abort the request
+ * instead of draining the rest of the response when the stream is closed.
+ */
+final class LimitedInputStream extends FilterInputStream {
+	private final long limit;
+	private final Runnable onLimitExceeded;
+	private long count;
+	private long mark;
+
+	LimitedInputStream(InputStream in, long limit, Runnable onLimitExceeded) {
+		super(in);
+		this.limit = limit;
+		this.onLimitExceeded = onLimitExceeded;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int result = super.read();
+		if (result != -1) {
+			count(1);
+		}
+		return result;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		// read one byte past the limit to tell a response of exactly the limit from a larger one
+		int result = super.read(b, off, (int) Math.min(len, Math.max(1, limit - count + 1)));
+		if (result > 0) {
+			count(result);
+		}
+		return result;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long result = super.skip(Math.min(n, Math.max(1, limit - count + 1)));
+		count(result);
+		return result;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		super.mark(readlimit);
+		mark = count;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		super.reset();
+		count = mark;
+	}
+
+	private void count(long read) throws IOException {
+		count += read;
+		if (count > limit) {
+			if (onLimitExceeded != null) {
+				onLimitExceeded.run();
+			}
+			throw new IOException("Response larger than " + limit + " bytes");
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.keycloak.jose.jws.JWSInput;
+
+/**
+ * Verifies RS256/384/512 and ES256/384/512 JWS signatures against a public key.
+ * JWS carries an ECDSA signature as the fixed size concatenation of R and S,
+ * which is converted to the DER encoding the JCA expects. Each thread keeps its
+ * own {@link Signature} per algorithm, so verification does no JCA provider
+ * lookup.
+ */
+public final class PublicKeySignatures {
+	private static final ThreadLocal<Map<String, Signature>> SIGNATURES = ThreadLocal.withInitial(HashMap::new);
+
+	private PublicKeySignatures() {
+	}
+
+	public static boolean isSupported(String algorithm) {
+		return javaAlgorithm(algorithm) != null;
+	}
+
+	/**
+	 * Returns true if the JWS is signed with a supported asymmetric algorithm
+	 * that matches the key type, and the signature is valid for the key.
+	 */
+	public static boolean verify(JWSInput jws, PublicKey key) {
+		String algorithm = JwsAlgorithms.of(jws);
+		byte[] signature = jws.getSignature();
+		if (!isSupported(algorithm) || key == null || signature == null) {
+			return false;
+		}
+
+		if (JwsAlgorithms.isRsa(algorithm)) {
+			if (!(key instanceof RSAPublicKey)) {
+				return false;
+			}
+		} else {
+			if (!(key instanceof ECPublicKey) || signature.length != 2 * ecdsaLength(algorithm)) {
+				return false;
+			}
+			signature = toDer(signature);
+		}
+
+		try {
+			Signature verifier = signature(algorithm);
+			verifier.initVerify(key);
+			verifier.update(jws.getEncodedSignatureInput().getBytes(StandardCharsets.UTF_8));
+			return verifier.verify(signature);
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	private static Signature signature(String algorithm) throws GeneralSecurityException {
+		Map<String, Signature> signatures = SIGNATURES.get();
+		Signature signature = signatures.get(algorithm);
+		if (signature == null) {
+			signature = Signature.getInstance(javaAlgorithm(algorithm));
+			signatures.put(algorithm, signature);
+		}
+		return signature;
+	}
+
+	private static String javaAlgorithm(String algorithm) {
+		if (algorithm == null) {
+			return null;
+		}
+		switch (algorithm) {
+		case JwsAlgorithms.RS256:
+			return "SHA256withRSA";
+		case JwsAlgorithms.RS384:
+			return "SHA384withRSA";
+		case JwsAlgorithms.RS512:
+			return "SHA512withRSA";
+		case JwsAlgorithms.ES256:
+			return "SHA256withECDSA";
+		case JwsAlgorithms.ES384:
+			return "SHA384withECDSA";
+		case JwsAlgorithms.ES512:
+			return "SHA512withECDSA";
+		default:
+			return null;
+		}
+	}
+
+	// byte length of each of R and S for the curve of the algorithm
+	private static int ecdsaLength(String algorithm) {
+		switch (algorithm) {
+		case JwsAlgorithms.ES256:
+			return 32;
+		case JwsAlgorithms.ES384:
+			return 48;
+		default:
+			return 66;
+		}
+	}
+
+	/**
+	 * Converts a JWS ECDSA signature (R | S) to an ASN.1 DER SEQUENCE of two
+	 * INTEGERs.
+	 */
+	static byte[] toDer(byte[] signature) {
+		int length = signature.length / 2;
+		byte[] r = derInteger(signature, 0, length);
+		byte[] s = derInteger(signature, length, length);
+		int content = r.length + s.length;
+		int header = content < 128 ? 2 : 3;
+		byte[] der = new byte[header + content];
+		der[0] = 0x30;
+		if (content < 128) {
+			der[1] = (byte) content;
+		} else {
+			der[1] = (byte) 0x81;
+			der[2] = (byte) content;
+		}
+		System.arraycopy(r, 0, der, header, r.length);
+		System.arraycopy(s, 0, der, header + r.length, s.length);
+		return der;
+	}
+
+	private static byte[] derInteger(byte[] value, int offset, int length) {
+		int start = offset;
+		int end = offset + length;
+		while (start < end - 1 && value[start] == 0) {
+			start++;
+		}
+		// a leading zero keeps the integer positive
+		int pad = (value[start] & 0x80) != 0 ? 1 : 0;
+		int size = end - start + pad;
+		byte[] der = new byte[2 + size];
+		der[0] = 0x02;
+		der[1] = (byte) size;
+		System.arraycopy(value, start, der, 2 + pad, end - start);
+		return der;
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.io.IOException;
+import java.security.PublicKey;
+
+import org.keycloak.common.VerificationException;
+import org.keycloak.common.util.Time;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.representations.JsonWebToken;
+
+/**
+ * Verifies the app-token returned by the external launch app in a single pass:
+ * the JWS is parsed once, the signing key selected by kid, the signature
+ * checked, the time and audience claims validated and the claims handed back.
+ * HMAC signed tokens are checked against the shared secrets, RSA and ECDSA
+ * signed tokens against the public keys of the app; a token is never checked
+ * against key material of the other kind.
+ */
+public class SmartAppTokenVerifier {
+	// tolerated clock difference between Keycloak and the external launch app
+	static final int ALLOWED_CLOCK_SKEW_SECONDS = 30;
+
+	private final HmacKeySet keySet;
+	private final PublicKeyResolver publicKeys;
+	private final String[] audiences;
+
+	public SmartAppTokenVerifier(HmacVerificationKey verificationKey, String... audiences) {
+		this(HmacKeySet.of(verificationKey), audiences);
+	}
+
+	public SmartAppTokenVerifier(HmacKeySet keySet, String... audiences) {
+		this(keySet, null, audiences);
+	}
+
+	/**
+	 * Either key source may be null, tokens signed with an algorithm of that
+	 * kind are then rejected.
+	 */
+	public SmartAppTokenVerifier(HmacKeySet keySet, PublicKeyResolver publicKeys, String... audiences) {
+		this.keySet = keySet;
+		this.publicKeys = publicKeys;
+		this.audiences = audiences;
+	}
+
+	public JsonWebToken verify(String appTokenString) throws VerificationException {
+		if (appTokenString == null || appTokenString.isEmpty()) {
+			throw new VerificationException("Token not set");
+		}
+
+		JWSInput jws;
+		JsonWebToken appToken;
+		try {
+			jws = new JWSInput(appTokenString);
+			appToken = jws.readJsonContent(JsonWebToken.class);
+		} catch (JWSInputException e) {
+			throw new VerificationException("Failed to parse JWT", e);
+		}
+
+		int now = Time.currentTime();
+		verifySignature(jws, now);
+
+		// a token without exp would stay valid, and replayable, forever
+		if (appToken.getExpiration() == 0) {
+			throw new VerificationException("Token has no expiration");
+		}
+		if (now - ALLOWED_CLOCK_SKEW_SECONDS > appToken.getExpiration()) {
+			throw new VerificationException("Token is expired");
+		}
+		if (appToken.getNotBefore() != 0 && now + ALLOWED_CLOCK_SKEW_SECONDS < appToken.getNotBefore()) {
+			throw new VerificationException("Token is not active yet");
+		}
+		if (appToken.getIssuedAt() != 0 && now + ALLOWED_CLOCK_SKEW_SECONDS < appToken.getIssuedAt()) {
+			throw new VerificationException("Token issued in the future");
+		}
+		if (appToken.getAudience() != null && appToken.getAudience().length > 0 && !hasExpectedAudience(appToken)) {
+			throw new VerificationException("Token audience is not expected");
+		}
+
+		return appToken;
+	}
+
+	private void verifySignature(JWSInput jws, int now) throws VerificationException {
+		String algorithm = JwsAlgorithms.of(jws);
+		if (algorithm == null) {
+			throw new VerificationException("Unsupported token algorithm");
+		}
+		String kid = jws.getHeader().getKeyId();
+
+		if (JwsAlgorithms.isHmac(algorithm) && keySet != null) {
+			HmacVerificationKey verificationKey = keySet.select(kid, now, ALLOWED_CLOCK_SKEW_SECONDS);
+			if (verificationKey == null) {
+				throw new VerificationException("Unknown or inactive token signing key");
+			}
+			if (!verificationKey.verify(jws)) {
+				throw new VerificationException("Invalid token signature");
+			}
+		} else if (PublicKeySignatures.isSupported(algorithm) && publicKeys != null) {
+			PublicKey publicKey;
+			try {
+				publicKey = publicKeys.resolve(kid);
+			} catch (IOException e) {
+				throw new VerificationException("Token signing keys not available", e);
+			}
+			if (publicKey == null) {
+				throw new VerificationException("Unknown token signing key");
+			}
+			if (!PublicKeySignatures.verify(jws, publicKey)) {
+				throw new VerificationException("Invalid token signature");
+			}
+		} else {
+			throw new VerificationException("Token algorithm " + algorithm + " not accepted");
+		}
+	}
+
+	private boolean hasExpectedAudience(JsonWebToken appToken) {
+		for (String audience : audiences) {
+			if (audience != null && appToken.hasAudience(audience)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Looks up the public key an asymmetric app token was signed with.
+	 */
+	public interface PublicKeyResolver {
+		PublicKey resolve(String kid) throws IOException;
+	}
+}
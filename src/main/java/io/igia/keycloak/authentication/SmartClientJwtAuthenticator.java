@@ -0,0 +1,280 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriBuilder;
+
+import org.jboss.logging.Logger;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.OAuthErrorException;
+import org.keycloak.authentication.AuthenticationFlowError;
+import org.keycloak.authentication.ClientAuthenticationFlowContext;
+import org.keycloak.authentication.authenticators.client.AbstractClientAuthenticator;
+import org.keycloak.authentication.authenticators.client.ClientAuthUtil;
+import org.keycloak.common.util.Time;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.protocol.oidc.OIDCLoginProtocol;
+import org.keycloak.protocol.oidc.OIDCLoginProtocolService;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.representations.JsonWebToken;
+import org.keycloak.services.Urls;
+
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics;
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Outcome;
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Stage;
+import io.igia.keycloak.protocol.smart.SmartOIDCLoginProtocolFactory;
+import io.igia.keycloak.protocol.smart.SmartOIDCLoginProtocolService;
+
+/**
+ * Client authenticator for SMART Backend Services. The client authenticates
+ * with a JWT assertion (private_key_jwt) signed with one of its own RSA or EC
+ * keys, where iss and sub are the client_id, aud is the token endpoint, exp is
+ * at most five minutes ahead and jti is never reused. Client keys are parsed
+ * once and cached by {@link ClientPublicKeyCache}; used jti values are kept by
+ * a {@link TokenReplayCache} until the assertion expires.
+ */
+public class SmartClientJwtAuthenticator extends AbstractClientAuthenticator {
+	private static final Logger LOG = Logger.getLogger(SmartClientJwtAuthenticator.class);
+
+	public static final String PROVIDER_ID = "smart-client-jwt";
+	static final int MAX_ASSERTION_LIFETIME_SECONDS = 300;
+	private static final String ASSERTION_REPLAY_ACTION = "smart-client-assertion";
+
+	private static final AuthenticationExecutionModel.Requirement[] REQUIREMENT_CHOICES = {
+			AuthenticationExecutionModel.Requirement.ALTERNATIVE,
+			AuthenticationExecutionModel.Requirement.DISABLED
+	};
+
+	private final ClientPublicKeyCache keyCache;
+	private final TokenReplayCache replayCache;
+	private final SmartLaunchMetrics metrics = SmartLaunchMetrics.getInstance();
+
+	public SmartClientJwtAuthenticator() {
+		this(new ClientPublicKeyCache(), new TokenReplayCache(ASSERTION_REPLAY_ACTION, TokenReplayCache.DEFAULT_MAX_ENTRIES));
+	}
+
+	SmartClientJwtAuthenticator(ClientPublicKeyCache keyCache, TokenReplayCache replayCache) {
+		this.keyCache = keyCache;
+		this.replayCache = replayCache;
+		SmartLaunchMetrics.getInstance().registerReplayCache(replayCache);
+	}
+
+	@Override
+	public void authenticateClient(ClientAuthenticationFlowContext context) {
+		long start = System.nanoTime();
+		Outcome outcome = Outcome.ERROR;
+		try {
+			outcome = authenticateAssertion(context);
+		} finally {
+			metrics.record(context.getRealm() != null ? context.getRealm().getName() : null, Stage.CLIENT_ASSERTION, outcome, start);
+		}
+	}
+
+	private Outcome authenticateAssertion(ClientAuthenticationFlowContext context) {
+		MultivaluedMap<String, String> params = context.getHttpRequest().getDecodedFormParameters();
+		String assertionType = params.getFirst(OAuth2Constants.CLIENT_ASSERTION_TYPE);
+		String assertion = params.getFirst(OAuth2Constants.CLIENT_ASSERTION);
+		if (!OAuth2Constants.CLIENT_ASSERTION_TYPE_JWT.equals(assertionType) || assertion == null) {
+			context.challenge(ClientAuthUtil.errorResponse(Response.Status.BAD_REQUEST.getStatusCode(),
+					OAuthErrorException.INVALID_CLIENT, "Parameters client_assertion_type or client_assertion missing or invalid"));
+			return Outcome.INVALID_REQUEST;
+		}
+
+		JWSInput jws;
+		JsonWebToken token;
+		try {
+			jws = new JWSInput(assertion);
+			token = jws.readJsonContent(JsonWebToken.class);
+		} catch (JWSInputException e) {
+			return fail(context, "Client assertion is not a valid JWT", Outcome.INVALID_REQUEST);
+		}
+
+		String clientId = token.getSubject();
+		if (clientId == null || !clientId.equals(token.getIssuer())) {
+			return fail(context, "Client assertion iss and sub must both be the client_id", Outcome.UNAUTHORIZED);
+		}
+		context.getEvent().client(clientId);
+		ClientModel client = context.getRealm().getClientByClientId(clientId);
+		if (client == null) {
+			context.failure(AuthenticationFlowError.CLIENT_NOT_FOUND, null);
+			return Outcome.UNAUTHORIZED;
+		}
+		context.setClient(client);
+		if (!client.isEnabled()) {
+			context.failure(AuthenticationFlowError.CLIENT_DISABLED, null);
+			return Outcome.UNAUTHORIZED;
+		}
+
+		// cheap claim checks first, an invalid assertion never costs a key lookup
+		String error = checkClaims(context, token);
+		if (error != null) {
+			return fail(context, error, Outcome.UNAUTHORIZED);
+		}
+
+		if (!PublicKeySignatures.isSupported(JwsAlgorithms.of(jws))) {
+			return fail(context, "Client assertion must be signed with an RS256, RS384, RS512, ES256, ES384 or ES512 key", Outcome.UNAUTHORIZED);
+		}
+
+		PublicKey key;
+		try {
+			key = keyCache.getKey(context.getSession(), client, jws.getHeader().getKeyId());
+		} catch (IOException e) {
+			LOG.warnf("Keys of client %s could not be loaded: %s", clientId, e.getMessage());
+			return fail(context, "Client keys could not be loaded", Outcome.ERROR);
+		}
+		if (key == null || !PublicKeySignatures.verify(jws, key)) {
+			return fail(context, "Invalid client assertion signature", Outcome.UNAUTHORIZED);
+		}
+
+		// recorded only once the signature is valid, so a forged assertion can not burn a jti
+		if (!replayCache.markUsed(context.getSession(), client.getId() + ':' + token.getId(),
+				token.getExpiration() + SmartAppTokenVerifier.ALLOWED_CLOCK_SKEW_SECONDS)) {
+			return fail(context, "Client assertion jti was already used", Outcome.REPLAYED_ASSERTION);
+		}
+
+		context.success();
+		return Outcome.SUCCESS;
+	}
+
+	private static String checkClaims(ClientAuthenticationFlowContext context, JsonWebToken token) {
+		int now = Time.currentTime();
+		if (token.getExpiration() == 0) {
+			return "Client assertion has no exp";
+		}
+		if (now - SmartAppTokenVerifier.ALLOWED_CLOCK_SKEW_SECONDS > token.getExpiration()) {
+			return "Client assertion is expired";
+		}
+		if (token.getExpiration() > now + MAX_ASSERTION_LIFETIME_SECONDS + SmartAppTokenVerifier.ALLOWED_CLOCK_SKEW_SECONDS) {
+			return "Client assertion exp must be at most " + MAX_ASSERTION_LIFETIME_SECONDS + " seconds in the future";
+		}
+		if (token.getNotBefore() != 0 && now + SmartAppTokenVerifier.ALLOWED_CLOCK_SKEW_SECONDS < token.getNotBefore()) {
+			return "Client assertion is not active yet";
+		}
+		if (token.getId() == null || token.getId().isEmpty()) {
+			return "Client assertion has no jti";
+		}
+		if (!hasTokenEndpointAudience(context, token)) {
+			return "Client assertion aud must be the token endpoint";
+		}
+		return null;
+	}
+
+	private static boolean hasTokenEndpointAudience(ClientAuthenticationFlowContext context, JsonWebToken token) {
+		if (token.getAudience() == null) {
+			return false;
+		}
+		String realmName = context.getRealm().getName();
+		UriBuilder baseUri = context.getUriInfo().getBaseUriBuilder();
+		return token.hasAudience(SmartOIDCLoginProtocolService.tokenUrl(baseUri.clone()).build(realmName).toString())
+				|| token.hasAudience(OIDCLoginProtocolService.tokenUrl(baseUri.clone()).build(realmName).toString())
+				|| token.hasAudience(Urls.realmIssuer(context.getUriInfo().getBaseUri(), realmName));
+	}
+
+	private static Outcome fail(ClientAuthenticationFlowContext context, String message, Outcome outcome) {
+		LOG.debugf("SMART client assertion rejected: %s", message);
+		Response challenge = ClientAuthUtil.errorResponse(Response.Status.BAD_REQUEST.getStatusCode(),
+				OAuthErrorException.INVALID_CLIENT, message);
+		context.failure(AuthenticationFlowError.INVALID_CLIENT_CREDENTIALS, challenge);
+		return outcome;
+	}
+
+	public ClientPublicKeyCache getKeyCache() {
+		return keyCache;
+	}
+
+	public TokenReplayCache getReplayCache() {
+		return replayCache;
+	}
+
+	@Override
+	public String getId() {
+		return PROVIDER_ID;
+	}
+
+	@Override
+	public String getDisplayType() {
+		return "SMART Signed JWT";
+	}
+
+	@Override
+	public String getHelpText() {
+		return "Validates SMART Backend Services client assertions signed with the client private key (RS256, RS384, RS512, ES256, ES384 or ES512). The client keys are read from its JWKS URL or registered certificate.";
+	}
+
+	@Override
+	public AuthenticationExecutionModel.Requirement[] getRequirementChoices() {
+		return REQUIREMENT_CHOICES;
+	}
+
+	@Override
+	public boolean isConfigurable() {
+		return false;
+	}
+
+	@Override
+	public List<ProviderConfigProperty> getConfigProperties() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public List<ProviderConfigProperty> getConfigPropertiesPerClient() {
+		List<ProviderConfigProperty> properties = new ArrayList<>();
+		properties.add(new ProviderConfigProperty(ClientPublicKeyCache.JWKS_URL_ATTR, "JWKS URL",
+				"URL of the client JSON Web Key Set holding the public keys of its client assertions.",
+				ProviderConfigProperty.STRING_TYPE, null));
+		return properties;
+	}
+
+	@Override
+	public Map<String, Object> getAdapterConfiguration(ClientModel client) {
+		return new HashMap<>();
+	}
+
+	@Override
+	public Set<String> getProtocolAuthenticatorMethods(String loginProtocol) {
+		if (SmartOIDCLoginProtocolFactory.LOGIN_PROTOCOL.equals(loginProtocol)) {
+			return Collections.singleton(OIDCLoginProtocol.PRIVATE_KEY_JWT);
+		}
+		return Collections.emptySet();
+	}
+
+	@Override
+	public void postInit(KeycloakSessionFactory factory) {
+		// reload client keys after the JWKS URL or certificate of a client changed
+		factory.register(event -> {
+			if (event instanceof RealmModel.ClientUpdatedEvent) {
+				keyCache.removeClient(((RealmModel.ClientUpdatedEvent) event).getUpdatedClient().getId());
+			} else if (event instanceof RealmModel.ClientRemovedEvent) {
+				keyCache.removeClient(((RealmModel.ClientRemovedEvent) event).getClient().getId());
+			} else if (event instanceof RealmModel.RealmRemovedEvent) {
+				keyCache.clear();
+			}
+		});
+	}
+}
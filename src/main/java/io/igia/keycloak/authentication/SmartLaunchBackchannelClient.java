@@ -0,0 +1,167 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Server to server call to the external launch app, used when the app can decide
+ * the launch context without user interaction. The launch params are posted to
+ * the backchannel URL with the launch app access token as bearer token, and the
+ * app answers with a JSON object holding the signed app token:
+ * <pre>{"app-token": "..."}</pre>
+ * The call runs on a bounded pool so the whole exchange, including waiting for a
+ * pooled connection, is cut off at the configured timeout.
+ */
+public class SmartLaunchBackchannelClient {
+	public static final int DEFAULT_TIMEOUT_MILLIS = 2000;
+	static final int MAX_RESPONSE_LENGTH = 64 * 1024;
+	private static final int MAX_CONCURRENT_CALLS = 64;
+
+	private final ExecutorService executor;
+
+	public SmartLaunchBackchannelClient() {
+		this(newExecutor());
+	}
+
+	SmartLaunchBackchannelClient(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Posts the params to the backchannel URL and returns the app token from the
+	 * response. Fails with an IOException on error status, malformed response or
+	 * when no answer arrived within the timeout.
+	 */
+	public String resolveAppToken(HttpClient httpClient, String url, String accessToken, Map<String, String> params,
+			int timeoutMillis) throws IOException {
+		HttpPost post = new HttpPost(url);
+		post.setConfig(RequestConfig.custom()
+				.setConnectionRequestTimeout(timeoutMillis)
+				.setConnectTimeout(timeoutMillis)
+				.setSocketTimeout(timeoutMillis)
+				.build());
+		if (accessToken != null) {
+			post.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + accessToken);
+		}
+		post.setHeader(HttpHeaders.ACCEPT, "application/json");
+		List<NameValuePair> form = new ArrayList<>(params.size());
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			if (param.getValue() != null) {
+				form.add(new BasicNameValuePair(param.getKey(), param.getValue()));
+			}
+		}
+		post.setEntity(new UrlEncodedFormEntity(form, "UTF-8"));
+
+		CompletableFuture<String> call;
+		try {
+			call = CompletableFuture.supplyAsync(() -> execute(httpClient, post), executor);
+		} catch (RejectedExecutionException e) {
+			throw new IOException("Too many concurrent backchannel launch calls", e);
+		}
+
+		try {
+			return call.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			post.abort();
+			throw new IOException("Backchannel launch call timed out after " + timeoutMillis + " ms", e);
+		} catch (InterruptedException e) {
+			post.abort();
+			Thread.currentThread().interrupt();
+			throw new IOException("Backchannel launch call interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause() != null ? e.getCause().getCause() : null;
+			throw cause instanceof IOException ? (IOException) cause : new IOException("Backchannel launch call failed", e.getCause());
+		}
+	}
+
+	private static String execute(HttpClient httpClient, HttpPost post) {
+		try {
+			HttpResponse response = httpClient.execute(post);
+			HttpEntity entity = response.getEntity();
+			try {
+				int status = response.getStatusLine().getStatusCode();
+				if (status != 200) {
+					throw new IOException("Backchannel launch call returned status " + status);
+				}
+				if (entity == null || entity.getContentLength() > MAX_RESPONSE_LENGTH) {
+					throw new IOException("Backchannel launch response missing or too large");
+				}
+				JsonNode body;
+				try (InputStream content = new LimitedInputStream(entity.getContent(), MAX_RESPONSE_LENGTH, post::abort)) {
+					body = JsonSerialization.readValue(content, JsonNode.class);
+				}
+				JsonNode appToken = body == null ? null : body.get(SmartLaunchContextAuthenticatorFactory.QUERY_PARAM_APP_TOKEN);
+				if (appToken == null || !appToken.isTextual()) {
+					throw new IOException("Backchannel launch response has no app-token");
+				}
+				return appToken.asText();
+			} finally {
+				// return the connection to the pool
+				EntityUtils.consumeQuietly(entity);
+			}
+		} catch (IOException e) {
+			throw new BackchannelException(e);
+		}
+	}
+
+	private static ExecutorService newExecutor() {
+		AtomicInteger threads = new AtomicInteger();
+		ThreadFactory threadFactory = runnable -> {
+			Thread thread = new Thread(runnable, "smart-launch-backchannel-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		return new ThreadPoolExecutor(0, MAX_CONCURRENT_CALLS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), threadFactory);
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private static class BackchannelException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		BackchannelException(IOException cause) {
+			super(cause);
+		}
+	}
+}
@@ -13,36 +13,38 @@
 package io.igia.keycloak.authentication;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InterruptedIOException;
 import java.net.URI;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
-import javax.crypto.spec.SecretKeySpec;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
-import javax.ws.rs.core.UriBuilder;
 
-import org.keycloak.OAuth2Constants;
+import org.apache.http.client.HttpClient;
 import org.keycloak.OAuthErrorException;
-import org.keycloak.TokenVerifier;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.common.VerificationException;
-import org.keycloak.common.util.Base64;
 import org.keycloak.common.util.Time;
+import org.keycloak.connections.httpclient.HttpClientProvider;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
 import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.ClientModel;
-import org.keycloak.models.ClientScopeModel;
-import org.keycloak.models.Constants;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
@@ -55,12 +57,16 @@ import org.keycloak.representations.JsonWebToken;
 import org.keycloak.services.ServicesLogger;
 import org.keycloak.services.Urls;
 import org.keycloak.services.managers.ClientSessionCode;
-import org.keycloak.services.resources.LoginActionsService;
 import org.keycloak.services.util.DefaultClientSessionContext;
 import org.keycloak.sessions.AuthenticationSessionModel;
 
-import io.igia.keycloak.protocol.smart.SmartOIDCLoginProtocolFactory;
-import io.igia.keycloak.protocol.smart.SmartOIDCLoginProtocolService;
+import io.igia.keycloak.protocol.smart.SmartLaunchContext;
+import io.igia.keycloak.protocol.smart.SmartLaunchContextStore;
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics;
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Outcome;
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Stage;
+import io.igia.keycloak.protocol.smart.SmartScope;
+import io.igia.keycloak.protocol.smart.SmartScopes;
 import io.igia.keycloak.protocol.smart.SmartTokenManager;
 
 public class SmartLaunchContextAuthenticator implements Authenticator {
@@ -68,114 +74,318 @@ public class SmartLaunchContextAuthenticator implements Authenticator {
 
 	public static final String LAUNCH_SCOPE_PREFIX = "launch/";
 
-	private static final String HMAC_SHA1_ALGORITHM = "HmacSHA256";
 	private static final String AUD_PARAM = "aud";
+	private static final String BACKCHANNEL_LAUNCH_PARAM = "launch";
+	private static final String APP_TOKEN_REPLAY_ACTION = "smart-launch-app-token";
+	private static final String PATIENT_PARAM = "patient";
+	private static final String PICKER_QUERY_PARAM = "query";
+	private static final String PICKER_PAGE_PARAM = "page";
+	private static final String PICKER_SEARCH_PARAM = "search";
+	private static final String PICKER_PATIENTS_NOTE = "SMART_LAUNCH_PICKER_PATIENTS";
+	private static final String PICKER_TOKEN_NOTE = "SMART_LAUNCH_PICKER_TOKEN";
+	private static final String PICKER_TOKEN_EXPIRATION_NOTE = "SMART_LAUNCH_PICKER_TOKEN_EXPIRATION";
+	
+	private final ConcurrentMap<String, SmartLaunchMatcher> launchMatchers = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, HmacKeySet> verificationKeys = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, SmartLaunchRedirectTemplate> redirectTemplates = new ConcurrentHashMap<>();
+	private final SmartLaunchMetrics metrics = SmartLaunchMetrics.getInstance();
+	private final SmartLaunchBackchannelClient backchannelClient = new SmartLaunchBackchannelClient();
+	private final FhirPatientSearch patientSearch = new FhirPatientSearch();
+	private final JwksKeyCache appTokenKeys = new JwksKeyCache();
+	private final TokenReplayCache appTokenReplayCache = new TokenReplayCache(APP_TOKEN_REPLAY_ACTION, TokenReplayCache.DEFAULT_MAX_ENTRIES);
+
+	public SmartLaunchContextAuthenticator() {
+		metrics.registerReplayCache(appTokenReplayCache);
+	}
 
 	@Override
-	public void authenticate(AuthenticationFlowContext context) {	
+	public void authenticate(AuthenticationFlowContext context) {
+		long start = System.nanoTime();
+		Outcome outcome = Outcome.ERROR;
+		try {
+			outcome = authenticateLaunch(context);
+		} finally {
+			metrics.record(realmName(context), Stage.AUTHENTICATE, outcome, start);
+		}
+	}
+
+	private Outcome authenticateLaunch(AuthenticationFlowContext context) {	
 		// return attempted if external launch authenticator does not support
 		// any of app launch/* requested or default launch scopes
 		String scope = context.getAuthenticationSession().getClientNote(OIDCLoginProtocol.SCOPE_PARAM);
-		Map<String, ClientScopeModel> defaultScopes = context.getAuthenticationSession().getClient().getClientScopes(true, true);
-		
-		if (scope == null) {
-			scope = "";
-		}
 		
 		logger.debugf("Requested scope: %s", scope);
 		
-		List<String> scopes = Arrays.stream(scope.split("\\s+")).collect(Collectors.toList());
-		String supportedParams = context.getAuthenticatorConfig().getConfig()
-			.get(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SUPPORTED_PARAMS);
-		if(supportedParams == null || supportedParams.isEmpty()) {
+		SmartLaunchMatcher matcher = getLaunchMatcher(context.getAuthenticatorConfig());
+		if(matcher.isEmpty()) {
 			context.attempted();
-			return;
+			return Outcome.ATTEMPTED;
 		}
 		
-		List<String> params = Arrays.stream(supportedParams.split("\\s+")).collect(Collectors.toList());
-		boolean foundMatch = false;
-		for(String param: params) {
-			if(scopes.contains(LAUNCH_SCOPE_PREFIX + param) || 
-					defaultScopes.containsKey(LAUNCH_SCOPE_PREFIX + param)){
-				foundMatch = true;
-			}
+		SmartScopes requestedScopes = SmartScopes.parse(scope);
+		List<String> requiredParams = matcher.requiredParams(requestedScopes, context.getAuthenticationSession().getClient());
+		if(requiredParams.isEmpty()) {
+			context.attempted();
+			return Outcome.ATTEMPTED;
 		}
 		
-		if(!foundMatch) {
-			context.attempted();
-			return;
+		// EHR launch, the context was registered by the EHR under the launch id
+		String launchId = context.getAuthenticationSession().getClientNote(
+				AuthorizationEndpoint.LOGIN_SESSION_NOTE_ADDITIONAL_REQ_PARAMS_PREFIX + SmartLaunchContextStore.LAUNCH_PARAM);
+		if (launchId != null && !launchId.isEmpty() && requestedScopes.has(SmartScope.Type.LAUNCH)) {
+			return ehrLaunch(context, launchId, requiredParams);
+		}
+		
+		// load the app keys while the app is deciding, the callback then verifies without a fetch
+		String keySource = appTokenKeySource(context);
+		if (keySource != null) {
+			appTokenKeys.prefetch(context.getSession().getProvider(HttpClientProvider.class).getHttpClient(), keySource);
+		}
+		
+		// ask the external app server to server first, the browser round trip is the fallback
+		String accessToken = null;
+		String backchannelUrl = getConfig(context, SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_BACKCHANNEL_URL);
+		if (backchannelUrl != null && !backchannelUrl.isEmpty()) {
+			accessToken = generateSmartLaunchAppToken(context);
+			String appTokenString = resolveBackchannelAppToken(context, backchannelUrl, accessToken, scope, requiredParams);
+			if (appTokenString != null) {
+				return completeLaunch(context, appTokenString);
+			}
 		}
 		
 		// redirect to external smart launch URL
-		if (context.getAuthenticatorConfig() != null && context.getAuthenticatorConfig().getConfig()
-				.containsKey(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_URL)) {
-			String redirectUrl = context.getAuthenticatorConfig().getConfig()
-					.get(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_URL);
-			if (redirectUrl != null && !redirectUrl.isEmpty()) {
-				redirect(context, redirectUrl);
-				return;
+		String redirectUrl = getConfig(context, SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_URL);
+		if (redirectUrl != null && !redirectUrl.isEmpty()) {
+			long redirectStart = System.nanoTime();
+			Outcome redirectOutcome = Outcome.ERROR;
+			try {
+				redirect(context, redirectUrl, accessToken != null ? accessToken : generateSmartLaunchAppToken(context));
+				redirectOutcome = Outcome.REDIRECTED;
+			} finally {
+				metrics.record(realmName(context), Stage.REDIRECT, redirectOutcome, redirectStart);
 			}
+			return Outcome.REDIRECTED;
 		}
 
 		// use keycloak form template as default if external launch url not configured
-		Response challenge = context.form().createForm("smart-launch.ftl");
-		context.challenge(challenge);
+		context.challenge(launchForm(context, null, 0, null));
+		return Outcome.CHALLENGED;
 	}
 
-	private void redirect(AuthenticationFlowContext context, String redirectUrl) {		
-		String accessCode = generateSessionCode(context);
-		String authSessionId = context.getAuthenticationSession().getParentSession().getId();
-		String clientId = context.getAuthenticationSession().getClient().getClientId();
-		String tabId = context.getAuthenticationSession().getTabId();
+	private Response launchForm(AuthenticationFlowContext context, String queryText, int pageIndex, String error) {
+		LoginFormsProvider form = context.form();
+		String fhirUrl = getConfig(context, SmartLaunchContextAuthenticatorFactory.CONFIG_PATIENT_PICKER_FHIR_URL);
+		if (fhirUrl != null && !fhirUrl.isEmpty()) {
+			FhirPatientSearch.Query query = new FhirPatientSearch.Query(fhirUrl, pickerUserId(context), queryText,
+					getPickerPageSize(context), FhirPatientSearch.DEFAULT_TIMEOUT_MILLIS);
+			form.setAttribute("picker", query);
+			form.setAttribute("launchParams", pickerParams(context));
+			FhirPatientSearch.Page page = searchPatients(context, query, pageIndex);
+			if (page != null) {
+				form.setAttribute("patients", page);
+				// only patients offered on the form can be selected
+				context.getAuthenticationSession().setAuthNote(PICKER_PATIENTS_NOTE, page.getPatients().stream()
+						.map(FhirPatientSearch.Patient::getId).collect(Collectors.joining(" ")));
+			} else if (error == null) {
+				error = "Patient search is currently not available.";
+			}
+		}
+		if (error != null) {
+			form.setError(error);
+		}
+		return form.createForm("smart-launch.ftl");
+	}
+
+	private FhirPatientSearch.Page searchPatients(AuthenticationFlowContext context, FhirPatientSearch.Query query, int pageIndex) {
+		long start = System.nanoTime();
+		Outcome outcome = Outcome.ERROR;
+		try {
+			HttpClient httpClient = context.getSession().getProvider(HttpClientProvider.class).getHttpClient();
+			FhirPatientSearch.Page page = patientSearch.search(httpClient, query, pageIndex, () -> pickerAccessToken(context));
+			outcome = Outcome.SUCCESS;
+			return page;
+		} catch (IOException e) {
+			outcome = e instanceof InterruptedIOException || e.getCause() instanceof TimeoutException ? Outcome.TIMEOUT : Outcome.ERROR;
+			logger.warnf("SMART launch patient search failed: %s", e.getMessage());
+			return null;
+		} finally {
+			metrics.record(realmName(context), Stage.PATIENT_SEARCH, outcome, start);
+		}
+	}
+
+	private String pickerAccessToken(AuthenticationFlowContext context) {
+		if (getConfig(context, SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_CLIENT_ID) == null) {
+			return null;
+		}
 		
-		// generate redirect URL
-		String aud = context.getAuthenticationSession().getClientNote(AuthorizationEndpoint.LOGIN_SESSION_NOTE_ADDITIONAL_REQ_PARAMS_PREFIX + AUD_PARAM);
-		String accessToken = generateSmartLaunchAppToken(context);
+		// reused while the user pages through results, a session token creates a user session each time
+		AuthenticationSessionModel authSession = context.getAuthenticationSession();
+		String token = authSession.getAuthNote(PICKER_TOKEN_NOTE);
+		String expiration = authSession.getAuthNote(PICKER_TOKEN_EXPIRATION_NOTE);
+		if (token != null && expiration != null && Time.currentTime() < Integer.parseInt(expiration)) {
+			return token;
+		}
+		
+		token = generateSmartLaunchAppToken(context);
+		if (token != null) {
+			try {
+				int exp = new JWSInput(token).readJsonContent(JsonWebToken.class).getExpiration();
+				if (exp != 0) {
+					authSession.setAuthNote(PICKER_TOKEN_NOTE, token);
+					authSession.setAuthNote(PICKER_TOKEN_EXPIRATION_NOTE, String.valueOf(exp - SmartAppTokenVerifier.ALLOWED_CLOCK_SKEW_SECONDS));
+				}
+			} catch (JWSInputException e) {
+				logger.debugf("Patient picker access token not reusable: %s", e.getMessage());
+			}
+		}
+		return token;
+	}
+
+	private static String pickerUserId(AuthenticationFlowContext context) {
+		return context.getUser() != null ? context.getUser().getId()
+				: context.getAuthenticationSession().getParentSession().getId();
+	}
+
+	private static int getPickerPageSize(AuthenticationFlowContext context) {
+		String pageSize = getConfig(context, SmartLaunchContextAuthenticatorFactory.CONFIG_PATIENT_PICKER_PAGE_SIZE);
+		if (pageSize == null || pageSize.trim().isEmpty()) {
+			return FhirPatientSearch.DEFAULT_PAGE_SIZE;
+		}
 		try {
-			redirectUrl = redirectUrl + "&" + AUD_PARAM + "=" + URLEncoder.encode(aud, StandardCharsets.UTF_8.toString())
-				+ "&" + OAuth2Constants.ACCESS_TOKEN + "=" + accessToken;			
-		} catch (UnsupportedEncodingException e1) {
-			throw new RuntimeException(e1);
+			return Math.max(1, Integer.parseInt(pageSize.trim()));
+		} catch (NumberFormatException e) {
+			logger.warnf("Invalid SMART launch patient picker page size %s, using default", pageSize);
+			return FhirPatientSearch.DEFAULT_PAGE_SIZE;
+		}
+	}
+
+	private Outcome ehrLaunch(AuthenticationFlowContext context, String launchId, List<String> requiredParams) {
+		AuthenticationSessionModel authSession = context.getAuthenticationSession();
+		String aud = authSession.getClientNote(AuthorizationEndpoint.LOGIN_SESSION_NOTE_ADDITIONAL_REQ_PARAMS_PREFIX + AUD_PARAM);
+		SmartLaunchContext launchContext = new SmartLaunchContextStore(context.getSession())
+				.resolve(context.getRealm(), launchId, authSession.getClient().getClientId(), aud);
+		if (launchContext == null) {
+			logger.error("Unknown, expired or already used EHR launch id, or registered for another client.");
+			context.failure(AuthenticationFlowError.INVALID_CLIENT_SESSION);
+			return Outcome.UNKNOWN_LAUNCH;
 		}
+		for (String param : requiredParams) {
+			String value = launchContext.get(param);
+			if (value == null || value.isEmpty()) {
+				logger.errorf("EHR launch context missing required params: %s", requiredParams);
+				context.failure(AuthenticationFlowError.INVALID_CLIENT_SESSION);
+				return Outcome.MISSING_LAUNCH_CLAIMS;
+			}
+		}
+		setLaunchContext(context, launchContext.asMap());
+		context.success();
+		return Outcome.EHR_LAUNCH;
+	}
+
+	private void redirect(AuthenticationFlowContext context, String redirectUrl, String accessToken) {		
+		String accessCode = generateSessionCode(context);
+		AuthenticationSessionModel authSession = context.getAuthenticationSession();
+		String aud = authSession.getClientNote(AuthorizationEndpoint.LOGIN_SESSION_NOTE_ADDITIONAL_REQ_PARAMS_PREFIX + AUD_PARAM);
+		
+		// external launch URL with the callback URL in place of {TOKEN}
+		String location = getRedirectTemplate(context, redirectUrl).build(authSession.getParentSession().getId(),
+				accessCode, authSession.getClient().getClientId(), authSession.getTabId(),
+				context.getExecution().getId(), aud, accessToken);
 		
-		// generate launch token
-		String externalLaunchToken = smartLaunchBuilder(context.getUriInfo().getBaseUri(), 
-				authSessionId, accessCode, clientId, tabId)
-				.queryParam(Constants.EXECUTION, context.getExecution().getId())
-				.queryParam(SmartLaunchContextAuthenticatorFactory.QUERY_PARAM_APP_TOKEN, "{tokenParameterName}")
-				.build(context.getRealm().getName(), "{APP_TOKEN}").toString();
-
-		Response challenge;
+		logger.debugf("Redirecting to %s", location);
+		context.forceChallenge(Response.status(Status.FOUND).header("Location", location).build());
+	}
+
+	private SmartLaunchRedirectTemplate getRedirectTemplate(AuthenticationFlowContext context, String redirectUrl) {
+		String key = context.getAuthenticatorConfig().getId() != null ? context.getAuthenticatorConfig().getId() : "";
+		URI baseUri = context.getUriInfo().getBaseUri();
+		String realmName = context.getRealm().getName();
+		SmartLaunchRedirectTemplate template = redirectTemplates.get(key);
+		if (template == null || !template.isFor(redirectUrl, baseUri, realmName)) {
+			template = SmartLaunchRedirectTemplate.compile(redirectUrl, baseUri, realmName);
+			redirectTemplates.put(key, template);
+		}
+		return template;
+	}
+
+	private String resolveBackchannelAppToken(AuthenticationFlowContext context, String backchannelUrl,
+			String accessToken, String scope, List<String> requiredParams) {
+		long start = System.nanoTime();
+		Outcome outcome = Outcome.ERROR;
+		try {
+			Map<String, String> params = new LinkedHashMap<>();
+			params.put(AUD_PARAM, context.getAuthenticationSession()
+					.getClientNote(AuthorizationEndpoint.LOGIN_SESSION_NOTE_ADDITIONAL_REQ_PARAMS_PREFIX + AUD_PARAM));
+			params.put(OIDCLoginProtocol.CLIENT_ID_PARAM, context.getAuthenticationSession().getClient().getClientId());
+			params.put(OIDCLoginProtocol.SCOPE_PARAM, scope);
+			params.put(BACKCHANNEL_LAUNCH_PARAM, String.join(" ", requiredParams));
+			
+			HttpClient httpClient = context.getSession().getProvider(HttpClientProvider.class).getHttpClient();
+			String appTokenString = backchannelClient.resolveAppToken(httpClient, backchannelUrl, accessToken, params,
+					getBackchannelTimeout(context));
+			outcome = Outcome.SUCCESS;
+			return appTokenString;
+		} catch (IOException e) {
+			outcome = e.getCause() instanceof TimeoutException ? Outcome.TIMEOUT : Outcome.ERROR;
+			logger.warnf("External SMART launch backchannel call failed, falling back to browser launch: %s", e.getMessage());
+			return null;
+		} finally {
+			metrics.record(realmName(context), Stage.BACKCHANNEL, outcome, start);
+		}
+	}
+	
+	private static int getBackchannelTimeout(AuthenticationFlowContext context) {
+		String timeout = getConfig(context, SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_BACKCHANNEL_TIMEOUT);
+		if (timeout == null || timeout.trim().isEmpty()) {
+			return SmartLaunchBackchannelClient.DEFAULT_TIMEOUT_MILLIS;
+		}
 		try {
-			challenge = Response.status(Status.FOUND)
-					.header("Location", redirectUrl.replace("{TOKEN}", URLEncoder.encode(externalLaunchToken, StandardCharsets.UTF_8.toString())))
-					.build();
-			logger.debugf("Redirecting to %s", redirectUrl.replace("{TOKEN}", URLEncoder.encode(externalLaunchToken, StandardCharsets.UTF_8.toString())));
-			context.forceChallenge(challenge);
-			return;
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(e);
+			return Integer.parseInt(timeout.trim());
+		} catch (NumberFormatException e) {
+			logger.warnf("Invalid external SMART launch backchannel timeout %s, using default", timeout);
+			return SmartLaunchBackchannelClient.DEFAULT_TIMEOUT_MILLIS;
 		}
 	}
+	
+	private static String getConfig(AuthenticationFlowContext context, String name) {
+		AuthenticatorConfigModel config = context.getAuthenticatorConfig();
+		return config != null && config.getConfig() != null ? config.getConfig().get(name) : null;
+	}
 
 	@Override
 	public void action(AuthenticationFlowContext context) {
+		long start = System.nanoTime();
+		Outcome outcome = Outcome.ERROR;
+		try {
+			outcome = processAction(context);
+		} finally {
+			metrics.record(realmName(context), Stage.ACTION, outcome, start);
+		}
+	}
+
+	private Outcome processAction(AuthenticationFlowContext context) {
 		final AuthenticationSessionModel authSession = context.getAuthenticationSession();
         if (! Objects.equals(authSession.getAuthNote(SmartLaunchContextAuthenticatorFactory.INITIATED_BY_SMART_LAUNCH_EXT_APP), "true")) {
     		// handle keycloak template form
     		MultivaluedMap<String, String> formData = context.getHttpRequest().getDecodedFormParameters();
     		if (formData.containsKey("cancel")) {
     			context.cancelLogin();
-    			return;
+    			return Outcome.CANCELLED;
+    		}
+    		
+    		String fhirUrl = getConfig(context, SmartLaunchContextAuthenticatorFactory.CONFIG_PATIENT_PICKER_FHIR_URL);
+    		if (fhirUrl != null && !fhirUrl.isEmpty()) {
+    			return pickerAction(context, formData);
     		}
     		
+    		Map<String, String> launchParams = new LinkedHashMap<>();
     		for(String key : formData.keySet()) {
-    			String value = formData.getFirst(key);
-    			context.getAuthenticationSession().setClientNote(LAUNCH_SCOPE_PREFIX + key, value);
-    		}    		
+    			launchParams.put(key, formData.getFirst(key));
+    		}
+    		setLaunchContext(context, launchParams);
 
     		context.success();
-            return;
+            return Outcome.SUCCESS;
         }
         
         authSession.removeAuthNote(SmartLaunchContextAuthenticatorFactory.INITIATED_BY_SMART_LAUNCH_EXT_APP);
@@ -186,53 +396,110 @@ public class SmartLaunchContextAuthenticator implements Authenticator {
 		if (appTokenString == null || appTokenString.isEmpty()) { 		
 			// no launch context token provided by external app, try again
 			authenticate(context);
-			return;
+			return Outcome.MISSING_APP_TOKEN;
 		}
 
-		// check for valid signature
+		return completeLaunch(context, appTokenString);
+	}
+
+	private Outcome pickerAction(AuthenticationFlowContext context, MultivaluedMap<String, String> formData) {
+		AuthenticationSessionModel authSession = context.getAuthenticationSession();
+		String queryText = formData.getFirst(PICKER_QUERY_PARAM);
+		String error = null;
+		if (!formData.containsKey(PICKER_SEARCH_PARAM) && !formData.containsKey(PICKER_PAGE_PARAM)) {
+			String patient = formData.getFirst(PATIENT_PARAM);
+			if (patient != null && isOfferedPatient(authSession, patient)) {
+				// the picker only selects the patient, other required params are entered on the form
+				Map<String, String> launchParams = new LinkedHashMap<>();
+				launchParams.put(PATIENT_PARAM, patient);
+				List<String> missing = new ArrayList<>();
+				for (String param : pickerParams(context)) {
+					String value = formData.getFirst(param);
+					if (value == null || value.isEmpty()) {
+						missing.add(param);
+					} else {
+						launchParams.put(param, value);
+					}
+				}
+				if (missing.isEmpty()) {
+					authSession.removeAuthNote(PICKER_PATIENTS_NOTE);
+					authSession.removeAuthNote(PICKER_TOKEN_NOTE);
+					authSession.removeAuthNote(PICKER_TOKEN_EXPIRATION_NOTE);
+					setLaunchContext(context, launchParams);
+					context.success();
+					return Outcome.SUCCESS;
+				}
+				error = "Enter " + String.join(", ", missing) + " for the SMART application.";
+			} else {
+				error = "Select a patient for the SMART application.";
+			}
+		}
+		
+		int pageIndex = 0;
+		if (!formData.containsKey(PICKER_SEARCH_PARAM)) {
+			try {
+				pageIndex = Math.max(0, Math.min(FhirPatientSearch.MAX_PAGES - 1,
+						Integer.parseInt(formData.getFirst(PICKER_PAGE_PARAM))));
+			} catch (NumberFormatException e) {
+				pageIndex = 0;
+			}
+		}
+		context.challenge(launchForm(context, queryText, pageIndex, error));
+		return Outcome.CHALLENGED;
+	}
+
+	private static boolean isOfferedPatient(AuthenticationSessionModel authSession, String patient) {
+		String offered = authSession.getAuthNote(PICKER_PATIENTS_NOTE);
+		return offered != null && Arrays.asList(offered.split(" ")).contains(patient);
+	}
+	
+	private Outcome completeLaunch(AuthenticationFlowContext context, String appTokenString) {
+		// verify signature, time and audience claims in a single parse
+		JsonWebToken appToken = null;
 		try {
-			isApplicationTokenValid(context);				
+			appToken = verifyApplicationToken(context, appTokenString);
 		} catch (VerificationException e) {
-			logger.error("Invalid external application token signature.", e);
+			logger.error("Invalid external application token.", e);
 			context.failure(AuthenticationFlowError.INVALID_CLIENT_SESSION); 
-			return;
+			return Outcome.INVALID_APP_TOKEN;
 		} catch (IOException e) {
 			logger.error("Invalid external application token signature.", e);
 			context.failure(AuthenticationFlowError.INVALID_CLIENT_SESSION);
-			return;
+			return Outcome.INVALID_APP_TOKEN;
 		}
 
-		JsonWebToken appToken = null;
-		try {
-			appToken = TokenVerifier.create(appTokenString, JsonWebToken.class).getToken();
-		} catch (VerificationException e) {
-			logger.error("Invalid external application JWT token.", e);
-			context.failure(AuthenticationFlowError.INTERNAL_ERROR);
-			return;
+		// each app token is accepted once, within its lifetime
+		String launchClientId = getConfig(context, SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_CLIENT_ID);
+		if (!appTokenReplayCache.markUsed(context.getSession(),
+				appTokenReplayId(context.getRealm().getId(), launchClientId, appToken, appTokenString),
+				appToken.getExpiration() + SmartAppTokenVerifier.ALLOWED_CLOCK_SKEW_SECONDS)) {
+			logger.error("External application token was already used.");
+			context.failure(AuthenticationFlowError.INVALID_CLIENT_SESSION);
+			return Outcome.REPLAYED_APP_TOKEN;
 		}
 
 		// check for presence of required launch claims
 		if(!hasRequiredLaunchClaims(context, appToken)) {
 			context.failure(AuthenticationFlowError.INVALID_CLIENT_SESSION); 
-			return;
+			return Outcome.MISSING_LAUNCH_CLAIMS;
 		}else {
 			//add launch context parameters to client session
+			Map<String, String> launchParams = new LinkedHashMap<>();
 			for(Entry<String, Object> entry: appToken.getOtherClaims().entrySet()) {
-				context.getAuthenticationSession().setClientNote(LAUNCH_SCOPE_PREFIX + entry.getKey(),
-						entry.getValue().toString());					
+				if (entry.getValue() != null) {
+					launchParams.put(entry.getKey(), String.valueOf(entry.getValue()));
+				}
 			}
+			setLaunchContext(context, launchParams);
 			context.success();
-			return;
+			return Outcome.SUCCESS;
 		}			
 	}
 	
-	private static UriBuilder smartLaunchBuilder(URI baseUri, String authSessionId, String accessCode, String clientId, String tabId) {
-		return Urls.realmBase(baseUri).path("{realm}/protocol/" + SmartOIDCLoginProtocolFactory.LOGIN_PROTOCOL)
-				.path(SmartOIDCLoginProtocolService.class, "executeSmartLaunchContext")
-				.replaceQueryParam(LoginActionsService.SESSION_CODE, accessCode)
-				.replaceQueryParam(Constants.CLIENT_ID, clientId)
-				.replaceQueryParam(Constants.TAB_ID, tabId)
-				.replaceQueryParam(LoginActionsService.AUTH_SESSION_ID, authSessionId);
+	private void setLaunchContext(AuthenticationFlowContext context, Map<String, String> launchParams) {
+		// single compact note, copied to the client session notes when the flow completes
+		context.getAuthenticationSession().setClientNote(SmartLaunchContext.LAUNCH_CONTEXT_NOTE,
+				SmartLaunchContext.of(launchParams).encoded());
 	}
 	
     private String generateSessionCode(AuthenticationFlowContext context) {
@@ -243,7 +510,33 @@ public class SmartLaunchContextAuthenticator implements Authenticator {
         return accessCode.getOrGenerateCode();
     }
 	
-	private String generateSmartLaunchAppToken(AuthenticationFlowContext context) {		        		
+	private String generateSmartLaunchAppToken(AuthenticationFlowContext context) {
+		long start = System.nanoTime();
+		String appToken = null;
+		try {
+			appToken = createSmartLaunchAppToken(context);
+			return appToken;
+		} finally {
+			metrics.record(realmName(context), Stage.APP_TOKEN,
+					appToken != null ? Outcome.SUCCESS : Outcome.ERROR, start);
+		}
+	}
+
+	private String createSmartLaunchAppToken(AuthenticationFlowContext context) {
+        String clientId = context.getAuthenticatorConfig().getConfig()
+        		.get(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_CLIENT_ID);
+        ClientModel client = context.getRealm().getClientByClientId(clientId);
+        String tokenMode = context.getAuthenticatorConfig().getConfig()
+        		.get(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_TOKEN_MODE);
+        
+        if (SmartLaunchContextAuthenticatorFactory.TOKEN_MODE_STATELESS.equals(tokenMode)) {
+        	// no user or client session is created, nothing is replicated across the cluster
+        	AccessToken accessToken = SmartTokenManager.getInstance().createStatelessAccessToken(context.getRealm(), client,
+        			context.getAuthenticationSession().getAuthenticatedUser(),
+        			Urls.realmIssuer(context.getUriInfo().getBaseUri(), context.getRealm().getName()));
+        	return context.getSession().tokens().encode(accessToken);
+        }
+        
         UserSessionModel userSession = context.getSession().sessions().createUserSession(
         		context.getAuthenticationSession().getParentSession().getId(),
         		context.getRealm(), 
@@ -251,16 +544,13 @@ public class SmartLaunchContextAuthenticator implements Authenticator {
         		context.getConnection().getRemoteAddr(),
         		"auth", false, null, null);
         
-        String clientId = context.getAuthenticatorConfig().getConfig()
-        		.get(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_CLIENT_ID);
-        ClientModel client = context.getRealm().getClientByClientId(clientId);
         AuthenticatedClientSessionModel clientSession = context.getSession().sessions()
         		.createClientSession(context.getRealm(), client, userSession);        
         DefaultClientSessionContext clientSessionContext = 
         		DefaultClientSessionContext.fromClientSessionAndClientScopes(clientSession, 
         				client.getClientScopes(true,  true).values().stream().collect(Collectors.toSet()));
         
-        TokenManager tokenManager = new SmartTokenManager();
+        TokenManager tokenManager = SmartTokenManager.getInstance();
         AccessToken accessToken = tokenManager.createClientAccessToken(context.getSession(), 
         		context.getRealm(), client, 
         		context.getAuthenticationSession().getAuthenticatedUser(), 
@@ -278,50 +568,141 @@ public class SmartLaunchContextAuthenticator implements Authenticator {
 		}
 	}
 	
-	private boolean isApplicationTokenValid(AuthenticationFlowContext context)
+	private JsonWebToken verifyApplicationToken(AuthenticationFlowContext context, String appTokenString)
 			throws VerificationException, IOException {
-		String appTokenString = context.getUriInfo().getQueryParameters()
-				.getFirst(SmartLaunchContextAuthenticatorFactory.QUERY_PARAM_APP_TOKEN);
-		String secret = context.getAuthenticatorConfig().getConfig()
-				.get(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SECRET_KEY);
-		SecretKeySpec hmacSecretKeySpec = new SecretKeySpec(Base64.decode(secret), HMAC_SHA1_ALGORITHM);
-
-		TokenVerifier.create(appTokenString, JsonWebToken.class).secretKey(hmacSecretKeySpec).verify();
+		AuthenticatorConfigModel config = context.getAuthenticatorConfig();
+		HmacKeySet verificationKeys = hasSecretKey(config) ? getVerificationKeys(config) : null;
+		SmartAppTokenVerifier.PublicKeyResolver publicKeys = null;
+		String keySource = appTokenKeySource(context);
+		if (keySource != null) {
+			HttpClient httpClient = context.getSession().getProvider(HttpClientProvider.class).getHttpClient();
+			publicKeys = kid -> appTokenKeys.getKey(httpClient, keySource, kid, JwksKeyCache.DEFAULT_TIMEOUT_MILLIS);
+		}
+		if (verificationKeys == null && publicKeys == null) {
+			throw new IOException("External SMART launch secret key or JWKS not configured");
+		}
+		String launchClientId = config.getConfig()
+				.get(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_CLIENT_ID);
+		String issuer = Urls.realmIssuer(context.getUriInfo().getBaseUri(), context.getRealm().getName());
 
-		return true;
+		return new SmartAppTokenVerifier(verificationKeys, publicKeys, issuer, launchClientId).verify(appTokenString);
 	}
 	
-	private boolean hasRequiredLaunchClaims(AuthenticationFlowContext context, JsonWebToken appToken) {
-		String scope = context.getAuthenticationSession().getClientNote(OIDCLoginProtocol.SCOPE_PARAM);
-		Map<String, ClientScopeModel> defaultScopes = context.getAuthenticationSession().getClient().getClientScopes(true, true);
-		
-		if (scope == null) {
-			scope = "";
-		}	
-		
-		List<String> scopes = Arrays.stream(scope.split("\\s+")).collect(Collectors.toList());
-		String supportedParams = context.getAuthenticatorConfig().getConfig()
-			.get(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SUPPORTED_PARAMS);
-		List<String> params = Arrays.stream(supportedParams.split("\\s+")).collect(Collectors.toList());
+	private static boolean hasSecretKey(AuthenticatorConfigModel config) {
+		String keyset = config.getConfig().get(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SECRET_KEYSET);
+		String secret = config.getConfig().get(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SECRET_KEY);
+		return (keyset != null && !keyset.trim().isEmpty()) || (secret != null && !secret.isEmpty());
+	}
+	
+	/**
+	 * The configured JWKS URL of the external app, otherwise the keys registered
+	 * on the launch client; null when app tokens are only HMAC signed.
+	 */
+	private static String appTokenKeySource(AuthenticationFlowContext context) {
+		String jwksUrl = getConfig(context, SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_JWKS_URL);
+		if (jwksUrl != null && !jwksUrl.trim().isEmpty()) {
+			return ClientPublicKeyCache.JWKS_SOURCE + jwksUrl.trim();
+		}
+		String launchClientId = getConfig(context, SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_CLIENT_ID);
+		ClientModel launchClient = launchClientId == null || context.getRealm() == null ? null
+				: context.getRealm().getClientByClientId(launchClientId);
+		return launchClient != null ? ClientPublicKeyCache.keySource(launchClient) : null;
+	}
+	
+	/**
+	 * Scopes the token id by realm and by issuer, or the launch client when the
+	 * token names none, so equal ids from other realms or launch apps do not
+	 * collide.
+	 */
+	static String appTokenReplayId(String realmId, String launchClientId, JsonWebToken appToken, String appTokenString) {
+		String source = appToken.getIssuer() != null ? appToken.getIssuer() : launchClientId;
+		if (appToken.getId() != null && !appToken.getId().isEmpty()) {
+			return realmId + ':' + source + ':' + appToken.getId();
+		}
+		// tokens without jti are tracked by their signature
+		return realmId + ':' + source + ':' + appTokenString.substring(appTokenString.lastIndexOf('.') + 1);
+	}
+	
+	private static String realmName(AuthenticationFlowContext context) {
+		return context.getRealm() != null ? context.getRealm().getName() : null;
+	}
+	
+	HmacKeySet getVerificationKeys(AuthenticatorConfigModel authenticatorConfig) throws IOException {
+		String key = authenticatorConfig.getId() != null ? authenticatorConfig.getId() : "";
+		String keyset = authenticatorConfig.getConfig()
+				.get(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SECRET_KEYSET);
+		String secret = authenticatorConfig.getConfig()
+				.get(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SECRET_KEY);
 		
-		for(String param: params) {
-			boolean isRequiredClaim = false;
-			if(scopes.contains(LAUNCH_SCOPE_PREFIX + param) ||
-					defaultScopes.containsKey(LAUNCH_SCOPE_PREFIX + param)){
-				isRequiredClaim = true;
-			}
-			
-			if(isRequiredClaim) {
-				String requiredClaim = (String) appToken.getOtherClaims().get(param);
-				if (requiredClaim == null || requiredClaim.isEmpty()) {
-					logger.error("External SMART launch application token missing required claims: " + param);
-					return false;
-				}
+		// decoded once per config, recompiled whenever a key is added or retired
+		HmacKeySet keySet = verificationKeys.get(key);
+		if (keySet == null || !keySet.isFor(keyset, secret)) {
+			keySet = HmacKeySet.compile(keyset, secret);
+			verificationKeys.put(key, keySet);
+		}
+		return keySet;
+	}
+	
+	private List<String> requiredParams(AuthenticationFlowContext context) {
+		String scope = context.getAuthenticationSession().getClientNote(OIDCLoginProtocol.SCOPE_PARAM);
+		return getLaunchMatcher(context.getAuthenticatorConfig())
+				.requiredParams(SmartScopes.parse(scope), context.getAuthenticationSession().getClient());
+	}
+	
+	private List<String> pickerParams(AuthenticationFlowContext context) {
+		List<String> params = new ArrayList<>(requiredParams(context));
+		params.remove(PATIENT_PARAM);
+		return params;
+	}
+	
+	private boolean hasRequiredLaunchClaims(AuthenticationFlowContext context, JsonWebToken appToken) {
+		for(String param: requiredParams(context)) {
+			Object requiredClaim = appToken.getOtherClaims().get(param);
+			if (!(requiredClaim instanceof String) || ((String) requiredClaim).isEmpty()) {
+				logger.error("External SMART launch application token missing required claims: " + param);
+				return false;
 			}
 		}
 		
 		return true;
 	}
+	
+	SmartLaunchMatcher getLaunchMatcher(AuthenticatorConfigModel authenticatorConfig) {
+		if (authenticatorConfig == null) {
+			return SmartLaunchMatcher.compile(null);
+		}
+		
+		// keyed by config id, recompiled whenever the config content changes
+		String key = authenticatorConfig.getId() != null ? authenticatorConfig.getId() : "";
+		Map<String, String> config = authenticatorConfig.getConfig();
+		int configHash = config == null ? 0 : config.hashCode();
+		SmartLaunchMatcher matcher = launchMatchers.get(key);
+		if (matcher == null || matcher.getConfigHash() != configHash) {
+			matcher = SmartLaunchMatcher.compile(config);
+			launchMatchers.put(key, matcher);
+		}
+		return matcher;
+	}
+	
+	public void invalidateClient(String clientId) {
+		for (SmartLaunchMatcher matcher : launchMatchers.values()) {
+			matcher.invalidateClient(clientId);
+		}
+	}
+	
+	public void shutdown() {
+		backchannelClient.close();
+		patientSearch.close();
+		appTokenKeys.close();
+	}
+	
+	public void invalidateAll() {
+		launchMatchers.clear();
+		verificationKeys.clear();
+		redirectTemplates.clear();
+		patientSearch.clear();
+		appTokenKeys.clear();
+	}
 
 	@Override
 	public boolean requiresUser() {
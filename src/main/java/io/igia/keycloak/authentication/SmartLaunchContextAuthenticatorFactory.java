@@ -24,9 +24,12 @@ import org.keycloak.authentication.ConfigurableAuthenticatorFactory;
 import org.keycloak.models.AuthenticationExecutionModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ServerInfoAwareProviderFactory;
 
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics;
+
 public class SmartLaunchContextAuthenticatorFactory implements AuthenticatorFactory, ConfigurableAuthenticatorFactory, ServerInfoAwareProviderFactory {		
 	public static final String PROVIDER_ID = "smart-launch-context-authenticator";
 	private static final SmartLaunchContextAuthenticator SINGLETON = new SmartLaunchContextAuthenticator();
@@ -34,8 +37,18 @@ public class SmartLaunchContextAuthenticatorFactory implements AuthenticatorFact
     public static final String CONFIG_APPLICATION_ID = "application-id";
     public static final String CONFIG_EXTERNAL_SMART_LAUNCH_URL = "external-smart-launch-url";
     public static final String CONFIG_EXTERNAL_SMART_LAUNCH_SECRET_KEY = "external-smart-launch-secret-key";
+    public static final String CONFIG_EXTERNAL_SMART_LAUNCH_SECRET_KEYSET = "external-smart-launch-secret-keyset";
+    public static final String CONFIG_EXTERNAL_SMART_LAUNCH_JWKS_URL = "external-smart-launch-jwks-url";
     public static final String CONFIG_EXTERNAL_SMART_LAUNCH_CLIENT_ID = "external-smart-launch-client-id";
     public static final String CONFIG_EXTERNAL_SMART_LAUNCH_SUPPORTED_PARAMS = "external-smart-launch--supported-params";
+    public static final String CONFIG_EXTERNAL_SMART_LAUNCH_TOKEN_MODE = "external-smart-launch-token-mode";
+    public static final String CONFIG_EXTERNAL_SMART_LAUNCH_BACKCHANNEL_URL = "external-smart-launch-backchannel-url";
+    public static final String CONFIG_EXTERNAL_SMART_LAUNCH_BACKCHANNEL_TIMEOUT = "external-smart-launch-backchannel-timeout";
+    public static final String CONFIG_PATIENT_PICKER_FHIR_URL = "smart-launch-patient-picker-fhir-url";
+    public static final String CONFIG_PATIENT_PICKER_PAGE_SIZE = "smart-launch-patient-picker-page-size";
+    
+    public static final String TOKEN_MODE_SESSION = "session";
+    public static final String TOKEN_MODE_STATELESS = "stateless";
     
     public static final String QUERY_PARAM_APP_TOKEN = "app-token";
     public static final String INITIATED_BY_SMART_LAUNCH_EXT_APP = "INITIATED_BY_SMART_LAUNCH_EXT_APP";
@@ -88,6 +101,14 @@ public class SmartLaunchContextAuthenticatorFactory implements AuthenticatorFact
         		"External SMART Launch Secret Key", "HmacSHA256 secret key for smart launch external application.",
         		ProviderConfigProperty.STRING_TYPE, null);
         configProperties.add(property);
+        property = new ProviderConfigProperty(CONFIG_EXTERNAL_SMART_LAUNCH_SECRET_KEYSET, 
+        		"External SMART Launch Secret Keyset", "HmacSHA256 keys selected by the kid header of the app token, one per value as kid:secret[:notBefore[:notAfter]] with the validity bounds as yyyy-MM-dd or epoch seconds. App tokens without kid are verified with the External SMART Launch Secret Key when set, otherwise with the valid key with the latest notBefore.",
+        		ProviderConfigProperty.MULTIVALUED_STRING_TYPE, null);
+        configProperties.add(property);
+        property = new ProviderConfigProperty(CONFIG_EXTERNAL_SMART_LAUNCH_JWKS_URL, 
+        		"External SMART Launch JWKS URL", "JWKS URL of the external application for app tokens signed with RS256, RS384, RS512, ES256, ES384 or ES512. Without it the JWKS URL or certificate registered on the External SMART Launch Client Id client is used. The keys are refreshed in the background.",
+        		ProviderConfigProperty.STRING_TYPE, null);
+        configProperties.add(property);
         property = new ProviderConfigProperty(CONFIG_EXTERNAL_SMART_LAUNCH_CLIENT_ID, 
         		"External SMART Launch Client Id", "Client Id for smart launch external application.",
         		ProviderConfigProperty.STRING_TYPE, null);
@@ -96,6 +117,26 @@ public class SmartLaunchContextAuthenticatorFactory implements AuthenticatorFact
         		"External SMART Launch Supported Params", "Space separated list of Smart launch context parameters supported by external application.",
         		ProviderConfigProperty.STRING_TYPE, null);
         configProperties.add(property);
+        property = new ProviderConfigProperty(CONFIG_EXTERNAL_SMART_LAUNCH_TOKEN_MODE, 
+        		"External SMART Launch Token Mode", "How the access token for the external application is issued. 'session' creates a user and client session for the launch client. 'stateless' signs a short-lived token without creating any session; such tokens can not be introspected.",
+        		ProviderConfigProperty.LIST_TYPE, TOKEN_MODE_SESSION, TOKEN_MODE_SESSION, TOKEN_MODE_STATELESS);
+        configProperties.add(property);
+        property = new ProviderConfigProperty(CONFIG_EXTERNAL_SMART_LAUNCH_BACKCHANNEL_URL, 
+        		"External SMART Launch Backchannel URL", "Optional server to server endpoint of the external application. When set, the launch params are posted to it first and the app-token it returns completes the launch without a browser redirect. If the call fails or times out, the browser is redirected to the External SMART Launch URL.",
+        		ProviderConfigProperty.STRING_TYPE, null);
+        configProperties.add(property);
+        property = new ProviderConfigProperty(CONFIG_EXTERNAL_SMART_LAUNCH_BACKCHANNEL_TIMEOUT, 
+        		"External SMART Launch Backchannel Timeout", "Maximum time in milliseconds to wait for the backchannel endpoint.",
+        		ProviderConfigProperty.STRING_TYPE, String.valueOf(SmartLaunchBackchannelClient.DEFAULT_TIMEOUT_MILLIS));
+        configProperties.add(property);
+        property = new ProviderConfigProperty(CONFIG_PATIENT_PICKER_FHIR_URL, 
+        		"Patient Picker FHIR URL", "FHIR server base URL searched by the built-in patient picker, used when no External SMART Launch URL is set. The search is sent with the External SMART Launch Client Id access token when that client is configured.",
+        		ProviderConfigProperty.STRING_TYPE, null);
+        configProperties.add(property);
+        property = new ProviderConfigProperty(CONFIG_PATIENT_PICKER_PAGE_SIZE, 
+        		"Patient Picker Page Size", "Number of patients shown per page by the built-in patient picker.",
+        		ProviderConfigProperty.STRING_TYPE, String.valueOf(FhirPatientSearch.DEFAULT_PAGE_SIZE));
+        configProperties.add(property);
     }
 
     @Override
@@ -120,12 +161,22 @@ public class SmartLaunchContextAuthenticatorFactory implements AuthenticatorFact
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-    	// no required actions
+    	// drop compiled launch matchers when the clients they were built from change
+    	factory.register(event -> {
+    		if (event instanceof RealmModel.ClientUpdatedEvent) {
+    			SINGLETON.invalidateClient(((RealmModel.ClientUpdatedEvent) event).getUpdatedClient().getId());
+    		} else if (event instanceof RealmModel.ClientRemovedEvent) {
+    			SINGLETON.invalidateClient(((RealmModel.ClientRemovedEvent) event).getClient().getId());
+    		} else if (event instanceof RealmModel.RealmRemovedEvent) {
+    			SINGLETON.invalidateAll();
+    			SmartLaunchMetrics.getInstance().removeRealm(((RealmModel.RealmRemovedEvent) event).getRealm().getName());
+    		}
+    	});
     }
 
     @Override
     public void close() {
-    	// no required actions
+    	SINGLETON.shutdown();
     }
 
 	@Override
@@ -0,0 +1,159 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.models.ClientModel;
+
+import io.igia.keycloak.protocol.smart.SmartScope;
+import io.igia.keycloak.protocol.smart.SmartScopes;
+
+/**
+ * Compiled form of the authenticator supported launch params. Built once per
+ * authenticator config and reused across requests to resolve which launch
+ * context params a client requested, either explicitly through the scope
+ * parameter or through its default client scopes.
+ */
+public final class SmartLaunchMatcher {
+	// client scope assignments do not publish provider events, so bound staleness
+	static final long CLIENT_SCOPES_TTL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+	private final int configHash;
+	private final String[] params;
+	private final Map<String, Integer> paramIndex;
+	private final ConcurrentMap<String, ClientLaunchScopes> clients = new ConcurrentHashMap<>();
+
+	private SmartLaunchMatcher(int configHash, String[] params) {
+		this.configHash = configHash;
+		this.params = params;
+		Map<String, Integer> index = new HashMap<>();
+		for (int i = 0; i < params.length; i++) {
+			index.put(params[i], i);
+		}
+		this.paramIndex = Collections.unmodifiableMap(index);
+	}
+
+	public static SmartLaunchMatcher compile(Map<String, String> config) {
+		String supportedParams = config == null ? null
+				: config.get(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SUPPORTED_PARAMS);
+		List<String> params = tokenize(supportedParams);
+		return new SmartLaunchMatcher(config == null ? 0 : config.hashCode(), params.toArray(new String[params.size()]));
+	}
+
+	int getConfigHash() {
+		return configHash;
+	}
+
+	public boolean isEmpty() {
+		return params.length == 0;
+	}
+
+	/**
+	 * Returns the supported launch params that were requested in the scope
+	 * parameter or granted through the client default scopes.
+	 */
+	public List<String> requiredParams(SmartScopes requestedScopes, ClientModel client) {
+		if (params.length == 0) {
+			return Collections.emptyList();
+		}
+
+		boolean[] required = clientLaunchScopes(client).copy();
+		for (String launchContext : requestedScopes.getLaunchContexts()) {
+			Integer index = paramIndex.get(launchContext);
+			if (index != null) {
+				required[index] = true;
+			}
+		}
+
+		List<String> result = null;
+		for (int i = 0; i < params.length; i++) {
+			if (required[i]) {
+				if (result == null) {
+					result = new ArrayList<>(params.length);
+				}
+				result.add(params[i]);
+			}
+		}
+		return result == null ? Collections.<String>emptyList() : result;
+	}
+
+	public void invalidateClient(String clientId) {
+		if (clientId != null) {
+			clients.remove(clientId);
+		}
+	}
+
+	private ClientLaunchScopes clientLaunchScopes(ClientModel client) {
+		String key = client.getId() != null ? client.getId() : client.getClientId();
+		long now = System.currentTimeMillis();
+		ClientLaunchScopes scopes = key == null ? null : clients.get(key);
+		if (scopes == null || now - scopes.loadedAt > CLIENT_SCOPES_TTL_MILLIS) {
+			Map<String, ?> defaultScopes = client.getClientScopes(true, true);
+			boolean[] matches = new boolean[params.length];
+			if (defaultScopes != null) {
+				for (String scopeName : defaultScopes.keySet()) {
+					Integer index = paramIndex.get(SmartScope.of(scopeName).getLaunchContext());
+					if (index != null) {
+						matches[index] = true;
+					}
+				}
+			}
+			scopes = new ClientLaunchScopes(matches, now);
+			if (key != null) {
+				clients.put(key, scopes);
+			}
+		}
+		return scopes;
+	}
+
+	public static List<String> tokenize(String value) {
+		if (value == null || value.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<String> tokens = new ArrayList<>();
+		int length = value.length();
+		int start = -1;
+		for (int i = 0; i <= length; i++) {
+			boolean separator = i == length || Character.isWhitespace(value.charAt(i));
+			if (separator && start >= 0) {
+				tokens.add(value.substring(start, i));
+				start = -1;
+			} else if (!separator && start < 0) {
+				start = i;
+			}
+		}
+		return tokens;
+	}
+
+	private static final class ClientLaunchScopes {
+		private final boolean[] matches;
+		private final long loadedAt;
+
+		ClientLaunchScopes(boolean[] matches, long loadedAt) {
+			this.matches = matches;
+			this.loadedAt = loadedAt;
+		}
+
+		boolean[] copy() {
+			return matches.clone();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+import org.keycloak.OAuth2Constants;
+import org.keycloak.models.Constants;
+import org.keycloak.services.Urls;
+import org.keycloak.services.resources.LoginActionsService;
+
+import io.igia.keycloak.protocol.smart.SmartOIDCLoginProtocolFactory;
+import io.igia.keycloak.protocol.smart.SmartOIDCLoginProtocolService;
+
+/**
+ * Pre-compiled external launch redirect URL. The realm callback URL and the
+ * configured external launch URL are resolved once; per request only the session
+ * identifiers, aud and access token are appended into a reused per-thread buffer.
+ * The callback URL is embedded in the {TOKEN} placeholder of the external launch
+ * URL, so its constant parts are stored already encoded and each variable value
+ * is encoded straight into the buffer.
+ */
+public final class SmartLaunchRedirectTemplate {
+	static final String TOKEN_PLACEHOLDER = "{TOKEN}";
+	private static final String APP_TOKEN_PLACEHOLDER = "%7BAPP_TOKEN%7D";
+	private static final String AUD_PARAM = "aud";
+	private static final int MAX_RETAINED_BUFFER = 16 * 1024;
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	private static final ThreadLocal<StringBuilder> BUFFERS = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+	private final String externalLaunchUrl;
+	private final URI baseUri;
+	private final String realmName;
+	// external launch URL split around the {TOKEN} placeholders
+	private final String[] externalParts;
+	// encoded callback URL constants, in front of each variable value
+	private final String callbackPrefix;
+	private final String clientIdPrefix;
+	private final String tabIdPrefix;
+	private final String authSessionIdPrefix;
+	private final String executionPrefix;
+	private final String callbackSuffix;
+
+	private SmartLaunchRedirectTemplate(String externalLaunchUrl, URI baseUri, String realmName) {
+		this.externalLaunchUrl = externalLaunchUrl;
+		this.baseUri = baseUri;
+		this.realmName = realmName;
+		this.externalParts = externalLaunchUrl.split(Pattern.quote(TOKEN_PLACEHOLDER), -1);
+
+		String callbackUrl = Urls.realmBase(baseUri).path("{realm}/protocol/" + SmartOIDCLoginProtocolFactory.LOGIN_PROTOCOL)
+				.path(SmartOIDCLoginProtocolService.class, "executeSmartLaunchContext")
+				.build(realmName).toString();
+		this.callbackPrefix = encode(callbackUrl + "?" + LoginActionsService.SESSION_CODE + "=");
+		this.clientIdPrefix = encode("&" + Constants.CLIENT_ID + "=");
+		this.tabIdPrefix = encode("&" + Constants.TAB_ID + "=");
+		this.authSessionIdPrefix = encode("&" + LoginActionsService.AUTH_SESSION_ID + "=");
+		this.executionPrefix = encode("&" + Constants.EXECUTION + "=");
+		this.callbackSuffix = encode("&" + SmartLaunchContextAuthenticatorFactory.QUERY_PARAM_APP_TOKEN + "=" + APP_TOKEN_PLACEHOLDER);
+	}
+
+	public static SmartLaunchRedirectTemplate compile(String externalLaunchUrl, URI baseUri, String realmName) {
+		return new SmartLaunchRedirectTemplate(externalLaunchUrl, baseUri, realmName);
+	}
+
+	public boolean isFor(String externalLaunchUrl, URI baseUri, String realmName) {
+		return this.externalLaunchUrl.equals(externalLaunchUrl) && this.baseUri.equals(baseUri)
+				&& this.realmName.equals(realmName);
+	}
+
+	/**
+	 * Returns the external launch URL with the callback URL in place of {TOKEN}
+	 * followed by the aud and access_token params.
+	 */
+	public String build(String authSessionId, String accessCode, String clientId, String tabId, String executionId,
+			String aud, String accessToken) {
+		StringBuilder out = BUFFERS.get();
+		out.setLength(0);
+		for (int i = 0; i < externalParts.length; i++) {
+			if (i > 0) {
+				out.append(callbackPrefix);
+				appendDoubleEncoded(out, accessCode);
+				out.append(clientIdPrefix);
+				appendDoubleEncoded(out, clientId);
+				out.append(tabIdPrefix);
+				appendDoubleEncoded(out, tabId);
+				out.append(authSessionIdPrefix);
+				appendDoubleEncoded(out, authSessionId);
+				out.append(executionPrefix);
+				appendDoubleEncoded(out, executionId);
+				out.append(callbackSuffix);
+			}
+			out.append(externalParts[i]);
+		}
+		out.append('&').append(AUD_PARAM).append('=');
+		appendEncoded(out, aud);
+		out.append('&').append(OAuth2Constants.ACCESS_TOKEN).append('=').append(accessToken);
+
+		String location = out.toString();
+		if (out.capacity() > MAX_RETAINED_BUFFER) {
+			BUFFERS.remove();
+		}
+		return location;
+	}
+
+	// the value is a query param of the callback URL, itself a query param of the external URL
+	private static void appendDoubleEncoded(StringBuilder out, String value) {
+		if (value == null) {
+			return;
+		}
+		if (isUnreserved(value)) {
+			out.append(value);
+		} else {
+			appendEncoded(out, encode(value));
+		}
+	}
+
+	/**
+	 * Appends the application/x-www-form-urlencoded form of the value, the same
+	 * encoding as {@link URLEncoder} with UTF-8.
+	 */
+	static void appendEncoded(StringBuilder out, String value) {
+		if (value == null) {
+			return;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (isUnreserved(c)) {
+				out.append(c);
+			} else if (c == ' ') {
+				out.append('+');
+			} else if (c < 0x80) {
+				out.append('%').append(HEX[c >> 4]).append(HEX[c & 0xF]);
+			} else {
+				// multi-byte characters are rare, leave them to the JDK encoder
+				out.append(encode(value.substring(i)));
+				return;
+			}
+		}
+	}
+
+	private static boolean isUnreserved(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (!isUnreserved(value.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isUnreserved(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				|| c == '.' || c == '-' || c == '*' || c == '_';
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
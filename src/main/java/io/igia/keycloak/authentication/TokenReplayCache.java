@@ -0,0 +1,163 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.ActionTokenStoreProvider;
+import org.keycloak.models.CodeToTokenStoreProvider;
+import org.keycloak.models.KeycloakSession;
+
+import io.igia.keycloak.protocol.smart.SmartActionTokenKey;
+
+/**
+ * Bounded, time-expiring record of token ids that were already accepted. The
+ * node-local tier is a lock-free map. When Keycloak runs clustered the ids are
+ * also written to the replicated action token store, so a token accepted on one
+ * node is rejected on the others until it expires. Concurrent first uses on
+ * different nodes are decided by an atomic putIfAbsent on the code-to-token
+ * store, which holds the id for the realm access code lifespan while the action
+ * token store keeps it for the rest of the token lifetime.
+ */
+public class TokenReplayCache {
+	private static final Logger LOG = Logger.getLogger(TokenReplayCache.class);
+
+	public static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+	private final String actionId;
+	private final int maxEntries;
+	private final ConcurrentMap<String, Integer> seen = new ConcurrentHashMap<>();
+	private final AtomicBoolean purging = new AtomicBoolean();
+
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder replays = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public TokenReplayCache(String actionId, int maxEntries) {
+		this.actionId = actionId;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Records the token id and returns true if it was not used before, false if
+	 * the token is a replay. Tokens without an expiry are rejected, they could
+	 * be replayed once their id is dropped.
+	 *
+	 * @param expiresAt time in seconds until which the token is accepted, its
+	 *                  exp plus the allowed clock skew
+	 */
+	public boolean markUsed(KeycloakSession session, String tokenId, int expiresAt) {
+		if (expiresAt <= 0) {
+			LOG.debugf("Replay cache %s rejected token without expiration", actionId);
+			return false;
+		}
+		int now = Time.currentTime();
+
+		Integer previous = seen.putIfAbsent(tokenId, expiresAt);
+		if (previous != null && (previous > now || !seen.replace(tokenId, previous, expiresAt))) {
+			replays.increment();
+			return false;
+		}
+
+		ActionTokenStoreProvider store = session == null ? null : session.getProvider(ActionTokenStoreProvider.class);
+		if (store != null) {
+			SmartActionTokenKey key = new SmartActionTokenKey(actionId, tokenId, expiresAt);
+			if (store.get(key) != null || !putIfAbsent(session, tokenId)) {
+				replays.increment();
+				return false;
+			}
+			store.put(key, Collections.<String, String>emptyMap());
+		}
+
+		accepted.increment();
+		if (seen.size() > maxEntries) {
+			purge(now);
+		}
+		return true;
+	}
+
+	private boolean putIfAbsent(KeycloakSession session, String tokenId) {
+		CodeToTokenStoreProvider codeStore = session.getProvider(CodeToTokenStoreProvider.class);
+		if (codeStore == null) {
+			return true;
+		}
+		UUID id = UUID.nameUUIDFromBytes((actionId + ':' + tokenId).getBytes(StandardCharsets.UTF_8));
+		return codeStore.putIfAbsent(id);
+	}
+
+	private void purge(int now) {
+		if (!purging.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			Iterator<Map.Entry<String, Integer>> iterator = seen.entrySet().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().getValue() <= now) {
+					iterator.remove();
+					expirations.increment();
+				}
+			}
+
+			// still over the bound: drop live entries, the cluster store keeps protecting them
+			int target = maxEntries - maxEntries / 10;
+			int evicted = 0;
+			iterator = seen.entrySet().iterator();
+			while (seen.size() > target && iterator.hasNext()) {
+				iterator.next();
+				iterator.remove();
+				evicted++;
+			}
+			if (evicted > 0) {
+				evictions.add(evicted);
+				LOG.debugf("Replay cache %s over %d entries, evicted %d live entries", actionId, maxEntries, evicted);
+			}
+		} finally {
+			purging.set(false);
+		}
+	}
+
+	public String getActionId() {
+		return actionId;
+	}
+
+	public int size() {
+		return seen.size();
+	}
+
+	public long getAccepted() {
+		return accepted.sum();
+	}
+
+	public long getReplays() {
+		return replays.sum();
+	}
+
+	public long getExpirations() {
+		return expirations.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+}
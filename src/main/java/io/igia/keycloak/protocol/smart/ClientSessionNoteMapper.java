@@ -13,6 +13,7 @@
 package io.igia.keycloak.protocol.smart;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -52,6 +53,8 @@ public class ClientSessionNoteMapper extends AbstractOIDCProtocolMapper implemen
 
 	public static final String PROVIDER_ID = "smart-oidc-client-session-note-mapper";
 
+	private final MapperConfigCache<NoteClaim> compiledConfigs = new MapperConfigCache<>(NoteClaim::compile);
+
 	@Override
 	public List<ProviderConfigProperty> getConfigProperties() {
 		return configProperties;
@@ -81,11 +84,12 @@ public class ClientSessionNoteMapper extends AbstractOIDCProtocolMapper implemen
 	public AccessToken transformUserInfoToken(AccessToken token, ProtocolMapperModel mappingModel, KeycloakSession session,
 			UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
 
-		if (!OIDCAttributeMapperHelper.includeInUserInfo(mappingModel)) {
+		NoteClaim noteClaim = getNoteClaim(mappingModel);
+		if (!noteClaim.userInfo) {
 			return token;
 		}
 
-		setClaim(token, mappingModel, userSession, session, clientSession);
+		noteClaim.apply(token, clientSession);
 		return token;
 	}
 
@@ -93,11 +97,12 @@ public class ClientSessionNoteMapper extends AbstractOIDCProtocolMapper implemen
 	public AccessToken transformAccessToken(AccessToken token, ProtocolMapperModel mappingModel, KeycloakSession session,
 			UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
 
-		if (!OIDCAttributeMapperHelper.includeInAccessToken(mappingModel)){
+		NoteClaim noteClaim = getNoteClaim(mappingModel);
+		if (!noteClaim.accessToken){
 			return token;
 		}
 
-		setClaim(token, mappingModel, userSession, session, clientSession);
+		noteClaim.apply(token, clientSession);
 		return token;
 	}
 
@@ -105,21 +110,22 @@ public class ClientSessionNoteMapper extends AbstractOIDCProtocolMapper implemen
 	public IDToken transformIDToken(IDToken token, ProtocolMapperModel mappingModel, KeycloakSession session,
 			UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
 
-		if (!OIDCAttributeMapperHelper.includeInIDToken(mappingModel)){
+		NoteClaim noteClaim = getNoteClaim(mappingModel);
+		if (!noteClaim.idToken){
 			return token;
 		}
 
-		setClaim(token, mappingModel, userSession, session, clientSession);
+		noteClaim.apply(token, clientSession);
 		return token;
 	}
 		
 	protected void setClaim(IDToken token, ProtocolMapperModel mappingModel, UserSessionModel userSession,
 			KeycloakSession session, AuthenticatedClientSessionModel clientSession) {
+		getNoteClaim(mappingModel).apply(token, clientSession);
+	}
 
-		String noteName = mappingModel.getConfig().get(CLIENT_SESSION_NOTE);
-		String noteValue = clientSession.getNote(noteName);
-		if (noteValue == null) return;
-		OIDCAttributeMapperHelper.mapClaim(token, mappingModel, noteValue);
+	NoteClaim getNoteClaim(ProtocolMapperModel mappingModel) {
+		return compiledConfigs.get(mappingModel);
 	}
 
 	public static ProtocolMapperModel createClaimMapper(String name,
@@ -146,4 +152,101 @@ public class ClientSessionNoteMapper extends AbstractOIDCProtocolMapper implemen
         ret.put("version", "1.0");        
         return ret;
 	}
+
+	/**
+	 * Parsed mapper config: the note name, the claim path split into its nested
+	 * components, the claim JSON type and the include flags. Values are converted
+	 * as {@link OIDCAttributeMapperHelper#mapClaim} converts a String note.
+	 */
+	static final class NoteClaim {
+		private final String noteName;
+		// launch param of launch/<param> note names, read from the compact note
+		private final String launchParam;
+		// null when no claim name is configured
+		private final String[] claimPath;
+		private final ClaimType claimType;
+		private final boolean accessToken;
+		private final boolean idToken;
+		private final boolean userInfo;
+
+		private NoteClaim(Map<String, String> config) {
+			this.noteName = config.get(CLIENT_SESSION_NOTE);
+			this.launchParam = noteName == null ? null : SmartScope.of(noteName).getLaunchContext();
+			String claimName = config.get(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME);
+			if (claimName == null) {
+				this.claimPath = null;
+			} else {
+				List<String> split = OIDCAttributeMapperHelper.splitClaimPath(claimName);
+				this.claimPath = split.toArray(new String[split.size()]);
+			}
+			this.claimType = ClaimType.of(config.get(OIDCAttributeMapperHelper.JSON_TYPE));
+			this.accessToken = "true".equals(config.get(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN));
+			this.idToken = "true".equals(config.get(OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN));
+			this.userInfo = "true".equals(config.get(OIDCAttributeMapperHelper.INCLUDE_IN_USERINFO));
+		}
+
+		static NoteClaim compile(Map<String, String> config) {
+			return new NoteClaim(config == null ? Collections.<String, String>emptyMap() : config);
+		}
+
+		@SuppressWarnings("unchecked")
+		void apply(IDToken token, AuthenticatedClientSessionModel clientSession) {
+			String noteValue = clientSession.getNote(noteName);
+			if (noteValue == null && launchParam != null) {
+				// launch params are kept in a single compact note
+				noteValue = SmartLaunchContext.getLaunchParam(clientSession, launchParam);
+			}
+			if (noteValue == null || claimPath == null) return;
+
+			Object claimValue = claimType.convert(noteValue);
+			Map<String, Object> jsonObject = token.getOtherClaims();
+			int last = claimPath.length - 1;
+			for (int i = 0; i < last; i++) {
+				Map<String, Object> nested = (Map<String, Object>) jsonObject.get(claimPath[i]);
+				if (nested == null) {
+					nested = new HashMap<>();
+					jsonObject.put(claimPath[i], nested);
+				}
+				jsonObject = nested;
+			}
+			jsonObject.put(claimPath[last], claimValue);
+		}
+	}
+
+	private enum ClaimType {
+		STRING {
+			@Override
+			Object convert(String value) {
+				return value;
+			}
+		},
+		LONG {
+			@Override
+			Object convert(String value) {
+				return Long.valueOf(value);
+			}
+		},
+		INT {
+			@Override
+			Object convert(String value) {
+				return Integer.valueOf(value);
+			}
+		},
+		BOOLEAN {
+			@Override
+			Object convert(String value) {
+				return Boolean.valueOf(value);
+			}
+		};
+
+		abstract Object convert(String value);
+
+		static ClaimType of(String jsonType) {
+			if ("long".equals(jsonType)) return LONG;
+			if ("int".equals(jsonType)) return INT;
+			if ("boolean".equals(jsonType)) return BOOLEAN;
+			// String and unsupported types keep the note value as is
+			return STRING;
+		}
+	}
 }
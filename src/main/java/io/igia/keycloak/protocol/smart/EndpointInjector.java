@@ -0,0 +1,54 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.resteasy.spi.PropertyInjector;
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+
+/**
+ * Resteasy property injectors of the SMART protocol sub-resources, resolved
+ * once per endpoint class. ResteasyProviderFactory.injectProperties scans the
+ * class for @Context members on every call; a resolved injector only binds the
+ * context proxies, which delegate to the data of the current request.
+ */
+final class EndpointInjector {
+	private static final ConcurrentMap<Class<?>, ResolvedInjector> INJECTORS = new ConcurrentHashMap<>();
+
+	private EndpointInjector() {
+	}
+
+	static <T> T inject(T endpoint) {
+		ResteasyProviderFactory factory = ResteasyProviderFactory.getInstance();
+		Class<?> type = endpoint.getClass();
+		ResolvedInjector resolved = INJECTORS.get(type);
+		if (resolved == null || resolved.factory != factory) {
+			resolved = new ResolvedInjector(factory, factory.getInjectorFactory().createPropertyInjector(type, factory));
+			INJECTORS.put(type, resolved);
+		}
+		resolved.injector.inject(endpoint);
+		return endpoint;
+	}
+
+	private static final class ResolvedInjector {
+		private final ResteasyProviderFactory factory;
+		private final PropertyInjector injector;
+
+		ResolvedInjector(ResteasyProviderFactory factory, PropertyInjector injector) {
+			this.factory = factory;
+			this.injector = injector;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.common.util.Base64Url;
+
+/**
+ * Introspection responses of active access tokens, keyed by realm and a
+ * SHA-256 hash of the token so no token is held in memory. Entries expire after
+ * the cache TTL or with the token, whichever comes first. Callers check that
+ * the user session of a hit still exists; {@link IntrospectionCacheEventListenerFactory}
+ * only frees entries early on logout and admin changes.
+ * The cache is split into segments, each a small LRU map behind its own lock,
+ * so concurrent resource server polls rarely contend.
+ */
+public final class IntrospectionCache {
+	public static final long DEFAULT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+	private static final int SEGMENTS = 32;
+
+	private static final IntrospectionCache INSTANCE = new IntrospectionCache();
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(IntrospectionCache::createDigest);
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private volatile long ttlMillis;
+
+	IntrospectionCache() {
+		configure(DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+	}
+
+	public static IntrospectionCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Sets the TTL and the maximum number of entries, dropping all cached
+	 * responses. A TTL of zero disables caching.
+	 */
+	public synchronized void configure(long ttlMillis, int maxEntries) {
+		int segmentEntries = Math.max(1, maxEntries / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(segmentEntries);
+		}
+		this.ttlMillis = ttlMillis;
+	}
+
+	public static String key(String realmId, String token) {
+		byte[] hash = SHA256.get().digest(token.getBytes(StandardCharsets.US_ASCII));
+		return realmId + ':' + Base64Url.encode(hash);
+	}
+
+	/**
+	 * Returns the cached entry for the key, or null when there is none or it
+	 * expired.
+	 */
+	public Entry get(String key, long nowMillis) {
+		Segment segment = segment(key);
+		synchronized (segment) {
+			Entry entry = segment.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.expiresAt <= nowMillis) {
+				segment.remove(key);
+				return null;
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Caches the response and the parsed scopes of an active token until the
+	 * cache TTL elapses or the token expires at {@code tokenExpiresAtMillis} (0
+	 * when it does not expire).
+	 */
+	public void put(String key, String realmId, String sessionId, byte[] response, SmartScopes scopes,
+			long tokenExpiresAtMillis, long nowMillis) {
+		long expiresAt = nowMillis + ttlMillis;
+		if (tokenExpiresAtMillis > 0) {
+			expiresAt = Math.min(expiresAt, tokenExpiresAtMillis);
+		}
+		if (expiresAt <= nowMillis) {
+			return;
+		}
+		Segment segment = segment(key);
+		synchronized (segment) {
+			segment.put(key, new Entry(realmId, sessionId, response, scopes, expiresAt));
+		}
+	}
+
+	public void removeSession(String realmId, String sessionId) {
+		if (sessionId != null) {
+			removeIf(realmId, sessionId);
+		}
+	}
+
+	public void removeRealm(String realmId) {
+		removeIf(realmId, null);
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	private void removeIf(String realmId, String sessionId) {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				Iterator<Entry> entries = segment.values().iterator();
+				while (entries.hasNext()) {
+					Entry entry = entries.next();
+					if (entry.realmId.equals(realmId) && (sessionId == null || sessionId.equals(entry.sessionId))) {
+						entries.remove();
+					}
+				}
+			}
+		}
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Segment segment(String key) {
+		int hash = key.hashCode();
+		return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	private static final class Segment extends LinkedHashMap<String, Entry> {
+		private static final long serialVersionUID = 1L;
+		private final int maxEntries;
+
+		Segment(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+	public static final class Entry {
+		private final String realmId;
+		private final String sessionId;
+		private final byte[] response;
+		private final SmartScopes scopes;
+		private final long expiresAt;
+
+		Entry(String realmId, String sessionId, byte[] response, SmartScopes scopes, long expiresAt) {
+			this.realmId = realmId;
+			this.sessionId = sessionId;
+			this.response = response;
+			this.scopes = scopes;
+			this.expiresAt = expiresAt;
+		}
+
+		public String getSessionId() {
+			return sessionId;
+		}
+
+		public byte[] getResponse() {
+			return response;
+		}
+
+		public SmartScopes getScopes() {
+			return scopes;
+		}
+	}
+}
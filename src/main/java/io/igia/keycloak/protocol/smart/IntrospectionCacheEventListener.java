@@ -0,0 +1,62 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+
+/**
+ * Evicts cached introspection responses when the token they describe may have
+ * become inactive: the session on logout, the whole realm on admin changes to
+ * users, sessions, clients or the realm (logout all, revocation policy).
+ */
+public class IntrospectionCacheEventListener implements EventListenerProvider {
+	private final IntrospectionCache cache;
+
+	public IntrospectionCacheEventListener(IntrospectionCache cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public void onEvent(Event event) {
+		if (event.getType() == EventType.LOGOUT) {
+			cache.removeSession(event.getRealmId(), event.getSessionId());
+		} else if (event.getType() == EventType.REVOKE_GRANT) {
+			cache.removeRealm(event.getRealmId());
+		}
+	}
+
+	@Override
+	public void onEvent(AdminEvent event, boolean includeRepresentation) {
+		if (event.getOperationType() == OperationType.CREATE || event.getResourceType() == null) {
+			return;
+		}
+		switch (event.getResourceType()) {
+		case REALM:
+		case USER:
+		case USER_SESSION:
+		case CLIENT:
+			cache.removeRealm(event.getRealmId());
+			break;
+		default:
+			break;
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+}
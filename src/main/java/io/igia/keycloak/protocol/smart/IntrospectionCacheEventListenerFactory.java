@@ -0,0 +1,74 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Event listener keeping the {@link IntrospectionCache} consistent with logouts
+ * and admin changes. It has to be enabled in the realm events config. The
+ * cache is configured through the SPI config:
+ * <ul>
+ * <li>{@code ttl} - seconds a response is served from the cache, 0 disables it</li>
+ * <li>{@code maxEntries} - maximum number of cached responses</li>
+ * </ul>
+ */
+public class IntrospectionCacheEventListenerFactory implements EventListenerProviderFactory {
+	public static final String PROVIDER_ID = "smart-introspection-cache";
+
+	private final IntrospectionCache cache = IntrospectionCache.getInstance();
+	private IntrospectionCacheEventListener listener;
+
+	@Override
+	public EventListenerProvider create(KeycloakSession session) {
+		return listener;
+	}
+
+	@Override
+	public void init(Config.Scope config) {
+		long ttlSeconds = config.getLong("ttl", TimeUnit.MILLISECONDS.toSeconds(IntrospectionCache.DEFAULT_TTL_MILLIS));
+		int maxEntries = config.getInt("maxEntries", IntrospectionCache.DEFAULT_MAX_ENTRIES);
+		cache.configure(TimeUnit.SECONDS.toMillis(ttlSeconds), maxEntries);
+		listener = new IntrospectionCacheEventListener(cache);
+	}
+
+	@Override
+	public void postInit(KeycloakSessionFactory factory) {
+		factory.register(event -> {
+			if (event instanceof RealmModel.RealmRemovedEvent) {
+				cache.removeRealm(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+			} else if (event instanceof RealmModel.ClientRemovedEvent) {
+				cache.removeRealm(((RealmModel.ClientRemovedEvent) event).getClient().getRealm().getId());
+			} else if (event instanceof UserModel.UserRemovedEvent) {
+				cache.removeRealm(((UserModel.UserRemovedEvent) event).getRealm().getId());
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public String getId() {
+		return PROVIDER_ID;
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram: every power of two
+ * of nanoseconds is split into {@value #SUB_BUCKETS} equal buckets, giving about
+ * 12% precision from nanoseconds up to minutes. Buckets are striped counters so
+ * recording from many threads does not contend and does not allocate.
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// 2^40 ns is about 18 minutes, anything slower lands in the last bucket
+	private static final int MAX_EXPONENT = 40;
+	static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		long value = nanos < 0 ? 0 : nanos;
+		buckets[bucketIndex(value)].increment();
+		count.increment();
+		sum.add(value);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSumNanos() {
+		return sum.sum();
+	}
+
+	/**
+	 * Returns the upper bound in nanoseconds of the bucket holding the given
+	 * quantile, 0 when nothing was recorded.
+	 */
+	public long quantileNanos(double quantile) {
+		long[] counts = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return bucketUpperBound(i);
+			}
+		}
+		return bucketUpperBound(BUCKET_COUNT - 1);
+	}
+
+	/**
+	 * Returns the cumulative number of recorded values at or below each of the
+	 * given ascending bounds in nanoseconds, followed by the total count. A
+	 * bucket that straddles a bound is counted under the next bound, so the
+	 * counts never understate the latency.
+	 */
+	public long[] cumulativeCounts(long[] upperBoundsNanos) {
+		long[] counts = new long[upperBoundsNanos.length + 1];
+		int bound = 0;
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			long upperBound = bucketUpperBound(i);
+			while (bound < upperBoundsNanos.length && upperBound > upperBoundsNanos[bound]) {
+				counts[bound++] = seen;
+			}
+			seen += buckets[i].sum();
+		}
+		while (bound < upperBoundsNanos.length) {
+			counts[bound++] = seen;
+		}
+		counts[upperBoundsNanos.length] = seen;
+		return counts;
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKET_COUNT - 1;
+		}
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		long lowerBound = (long) (SUB_BUCKETS + subBucket) << shift;
+		return lowerBound + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import org.keycloak.models.ProtocolMapperModel;
+
+/**
+ * Compiled protocol mapper configs keyed by mapper id. Cached realm models hand
+ * out the same config map on every token, so an unchanged mapper is resolved
+ * with an identity check; a mapper update brings a new config map and is
+ * recompiled when its content differs.
+ */
+final class MapperConfigCache<T> {
+	// mappers removed from a realm leave their entry behind, bound the leftovers
+	static final int MAX_ENTRIES = 10000;
+
+	private final Function<Map<String, String>, T> compiler;
+	private final ConcurrentMap<String, Entry<T>> entries = new ConcurrentHashMap<>();
+
+	MapperConfigCache(Function<Map<String, String>, T> compiler) {
+		this.compiler = compiler;
+	}
+
+	T get(ProtocolMapperModel mappingModel) {
+		Map<String, String> config = mappingModel.getConfig();
+		String key = mappingModel.getId() != null ? mappingModel.getId() : String.valueOf(mappingModel.getName());
+		Entry<T> entry = entries.get(key);
+		if (entry == null || (entry.config != config && entry.configHash != hash(config))) {
+			if (entry == null && entries.size() >= MAX_ENTRIES) {
+				entries.clear();
+			}
+			entry = new Entry<>(config, compiler.apply(config));
+			entries.put(key, entry);
+		}
+		return entry.value;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	private static int hash(Map<String, String> config) {
+		return config == null ? 0 : config.hashCode();
+	}
+
+	private static final class Entry<T> {
+		private final Map<String, String> config;
+		private final int configHash;
+		private final T value;
+
+		Entry(Map<String, String> config, T value) {
+			this.config = config;
+			this.configHash = hash(config);
+			this.value = value;
+		}
+	}
+}
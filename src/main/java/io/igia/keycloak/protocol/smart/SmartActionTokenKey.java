@@ -0,0 +1,55 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.keycloak.models.ActionTokenKeyModel;
+
+/**
+ * Key of an entry kept in Keycloak's cluster-replicated action token store. The
+ * store looks entries up by action id and nonce, so the nonce is a name based
+ * UUID of the entry id; the expiration sets the entry lifespan.
+ */
+public final class SmartActionTokenKey implements ActionTokenKeyModel {
+	private final String actionId;
+	private final UUID nonce;
+	private final int expiration;
+
+	public SmartActionTokenKey(String actionId, String id, int expiration) {
+		this.actionId = actionId;
+		this.nonce = UUID.nameUUIDFromBytes(id.getBytes(StandardCharsets.UTF_8));
+		this.expiration = expiration;
+	}
+
+	@Override
+	public String getUserId() {
+		return "";
+	}
+
+	@Override
+	public String getActionId() {
+		return actionId;
+	}
+
+	@Override
+	public int getExpiration() {
+		return expiration;
+	}
+
+	@Override
+	public UUID getActionVerificationNonce() {
+		return nonce;
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.UriBuilder;
+
+import org.keycloak.OAuth2Constants;
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.ClientScopeModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.protocol.oidc.OIDCLoginProtocol;
+import org.keycloak.protocol.oidc.OIDCLoginProtocolService;
+import org.keycloak.services.Urls;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Serialized SMART discovery documents (.well-known/smart-configuration) per
+ * realm and base URI. Client scope and realm updates do not publish provider
+ * events, so a document is rebuilt once it is older than
+ * {@link #REVALIDATE_MILLIS}; its strong ETag is a hash of the content and only
+ * changes when the document does. The base URI comes from the request Host
+ * header, so the number of documents is bounded.
+ */
+public final class SmartConfigurationCache {
+	static final long REVALIDATE_MILLIS = TimeUnit.SECONDS.toMillis(60);
+	public static final int MAX_AGE_SECONDS = 60;
+	static final int MAX_ENTRIES = 1000;
+
+	private static final SmartConfigurationCache INSTANCE = new SmartConfigurationCache();
+
+	private final ConcurrentMap<String, Document> documents = new ConcurrentHashMap<>();
+
+	SmartConfigurationCache() {
+	}
+
+	public static SmartConfigurationCache getInstance() {
+		return INSTANCE;
+	}
+
+	public Document get(RealmModel realm, URI baseUri) {
+		String key = realm.getId() + '|' + baseUri;
+		long now = Time.currentTimeMillis();
+		Document document = documents.get(key);
+		if (document == null || now - document.builtAt > REVALIDATE_MILLIS) {
+			byte[] json;
+			try {
+				json = JsonSerialization.writeValueAsBytes(build(realm, baseUri));
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to serialize SMART configuration", e);
+			}
+			if (document == null && documents.size() >= MAX_ENTRIES) {
+				documents.clear();
+			}
+			document = document != null && Arrays.equals(document.json, json) ? new Document(document, now) : new Document(json, now);
+			documents.put(key, document);
+		}
+		return document;
+	}
+
+	int size() {
+		return documents.size();
+	}
+
+	public void removeRealm(String realmId) {
+		documents.keySet().removeIf(key -> key.startsWith(realmId + '|'));
+	}
+
+	static Map<String, Object> build(RealmModel realm, URI baseUri) {
+		String realmName = realm.getName();
+		Set<String> scopes = new TreeSet<>();
+		for (ClientScopeModel clientScope : realm.getClientScopes()) {
+			if (OIDCLoginProtocol.LOGIN_PROTOCOL.equals(clientScope.getProtocol())
+					|| SmartOIDCLoginProtocolFactory.LOGIN_PROTOCOL.equals(clientScope.getProtocol())) {
+				scopes.add(clientScope.getName());
+			}
+		}
+		scopes.add(OAuth2Constants.SCOPE_OPENID);
+
+		Map<String, Object> configuration = new LinkedHashMap<>();
+		configuration.put("issuer", Urls.realmIssuer(baseUri, realmName));
+		configuration.put("jwks_uri", OIDCLoginProtocolService.certsUrl(UriBuilder.fromUri(baseUri)).build(realmName).toString());
+		configuration.put("authorization_endpoint", OIDCLoginProtocolService.authUrl(UriBuilder.fromUri(baseUri)).build(realmName).toString());
+		configuration.put("token_endpoint", SmartOIDCLoginProtocolService.tokenUrl(UriBuilder.fromUri(baseUri)).build(realmName).toString());
+		configuration.put("token_endpoint_auth_methods_supported", Arrays.asList("client_secret_basic", "client_secret_post", "private_key_jwt"));
+		configuration.put("token_endpoint_auth_signing_alg_values_supported", Arrays.asList("RS384", "ES384", "RS256", "ES256", "RS512", "ES512"));
+		configuration.put("grant_types_supported", Arrays.asList("authorization_code", "refresh_token", "client_credentials"));
+		configuration.put("registration_endpoint", Urls.realmBase(baseUri).path("{realm}/clients-registrations/openid-connect").build(realmName).toString());
+		configuration.put("userinfo_endpoint", SmartOIDCLoginProtocolService.userInfoUrl(UriBuilder.fromUri(baseUri)).build(realmName).toString());
+		configuration.put("introspection_endpoint", SmartOIDCLoginProtocolService.tokenIntrospectionUrl(UriBuilder.fromUri(baseUri)).build(realmName).toString());
+		configuration.put("management_endpoint", Urls.accountApplicationsPage(baseUri, realmName).toString());
+		configuration.put("scopes_supported", new ArrayList<>(scopes));
+		configuration.put("response_types_supported", Arrays.asList("code"));
+		configuration.put("code_challenge_methods_supported", Arrays.asList("S256"));
+		configuration.put("capabilities", capabilities(scopes));
+		return configuration;
+	}
+
+	private static List<String> capabilities(Set<String> scopes) {
+		List<String> capabilities = new ArrayList<>(Arrays.asList("launch-ehr", "launch-standalone",
+				"client-public", "client-confidential-symmetric", "client-confidential-asymmetric", "sso-openid-connect",
+				"context-ehr-patient", "context-ehr-encounter"));
+		boolean patientScopes = false;
+		boolean userScopes = false;
+		boolean offlineAccess = false;
+		boolean v1Scopes = false;
+		boolean v2Scopes = false;
+		Set<String> launchContexts = new TreeSet<>();
+		for (String name : scopes) {
+			SmartScope scope = SmartScope.of(name);
+			patientScopes |= scope.getCompartment() == SmartScope.Compartment.PATIENT;
+			userScopes |= scope.getCompartment() == SmartScope.Compartment.USER;
+			offlineAccess |= scope.getType() == SmartScope.Type.OFFLINE_ACCESS;
+			v1Scopes |= scope.getType() == SmartScope.Type.RESOURCE && !scope.isV2();
+			v2Scopes |= scope.isV2();
+			if (scope.getLaunchContext() != null) {
+				launchContexts.add(scope.getLaunchContext());
+			}
+		}
+		for (String context : new String[] { "patient", "encounter" }) {
+			if (launchContexts.contains(context)) {
+				capabilities.add("context-standalone-" + context);
+			}
+		}
+		if (offlineAccess) {
+			capabilities.add("permission-offline");
+		}
+		if (patientScopes) {
+			capabilities.add("permission-patient");
+		}
+		if (userScopes) {
+			capabilities.add("permission-user");
+		}
+		if (v1Scopes) {
+			capabilities.add("permission-v1");
+		}
+		if (v2Scopes) {
+			capabilities.add("permission-v2");
+		}
+		return capabilities;
+	}
+
+	/**
+	 * Serialized discovery document with its strong entity tag.
+	 */
+	public static final class Document {
+		private final byte[] json;
+		private final String etag;
+		private final long builtAt;
+
+		Document(byte[] json, long builtAt) {
+			this.json = json;
+			this.etag = '"' + Base64Url.encode(sha256(json)) + '"';
+			this.builtAt = builtAt;
+		}
+
+		// unchanged content revalidated at the given time
+		Document(Document document, long builtAt) {
+			this.json = document.json;
+			this.etag = document.etag;
+			this.builtAt = builtAt;
+		}
+
+		public byte[] getJson() {
+			return json;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * Whether an If-None-Match header value matches this document, using the
+		 * weak comparison RFC 7232 prescribes for If-None-Match.
+		 */
+		public boolean matches(String ifNoneMatch) {
+			if (ifNoneMatch == null) {
+				return false;
+			}
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static byte[] sha256(byte[] json) {
+			try {
+				return MessageDigest.getInstance("SHA-256").digest(json);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
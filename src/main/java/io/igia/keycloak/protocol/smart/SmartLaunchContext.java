@@ -0,0 +1,229 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.AuthenticatedClientSessionModel;
+
+import io.igia.keycloak.authentication.SmartLaunchContextAuthenticator;
+
+/**
+ * SMART launch context parameters stored as a single compactly encoded client
+ * note instead of one "launch/&lt;param&gt;" note per parameter. The note holds a
+ * version prefix followed by length-prefixed keys and values, for example
+ * {@code 1:7:patient5:12345}. Decoding is done lazily into an immutable map.
+ * Decoded notes are kept as shared snapshots keyed by the note value, so the
+ * code exchange and every refresh of a session reuse the claims computed on
+ * first use instead of decoding the note again.
+ */
+public final class SmartLaunchContext {
+	private static final Logger LOG = Logger.getLogger(SmartLaunchContext.class);
+
+	public static final String LAUNCH_CONTEXT_NOTE = "smart-launch-context";
+
+	private static final String VERSION = "1";
+	private static final char SEPARATOR = ':';
+	private static final SmartLaunchContext EMPTY = new SmartLaunchContext(null, Collections.<String, String>emptyMap());
+	static final int MAX_SNAPSHOTS = 10_000;
+	private static final ConcurrentMap<String, SmartLaunchContext> SNAPSHOTS = new ConcurrentHashMap<>();
+
+	private final String encoded;
+	private volatile Map<String, String> params;
+	private volatile Map<String, String> claims;
+
+	private SmartLaunchContext(String encoded, Map<String, String> params) {
+		this.encoded = encoded;
+		this.params = params;
+	}
+
+	public static SmartLaunchContext of(Map<String, String> params) {
+		Map<String, String> copy = new LinkedHashMap<>(params);
+		return new SmartLaunchContext(encode(copy), Collections.unmodifiableMap(copy));
+	}
+
+	public static SmartLaunchContext decode(String encoded) {
+		if (encoded == null || encoded.isEmpty()) {
+			return EMPTY;
+		}
+		return new SmartLaunchContext(encoded, null);
+	}
+
+	/**
+	 * Decoded launch context of the note value, shared between all sessions and
+	 * requests holding the same value.
+	 */
+	public static SmartLaunchContext snapshot(String encoded) {
+		if (encoded == null || encoded.isEmpty()) {
+			return EMPTY;
+		}
+		SmartLaunchContext snapshot = SNAPSHOTS.get(encoded);
+		if (snapshot == null) {
+			snapshot = decode(encoded);
+			snapshot.claims();
+			if (SNAPSHOTS.size() >= MAX_SNAPSHOTS) {
+				// launch contexts are short lived, start over rather than track recency
+				SNAPSHOTS.clear();
+			}
+			SNAPSHOTS.putIfAbsent(encoded, snapshot);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Reads the launch context of a client session, falling back to the per
+	 * parameter "launch/" notes written before the compact note was introduced.
+	 * The session is only read: a note write here would replicate the session on
+	 * every token, introspection and refresh request, new launches get the
+	 * compact note from the authenticator.
+	 */
+	public static SmartLaunchContext fromClientSession(AuthenticatedClientSessionModel clientSession) {
+		String encoded = clientSession.getNote(LAUNCH_CONTEXT_NOTE);
+		if (encoded != null) {
+			return snapshot(encoded);
+		}
+
+		Map<String, String> notes = clientSession.getNotes();
+		if (notes == null || notes.isEmpty()) {
+			return EMPTY;
+		}
+		Map<String, String> params = new LinkedHashMap<>();
+		for (Entry<String, String> entry : notes.entrySet()) {
+			if (entry.getKey().startsWith(SmartLaunchContextAuthenticator.LAUNCH_SCOPE_PREFIX)) {
+				params.put(entry.getKey().substring(SmartLaunchContextAuthenticator.LAUNCH_SCOPE_PREFIX.length()),
+						entry.getValue());
+			}
+		}
+		if (params.isEmpty()) {
+			return EMPTY;
+		}
+		return of(params);
+	}
+
+	/**
+	 * Value of a "launch/&lt;param&gt;" note name read from the compact note, or
+	 * null when the note name is not a launch param or the param is not set.
+	 */
+	public static String getLaunchNote(AuthenticatedClientSessionModel clientSession, String noteName) {
+		return noteName == null ? null : getLaunchParam(clientSession, SmartScope.of(noteName).getLaunchContext());
+	}
+
+	/**
+	 * Value of a launch param read from the compact note, or null when the param
+	 * is null or not set.
+	 */
+	public static String getLaunchParam(AuthenticatedClientSessionModel clientSession, String param) {
+		if (param == null) {
+			return null;
+		}
+		String encoded = clientSession.getNote(LAUNCH_CONTEXT_NOTE);
+		if (encoded == null) {
+			return null;
+		}
+		return snapshot(encoded).get(param);
+	}
+
+	public String get(String param) {
+		return asMap().get(param);
+	}
+
+	public boolean isEmpty() {
+		return asMap().isEmpty();
+	}
+
+	public Map<String, String> asMap() {
+		Map<String, String> result = params;
+		if (result == null) {
+			result = parse(encoded);
+			params = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Launch params with a value, the claims added to token responses.
+	 */
+	public Map<String, String> claims() {
+		Map<String, String> result = claims;
+		if (result == null) {
+			Map<String, String> all = asMap();
+			result = new LinkedHashMap<>(all.size());
+			for (Entry<String, String> entry : all.entrySet()) {
+				if (entry.getValue() != null && !entry.getValue().isEmpty()) {
+					result.put(entry.getKey(), entry.getValue());
+				}
+			}
+			result = Collections.unmodifiableMap(result);
+			claims = result;
+		}
+		return result;
+	}
+
+	public String encoded() {
+		return encoded;
+	}
+
+	static String encode(Map<String, String> params) {
+		StringBuilder builder = new StringBuilder(VERSION).append(SEPARATOR);
+		for (Entry<String, String> entry : params.entrySet()) {
+			append(builder, entry.getKey());
+			append(builder, entry.getValue() == null ? "" : entry.getValue());
+		}
+		return builder.toString();
+	}
+
+	private static void append(StringBuilder builder, String value) {
+		builder.append(value.length()).append(SEPARATOR).append(value);
+	}
+
+	private static Map<String, String> parse(String encoded) {
+		int position = VERSION.length() + 1;
+		if (!encoded.startsWith(VERSION) || encoded.length() < position || encoded.charAt(VERSION.length()) != SEPARATOR) {
+			// the note holds patient and encounter ids, only its shape is logged
+			LOG.warnf("Unsupported SMART launch context encoding, version %s, length %d", version(encoded), encoded.length());
+			return Collections.emptyMap();
+		}
+
+		Map<String, String> result = new LinkedHashMap<>();
+		try {
+			while (position < encoded.length()) {
+				int keyEnd = encoded.indexOf(SEPARATOR, position);
+				int keyLength = Integer.parseInt(encoded.substring(position, keyEnd));
+				String key = encoded.substring(keyEnd + 1, keyEnd + 1 + keyLength);
+				position = keyEnd + 1 + keyLength;
+
+				int valueEnd = encoded.indexOf(SEPARATOR, position);
+				int valueLength = Integer.parseInt(encoded.substring(position, valueEnd));
+				String value = encoded.substring(valueEnd + 1, valueEnd + 1 + valueLength);
+				position = valueEnd + 1 + valueLength;
+
+				result.put(key, value);
+			}
+		} catch (RuntimeException e) {
+			LOG.warnf("Malformed SMART launch context note, version %s, length %d", version(encoded), encoded.length());
+			return Collections.emptyMap();
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	private static String version(String encoded) {
+		int separator = encoded.indexOf(SEPARATOR);
+		return separator > 0 && separator <= 4 ? encoded.substring(0, separator) : "unknown";
+	}
+}
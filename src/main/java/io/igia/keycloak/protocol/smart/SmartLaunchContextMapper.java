@@ -0,0 +1,277 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.oidc.OIDCLoginProtocol;
+import org.keycloak.protocol.oidc.mappers.AbstractOIDCProtocolMapper;
+import org.keycloak.protocol.oidc.mappers.OIDCAccessTokenMapper;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.protocol.oidc.mappers.OIDCIDTokenMapper;
+import org.keycloak.protocol.oidc.mappers.UserInfoTokenMapper;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ServerInfoAwareProviderFactory;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.IDToken;
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+
+import io.igia.keycloak.authentication.SmartLaunchMatcher;
+
+/**
+ * Maps the whole SMART launch context of the client session to token claims in
+ * one pass, replacing one client session note mapper per launch param. Either
+ * the standard SMART launch params are mapped as string claims, or only the
+ * params of the configured allowlist, each with an optional JSON type. Launch
+ * params named like a JWT, OIDC or introspection claim are never mapped, since
+ * on the template form path they are whatever the user submitted.
+ */
+public class SmartLaunchContextMapper extends AbstractOIDCProtocolMapper implements OIDCAccessTokenMapper, OIDCIDTokenMapper, UserInfoTokenMapper, ServerInfoAwareProviderFactory {
+	private static final Logger LOG = Logger.getLogger(SmartLaunchContextMapper.class);
+
+	public static final String PROVIDER_ID = "smart-oidc-launch-context-mapper";
+	public static final String LAUNCH_CLAIMS = "launch.claims";
+
+	private static final List<ProviderConfigProperty> configProperties = new ArrayList<ProviderConfigProperty>();
+	private static final String LAUNCH_CLAIMS_LABEL = "Launch Claims";
+	private static final String LAUNCH_CLAIMS_HELP_TEXT = "Space separated launch params to map, each optionally followed by its JSON type "
+			+ "(String, long, int, boolean or JSON), for example 'patient encounter need_patient_banner:boolean fhirContext:JSON'. "
+			+ "Leave empty to map the standard SMART launch params (patient, encounter, need_patient_banner, smart_style_url, "
+			+ "intent and tenant) as String claims. Registered token claim names such as sub or scope are never mapped.";
+
+	// mapped when no allowlist is configured
+	static final List<String> SMART_LAUNCH_PARAMS = Collections.unmodifiableList(Arrays.asList(
+			"patient", "encounter", "need_patient_banner", "smart_style_url", "intent", "tenant"));
+
+	// claims of the token and introspection response a launch param must not add a second value for
+	private static final Set<String> RESERVED_CLAIMS = reservedClaims();
+
+	static {
+		ProviderConfigProperty property;
+		property = new ProviderConfigProperty();
+		property.setName(LAUNCH_CLAIMS);
+		property.setLabel(LAUNCH_CLAIMS_LABEL);
+		property.setHelpText(LAUNCH_CLAIMS_HELP_TEXT);
+		property.setType(ProviderConfigProperty.STRING_TYPE);
+		configProperties.add(property);
+		OIDCAttributeMapperHelper.addIncludeInTokensConfig(configProperties, SmartLaunchContextMapper.class);
+	}
+
+	// parsed mapper configs, by mapper id
+	private final MapperConfigCache<LaunchClaims> compiledConfigs = new MapperConfigCache<>(LaunchClaims::compile);
+
+	private static Set<String> reservedClaims() {
+		Set<String> names = new HashSet<>(Arrays.asList("sub", "iss", "aud", "exp", "iat", "nbf", "jti", "azp", "typ",
+				"scope", "nonce", "session_state", "sid", "auth_time", "acr", "at_hash", "c_hash", "s_hash", "cnf", "act",
+				"realm_access", "resource_access", "allowed-origins", "client_id", "username", "active", "token_type",
+				"permitted", "fhirUser"));
+		// every typed claim of the access token, a duplicate key wins over the typed value when parsed again
+		SerializationConfig config = JsonSerialization.mapper.getSerializationConfig();
+		for (BeanPropertyDefinition property : config.introspect(config.constructType(AccessToken.class)).findProperties()) {
+			names.add(property.getName());
+		}
+		return Collections.unmodifiableSet(names);
+	}
+
+	static boolean isReservedClaim(String name) {
+		return RESERVED_CLAIMS.contains(name);
+	}
+
+	@Override
+	public List<ProviderConfigProperty> getConfigProperties() {
+		return configProperties;
+	}
+
+	@Override
+	public String getId() {
+		return PROVIDER_ID;
+	}
+
+	@Override
+	public String getDisplayType() {
+		return "SMART Launch Context";
+	}
+
+	@Override
+	public String getDisplayCategory() {
+		return TOKEN_MAPPER_CATEGORY;
+	}
+
+	@Override
+	public String getHelpText() {
+		return "Map all SMART launch context params of the client session to token claims.";
+	}
+
+	@Override
+	public AccessToken transformUserInfoToken(AccessToken token, ProtocolMapperModel mappingModel, KeycloakSession session,
+			UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
+		LaunchClaims launchClaims = getLaunchClaims(mappingModel);
+		if (launchClaims.userInfo) {
+			launchClaims.apply(token, clientSession);
+		}
+		return token;
+	}
+
+	@Override
+	public AccessToken transformAccessToken(AccessToken token, ProtocolMapperModel mappingModel, KeycloakSession session,
+			UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
+		LaunchClaims launchClaims = getLaunchClaims(mappingModel);
+		if (launchClaims.accessToken) {
+			launchClaims.apply(token, clientSession);
+		}
+		return token;
+	}
+
+	@Override
+	public IDToken transformIDToken(IDToken token, ProtocolMapperModel mappingModel, KeycloakSession session,
+			UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
+		LaunchClaims launchClaims = getLaunchClaims(mappingModel);
+		if (launchClaims.idToken) {
+			launchClaims.apply(token, clientSession);
+		}
+		return token;
+	}
+
+	LaunchClaims getLaunchClaims(ProtocolMapperModel mappingModel) {
+		return compiledConfigs.get(mappingModel);
+	}
+
+	public static ProtocolMapperModel createLaunchContextMapper(String name, String launchClaims,
+			boolean accessToken, boolean idToken, boolean userInfo) {
+		ProtocolMapperModel mapper = new ProtocolMapperModel();
+		mapper.setName(name);
+		mapper.setProtocolMapper(PROVIDER_ID);
+		mapper.setProtocol(OIDCLoginProtocol.LOGIN_PROTOCOL);
+		Map<String, String> config = new HashMap<String, String>();
+		if (launchClaims != null) config.put(LAUNCH_CLAIMS, launchClaims);
+		if (accessToken) config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+		if (idToken) config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN, "true");
+		if (userInfo) config.put(OIDCAttributeMapperHelper.INCLUDE_IN_USERINFO, "true");
+		mapper.setConfig(config);
+		return mapper;
+	}
+
+	@Override
+	public Map<String, String> getOperationalInfo() {
+		Map<String, String> ret = new LinkedHashMap<>();
+        ret.put("version", "1.0");        
+        return ret;
+	}
+
+	/**
+	 * Parsed mapper config.
+	 */
+	static final class LaunchClaims {
+		private final boolean accessToken;
+		private final boolean idToken;
+		private final boolean userInfo;
+		// null maps the standard SMART launch params as String claims
+		private final String[] params;
+		private final String[] types;
+
+		private LaunchClaims(Map<String, String> config, String[] params, String[] types) {
+			this.accessToken = config != null && "true".equals(config.get(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN));
+			this.idToken = config != null && "true".equals(config.get(OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN));
+			this.userInfo = config != null && "true".equals(config.get(OIDCAttributeMapperHelper.INCLUDE_IN_USERINFO));
+			this.params = params;
+			this.types = types;
+		}
+
+		static LaunchClaims compile(Map<String, String> config) {
+			List<String> entries = SmartLaunchMatcher.tokenize(config == null ? null : config.get(LAUNCH_CLAIMS));
+			if (entries.isEmpty()) {
+				return new LaunchClaims(config, null, null);
+			}
+			List<String> params = new ArrayList<>(entries.size());
+			List<String> types = new ArrayList<>(entries.size());
+			for (String entry : entries) {
+				int separator = entry.lastIndexOf(':');
+				String param = separator > 0 ? entry.substring(0, separator) : entry;
+				if (isReservedClaim(param)) {
+					LOG.warnf("Launch claim %s is a reserved token claim and is not mapped", param);
+					continue;
+				}
+				params.add(param);
+				types.add(separator > 0 ? entry.substring(separator + 1) : null);
+			}
+			return new LaunchClaims(config, params.toArray(new String[params.size()]), types.toArray(new String[types.size()]));
+		}
+
+		void apply(IDToken token, AuthenticatedClientSessionModel clientSession) {
+			Map<String, String> claims = SmartLaunchContext.fromClientSession(clientSession).claims();
+			if (claims.isEmpty()) {
+				return;
+			}
+			if (params == null) {
+				for (String param : SMART_LAUNCH_PARAMS) {
+					String value = claims.get(param);
+					if (value != null) {
+						token.getOtherClaims().put(param, value);
+					}
+				}
+				return;
+			}
+			for (int i = 0; i < params.length; i++) {
+				String value = claims.get(params[i]);
+				if (value != null) {
+					Object converted = convert(params[i], value, types[i]);
+					if (converted != null) {
+						token.getOtherClaims().put(params[i], converted);
+					}
+				}
+			}
+		}
+
+		private static Object convert(String param, String value, String type) {
+			if (type == null || "String".equals(type)) {
+				return value;
+			}
+			try {
+				switch (type) {
+				case "long":
+					return Long.valueOf(value);
+				case "int":
+					return Integer.valueOf(value);
+				case "boolean":
+					return Boolean.valueOf(value);
+				case "JSON":
+					return JsonSerialization.readValue(value, JsonNode.class);
+				default:
+					LOG.warnf("Unsupported JSON type %s for launch claim %s", type, param);
+					return null;
+				}
+			} catch (NumberFormatException | IOException e) {
+				LOG.warnf("Launch param %s is not a valid %s", param, type);
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.ActionTokenStoreProvider;
+import org.keycloak.models.ActionTokenValueModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Launch contexts pre-registered by an EHR for the SMART EHR launch. Contexts are
+ * kept in Keycloak's action token store, a cluster-replicated cache in which
+ * every entry expires at its lifespan, keyed by realm and launch id, so
+ * resolving a launch id is a single lookup. Registrations made in one request
+ * are written when the Keycloak session transaction commits. Launch ids are
+ * random and generated here; each context is bound to the client it was
+ * registered for and can be resolved once.
+ */
+public class SmartLaunchContextStore {
+	public static final String LAUNCH_PARAM = "launch";
+	public static final int DEFAULT_LIFESPAN_SECONDS = 300;
+	public static final int MAX_LIFESPAN_SECONDS = 3600;
+	// bound the size of each replicated entry
+	public static final int MAX_PARAMS = 32;
+	public static final int MAX_LENGTH = 1024;
+
+	static final String ACTION_ID = "smart-ehr-launch";
+	// 128 random bits, 22 characters base64url encoded
+	static final int LAUNCH_ID_BYTES = 16;
+	// binding notes stored next to the context params, never part of the context
+	static final String RESERVED_PREFIX = "@";
+	public static final String CLIENT_ID_NOTE = RESERVED_PREFIX + "client_id";
+	public static final String AUD_NOTE = RESERVED_PREFIX + "aud";
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final KeycloakSession session;
+
+	public SmartLaunchContextStore(KeycloakSession session) {
+		this.session = session;
+	}
+
+	/**
+	 * Stores the launch context for the client, and the FHIR server when aud is
+	 * given, and returns its generated launch id.
+	 *
+	 * @throws IllegalArgumentException if the context is empty or too large
+	 */
+	public String register(RealmModel realm, String clientId, String aud, Map<String, String> context, int lifespanSeconds) {
+		validate(context);
+		if (clientId == null || clientId.isEmpty()) {
+			throw new IllegalArgumentException("Launch context without client_id");
+		}
+		byte[] random = new byte[LAUNCH_ID_BYTES];
+		RANDOM.nextBytes(random);
+		String id = Base64Url.encode(random);
+		int lifespan = lifespanSeconds <= 0 ? DEFAULT_LIFESPAN_SECONDS : Math.min(lifespanSeconds, MAX_LIFESPAN_SECONDS);
+
+		Map<String, String> notes = new LinkedHashMap<>(context);
+		notes.put(CLIENT_ID_NOTE, clientId);
+		if (aud != null && !aud.isEmpty()) {
+			notes.put(AUD_NOTE, aud);
+		}
+		store().put(key(realm, id, Time.currentTime() + lifespan), notes);
+		return id;
+	}
+
+	/**
+	 * Returns the launch context registered under the launch id and removes it,
+	 * or null if it is unknown, expired, already used, or registered for
+	 * another client or FHIR server.
+	 */
+	public SmartLaunchContext resolve(RealmModel realm, String launchId, String clientId, String aud) {
+		if (launchId == null || launchId.isEmpty() || launchId.length() > MAX_LENGTH) {
+			return null;
+		}
+		SmartActionTokenKey key = key(realm, launchId, 0);
+		ActionTokenValueModel value = store().get(key);
+		if (value == null || !isBoundTo(value, clientId, aud)) {
+			return null;
+		}
+		// the remove decides between concurrent uses of the same launch id
+		if (store().remove(key) == null) {
+			return null;
+		}
+
+		Map<String, String> context = new LinkedHashMap<>(value.getNotes());
+		context.keySet().removeIf(name -> name.startsWith(RESERVED_PREFIX));
+		return SmartLaunchContext.of(context);
+	}
+
+	private static boolean isBoundTo(ActionTokenValueModel value, String clientId, String aud) {
+		String registeredAud = value.getNote(AUD_NOTE);
+		return clientId != null && clientId.equals(value.getNote(CLIENT_ID_NOTE))
+				&& (registeredAud == null || registeredAud.equals(aud));
+	}
+
+	static void validate(Map<String, String> context) {
+		if (context == null || context.isEmpty()) {
+			throw new IllegalArgumentException("Launch context is empty");
+		}
+		if (context.size() > MAX_PARAMS) {
+			throw new IllegalArgumentException("Launch context has more than " + MAX_PARAMS + " params");
+		}
+		for (Map.Entry<String, String> param : context.entrySet()) {
+			if (param.getKey() == null || param.getKey().isEmpty() || param.getValue() == null
+					|| param.getKey().startsWith(RESERVED_PREFIX)
+					|| param.getKey().length() > MAX_LENGTH || param.getValue().length() > MAX_LENGTH) {
+				throw new IllegalArgumentException("Invalid launch context param " + param.getKey());
+			}
+		}
+	}
+
+	private ActionTokenStoreProvider store() {
+		ActionTokenStoreProvider store = session.getProvider(ActionTokenStoreProvider.class);
+		if (store == null) {
+			throw new IllegalStateException("Action token store not available");
+		}
+		return store;
+	}
+
+	private static SmartActionTokenKey key(RealmModel realm, String launchId, int expiration) {
+		return new SmartActionTokenKey(ACTION_ID, realm.getId() + ":" + launchId, expiration);
+	}
+}
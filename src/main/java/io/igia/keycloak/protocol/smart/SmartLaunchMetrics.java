@@ -0,0 +1,222 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.igia.keycloak.authentication.TokenReplayCache;
+
+/**
+ * Per-realm counters and latency histograms for each stage of the SMART launch
+ * flow. Recording only looks up the realm in a concurrent map and bumps striped
+ * counters, so it does not allocate once the realm has been seen. The metrics
+ * are exported in the Prometheus text format by the protocol metrics endpoint,
+ * together with the node-wide counters of the registered token replay caches.
+ */
+public final class SmartLaunchMetrics {
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	// realm role allowed to read the metrics endpoint
+	public static final String METRICS_ROLE = "smart-metrics";
+
+	private static final SmartLaunchMetrics INSTANCE = new SmartLaunchMetrics();
+	// histogram bucket bounds in seconds, exported as cumulative le buckets
+	private static final String[] BUCKET_BOUNDS = { "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05",
+			"0.1", "0.25", "0.5", "1", "2.5", "5", "10", "30" };
+	private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS.length];
+
+	static {
+		for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+			BUCKET_BOUNDS_NANOS[i] = (long) (Double.parseDouble(BUCKET_BOUNDS[i]) * 1e9);
+		}
+	}
+
+	public enum Stage {
+		AUTHENTICATE, REDIRECT, BACKCHANNEL, APP_TOKEN, CALLBACK, ACTION, TOKEN, LAUNCH_REGISTRATION, INTROSPECT, PATIENT_SEARCH, CLIENT_ASSERTION;
+
+		private final String label = name().toLowerCase(Locale.ROOT);
+	}
+
+	public enum Outcome {
+		ATTEMPTED, REDIRECTED, CHALLENGED, EHR_LAUNCH, SUCCESS, CANCELLED,
+		MISSING_APP_TOKEN, INVALID_APP_TOKEN, REPLAYED_APP_TOKEN, REPLAYED_ASSERTION, MISSING_LAUNCH_CLAIMS, UNKNOWN_LAUNCH,
+		INVALID_SESSION_CODE, INVALID_REQUEST, UNAUTHORIZED, TIMEOUT, CACHE_HIT, NOT_PERMITTED, ERROR;
+
+		private final String label = name().toLowerCase(Locale.ROOT);
+	}
+
+	private static final int STAGES = Stage.values().length;
+	private static final int OUTCOMES = Outcome.values().length;
+
+	private final ConcurrentMap<String, RealmMetrics> realms = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, TokenReplayCache> replayCaches = new ConcurrentHashMap<>();
+
+	public static SmartLaunchMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Records one execution of a stage that started at {@code startNanos}, as
+	 * returned by {@link System#nanoTime()}.
+	 */
+	public void record(String realm, Stage stage, Outcome outcome, long startNanos) {
+		long elapsed = System.nanoTime() - startNanos;
+		RealmMetrics metrics = realm(realm == null ? "" : realm);
+		metrics.counters[stage.ordinal() * OUTCOMES + outcome.ordinal()].increment();
+		metrics.latencies[stage.ordinal()].record(elapsed);
+	}
+
+	public long getCount(String realm, Stage stage, Outcome outcome) {
+		RealmMetrics metrics = realms.get(realm);
+		return metrics == null ? 0 : metrics.counters[stage.ordinal() * OUTCOMES + outcome.ordinal()].sum();
+	}
+
+	public LatencyHistogram getLatency(String realm, Stage stage) {
+		RealmMetrics metrics = realms.get(realm);
+		return metrics == null ? null : metrics.latencies[stage.ordinal()];
+	}
+
+	/**
+	 * Exports the counters of the replay cache, replacing a cache registered
+	 * before under the same action id.
+	 */
+	public void registerReplayCache(TokenReplayCache replayCache) {
+		replayCaches.put(replayCache.getActionId(), replayCache);
+	}
+
+	public void removeRealm(String realm) {
+		if (realm != null) {
+			realms.remove(realm);
+		}
+	}
+
+	/**
+	 * Writes the metrics of the given realm, or of all realms when null, in the
+	 * Prometheus text exposition format.
+	 */
+	public String export(String realm) {
+		Map<String, RealmMetrics> selected = new TreeMap<>();
+		if (realm == null) {
+			selected.putAll(realms);
+		} else if (realms.containsKey(realm)) {
+			selected.put(realm, realms.get(realm));
+		}
+
+		StringBuilder out = new StringBuilder(4096);
+		out.append("# HELP smart_launch_stage_total SMART launch flow stage executions by outcome.\n");
+		out.append("# TYPE smart_launch_stage_total counter\n");
+		for (Map.Entry<String, RealmMetrics> entry : selected.entrySet()) {
+			for (Stage stage : Stage.values()) {
+				for (Outcome outcome : Outcome.values()) {
+					long value = entry.getValue().counters[stage.ordinal() * OUTCOMES + outcome.ordinal()].sum();
+					if (value > 0) {
+						out.append("smart_launch_stage_total{realm=\"").append(escape(entry.getKey()))
+							.append("\",stage=\"").append(stage.label)
+							.append("\",outcome=\"").append(outcome.label).append("\"} ").append(value).append('\n');
+					}
+				}
+			}
+		}
+
+		out.append("# HELP smart_launch_stage_duration_seconds SMART launch flow stage latency.\n");
+		out.append("# TYPE smart_launch_stage_duration_seconds histogram\n");
+		for (Map.Entry<String, RealmMetrics> entry : selected.entrySet()) {
+			for (Stage stage : Stage.values()) {
+				LatencyHistogram latency = entry.getValue().latencies[stage.ordinal()];
+				if (latency.getCount() == 0) {
+					continue;
+				}
+				String labels = "realm=\"" + escape(entry.getKey()) + "\",stage=\"" + stage.label + "\"";
+				long[] counts = latency.cumulativeCounts(BUCKET_BOUNDS_NANOS);
+				for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+					out.append("smart_launch_stage_duration_seconds_bucket{").append(labels)
+						.append(",le=\"").append(BUCKET_BOUNDS[i]).append("\"} ").append(counts[i]).append('\n');
+				}
+				long count = counts[BUCKET_BOUNDS.length];
+				out.append("smart_launch_stage_duration_seconds_bucket{").append(labels)
+					.append(",le=\"+Inf\"} ").append(count).append('\n');
+				out.append("smart_launch_stage_duration_seconds_sum{").append(labels).append("} ")
+					.append(seconds(latency.getSumNanos())).append('\n');
+				out.append("smart_launch_stage_duration_seconds_count{").append(labels).append("} ")
+					.append(count).append('\n');
+			}
+		}
+		exportReplayCaches(out);
+		return out.toString();
+	}
+
+	private void exportReplayCaches(StringBuilder out) {
+		Map<String, TokenReplayCache> caches = new TreeMap<>(replayCaches);
+		if (caches.isEmpty()) {
+			return;
+		}
+		out.append("# HELP smart_token_replay_total Token replay checks of this node by result.\n");
+		out.append("# TYPE smart_token_replay_total counter\n");
+		for (Map.Entry<String, TokenReplayCache> entry : caches.entrySet()) {
+			String cache = "cache=\"" + escape(entry.getKey()) + "\"";
+			out.append("smart_token_replay_total{").append(cache).append(",result=\"accepted\"} ")
+				.append(entry.getValue().getAccepted()).append('\n');
+			out.append("smart_token_replay_total{").append(cache).append(",result=\"replayed\"} ")
+				.append(entry.getValue().getReplays()).append('\n');
+		}
+		out.append("# HELP smart_token_replay_cache_removed_total Token ids dropped from the node-local replay cache.\n");
+		out.append("# TYPE smart_token_replay_cache_removed_total counter\n");
+		for (Map.Entry<String, TokenReplayCache> entry : caches.entrySet()) {
+			String cache = "cache=\"" + escape(entry.getKey()) + "\"";
+			out.append("smart_token_replay_cache_removed_total{").append(cache).append(",reason=\"expired\"} ")
+				.append(entry.getValue().getExpirations()).append('\n');
+			out.append("smart_token_replay_cache_removed_total{").append(cache).append(",reason=\"evicted\"} ")
+				.append(entry.getValue().getEvictions()).append('\n');
+		}
+		out.append("# HELP smart_token_replay_cache_entries Token ids held by the node-local replay cache.\n");
+		out.append("# TYPE smart_token_replay_cache_entries gauge\n");
+		for (Map.Entry<String, TokenReplayCache> entry : caches.entrySet()) {
+			out.append("smart_token_replay_cache_entries{cache=\"").append(escape(entry.getKey())).append("\"} ")
+				.append(entry.getValue().size()).append('\n');
+		}
+	}
+
+	private RealmMetrics realm(String realm) {
+		RealmMetrics metrics = realms.get(realm);
+		if (metrics == null) {
+			metrics = realms.computeIfAbsent(realm, r -> new RealmMetrics());
+		}
+		return metrics;
+	}
+
+	private static String seconds(long nanos) {
+		return Double.toString(nanos / 1e9);
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static final class RealmMetrics {
+		private final LongAdder[] counters = new LongAdder[STAGES * OUTCOMES];
+		private final LatencyHistogram[] latencies = new LatencyHistogram[STAGES];
+
+		RealmMetrics() {
+			for (int i = 0; i < counters.length; i++) {
+				counters[i] = new LongAdder();
+			}
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] = new LatencyHistogram();
+			}
+		}
+	}
+}
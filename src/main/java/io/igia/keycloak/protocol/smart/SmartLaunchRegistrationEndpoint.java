@@ -0,0 +1,205 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.services.ErrorResponse;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager.AuthResult;
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Outcome;
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Stage;
+
+/**
+ * Endpoint for the EHR to pre-register SMART EHR launch contexts. The body is a
+ * single registration or an array of registrations:
+ * <pre>{"client_id": "app", "aud": "https://fhir", "expires_in": 300, "context": {"patient": "123"}}</pre>
+ * The response holds the generated launch id and lifespan of each registration
+ * in the same shape. The launch can only be used by the client_id, by default
+ * the client of the registering token, and with the aud when one is given.
+ * The caller must present a bearer token of the realm with the
+ * {@value #REGISTER_LAUNCH_ROLE} realm role.
+ */
+public class SmartLaunchRegistrationEndpoint {
+	private static final Logger LOG = Logger.getLogger(SmartLaunchRegistrationEndpoint.class);
+
+	public static final String REGISTER_LAUNCH_ROLE = "smart-launch-registration";
+	public static final int MAX_BATCH_SIZE = 1000;
+
+	static final String EXPIRES_IN = "expires_in";
+	static final String CONTEXT = "context";
+	static final String CLIENT_ID = "client_id";
+	static final String AUD = "aud";
+
+	private final RealmModel realm;
+
+	@Context
+	private KeycloakSession session;
+
+	public SmartLaunchRegistrationEndpoint(RealmModel realm) {
+		this.realm = realm;
+	}
+
+	@POST
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response register(String body) {
+		long start = System.nanoTime();
+		Outcome outcome = Outcome.ERROR;
+		try {
+			AuthResult auth = new AppAuthManager().authenticateBearerToken(session, realm);
+			if (auth == null) {
+				outcome = Outcome.UNAUTHORIZED;
+				return ErrorResponse.error("Bearer token required", Status.UNAUTHORIZED);
+			}
+			if (!hasRegisterRole(auth.getToken())) {
+				outcome = Outcome.UNAUTHORIZED;
+				return ErrorResponse.error("Not allowed to register launch contexts", Status.FORBIDDEN);
+			}
+
+			JsonNode request;
+			List<LaunchRegistration> registrations;
+			try {
+				request = JsonSerialization.readValue(body, JsonNode.class);
+				registrations = parse(request);
+			} catch (IOException | IllegalArgumentException e) {
+				LOG.debugf("Invalid launch registration: %s", e.getMessage());
+				outcome = Outcome.INVALID_REQUEST;
+				return ErrorResponse.error(e.getMessage(), Status.BAD_REQUEST);
+			}
+
+			String defaultClientId = auth.getToken().getIssuedFor();
+			if (defaultClientId == null && registrations.stream().anyMatch(registration -> registration.clientId == null)) {
+				outcome = Outcome.INVALID_REQUEST;
+				return ErrorResponse.error("Launch registration without client_id", Status.BAD_REQUEST);
+			}
+
+			SmartLaunchContextStore store = new SmartLaunchContextStore(session);
+			ArrayNode result = JsonNodeFactory.instance.arrayNode();
+			for (LaunchRegistration registration : registrations) {
+				String clientId = registration.clientId != null ? registration.clientId : defaultClientId;
+				String launchId = store.register(realm, clientId, registration.aud, registration.context, registration.lifespan);
+				ObjectNode registered = result.addObject();
+				registered.put(SmartLaunchContextStore.LAUNCH_PARAM, launchId);
+				registered.put(EXPIRES_IN, registration.lifespan);
+			}
+
+			outcome = Outcome.SUCCESS;
+			return Response.ok(request.isArray() ? result : result.get(0), MediaType.APPLICATION_JSON_TYPE).build();
+		} finally {
+			SmartLaunchMetrics.getInstance().record(realm.getName(), Stage.LAUNCH_REGISTRATION, outcome, start);
+		}
+	}
+
+	private static boolean hasRegisterRole(AccessToken token) {
+		return token != null && token.getRealmAccess() != null && token.getRealmAccess().isUserInRole(REGISTER_LAUNCH_ROLE);
+	}
+
+	static List<LaunchRegistration> parse(JsonNode request) {
+		if (request == null || !(request.isObject() || request.isArray())) {
+			throw new IllegalArgumentException("Expected a launch registration object or array");
+		}
+		if (request.size() == 0 || (request.isArray() && request.size() > MAX_BATCH_SIZE)) {
+			throw new IllegalArgumentException("Expected 1 to " + MAX_BATCH_SIZE + " launch registrations");
+		}
+
+		List<LaunchRegistration> registrations = new ArrayList<>(request.isArray() ? request.size() : 1);
+		if (request.isArray()) {
+			for (JsonNode registration : request) {
+				registrations.add(parseRegistration(registration));
+			}
+		} else {
+			registrations.add(parseRegistration(request));
+		}
+		return registrations;
+	}
+
+	private static LaunchRegistration parseRegistration(JsonNode registration) {
+		JsonNode contextNode = registration == null ? null : registration.get(CONTEXT);
+		if (contextNode == null || !contextNode.isObject()) {
+			throw new IllegalArgumentException("Launch registration without context object");
+		}
+
+		Map<String, String> context = new LinkedHashMap<>();
+		Iterator<Map.Entry<String, JsonNode>> fields = contextNode.fields();
+		while (fields.hasNext()) {
+			Map.Entry<String, JsonNode> field = fields.next();
+			if (!field.getValue().isValueNode() || field.getValue().isNull()) {
+				throw new IllegalArgumentException("Launch context param " + field.getKey() + " is not a value");
+			}
+			context.put(field.getKey(), field.getValue().asText());
+		}
+
+		if (registration.has(SmartLaunchContextStore.LAUNCH_PARAM)) {
+			throw new IllegalArgumentException("Launch ids are generated by the server");
+		}
+		String clientId = text(registration, CLIENT_ID);
+		String aud = text(registration, AUD);
+		JsonNode expiresIn = registration.get(EXPIRES_IN);
+		int lifespan = expiresIn != null && expiresIn.canConvertToInt() && expiresIn.asInt() > 0
+				? Math.min(expiresIn.asInt(), SmartLaunchContextStore.MAX_LIFESPAN_SECONDS)
+				: SmartLaunchContextStore.DEFAULT_LIFESPAN_SECONDS;
+
+		SmartLaunchContextStore.validate(context);
+		return new LaunchRegistration(clientId, aud, context, lifespan);
+	}
+
+	private static String text(JsonNode registration, String field) {
+		JsonNode node = registration.get(field);
+		if (node == null || node.isNull()) {
+			return null;
+		}
+		if (!node.isTextual() || node.asText().isEmpty() || node.asText().length() > SmartLaunchContextStore.MAX_LENGTH) {
+			throw new IllegalArgumentException("Invalid " + field);
+		}
+		return node.asText();
+	}
+
+	static final class LaunchRegistration {
+		final String clientId;
+		final String aud;
+		final Map<String, String> context;
+		final int lifespan;
+
+		LaunchRegistration(String clientId, String aud, Map<String, String> context, int lifespan) {
+			this.clientId = clientId;
+			this.aud = aud;
+			this.context = context;
+			this.lifespan = lifespan;
+		}
+	}
+}
@@ -14,6 +14,7 @@ package io.igia.keycloak.protocol.smart;
 
 import org.keycloak.events.EventBuilder;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.protocol.LoginProtocol;
 import org.keycloak.protocol.oidc.OIDCLoginProtocolFactory;
@@ -31,6 +32,20 @@ public class SmartOIDCLoginProtocolFactory extends OIDCLoginProtocolFactory{
         return new SmartOIDCLoginProtocolService(realm, event);
     }
 
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        super.postInit(factory);
+        factory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent) {
+                SmartConfigurationCache.getInstance().removeRealm(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+            } else if (event instanceof RealmModel.ClientUpdatedEvent) {
+                SmartConfigurationCache.getInstance().removeRealm(((RealmModel.ClientUpdatedEvent) event).getUpdatedClient().getRealm().getId());
+            } else if (event instanceof RealmModel.ClientRemovedEvent) {
+                SmartConfigurationCache.getInstance().removeRealm(((RealmModel.ClientRemovedEvent) event).getClient().getRealm().getId());
+            }
+        });
+    }
+
     @Override
     public String getId() {
         return LOGIN_PROTOCOL;
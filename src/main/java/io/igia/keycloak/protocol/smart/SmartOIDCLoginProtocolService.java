@@ -14,20 +14,27 @@ package io.igia.keycloak.protocol.smart;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 
 import org.jboss.logging.Logger;
 import org.jboss.resteasy.spi.HttpRequest;
-import org.jboss.resteasy.spi.ResteasyProviderFactory;
+import org.keycloak.OAuth2Constants;
 import org.keycloak.authentication.AuthenticationProcessor;
 import org.keycloak.common.ClientConnection;
 import org.keycloak.events.EventBuilder;
+import org.keycloak.models.AdminRoles;
 import org.keycloak.models.AuthenticationFlowModel;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.Constants;
@@ -38,20 +45,34 @@ import org.keycloak.models.utils.FormMessage;
 import org.keycloak.protocol.oidc.TokenManager;
 import org.keycloak.protocol.oidc.endpoints.TokenEndpoint;
 import org.keycloak.protocol.oidc.endpoints.UserInfoEndpoint;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.services.ErrorResponse;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager.AuthResult;
 import org.keycloak.services.managers.ClientSessionCode;
+import org.keycloak.services.resources.Cors;
 import org.keycloak.services.resources.LoginActionsService;
 import org.keycloak.services.resources.RealmsResource;
 import org.keycloak.services.resources.SessionCodeChecks;
 import org.keycloak.services.util.BrowserHistoryHelper;
+import org.keycloak.services.util.CacheControlUtil;
 import org.keycloak.sessions.AuthenticationSessionModel;
 
 import io.igia.keycloak.authentication.SmartLaunchContextAuthenticatorFactory;
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Outcome;
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Stage;
 
 public class SmartOIDCLoginProtocolService {
 	private static final Logger LOG = Logger.getLogger(SmartOIDCLoginProtocolService.class);
 	
 	public static final String FORWARDED_ERROR_MESSAGE_NOTE = "forwardedErrorMessage";
 	
+	private static final CacheControl SMART_CONFIGURATION_CACHE_CONTROL = new CacheControl();
+	
+	static {
+		SMART_CONFIGURATION_CACHE_CONTROL.setMaxAge(SmartConfigurationCache.MAX_AGE_SECONDS);
+	}
+	
 	private RealmModel realm;
 	private TokenManager tokenManager;
 	private EventBuilder event;
@@ -74,7 +95,7 @@ public class SmartOIDCLoginProtocolService {
 	public SmartOIDCLoginProtocolService(RealmModel realm, EventBuilder event) {
 		this.realm = realm;        
         this.event = event;
-        this.tokenManager = new SmartTokenManager();
+        this.tokenManager = SmartTokenManager.getInstance();
 	}
 		
     public static UriBuilder tokenServiceBaseUrl(UriBuilder baseUriBuilder) {
@@ -86,6 +107,10 @@ public class SmartOIDCLoginProtocolService {
         return uriBuilder.path(SmartOIDCLoginProtocolService.class, "token");
     }
     
+    public static UriBuilder tokenIntrospectionUrl(UriBuilder baseUriBuilder) {
+        return tokenUrl(baseUriBuilder).path(TokenEndpoint.class, "introspect");
+    }
+    
     public static UriBuilder userInfoUrl(UriBuilder baseUriBuilder) {
         UriBuilder uriBuilder = tokenServiceBaseUrl(baseUriBuilder);
         return uriBuilder.path(SmartOIDCLoginProtocolService.class, "issueUserInfo");
@@ -93,16 +118,83 @@ public class SmartOIDCLoginProtocolService {
     
     @Path("token")
     public Object token() {
-        TokenEndpoint endpoint = new TokenEndpoint(tokenManager, realm, event);
-        ResteasyProviderFactory.getInstance().injectProperties(endpoint);
-        return endpoint;
+        return EndpointInjector.inject(new SmartTokenEndpoint(tokenManager, realm, event));
     }
     
     @Path("userinfo")
     public Object issueUserInfo() {
-        UserInfoEndpoint endpoint = new UserInfoEndpoint(tokenManager, realm);
-        ResteasyProviderFactory.getInstance().injectProperties(endpoint);
-        return endpoint;
+        resolveReferenceToken(request, new SmartReferenceTokenStore(session), realm);
+        return EndpointInjector.inject(new UserInfoEndpoint(tokenManager, realm));
+    }
+    
+    // swaps a reference token for its signed token before the Keycloak endpoint reads the request
+    static void resolveReferenceToken(HttpRequest request, SmartReferenceTokenStore store, RealmModel realm) {
+        MultivaluedMap<String, String> requestHeaders = request.getMutableHeaders();
+        String authorization = requestHeaders.getFirst(HttpHeaders.AUTHORIZATION);
+        if (authorization != null) {
+            String[] split = authorization.trim().split("\\s+");
+            if (split.length == 2 && "Bearer".equalsIgnoreCase(split[0])) {
+                String token = store.resolve(realm, split[1]);
+                if (token != null) {
+                    requestHeaders.putSingle(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+                }
+            }
+            return;
+        }
+        if (MediaType.APPLICATION_FORM_URLENCODED_TYPE.isCompatible(request.getHttpHeaders().getMediaType())) {
+            MultivaluedMap<String, String> form = request.getDecodedFormParameters();
+            String token = store.resolve(realm, form.getFirst(OAuth2Constants.ACCESS_TOKEN));
+            if (token != null) {
+                form.putSingle(OAuth2Constants.ACCESS_TOKEN, token);
+            }
+        }
+    }
+    
+    @Path("launch")
+    public Object registerLaunch() {
+        return EndpointInjector.inject(new SmartLaunchRegistrationEndpoint(realm));
+    }
+    
+    @Path("metrics")
+    @GET
+    @Produces(SmartLaunchMetrics.CONTENT_TYPE)
+    public Response metrics() {
+        AuthResult auth = new AppAuthManager().authenticateBearerToken(session, realm);
+        if (auth == null) {
+            return ErrorResponse.error("Bearer token required", Status.UNAUTHORIZED);
+        }
+        if (!mayReadMetrics(auth.getToken())) {
+            return ErrorResponse.error("Not allowed to read metrics", Status.FORBIDDEN);
+        }
+        return Response.ok(SmartLaunchMetrics.getInstance().export(realm.getName()))
+                .type(SmartLaunchMetrics.CONTENT_TYPE)
+                .cacheControl(CacheControlUtil.noCache())
+                .build();
+    }
+    
+    // the monitoring realm role, or view-realm of the realm admin console client
+    static boolean mayReadMetrics(AccessToken token) {
+        if (token == null) {
+            return false;
+        }
+        if (token.getRealmAccess() != null && token.getRealmAccess().isUserInRole(SmartLaunchMetrics.METRICS_ROLE)) {
+            return true;
+        }
+        AccessToken.Access realmManagement = token.getResourceAccess(Constants.REALM_MANAGEMENT_CLIENT_ID);
+        return realmManagement != null && realmManagement.isUserInRole(AdminRoles.VIEW_REALM);
+    }
+    
+    @Path(".well-known/smart-configuration")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response smartConfiguration() {
+        SmartConfigurationCache.Document document = SmartConfigurationCache.getInstance()
+                .get(realm, session.getContext().getUri().getBaseUri());
+        ResponseBuilder builder = document.matches(headers.getHeaderString(HttpHeaders.IF_NONE_MATCH))
+                ? Response.notModified()
+                : Response.ok(document.getJson(), MediaType.APPLICATION_JSON_TYPE);
+        builder.header(HttpHeaders.ETAG, document.getEtag()).cacheControl(SMART_CONFIGURATION_CACHE_CONTROL);
+        return Cors.add(request, builder).allowedOrigins("*").auth().build();
     }
     
     @Path("smart-launch-context")
@@ -123,32 +215,56 @@ public class SmartOIDCLoginProtocolService {
     		String code,
 			String execution,
         	String clientId,
-        	String tabId) {                
-        // Setup client, so error page will contain "back to application" link
-        ClientModel client = null;
-        if (clientId != null) {
-            client = realm.getClientByClientId(clientId);
-        }
-        if (client != null) {
-            session.getContext().setClient(client);
-        }
+        	String tabId) {
+        long start = System.nanoTime();
+        Outcome outcome = Outcome.ERROR;
+        try {
+            // Setup client, so error page will contain "back to application" link
+            ClientModel client = null;
+            if (clientId != null) {
+                client = realm.getClientByClientId(clientId);
+            }
+            if (client != null) {
+                session.getContext().setClient(client);
+            }
 
-        String flowPath = LoginActionsService.AUTHENTICATE_PATH;
-        
-        //verify session code
-        LOG.debugf("Calling checksForCode");
-        SessionCodeChecks checks = checksForCode(authSessionId, code, execution, clientId, tabId, flowPath);
-        if (!checks.verifyActiveAndValidAction(AuthenticationSessionModel.Action.AUTHENTICATE.name(),
-        		ClientSessionCode.ActionType.LOGIN)) {
-            return checks.getResponse();
-        }
-        
-        AuthenticationSessionModel authSession = checks.getAuthenticationSession();    
+            String flowPath = LoginActionsService.AUTHENTICATE_PATH;
+            
+            //verify session code
+            LOG.debugf("Calling checksForCode");
+            SessionCodeChecks checks = checksForCode(authSessionId, code, execution, clientId, tabId, flowPath);
+            if (!checks.verifyActiveAndValidAction(AuthenticationSessionModel.Action.AUTHENTICATE.name(),
+            		ClientSessionCode.ActionType.LOGIN)) {
+                outcome = Outcome.INVALID_SESSION_CODE;
+                return checks.getResponse();
+            }
+            
+            AuthenticationSessionModel authSession = checks.getAuthenticationSession();    
 
-        authSession.setAuthNote(SmartLaunchContextAuthenticatorFactory.INITIATED_BY_SMART_LAUNCH_EXT_APP, "true");               
-        return processFlow(true, execution, authSession, flowPath, AuthenticationFlowResolver.resolveBrowserFlow(authSession), null, new AuthenticationProcessor());		
+            authSession.setAuthNote(SmartLaunchContextAuthenticatorFactory.INITIATED_BY_SMART_LAUNCH_EXT_APP, "true");               
+            Response response = processFlow(true, execution, authSession, flowPath, AuthenticationFlowResolver.resolveBrowserFlow(authSession), null, new AuthenticationProcessor());
+            outcome = callbackOutcome(response);
+            return response;
+        } finally {
+            SmartLaunchMetrics.getInstance().record(realm.getName(), Stage.CALLBACK, outcome, start);
+        }
     }
     
+    /**
+     * The flow redirects once it completes, shows a form while an authenticator
+     * still needs input and answers with an error status when it fails.
+     */
+    static Outcome callbackOutcome(Response response) {
+        switch (response.getStatusInfo().getFamily()) {
+        case REDIRECTION:
+            return Outcome.SUCCESS;
+        case SUCCESSFUL:
+            return Outcome.CHALLENGED;
+        default:
+            return Outcome.ERROR;
+        }
+    }
+
     private SessionCodeChecks checksForCode(String authSessionId, String code, String execution, String clientId, String tabId, String flowPath) {
         SessionCodeChecks res = new SessionCodeChecks(realm, session.getContext().getUri(), request, clientConnection, session, event, authSessionId, code, execution, clientId, tabId, flowPath);
         res.initialVerify();
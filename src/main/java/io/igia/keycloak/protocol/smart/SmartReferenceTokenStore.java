@@ -0,0 +1,114 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.security.SecureRandom;
+import java.util.Collections;
+
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.models.ActionTokenStoreProvider;
+import org.keycloak.models.ActionTokenValueModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Opaque reference tokens handed to clients in place of their signed access
+ * token. The signed token is kept in Keycloak's action token store, a
+ * cluster-replicated cache in which every entry expires with the token, keyed by
+ * realm and reference, so resolving a reference is a single lookup. Resource
+ * servers resolve references through token introspection, clients through the
+ * userinfo endpoint. Clients opt in
+ * with the {@link #CLIENT_ATTR} client attribute.
+ */
+public class SmartReferenceTokenStore {
+	public static final String CLIENT_ATTR = "smart.access.token.format";
+	public static final String FORMAT_REFERENCE = "reference";
+	// 192 random bits, 32 characters base64url encoded
+	static final int REFERENCE_BYTES = 24;
+	static final int REFERENCE_LENGTH = 32;
+
+	static final String ACTION_ID = "smart-reference-token";
+	private static final String TOKEN_NOTE = "token";
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final KeycloakSession session;
+
+	public SmartReferenceTokenStore(KeycloakSession session) {
+		this.session = session;
+	}
+
+	public static boolean isEnabled(ClientModel client) {
+		return client != null && FORMAT_REFERENCE.equals(client.getAttribute(CLIENT_ATTR));
+	}
+
+	/**
+	 * True if the token has the shape of a reference; signed tokens always
+	 * contain dots.
+	 */
+	public static boolean isReference(String token) {
+		return token != null && token.length() == REFERENCE_LENGTH && token.indexOf('.') < 0;
+	}
+
+	/**
+	 * Stores the encoded access token until its expiration and returns the
+	 * reference to hand out instead.
+	 */
+	public String issue(RealmModel realm, String encodedToken, int expiration) {
+		String reference = newReference();
+		put(realm, reference, encodedToken, expiration);
+		return reference;
+	}
+
+	/**
+	 * Draws a new reference, for callers that need it before the token is
+	 * encoded, such as for the at_hash of an ID token.
+	 */
+	public static String newReference() {
+		byte[] random = new byte[REFERENCE_BYTES];
+		RANDOM.nextBytes(random);
+		return Base64Url.encode(random);
+	}
+
+	/**
+	 * Stores the encoded access token under a reference from
+	 * {@link #newReference()} until its expiration.
+	 */
+	public void put(RealmModel realm, String reference, String encodedToken, int expiration) {
+		store().put(key(realm, reference, expiration), Collections.singletonMap(TOKEN_NOTE, encodedToken));
+	}
+
+	/**
+	 * Returns the encoded access token of the reference, or null if it is
+	 * unknown or expired.
+	 */
+	public String resolve(RealmModel realm, String reference) {
+		if (!isReference(reference)) {
+			return null;
+		}
+		ActionTokenValueModel value = store().get(key(realm, reference, 0));
+		return value == null || value.getNotes() == null ? null : value.getNotes().get(TOKEN_NOTE);
+	}
+
+	private ActionTokenStoreProvider store() {
+		ActionTokenStoreProvider store = session.getProvider(ActionTokenStoreProvider.class);
+		if (store == null) {
+			throw new IllegalStateException("Action token store not available");
+		}
+		return store;
+	}
+
+	private static SmartActionTokenKey key(RealmModel realm, String reference, int expiration) {
+		return new SmartActionTokenKey(ACTION_ID, realm.getId() + ":" + reference, expiration);
+	}
+}
@@ -0,0 +1,301 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * One SMART on FHIR scope parsed into its grammar: {@code openid},
+ * {@code fhirUser}, {@code profile}, {@code offline_access},
+ * {@code online_access}, {@code launch}, {@code launch/<context>} and resource
+ * scopes {@code patient|user|system/<Resource|*>.<permissions>}, where the
+ * permissions are the v1 {@code read}, {@code write} or {@code *}, or the v2
+ * letters of {@code cruds} optionally followed by query constraints, for
+ * example {@code patient/Observation.rs?category=laboratory}. Resource scope
+ * permissions are kept as a bitset of {@link Permission}. Scopes are immutable
+ * and interned, so a scope name is parsed once.
+ */
+public final class SmartScope {
+	static final int MAX_INTERNED = 10_000;
+	private static final ConcurrentMap<String, SmartScope> INTERNED = new ConcurrentHashMap<>();
+
+	public enum Type {
+		OPENID, FHIR_USER, PROFILE, OFFLINE_ACCESS, ONLINE_ACCESS, LAUNCH, LAUNCH_CONTEXT, RESOURCE, OTHER;
+
+		final int bit = 1 << ordinal();
+	}
+
+	public enum Compartment {
+		PATIENT, USER, SYSTEM;
+
+		static Compartment of(String value) {
+			switch (value) {
+			case "patient":
+				return PATIENT;
+			case "user":
+				return USER;
+			case "system":
+				return SYSTEM;
+			default:
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Resource interactions, named after the SMART v2 permission letters. The
+	 * v1 {@code read} permission grants read and search, {@code write} create,
+	 * update and delete.
+	 */
+	public enum Permission {
+		CREATE, READ, UPDATE, DELETE, SEARCH;
+
+		public final int bit = 1 << ordinal();
+		private final char letter = "cruds".charAt(ordinal());
+
+		public static final int ALL = (1 << values().length) - 1;
+		static final int V1_READ = READ.bit | SEARCH.bit;
+		static final int V1_WRITE = CREATE.bit | UPDATE.bit | DELETE.bit;
+
+		/**
+		 * Returns the permission of a v2 letter ({@code c}, {@code r}, {@code u},
+		 * {@code d} or {@code s}), or null.
+		 */
+		public static Permission of(String letter) {
+			if (letter != null && letter.length() == 1) {
+				for (Permission permission : values()) {
+					if (permission.letter == letter.charAt(0)) {
+						return permission;
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	public static final String WILDCARD_RESOURCE = "*";
+
+	private final String value;
+	private final Type type;
+	// launch context param of launch/<context> scopes
+	private final String launchContext;
+	// set for resource scopes only
+	private final Compartment compartment;
+	private final String resourceType;
+	private final int permissions;
+	private final boolean v2;
+	// v2 query constraints, parameter name to value
+	private final Map<String, String> constraints;
+
+	private SmartScope(String value, Type type, String launchContext, Compartment compartment, String resourceType, int permissions) {
+		this(value, type, launchContext, compartment, resourceType, permissions, false, Collections.<String, String>emptyMap());
+	}
+
+	private SmartScope(String value, Type type, String launchContext, Compartment compartment, String resourceType, int permissions,
+			boolean v2, Map<String, String> constraints) {
+		this.value = value;
+		this.type = type;
+		this.launchContext = launchContext;
+		this.compartment = compartment;
+		this.resourceType = resourceType;
+		this.permissions = permissions;
+		this.v2 = v2;
+		this.constraints = constraints;
+	}
+
+	/**
+	 * Returns the interned scope of the name.
+	 */
+	public static SmartScope of(String value) {
+		SmartScope scope = INTERNED.get(value);
+		if (scope == null) {
+			scope = parse(value);
+			if (INTERNED.size() >= MAX_INTERNED) {
+				// scope names are client input, keep the table bounded
+				INTERNED.clear();
+			}
+			SmartScope existing = INTERNED.putIfAbsent(value, scope);
+			if (existing != null) {
+				scope = existing;
+			}
+		}
+		return scope;
+	}
+
+	static SmartScope parse(String value) {
+		switch (value) {
+		case "openid":
+			return new SmartScope(value, Type.OPENID, null, null, null, 0);
+		case "fhirUser":
+			return new SmartScope(value, Type.FHIR_USER, null, null, null, 0);
+		case "profile":
+			return new SmartScope(value, Type.PROFILE, null, null, null, 0);
+		case "offline_access":
+			return new SmartScope(value, Type.OFFLINE_ACCESS, null, null, null, 0);
+		case "online_access":
+			return new SmartScope(value, Type.ONLINE_ACCESS, null, null, null, 0);
+		case "launch":
+			return new SmartScope(value, Type.LAUNCH, null, null, null, 0);
+		default:
+			break;
+		}
+
+		int slash = value.indexOf('/');
+		if (slash > 0 && slash < value.length() - 1) {
+			String prefix = value.substring(0, slash);
+			if ("launch".equals(prefix)) {
+				return new SmartScope(value, Type.LAUNCH_CONTEXT, value.substring(slash + 1), null, null, 0);
+			}
+			Compartment compartment = Compartment.of(prefix);
+			if (compartment != null) {
+				SmartScope scope = parseResource(value, slash, compartment);
+				if (scope != null) {
+					return scope;
+				}
+			}
+		}
+		return new SmartScope(value, Type.OTHER, null, null, null, 0);
+	}
+
+	private static SmartScope parseResource(String value, int slash, Compartment compartment) {
+		int query = value.indexOf('?', slash);
+		int end = query < 0 ? value.length() : query;
+		int dot = value.lastIndexOf('.', end - 1);
+		if (dot <= slash + 1 || dot >= end - 1) {
+			return null;
+		}
+		String resourceType = value.substring(slash + 1, dot);
+		if (!isResourceType(resourceType)) {
+			return null;
+		}
+		String permissionsValue = value.substring(dot + 1, end);
+		int permissions = v1Permissions(permissionsValue);
+		boolean v2 = permissions == 0;
+		if (v2) {
+			permissions = v2Permissions(permissionsValue);
+		}
+		if (permissions == 0) {
+			return null;
+		}
+		Map<String, String> constraints = Collections.emptyMap();
+		if (query >= 0) {
+			// query constraints are v2 only
+			constraints = v2 ? constraints(value.substring(query + 1)) : null;
+			if (constraints == null) {
+				return null;
+			}
+		}
+		return new SmartScope(value, Type.RESOURCE, null, compartment, resourceType, permissions, v2, constraints);
+	}
+
+	private static int v1Permissions(String value) {
+		switch (value) {
+		case "read":
+			return Permission.V1_READ;
+		case "write":
+			return Permission.V1_WRITE;
+		case "*":
+			return Permission.ALL;
+		default:
+			return 0;
+		}
+	}
+
+	private static int v2Permissions(String value) {
+		// letters of "cruds", each at most once and in that order
+		int permissions = 0;
+		int next = 0;
+		for (int i = 0; i < value.length(); i++) {
+			int index = "cruds".indexOf(value.charAt(i), next);
+			if (index < 0) {
+				return 0;
+			}
+			permissions |= 1 << index;
+			next = index + 1;
+		}
+		return permissions;
+	}
+
+	private static Map<String, String> constraints(String query) {
+		Map<String, String> constraints = new LinkedHashMap<>();
+		for (String parameter : query.split("&", -1)) {
+			int equals = parameter.indexOf('=');
+			if (equals <= 0 || equals == parameter.length() - 1) {
+				return null;
+			}
+			if (constraints.put(parameter.substring(0, equals), parameter.substring(equals + 1)) != null) {
+				// repeated parameters are not supported
+				return null;
+			}
+		}
+		return Collections.unmodifiableMap(constraints);
+	}
+
+	private static boolean isResourceType(String value) {
+		if (WILDCARD_RESOURCE.equals(value)) {
+			return true;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (!(c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || i > 0 && c >= '0' && c <= '9')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getLaunchContext() {
+		return launchContext;
+	}
+
+	public Compartment getCompartment() {
+		return compartment;
+	}
+
+	public String getResourceType() {
+		return resourceType;
+	}
+
+	public int getPermissions() {
+		return permissions;
+	}
+
+	public boolean isV2() {
+		return v2;
+	}
+
+	public Map<String, String> getConstraints() {
+		return constraints;
+	}
+
+	public boolean isPermitted(Permission permission) {
+		return (permissions & permission.bit) != 0;
+	}
+
+	@Override
+	public String toString() {
+		return value;
+	}
+}
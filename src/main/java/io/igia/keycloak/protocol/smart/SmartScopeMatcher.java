@@ -0,0 +1,204 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.igia.keycloak.protocol.smart.SmartScope.Compartment;
+import io.igia.keycloak.protocol.smart.SmartScope.Permission;
+import io.igia.keycloak.protocol.smart.SmartScope.Type;
+
+/**
+ * Resource scopes of a scope set compiled into a decision structure: per
+ * compartment, an index by resource type of the granted permission bitmasks,
+ * with the wildcard grants already merged in. Scopes without query constraints
+ * grant their permissions unconditionally; constrained (v2) scopes grant them
+ * for resources matching all their constraints. A decision is one map lookup
+ * and a mask test, plus the constraint checks of constrained grants.
+ */
+public final class SmartScopeMatcher {
+	private static final int COMPARTMENTS = Compartment.values().length;
+
+	public static final SmartScopeMatcher EMPTY = compile(Collections.<SmartScope>emptyList());
+
+	private final Map<String, Grant>[] grants;
+	private final Grant[] wildcardGrants;
+
+	private SmartScopeMatcher(Map<String, Grant>[] grants, Grant[] wildcardGrants) {
+		this.grants = grants;
+		this.wildcardGrants = wildcardGrants;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static SmartScopeMatcher compile(Collection<SmartScope> scopes) {
+		Grant[] wildcard = new Grant[COMPARTMENTS];
+		Map<String, Grant>[] byResource = new Map[COMPARTMENTS];
+		for (int i = 0; i < COMPARTMENTS; i++) {
+			wildcard[i] = new Grant();
+			byResource[i] = new HashMap<>();
+		}
+		for (SmartScope scope : scopes) {
+			if (scope.getType() == Type.RESOURCE && SmartScope.WILDCARD_RESOURCE.equals(scope.getResourceType())) {
+				wildcard[scope.getCompartment().ordinal()].add(scope);
+			}
+		}
+		for (SmartScope scope : scopes) {
+			if (scope.getType() == Type.RESOURCE && !SmartScope.WILDCARD_RESOURCE.equals(scope.getResourceType())) {
+				int compartment = scope.getCompartment().ordinal();
+				Grant grant = byResource[compartment].get(scope.getResourceType());
+				if (grant == null) {
+					grant = wildcard[compartment].copy();
+					byResource[compartment].put(scope.getResourceType(), grant);
+				}
+				grant.add(scope);
+			}
+		}
+		return new SmartScopeMatcher(byResource, wildcard);
+	}
+
+	private Grant grant(Compartment compartment, String resourceType) {
+		Grant grant = grants[compartment.ordinal()].get(resourceType);
+		return grant != null ? grant : wildcardGrants[compartment.ordinal()];
+	}
+
+	/**
+	 * Permission bits granted unconditionally on the resource type.
+	 */
+	public int getPermissions(Compartment compartment, String resourceType) {
+		return grant(compartment, resourceType).permissions;
+	}
+
+	/**
+	 * Whether the permission is granted on every resource of the type.
+	 */
+	public boolean isAllowed(Compartment compartment, String resourceType, Permission permission) {
+		return (grant(compartment, resourceType).permissions & permission.bit) != 0;
+	}
+
+	/**
+	 * Whether the permission is granted on a resource of the type with the given
+	 * search parameter values, either unconditionally or by a constrained scope
+	 * whose constraints all match.
+	 */
+	public boolean isAllowed(Compartment compartment, String resourceType, Permission permission, Map<String, String> resourceParams) {
+		Grant grant = grant(compartment, resourceType);
+		if ((grant.permissions & permission.bit) != 0) {
+			return true;
+		}
+		if ((grant.constrainedPermissions & permission.bit) == 0) {
+			return false;
+		}
+		for (Constraint constraint : grant.constraints) {
+			if ((constraint.permissions & permission.bit) != 0 && constraint.matches(resourceParams)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the permission is granted on some resources of the type in any
+	 * compartment, with or without constraints.
+	 */
+	public boolean mayAllow(String resourceType, Permission permission) {
+		for (Compartment compartment : Compartment.values()) {
+			if (mayAllow(compartment, resourceType, permission)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the permission is granted on some resources of the type in the
+	 * compartment, with or without constraints.
+	 */
+	public boolean mayAllow(Compartment compartment, String resourceType, Permission permission) {
+		Grant grant = grant(compartment, resourceType);
+		return ((grant.permissions | grant.constrainedPermissions) & permission.bit) != 0;
+	}
+
+	/**
+	 * Query constraints of the constrained grants of the permission, one map per
+	 * scope. Empty when the permission is granted unconditionally or not at all.
+	 */
+	public List<Map<String, String>> getConstraints(Compartment compartment, String resourceType, Permission permission) {
+		Grant grant = grant(compartment, resourceType);
+		if ((grant.permissions & permission.bit) != 0 || (grant.constrainedPermissions & permission.bit) == 0) {
+			return Collections.emptyList();
+		}
+		List<Map<String, String>> result = new ArrayList<>(grant.constraints.length);
+		for (Constraint constraint : grant.constraints) {
+			if ((constraint.permissions & permission.bit) != 0) {
+				result.add(constraint.params);
+			}
+		}
+		return result;
+	}
+
+	private static final class Grant {
+		private int permissions;
+		private int constrainedPermissions;
+		private Constraint[] constraints = new Constraint[0];
+
+		void add(SmartScope scope) {
+			if (scope.getConstraints().isEmpty()) {
+				permissions |= scope.getPermissions();
+			} else {
+				constrainedPermissions |= scope.getPermissions();
+				constraints = Arrays.copyOf(constraints, constraints.length + 1);
+				constraints[constraints.length - 1] = new Constraint(scope.getPermissions(), scope.getConstraints());
+			}
+		}
+
+		Grant copy() {
+			Grant copy = new Grant();
+			copy.permissions = permissions;
+			copy.constrainedPermissions = constrainedPermissions;
+			copy.constraints = constraints.clone();
+			return copy;
+		}
+	}
+
+	private static final class Constraint {
+		private final int permissions;
+		private final Map<String, String> params;
+		private final String[] names;
+		private final String[] values;
+
+		Constraint(int permissions, Map<String, String> params) {
+			this.permissions = permissions;
+			this.params = params;
+			this.names = params.keySet().toArray(new String[params.size()]);
+			this.values = params.values().toArray(new String[params.size()]);
+		}
+
+		boolean matches(Map<String, String> resourceParams) {
+			if (resourceParams == null) {
+				return false;
+			}
+			for (int i = 0; i < names.length; i++) {
+				if (!values[i].equals(resourceParams.get(names[i]))) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
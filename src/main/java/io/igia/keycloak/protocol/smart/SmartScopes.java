@@ -0,0 +1,164 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import io.igia.keycloak.protocol.smart.SmartScope.Compartment;
+import io.igia.keycloak.protocol.smart.SmartScope.Permission;
+import io.igia.keycloak.protocol.smart.SmartScope.Type;
+
+/**
+ * Parsed, immutable scope parameter. Scope types present are kept in a bitset
+ * and resource permissions in a compiled {@link SmartScopeMatcher}, so
+ * membership and permission queries are constant time. Parsed scope parameters
+ * are interned: the scope of an authentication session, read again by every
+ * authenticator and on token requests, is parsed once.
+ */
+public final class SmartScopes {
+	static final int MAX_INTERNED = 10_000;
+	private static final ConcurrentMap<String, SmartScopes> INTERNED = new ConcurrentHashMap<>();
+
+	public static final SmartScopes EMPTY = new SmartScopes("", new SmartScope[0]);
+
+	private final String value;
+	private final List<SmartScope> scopes;
+	private final Set<String> names;
+	private final int types;
+	private final Set<String> launchContexts;
+	private final SmartScopeMatcher matcher;
+
+	private SmartScopes(String value, SmartScope[] parsed) {
+		this.value = value;
+		Set<String> scopeNames = new HashSet<>();
+		Set<String> contexts = new LinkedHashSet<>();
+		List<SmartScope> unique = new ArrayList<>(parsed.length);
+		int typeBits = 0;
+		for (SmartScope scope : parsed) {
+			if (!scopeNames.add(scope.getValue())) {
+				continue;
+			}
+			unique.add(scope);
+			typeBits |= scope.getType().bit;
+			if (scope.getType() == Type.LAUNCH_CONTEXT) {
+				contexts.add(scope.getLaunchContext());
+			}
+		}
+		this.scopes = Collections.unmodifiableList(unique);
+		this.names = Collections.unmodifiableSet(scopeNames);
+		this.types = typeBits;
+		this.launchContexts = Collections.unmodifiableSet(contexts);
+		this.matcher = SmartScopeMatcher.compile(unique);
+	}
+
+	/**
+	 * Returns the interned parsed form of a space separated scope parameter.
+	 */
+	public static SmartScopes parse(String scopeParam) {
+		if (scopeParam == null || scopeParam.isEmpty()) {
+			return EMPTY;
+		}
+		SmartScopes scopes = INTERNED.get(scopeParam);
+		if (scopes == null) {
+			scopes = new SmartScopes(scopeParam, split(scopeParam));
+			if (INTERNED.size() >= MAX_INTERNED) {
+				INTERNED.clear();
+			}
+			SmartScopes existing = INTERNED.putIfAbsent(scopeParam, scopes);
+			if (existing != null) {
+				scopes = existing;
+			}
+		}
+		return scopes;
+	}
+
+	private static SmartScope[] split(String value) {
+		SmartScope[] result = new SmartScope[8];
+		int count = 0;
+		int length = value.length();
+		int start = -1;
+		for (int i = 0; i <= length; i++) {
+			boolean separator = i == length || Character.isWhitespace(value.charAt(i));
+			if (separator && start >= 0) {
+				if (count == result.length) {
+					result = Arrays.copyOf(result, count * 2);
+				}
+				result[count++] = SmartScope.of(value.substring(start, i));
+				start = -1;
+			} else if (!separator && start < 0) {
+				start = i;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	public boolean isEmpty() {
+		return scopes.isEmpty();
+	}
+
+	public boolean contains(String scope) {
+		return names.contains(scope);
+	}
+
+	public boolean has(Type type) {
+		return (types & type.bit) != 0;
+	}
+
+	public boolean hasLaunchContext(String param) {
+		return launchContexts.contains(param);
+	}
+
+	/**
+	 * Launch context params requested through {@code launch/<context>} scopes.
+	 */
+	public Set<String> getLaunchContexts() {
+		return launchContexts;
+	}
+
+	/**
+	 * Permission bits granted unconditionally on the resource type in the
+	 * compartment, by the scopes naming the type and the wildcard scopes.
+	 */
+	public int getPermissions(Compartment compartment, String resourceType) {
+		return matcher.getPermissions(compartment, resourceType);
+	}
+
+	public boolean isPermitted(Compartment compartment, String resourceType, Permission permission) {
+		return matcher.isAllowed(compartment, resourceType, permission);
+	}
+
+	/**
+	 * Decision structure of the resource scopes, including the v2 query
+	 * constrained ones.
+	 */
+	public SmartScopeMatcher getMatcher() {
+		return matcher;
+	}
+
+	public List<SmartScope> getScopes() {
+		return scopes;
+	}
+
+	@Override
+	public String toString() {
+		return value;
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import javax.ws.rs.core.Response;
+
+import org.keycloak.events.EventBuilder;
+import org.keycloak.models.RealmModel;
+import org.keycloak.protocol.oidc.TokenManager;
+import org.keycloak.protocol.oidc.endpoints.TokenEndpoint;
+
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Outcome;
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Stage;
+
+/**
+ * Keycloak token endpoint with the grant request timed in the SMART launch
+ * metrics and introspection served by {@link SmartTokenIntrospectionEndpoint}.
+ * The JAX-RS annotations are inherited from {@link TokenEndpoint}.
+ */
+public class SmartTokenEndpoint extends TokenEndpoint {
+	private final RealmModel realm;
+	private final EventBuilder event;
+
+	public SmartTokenEndpoint(TokenManager tokenManager, RealmModel realm, EventBuilder event) {
+		super(tokenManager, realm, event);
+		this.realm = realm;
+		this.event = event;
+	}
+
+	@Override
+	public Object introspect() {
+		return EndpointInjector.inject(new SmartTokenIntrospectionEndpoint(realm, event));
+	}
+
+	@Override
+	public Response processGrantRequest() {
+		long start = System.nanoTime();
+		Outcome outcome = Outcome.ERROR;
+		try {
+			Response response = super.processGrantRequest();
+			if (response != null && response.getStatus() < 400) {
+				outcome = Outcome.SUCCESS;
+			}
+			return response;
+		} finally {
+			SmartLaunchMetrics.getInstance().record(realm.getName(), Stage.TOKEN, outcome, start);
+		}
+	}
+}
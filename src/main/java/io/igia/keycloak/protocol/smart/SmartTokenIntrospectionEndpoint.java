@@ -0,0 +1,208 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.POST;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.jboss.resteasy.annotations.cache.NoCache;
+import org.jboss.resteasy.spi.HttpRequest;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.events.Details;
+import org.keycloak.events.Errors;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.events.EventType;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.protocol.oidc.AccessTokenIntrospectionProviderFactory;
+import org.keycloak.protocol.oidc.TokenIntrospectionProvider;
+import org.keycloak.protocol.oidc.utils.AuthorizeClientUtil;
+import org.keycloak.services.ErrorResponseException;
+
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Outcome;
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Stage;
+import io.igia.keycloak.protocol.smart.SmartScope.Compartment;
+import io.igia.keycloak.protocol.smart.SmartScope.Permission;
+
+/**
+ * Token introspection for resource servers of SMART apps. Requests are checked
+ * like the Keycloak introspection endpoint (realm, SSL and a confidential client
+ * authenticating on every request); access tokens are then introspected by the
+ * {@link SmartTokenIntrospectionProvider}, other token types by the provider
+ * registered for the hint. A resource server can pass the resource type,
+ * interaction and optionally the compartment it serves; the response of an
+ * active token then tells in a separate permitted field whether its scopes
+ * grant it, active only reflects the token validity.
+ */
+public class SmartTokenIntrospectionEndpoint {
+	private static final String PARAM_TOKEN_TYPE_HINT = "token_type_hint";
+	private static final String PARAM_TOKEN = "token";
+	// optional SMART permission check of the resource server
+	static final String PARAM_RESOURCE_TYPE = "resource_type";
+	static final String PARAM_INTERACTION = "interaction";
+	static final String PARAM_COMPARTMENT = "compartment";
+	static final String PERMITTED = "permitted";
+
+	@Context
+	private KeycloakSession session;
+
+	@Context
+	private HttpRequest request;
+
+	@Context
+	private ClientConnection clientConnection;
+
+	private final RealmModel realm;
+	private final EventBuilder event;
+
+	public SmartTokenIntrospectionEndpoint(RealmModel realm, EventBuilder event) {
+		this.realm = realm;
+		this.event = event;
+	}
+
+	@POST
+	@NoCache
+	public Response introspect() {
+		long start = System.nanoTime();
+		Outcome outcome = Outcome.ERROR;
+		try {
+			event.event(EventType.INTROSPECT_TOKEN);
+
+			checkSsl();
+			checkRealm();
+			outcome = Outcome.UNAUTHORIZED;
+			authorizeClient();
+
+			outcome = Outcome.INVALID_REQUEST;
+			MultivaluedMap<String, String> formParams = request.getDecodedFormParameters();
+			String tokenTypeHint = formParams.getFirst(PARAM_TOKEN_TYPE_HINT);
+			if (tokenTypeHint == null) {
+				tokenTypeHint = AccessTokenIntrospectionProviderFactory.ACCESS_TOKEN_TYPE;
+			}
+			String token = formParams.getFirst(PARAM_TOKEN);
+			if (token == null) {
+				throw errorResponse(Errors.INVALID_REQUEST, "Token not provided.", Status.BAD_REQUEST);
+			}
+
+			Response response;
+			try {
+				if (AccessTokenIntrospectionProviderFactory.ACCESS_TOKEN_TYPE.equals(tokenTypeHint)) {
+					SmartTokenIntrospectionProvider.Introspection introspection =
+							new SmartTokenIntrospectionProvider(session).introspectCached(token);
+					Boolean permitted = introspection.isActive() ? isPermitted(introspection.scopes, formParams) : null;
+					if (permitted == null) {
+						response = SmartTokenIntrospectionProvider.response(introspection.response);
+						outcome = introspection.cached ? Outcome.CACHE_HIT : Outcome.SUCCESS;
+					} else {
+						response = SmartTokenIntrospectionProvider.response(withPermitted(introspection.response, permitted));
+						outcome = !permitted ? Outcome.NOT_PERMITTED : introspection.cached ? Outcome.CACHE_HIT : Outcome.SUCCESS;
+					}
+				} else {
+					TokenIntrospectionProvider provider = session.getProvider(TokenIntrospectionProvider.class, tokenTypeHint);
+					if (provider == null) {
+						throw errorResponse(Errors.INVALID_REQUEST, "Unsupported token type [" + tokenTypeHint + "].", Status.BAD_REQUEST);
+					}
+					response = provider.introspect(token);
+					outcome = Outcome.SUCCESS;
+				}
+			} catch (ErrorResponseException e) {
+				throw e;
+			} catch (Exception e) {
+				outcome = Outcome.ERROR;
+				throw errorResponse(Errors.INVALID_REQUEST, "Failed to introspect token.", Status.BAD_REQUEST);
+			}
+
+			event.success();
+			return response;
+		} finally {
+			SmartLaunchMetrics.getInstance().record(realm.getName(), Stage.INTROSPECT, outcome, start);
+		}
+	}
+
+	/**
+	 * Checks the interaction on the resource type given by the resource server
+	 * against the token scopes, in the given compartment or in any of them.
+	 * Query constrained (v2) grants count as permitted, the resource server
+	 * applies their constraints. Returns null when no resource type is given.
+	 */
+	private Boolean isPermitted(SmartScopes scopes, MultivaluedMap<String, String> formParams) {
+		String resourceType = formParams.getFirst(PARAM_RESOURCE_TYPE);
+		if (resourceType == null) {
+			return null;
+		}
+		Permission permission = Permission.of(formParams.getFirst(PARAM_INTERACTION));
+		if (permission == null) {
+			throw errorResponse(Errors.INVALID_REQUEST, "Interaction must be one of c, r, u, d or s.", Status.BAD_REQUEST);
+		}
+		String compartmentParam = formParams.getFirst(PARAM_COMPARTMENT);
+		if (compartmentParam == null) {
+			return scopes.getMatcher().mayAllow(resourceType, permission);
+		}
+		Compartment compartment = Compartment.of(compartmentParam);
+		if (compartment == null) {
+			throw errorResponse(Errors.INVALID_REQUEST, "Compartment must be one of patient, user or system.", Status.BAD_REQUEST);
+		}
+		return scopes.getMatcher().mayAllow(compartment, resourceType, permission);
+	}
+
+	// adds the permitted field to the serialized response object of an active token
+	static byte[] withPermitted(byte[] response, boolean permitted) {
+		byte[] field = (",\"" + PERMITTED + "\":" + permitted + "}").getBytes(StandardCharsets.UTF_8);
+		int end = response.length - 1;
+		while (end > 0 && response[end] != '}') {
+			end--;
+		}
+		byte[] result = new byte[end + field.length];
+		System.arraycopy(response, 0, result, 0, end);
+		System.arraycopy(field, 0, result, end, field.length);
+		return result;
+	}
+
+	private void authorizeClient() {
+		try {
+			ClientModel client = AuthorizeClientUtil.authorizeClient(session, event).getClient();
+			event.client(client);
+			if (client == null || client.isPublicClient()) {
+				throw errorResponse(Errors.INVALID_REQUEST, "Client not allowed.", Status.FORBIDDEN);
+			}
+		} catch (ErrorResponseException e) {
+			throw e;
+		} catch (Exception e) {
+			throw errorResponse(Errors.INVALID_REQUEST, "Authentication failed.", Status.UNAUTHORIZED);
+		}
+	}
+
+	private void checkSsl() {
+		if (!"https".equals(session.getContext().getUri().getBaseUri().getScheme())
+				&& realm.getSslRequired().isRequired(clientConnection)) {
+			throw new ErrorResponseException(Errors.INVALID_REQUEST, "HTTPS required", Status.FORBIDDEN);
+		}
+	}
+
+	private void checkRealm() {
+		if (!realm.isEnabled()) {
+			throw new ErrorResponseException("access_denied", "Realm not enabled", Status.FORBIDDEN);
+		}
+	}
+
+	private ErrorResponseException errorResponse(String error, String detail, Status status) {
+		event.detail(Details.REASON, detail).error(error);
+		return new ErrorResponseException(error, detail, status);
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import java.util.Map;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.keycloak.common.util.Time;
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.oidc.AccessTokenIntrospectionProvider;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Access token introspection that adds the SMART launch context of the client
+ * session (patient, encounter, ...) to the standard response and serves
+ * repeated introspections of an active token from the {@link IntrospectionCache}.
+ * Reference tokens of the {@link SmartReferenceTokenStore} are resolved to the
+ * signed token they stand for. Token verification and the session checks are those of Keycloak.
+ */
+public class SmartTokenIntrospectionProvider extends AccessTokenIntrospectionProvider {
+	private final KeycloakSession session;
+	private final IntrospectionCache cache;
+
+	public SmartTokenIntrospectionProvider(KeycloakSession session) {
+		this(session, IntrospectionCache.getInstance());
+	}
+
+	SmartTokenIntrospectionProvider(KeycloakSession session, IntrospectionCache cache) {
+		super(session);
+		this.session = session;
+		this.cache = cache;
+	}
+
+	@Override
+	public Response introspect(String token) {
+		return response(introspectCached(token).response);
+	}
+
+	/**
+	 * Returns the introspection response for the token and whether it came from
+	 * the cache.
+	 */
+	Introspection introspectCached(String token) {
+		RealmModel realm = session.getContext().getRealm();
+		String key = IntrospectionCache.key(realm.getId(), token);
+		long now = Time.currentTimeMillis();
+		IntrospectionCache.Entry cached = cache.get(key, now);
+		if (cached != null) {
+			if (cached.getSessionId() == null || findUserSession(realm, cached.getSessionId()) != null) {
+				return new Introspection(cached.getResponse(), true, cached.getScopes());
+			}
+			// logged out or revoked, possibly on another node
+			cache.removeSession(realm.getId(), cached.getSessionId());
+		}
+
+		try {
+			// a reference is resolved to the signed token it stands for, then verified like one
+			String encodedToken = token;
+			if (SmartReferenceTokenStore.isReference(token)) {
+				encodedToken = new SmartReferenceTokenStore(session).resolve(realm, token);
+			}
+			AccessToken accessToken = encodedToken != null ? verifyAccessToken(encodedToken) : null;
+			ObjectNode tokenMetadata;
+			if (accessToken != null) {
+				tokenMetadata = JsonSerialization.createObjectNode(accessToken);
+				tokenMetadata.put("client_id", accessToken.getIssuedFor());
+				tokenMetadata.put("username", accessToken.getPreferredUsername());
+				addLaunchContext(tokenMetadata, realm, accessToken);
+			} else {
+				tokenMetadata = JsonSerialization.createObjectNode();
+			}
+			tokenMetadata.put("active", accessToken != null);
+			byte[] response = JsonSerialization.writeValueAsBytes(tokenMetadata);
+			if (accessToken == null) {
+				return new Introspection(response, false, null);
+			}
+			SmartScopes scopes = SmartScopes.parse(accessToken.getScope());
+			cache.put(key, realm.getId(), accessToken.getSessionState(), response, scopes, accessToken.getExpiration() * 1000L, now);
+			return new Introspection(response, false, scopes);
+		} catch (Exception e) {
+			throw new RuntimeException("Error creating token introspection response.", e);
+		}
+	}
+
+	private UserSessionModel findUserSession(RealmModel realm, String sessionId) {
+		if (sessionId == null) {
+			return null;
+		}
+		UserSessionModel userSession = session.sessions().getUserSession(realm, sessionId);
+		if (userSession == null) {
+			userSession = session.sessions().getOfflineUserSession(realm, sessionId);
+		}
+		return userSession;
+	}
+
+	private void addLaunchContext(ObjectNode tokenMetadata, RealmModel realm, AccessToken accessToken) {
+		String sessionId = accessToken.getSessionState();
+		if (sessionId == null) {
+			return;
+		}
+		UserSessionModel userSession = findUserSession(realm, sessionId);
+		ClientModel client = realm.getClientByClientId(accessToken.getIssuedFor());
+		if (userSession == null || client == null) {
+			return;
+		}
+		AuthenticatedClientSessionModel clientSession = userSession.getAuthenticatedClientSessionByClient(client.getId());
+		if (clientSession == null) {
+			return;
+		}
+		for (Map.Entry<String, String> claim : SmartLaunchContext.fromClientSession(clientSession).claims().entrySet()) {
+			// claims mapped into the token take precedence
+			if (!tokenMetadata.has(claim.getKey())) {
+				tokenMetadata.put(claim.getKey(), claim.getValue());
+			}
+		}
+	}
+
+	static Response response(byte[] body) {
+		return Response.ok(body).type(MediaType.APPLICATION_JSON_TYPE).build();
+	}
+
+	static final class Introspection {
+		final byte[] response;
+		final boolean cached;
+		// scopes of an active token, null when the token is not active
+		final SmartScopes scopes;
+
+		Introspection(byte[] response, boolean cached, SmartScopes scopes) {
+			this.response = response;
+			this.cached = cached;
+			this.scopes = scopes;
+		}
+
+		boolean isActive() {
+			return scopes != null;
+		}
+	}
+}
@@ -12,20 +12,37 @@
  */
 package io.igia.keycloak.protocol.smart;
 
+import java.util.HashSet;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import org.keycloak.TokenCategory;
+import org.keycloak.common.util.Time;
 import org.keycloak.events.EventBuilder;
+import org.keycloak.jose.jws.crypto.HashProvider;
 import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientScopeModel;
 import org.keycloak.models.ClientSessionContext;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.protocol.oidc.TokenManager;
+import org.keycloak.representations.AccessToken;
 import org.keycloak.representations.AccessTokenResponse;
-
-import io.igia.keycloak.authentication.SmartLaunchContextAuthenticator;
+import org.keycloak.representations.IDToken;
+import org.keycloak.util.TokenUtil;
 
 public class SmartTokenManager extends TokenManager {	
+	// holds no state, shared by the protocol endpoints and the authenticator
+	private static final SmartTokenManager INSTANCE = new SmartTokenManager();
+	
+	public static SmartTokenManager getInstance() {
+		return INSTANCE;
+	}
 	
 	@Override
 	public AccessTokenResponseBuilder responseBuilder(RealmModel realm, ClientModel client, EventBuilder event, KeycloakSession session,
@@ -33,26 +50,81 @@ public class SmartTokenManager extends TokenManager {
 		return new SmartAccessTokenResponseBuilder(realm, client, event, session, userSession, clientSessionCtx);
 	}
 	
+	/**
+	 * Creates a short-lived access token for a client without creating a user or
+	 * client session. Roles and scope are resolved from the client default scopes.
+	 * Protocol mappers are not applied since they operate on sessions, and the
+	 * token can not be introspected because no session backs it.
+	 */
+	public AccessToken createStatelessAccessToken(RealmModel realm, ClientModel client, UserModel user, String issuer) {
+		Set<ClientScopeModel> clientScopes = new HashSet<>(client.getClientScopes(true, true).values());
+		
+		AccessToken token = new AccessToken();
+		token.id(KeycloakModelUtils.generateId());
+		token.type(TokenUtil.TOKEN_TYPE_BEARER);
+		token.subject(user.getId());
+		token.issuedFor(client.getClientId());
+		token.issuer(issuer);
+		token.issuedNow();
+		token.expiration(token.getIssuedAt() + realm.getAccessTokenLifespan());
+		token.setScope(clientScopes.stream().map(ClientScopeModel::getName).collect(Collectors.joining(" ")));
+		
+		for (RoleModel role : getAccess(user, client, clientScopes)) {
+			addComposites(token, role);
+		}
+		return token;
+	}
+	
 	public class SmartAccessTokenResponseBuilder extends TokenManager.AccessTokenResponseBuilder {
         ClientSessionContext clientSessionContext;
+        private final RealmModel realm;
+        private final ClientModel client;
+        private final KeycloakSession session;
+        private boolean accessTokenHash;
         
         public SmartAccessTokenResponseBuilder(RealmModel realm, ClientModel client, EventBuilder event, KeycloakSession session,
         		UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
         	super(realm, client, event, session, userSession, clientSessionCtx);	
             this.clientSessionContext = clientSessionCtx;
+            this.realm = realm;
+            this.client = client;
+            this.session = session;
         }
 		
+		@Override
+		public AccessTokenResponseBuilder generateAccessTokenHash() {
+			// in reference mode at_hash is computed over the reference in build()
+			if (SmartReferenceTokenStore.isEnabled(client)) {
+				accessTokenHash = true;
+				return this;
+			}
+			return super.generateAccessTokenHash();
+		}
+		
 		@Override
 		public AccessTokenResponse build() {
+			// clients in reference mode get an opaque handle, the signed token stays in the store;
+			// the reference is drawn first so the at_hash of the ID token covers what the client receives
+			String reference = null;
+			if (SmartReferenceTokenStore.isEnabled(client)) {
+				reference = SmartReferenceTokenStore.newReference();
+				IDToken idToken = getIdToken();
+				if (accessTokenHash && idToken != null) {
+					idToken.setAccessTokenHash(HashProvider.oidcHash(session.tokens().signatureAlgorithm(TokenCategory.ID), reference));
+				}
+			}
+			
 			AccessTokenResponse res = buildAccessTokenResponse();
+			if (reference != null && res.getToken() != null) {
+				new SmartReferenceTokenStore(session).put(realm, reference, res.getToken(), accessTokenExpiration(res));
+				res.setToken(reference);
+			}
             
-            //add all SMART launch context params from client session notes to response
-            for(Entry<String, String> entry : clientSessionContext.getClientSession().getNotes().entrySet()) {
-            		if(entry.getKey().startsWith(SmartLaunchContextAuthenticator.LAUNCH_SCOPE_PREFIX) &&
-            				entry.getValue() != null && !entry.getValue().isEmpty()) {            				     		                    		       
-            			res.setOtherClaims(entry.getKey().substring(SmartLaunchContextAuthenticator.LAUNCH_SCOPE_PREFIX.length()), 
-            					entry.getValue());              			
-            		}
+            //add all SMART launch context params stored on the client session to response,
+            //from the snapshot decoded on first use of the session launch context note
+            SmartLaunchContext launchContext = SmartLaunchContext.fromClientSession(clientSessionContext.getClientSession());
+            for(Entry<String, String> entry : launchContext.claims().entrySet()) {
+            		res.setOtherClaims(entry.getKey(), entry.getValue());
             }
             
 			return res;
@@ -61,5 +133,13 @@ public class SmartTokenManager extends TokenManager {
 		protected AccessTokenResponse buildAccessTokenResponse() {
 			return super.build();
 		}
+		
+		private int accessTokenExpiration(AccessTokenResponse res) {
+			AccessToken accessToken = getAccessToken();
+			if (accessToken != null && accessToken.getExpiration() > 0) {
+				return accessToken.getExpiration();
+			}
+			return Time.currentTime() + (res.getExpiresIn() > 0 ? (int) res.getExpiresIn() : realm.getAccessTokenLifespan());
+		}
 	}
 }
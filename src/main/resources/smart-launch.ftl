@@ -19,23 +19,57 @@
     <#elseif section = "header">
         ${msg("loginTitleHtml",realm.name)}
     <#elseif section = "form">
-        <form id="kc-totp-login-form" class="${properties.kcFormClass!}" action="${url.loginAction}" method="post">
+        <#if picker??>
+        <form id="kc-smart-launch-picker-form" class="${properties.kcFormClass!}" action="${url.loginAction}" method="post">
             <div class="${properties.kcFormGroupClass!}">
                 <div class="${properties.kcLabelWrapperClass!}">
-                    <label for="totp" class="${properties.kcLabelClass!}">Patient identifier for SMART application</label>
+                    <label for="query" class="${properties.kcLabelClass!}">Patient name</label>
                 </div>
 
                 <div class="${properties.kcInputWrapperClass!}">
-                    <input id="totp" name="patient" type="text" class="${properties.kcInputClass!}" />
+                    <input id="query" name="query" type="text" value="${picker.text?html}" class="${properties.kcInputClass!}" />
+                    <input class="${properties.kcButtonClass!} ${properties.kcButtonDefaultClass!}" name="search" id="kc-search" type="submit" value="Search"/>
                 </div>
             </div>
 
+            <#if patients??>
             <div class="${properties.kcFormGroupClass!}">
-                <div id="kc-form-options" class="${properties.kcFormOptionsClass!}">
-                    <div class="${properties.kcFormOptionsWrapperClass!}">
+                <div class="${properties.kcInputWrapperClass!}">
+                    <#list patients.patients as patient>
+                    <div class="radio">
+                        <label>
+                            <input name="patient" type="radio" value="${patient.id?html}" />
+                            ${(patient.name!patient.id)?html}<#if patient.birthDate??>, ${patient.birthDate?html}</#if><#if patient.gender??>, ${patient.gender?html}</#if>
+                        </label>
                     </div>
+                    <#else>
+                    <p>No matching patients</p>
+                    </#list>
+                </div>
+                <div class="${properties.kcInputWrapperClass!}">
+                    <#if (patients.index > 0)>
+                    <button class="${properties.kcButtonClass!} ${properties.kcButtonDefaultClass!}" name="page" type="submit" value="${(patients.index - 1)?c}">Previous</button>
+                    </#if>
+                    <#if patients.hasNext()>
+                    <button class="${properties.kcButtonClass!} ${properties.kcButtonDefaultClass!}" name="page" type="submit" value="${(patients.index + 1)?c}">Next</button>
+                    </#if>
+                </div>
+            </div>
+            </#if>
+
+            <#list launchParams![] as param>
+            <div class="${properties.kcFormGroupClass!}">
+                <div class="${properties.kcLabelWrapperClass!}">
+                    <label for="launch-${param?html}" class="${properties.kcLabelClass!}">${param?html}</label>
+                </div>
+
+                <div class="${properties.kcInputWrapperClass!}">
+                    <input id="launch-${param?html}" name="${param?html}" type="text" class="${properties.kcInputClass!}" />
                 </div>
+            </div>
+            </#list>
 
+            <div class="${properties.kcFormGroupClass!}">
                 <div id="kc-form-buttons" class="${properties.kcFormButtonsClass!}">
                     <div class="${properties.kcFormButtonsWrapperClass!}">
                         <input class="${properties.kcButtonClass!} ${properties.kcButtonPrimaryClass!} ${properties.kcButtonLargeClass!}" name="login" id="kc-login" type="submit" value="${msg("doLogIn")}"/>
@@ -44,5 +78,32 @@
                 </div>
             </div>
         </form>
+        <#else>
+            <form id="kc-totp-login-form" class="${properties.kcFormClass!}" action="${url.loginAction}" method="post">
+                <div class="${properties.kcFormGroupClass!}">
+                    <div class="${properties.kcLabelWrapperClass!}">
+                        <label for="totp" class="${properties.kcLabelClass!}">Patient identifier for SMART application</label>
+                    </div>
+
+                    <div class="${properties.kcInputWrapperClass!}">
+                        <input id="totp" name="patient" type="text" class="${properties.kcInputClass!}" />
+                    </div>
+                </div>
+
+                <div class="${properties.kcFormGroupClass!}">
+                    <div id="kc-form-options" class="${properties.kcFormOptionsClass!}">
+                        <div class="${properties.kcFormOptionsWrapperClass!}">
+                        </div>
+                    </div>
+
+                    <div id="kc-form-buttons" class="${properties.kcFormButtonsClass!}">
+                        <div class="${properties.kcFormButtonsWrapperClass!}">
+                            <input class="${properties.kcButtonClass!} ${properties.kcButtonPrimaryClass!} ${properties.kcButtonLargeClass!}" name="login" id="kc-login" type="submit" value="${msg("doLogIn")}"/>
+                            <input class="${properties.kcButtonClass!} ${properties.kcButtonDefaultClass!} ${properties.kcButtonLargeClass!}" name="cancel" id="kc-cancel" type="submit" value="${msg("doCancel")}"/>
+                        </div>
+                    </div>
+                </div>
+            </form>
+        </#if>
     </#if>
 </@layout.registrationLayout>
\ No newline at end of file
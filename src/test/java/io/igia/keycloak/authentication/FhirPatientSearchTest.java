@@ -0,0 +1,238 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.igia.keycloak.authentication.FhirPatientSearch.Page;
+import io.igia.keycloak.authentication.FhirPatientSearch.Query;
+
+public class FhirPatientSearchTest {
+	private HttpServer server;
+	private CloseableHttpClient httpClient;
+	private FhirPatientSearch search;
+	private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+	private volatile String authorization;
+	private volatile long delayMillis;
+	
+	@Before
+	public void setup() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/fhir/Patient", exchange -> {
+			String query = exchange.getRequestURI().getRawQuery();
+			requests.computeIfAbsent(query, key -> new AtomicInteger()).incrementAndGet();
+			authorization = exchange.getRequestHeaders().getFirst("Authorization");
+			sleep(delayMillis);
+			if (query.contains("name=large")) {
+				SmartLaunchBackchannelClientTest.respondChunked(exchange, "{\"resourceType\":\"Bundle\",\"padding\":\""
+						+ String.join("", Collections.nCopies(FhirPatientSearch.MAX_RESPONSE_LENGTH / 8 + 1, "padding.")) + "\"}");
+			} else if (query.contains("name=outside")) {
+				SmartLaunchBackchannelClientTest.respond(exchange, 200, bundle("http://other.example.org/fhir/Patient?_page=1",
+						patient("p9", "Outside", "Patient")));
+			} else if (query.contains("_page=1")) {
+				SmartLaunchBackchannelClientTest.respond(exchange, 200, bundle(null, patient("p3", "Carol", "Smith")));
+			} else {
+				SmartLaunchBackchannelClientTest.respond(exchange, 200, bundle(url("/fhir/Patient?_count=2&_page=1"),
+						patient("p1", "Alice", "Smith"), patient("p2", "Bob", "Smith"),
+						"{\"resource\":{\"resourceType\":\"OperationOutcome\",\"id\":\"warning\"}}"));
+			}
+		});
+		server.start();
+		httpClient = HttpClients.custom().setMaxConnPerRoute(10).setMaxConnTotal(10).build();
+		search = new FhirPatientSearch();
+	}
+	
+	@After
+	public void teardown() throws IOException {
+		search.close();
+		httpClient.close();
+		server.stop(0);
+	}
+	
+	@Test
+	public void testSearchPages() throws Exception {
+		Page first = search.search(httpClient, query("Smith"), 0, () -> "accesstoken");
+		
+		assertEquals("Patients of the first page", 2, first.getPatients().size());
+		assertEquals("Patient id", "p1", first.getPatients().get(0).getId());
+		assertEquals("Patient display name", "Alice Smith", first.getPatients().get(0).getName());
+		assertEquals("Patient birth date", "1970-01-01", first.getPatients().get(0).getBirthDate());
+		assertEquals("Bundle total", Integer.valueOf(3), first.getTotal());
+		assertTrue("First page has next", first.hasNext());
+		assertEquals("Name search sent", 1, requestCount("_count=2&name=smith"));
+		assertEquals("Access token sent as bearer", "Bearer accesstoken", authorization);
+		
+		Page second = search.search(httpClient, query("Smith"), 1, () -> "accesstoken");
+		assertEquals("Patients of the second page", "p3", second.getPatients().get(0).getId());
+		assertFalse("Last page", second.hasNext());
+		
+		Page third = search.search(httpClient, query("Smith"), 2, () -> "accesstoken");
+		assertTrue("No patients after the last page", third.getPatients().isEmpty());
+	}
+	
+	@Test
+	public void testSearchCached() throws Exception {
+		AtomicInteger tokens = new AtomicInteger();
+		search.search(httpClient, query("Smith"), 0, () -> "accesstoken" + tokens.incrementAndGet());
+		awaitRequest("_count=2&_page=1");
+		search.search(httpClient, query("  smith "), 0, () -> "accesstoken" + tokens.incrementAndGet());
+		search.search(httpClient, query("Smith"), 1, () -> "accesstoken" + tokens.incrementAndGet());
+		
+		assertEquals("First page requested once", 1, requestCount("_count=2&name=smith"));
+		assertEquals("Second page requested once", 1, requestCount("_count=2&_page=1"));
+		assertEquals("Access token resolved once", 1, tokens.get());
+		
+		search.search(httpClient, new Query(url("/fhir"), "user2", "smith", 2, 1000), 0, () -> "accesstoken");
+		assertEquals("Pages are cached per user", 2, requestCount("_count=2&name=smith"));
+	}
+	
+	@Test
+	public void testSearchExpired() throws Exception {
+		search.close();
+		search = new FhirPatientSearch(Executors.newSingleThreadExecutor(), 0);
+		search.search(httpClient, query("Smith"), 0, () -> "accesstoken");
+		search.search(httpClient, query("Smith"), 0, () -> "accesstoken");
+		
+		assertEquals("Expired page requested again", 2, requestCount("_count=2&name=smith"));
+	}
+	
+	@Test
+	public void testSearchPrefetchesNextPage() throws Exception {
+		search.search(httpClient, query("Smith"), 0, () -> "accesstoken");
+		
+		awaitRequest("_count=2&_page=1");
+		assertEquals("Next page fetched in the background", 1, requestCount("_count=2&_page=1"));
+	}
+	
+	@Test
+	public void testSearchCoalesced() throws Exception {
+		delayMillis = 200;
+		ExecutorService callers = Executors.newFixedThreadPool(4);
+		try {
+			Callable<Page> call = () -> search.search(httpClient, query("Smith"), 0, () -> "accesstoken");
+			Future<?>[] results = new Future<?>[4];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = callers.submit(call);
+			}
+			for (Future<?> result : results) {
+				assertEquals("Each caller gets the page", 2, ((Page) result.get()).getPatients().size());
+			}
+		} finally {
+			callers.shutdownNow();
+		}
+		
+		assertEquals("Concurrent searches share one request", 1, requestCount("_count=2&name=smith"));
+	}
+	
+	@Test
+	public void testSearchIgnoresNextLinkOutsideServer() throws Exception {
+		Page page = search.search(httpClient, query("outside"), 0, () -> "accesstoken");
+		
+		assertEquals("Patients of the page", 1, page.getPatients().size());
+		assertFalse("Next link to another server not followed", page.hasNext());
+	}
+	
+	@Test
+	public void testSearchPrefetchResolvesTokenOnMiss() throws Exception {
+		delayMillis = 200;
+		AtomicInteger tokens = new AtomicInteger();
+		search.search(httpClient, query("Smith"), 0, () -> "accesstoken" + tokens.incrementAndGet());
+		search.search(httpClient, query("Smith"), 0, () -> "accesstoken" + tokens.incrementAndGet());
+		awaitRequest("_count=2&_page=1");
+		search.search(httpClient, query("Smith"), 0, () -> "accesstoken" + tokens.incrementAndGet());
+		
+		assertEquals("Access token not resolved for cached or loading pages", 1, tokens.get());
+		assertEquals("Second page requested once", 1, requestCount("_count=2&_page=1"));
+	}
+	
+	@Test
+	public void testSearchChunkedTooLarge() {
+		try {
+			search.search(httpClient, query("large"), 0, () -> "accesstoken");
+			assertTrue("Oversized response rejected", false);
+		} catch (IOException e) {
+			assertTrue("Limit enforced without Content-Length", e.getMessage().contains("larger than"));
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void testSearchErrorStatus() throws IOException {
+		search.search(httpClient, new Query(url("/missing"), "user1", "smith", 2, 1000), 0, () -> "accesstoken");
+	}
+	
+	private Query query(String text) {
+		return new Query(url("/fhir/"), "user1", text, 2, 1000);
+	}
+	
+	private int requestCount(String query) {
+		AtomicInteger count = requests.get(query);
+		return count == null ? 0 : count.get();
+	}
+	
+	private void awaitRequest(String query) throws InterruptedException {
+		for (int i = 0; i < 100 && (requestCount(query) == 0 || search.size() < 2); i++) {
+			Thread.sleep(10);
+		}
+	}
+	
+	private String url(String path) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+	}
+	
+	private static String bundle(String next, String... entries) {
+		StringBuilder bundle = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":3,\"link\":[");
+		if (next != null) {
+			bundle.append("{\"relation\":\"next\",\"url\":\"").append(next).append("\"}");
+		}
+		bundle.append("],\"entry\":[");
+		for (int i = 0; i < entries.length; i++) {
+			bundle.append(i > 0 ? "," : "").append(entries[i]);
+		}
+		return bundle.append("]}").toString();
+	}
+	
+	private static String patient(String id, String given, String family) {
+		return "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"" + id + "\",\"name\":[{\"given\":[\"" + given
+				+ "\"],\"family\":\"" + family + "\"}],\"birthDate\":\"1970-01-01\",\"gender\":\"female\"}}";
+	}
+	
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
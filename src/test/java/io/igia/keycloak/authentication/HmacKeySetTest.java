@@ -0,0 +1,107 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+import org.junit.Test;
+import org.keycloak.common.util.Base64;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.representations.JsonWebToken;
+
+public class HmacKeySetTest {
+	private static final byte[] CURRENT = "current-secret-current-secret-00".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] PREVIOUS = "previous-secret-previous-secret0".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] LEGACY = "legacy-secret-legacy-secret-0000".getBytes(StandardCharsets.UTF_8);
+	private static final long OCTOBER_10 = LocalDate.parse("2026-10-10").atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+	private static final long OCTOBER_20 = LocalDate.parse("2026-10-20").atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+	
+	private static final String KEYSET = "2026-10:" + Base64.encodeBytes(CURRENT) + ":2026-10-01"
+			+ "##2026-04:" + Base64.encodeBytes(PREVIOUS) + "::2026-10-15";
+	
+	@Test
+	public void testSelectByKid() throws Exception {
+		HmacKeySet keySet = HmacKeySet.compile(KEYSET, null);
+		
+		assertTrue("Current key by kid", verify(keySet, "2026-10", CURRENT, OCTOBER_10));
+		assertTrue("Previous key by kid during overlap", verify(keySet, "2026-04", PREVIOUS, OCTOBER_10));
+		assertTrue("Kid selects its own key only", !verify(keySet, "2026-04", CURRENT, OCTOBER_10));
+		assertTrue("Unknown kid", keySet.select("2025-10", OCTOBER_10, 0) == null);
+	}
+	
+	@Test
+	public void testSelectValidityWindow() throws Exception {
+		HmacKeySet keySet = HmacKeySet.compile(KEYSET, null);
+		long septemberLast = LocalDate.parse("2026-09-30").atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+		
+		long october15 = LocalDate.parse("2026-10-15").atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+		
+		assertTrue("Previous key retired", keySet.select("2026-04", OCTOBER_20, 30) == null);
+		assertTrue("Previous key accepted within the clock skew", keySet.select("2026-04", october15 + 10, 30) != null);
+		assertTrue("Previous key retired after the clock skew", keySet.select("2026-04", october15 + 60, 30) == null);
+		assertTrue("Current key not yet valid", keySet.select("2026-10", septemberLast, 30) == null);
+	}
+	
+	@Test
+	public void testSelectWithoutKid() throws Exception {
+		HmacKeySet keySet = HmacKeySet.compile(KEYSET, null);
+		long septemberLast = LocalDate.parse("2026-09-30").atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+		
+		assertTrue("Active key is the latest valid key", verify(keySet, null, CURRENT, OCTOBER_10));
+		assertTrue("Previous key active before the current one", verify(keySet, null, PREVIOUS, septemberLast));
+		
+		HmacKeySet withLegacy = HmacKeySet.compile(KEYSET, Base64.encodeBytes(LEGACY));
+		assertTrue("Legacy secret for tokens without kid", verify(withLegacy, null, LEGACY, OCTOBER_10));
+		assertTrue("Legacy secret for unknown kid", verify(withLegacy, "other", LEGACY, OCTOBER_10));
+		assertTrue("Keyset kid with legacy secret", verify(withLegacy, "2026-10", CURRENT, OCTOBER_10));
+	}
+	
+	@Test
+	public void testCompile() throws Exception {
+		HmacKeySet keySet = HmacKeySet.compile("k1:" + Base64.encodeBytes(CURRENT) + ":1790000000 k2:" + Base64.encodeBytes(PREVIOUS), null);
+		assertTrue("Epoch second bounds and whitespace separated keys", keySet.select("k1", 1790000000L, 0) != null
+				&& keySet.select("k1", 1789999999L, 0) == null && keySet.select("k2", 0, 0) != null);
+		assertTrue("Recompiled only for another config", keySet.isFor("k1:" + Base64.encodeBytes(CURRENT) + ":1790000000 k2:"
+				+ Base64.encodeBytes(PREVIOUS), null) && !keySet.isFor(KEYSET, null));
+		
+		for (String invalid : new String[] { "k1", "k1:" + Base64.encodeBytes(CURRENT) + ":yesterday",
+				"k1:" + Base64.encodeBytes(CURRENT) + " k1:" + Base64.encodeBytes(PREVIOUS) }) {
+			try {
+				HmacKeySet.compile(invalid, null);
+				assertTrue("Invalid keyset " + invalid, false);
+			} catch (IOException e) {
+				assertTrue("Invalid keyset rejected", e.getMessage() != null);
+			}
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void testCompileNotConfigured() throws IOException {
+		HmacKeySet.compile(null, null);
+	}
+	
+	private static boolean verify(HmacKeySet keySet, String kid, byte[] secret, long now) throws Exception {
+		HmacVerificationKey key = keySet.select(kid, now, 0);
+		JWSBuilder builder = new JWSBuilder();
+		if (kid != null) {
+			builder.kid(kid);
+		}
+		return key != null && key.verify(new JWSInput(builder.jsonContent(new JsonWebToken().id("1")).hmac256(secret)));
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+import org.keycloak.common.util.Base64;
+import org.keycloak.common.util.Time;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.representations.JsonWebToken;
+
+public class HmacVerificationKeyTest {
+	private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] OTHER_SECRET = "another-secret-another-secret-00".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	public void testVerify() throws Exception {
+		HmacVerificationKey key = HmacVerificationKey.fromBase64(Base64.encodeBytes(SECRET));
+		SecretKeySpec secretKey = new SecretKeySpec(SECRET, HmacVerificationKey.HMAC_SHA256_ALGORITHM);
+
+		assertTrue("HS256 verified", key.verify(new JWSInput(new JWSBuilder().jsonContent(token()).hmac256(secretKey))));
+		assertTrue("HS512 verified", key.verify(new JWSInput(new JWSBuilder().jsonContent(token()).hmac512(secretKey))));
+		assertFalse("Other secret rejected", key.verify(new JWSInput(new JWSBuilder().jsonContent(token())
+				.hmac256(new SecretKeySpec(OTHER_SECRET, HmacVerificationKey.HMAC_SHA256_ALGORITHM)))));
+		assertFalse("Unsigned token rejected", key.verify(new JWSInput(new JWSBuilder().jsonContent(token()).none())));
+	}
+
+	@Test
+	public void testVerifyReusesMacPerThread() throws Exception {
+		HmacVerificationKey key = HmacVerificationKey.fromBase64(Base64.encodeBytes(SECRET));
+		SecretKeySpec secretKey = new SecretKeySpec(SECRET, HmacVerificationKey.HMAC_SHA256_ALGORITHM);
+		SecretKeySpec otherKey = new SecretKeySpec(OTHER_SECRET, HmacVerificationKey.HMAC_SHA256_ALGORITHM);
+		String valid = new JWSBuilder().jsonContent(token()).hmac256(secretKey);
+		String invalid = new JWSBuilder().jsonContent(token()).hmac256(otherKey);
+
+		// a reused Mac must not carry state from a previous or failed verification
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				String appToken = i % 2 == 0 ? valid : invalid;
+				results.add(executor.submit(() -> key.verify(new JWSInput(appToken))));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				assertTrue("Verification result " + i, results.get(i).get() == (i % 2 == 0));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testVerificationKeysCachedPerConfig() throws Exception {
+		SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+		AuthenticatorConfigModel config = new AuthenticatorConfigModel();
+		config.setId("config-id");
+		config.setConfig(new HashMap<>(Collections.singletonMap(
+				SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SECRET_KEY, Base64.encodeBytes(SECRET))));
+
+		HmacKeySet keys = authenticator.getVerificationKeys(config);
+		assertTrue("Decoded keys reused", authenticator.getVerificationKeys(config) == keys);
+
+		config.getConfig().put(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SECRET_KEY,
+				Base64.encodeBytes(OTHER_SECRET));
+		HmacKeySet changed = authenticator.getVerificationKeys(config);
+		String appToken = new JWSBuilder().jsonContent(token())
+				.hmac256(new SecretKeySpec(OTHER_SECRET, HmacVerificationKey.HMAC_SHA256_ALGORITHM));
+		assertTrue("Keys decoded again after the secret changed", changed != keys);
+		assertTrue("Changed secret verifies", new SmartAppTokenVerifier(changed).verify(appToken) != null);
+		assertTrue("Changed keys reused", authenticator.getVerificationKeys(config) == changed);
+	}
+
+	private static JsonWebToken token() {
+		JsonWebToken token = new JsonWebToken();
+		token.id("token-id");
+		token.expiration(Time.currentTime() + 60);
+		token.setOtherClaims("patient", "12345");
+		return token;
+	}
+}
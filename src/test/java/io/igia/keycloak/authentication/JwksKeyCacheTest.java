@@ -0,0 +1,267 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.jose.jwk.JWK;
+import org.keycloak.jose.jwk.JWKBuilder;
+import org.keycloak.util.JsonSerialization;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class JwksKeyCacheTest {
+	private static final String SOURCE = ClientPublicKeyCache.JWKS_SOURCE + "http://app.example.org/jwks";
+	private static PublicKey key1;
+	private static PublicKey key2;
+
+	private final AtomicInteger loads = new AtomicInteger();
+	private volatile Map<String, PublicKey> published;
+	private volatile CountDownLatch loadGate;
+	private volatile boolean failing;
+	private ExecutorService executor;
+
+	@BeforeClass
+	public static void setupKeys() throws GeneralSecurityException {
+		key1 = PublicKeySignaturesTest.rsaKeyPair().getPublic();
+		key2 = PublicKeySignaturesTest.ecKeyPair("secp256r1").getPublic();
+	}
+
+	@Before
+	public void setup() {
+		published = Collections.singletonMap("k1", key1);
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void teardown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testKeysCached() throws IOException {
+		JwksKeyCache cache = cache(60_000, 0);
+
+		assertEquals("Key loaded", key1, cache.getKey(null, SOURCE, "k1", 1000));
+		assertEquals("Key cached", key1, cache.getKey(null, SOURCE, "k1", 1000));
+		assertEquals("Only key returned without kid", key1, cache.getKey(null, SOURCE, null, 1000));
+		assertEquals("Keys loaded once", 1, loads.get());
+	}
+
+	@Test
+	public void testRefreshAhead() throws Exception {
+		JwksKeyCache cache = cache(0, 0);
+		cache.getKey(null, SOURCE, "k1", 1000);
+
+		// the refresh is held, callers keep verifying with the loaded keys
+		loadGate = new CountDownLatch(1);
+		published = Collections.singletonMap("k2", key2);
+		assertEquals("Loaded key served while refreshing", key1, cache.getKey(null, SOURCE, "k1", 1000));
+		assertEquals("Loaded key served while refreshing", key1, cache.getKey(null, SOURCE, "k1", 1000));
+		loadGate.countDown();
+
+		awaitLoads(2);
+		Thread.sleep(50);
+		assertEquals("One refresh for concurrent callers", 2, loads.get());
+		assertEquals("Refreshed key served", key2, cache.getKey(null, SOURCE, "k2", 1000));
+	}
+
+	@Test
+	public void testUnknownKidSingleFlight() throws Exception {
+		JwksKeyCache cache = cache(60_000, 0);
+		cache.getKey(null, SOURCE, "k1", 1000);
+
+		Map<String, PublicKey> rotated = new HashMap<>();
+		rotated.put("k1", key1);
+		rotated.put("k2", key2);
+		published = rotated;
+		loadGate = new CountDownLatch(1);
+		List<Future<PublicKey>> results = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			results.add(executor.submit(() -> cache.getKey(null, SOURCE, "k2", 5000)));
+		}
+		awaitLoads(2);
+		Thread.sleep(100);
+		loadGate.countDown();
+
+		for (Future<PublicKey> result : results) {
+			assertEquals("Rotated key found", key2, result.get(5, TimeUnit.SECONDS));
+		}
+		assertEquals("One reload for all callers", 2, loads.get());
+	}
+
+	@Test
+	public void testUnknownKidNegativeCached() throws IOException {
+		JwksKeyCache cache = cache(60_000, 0);
+
+		assertEquals("Unknown kid", null, cache.getKey(null, SOURCE, "k9", 1000));
+		assertEquals("Unknown kid", null, cache.getKey(null, SOURCE, "k9", 1000));
+		assertEquals("Unknown kid", null, cache.getKey(null, SOURCE, "k9", 1000));
+		assertEquals("Unknown kid reloaded once", 2, loads.get());
+	}
+
+	@Test
+	public void testUnknownKidReloadRateLimited() throws IOException {
+		JwksKeyCache cache = new JwksKeyCache(this::load, executor, 60_000, 120_000, 60_000, 0);
+
+		cache.getKey(null, SOURCE, "k1", 1000);
+		assertEquals("Unknown kid", null, cache.getKey(null, SOURCE, "k8", 1000));
+		assertEquals("Unknown kid", null, cache.getKey(null, SOURCE, "k9", 1000));
+		assertEquals("No reload right after a load", 1, loads.get());
+	}
+
+	@Test
+	public void testFailedLoadNegativeCached() {
+		failing = true;
+		JwksKeyCache cache = new JwksKeyCache(this::load, executor, 60_000, 0, 0, 60_000);
+
+		for (int i = 0; i < 3; i++) {
+			try {
+				cache.getKey(null, SOURCE, "k1", 1000);
+				assertTrue("Keys not available", false);
+			} catch (IOException e) {
+				assertTrue("Load error reported", e.getMessage().contains("unreachable"));
+			}
+		}
+		assertEquals("Failed load not repeated", 1, loads.get());
+	}
+
+	@Test
+	public void testFailedRefreshKeepsKeys() throws Exception {
+		JwksKeyCache cache = cache(0, 60_000);
+		cache.getKey(null, SOURCE, "k1", 1000);
+
+		failing = true;
+		cache.getKey(null, SOURCE, "k1", 1000);
+		awaitLoads(2);
+		Thread.sleep(50);
+
+		assertEquals("Loaded key kept", key1, cache.getKey(null, SOURCE, "k1", 1000));
+		assertEquals("Failed refresh not repeated", 2, loads.get());
+	}
+
+	@Test
+	public void testLoadTimeout() {
+		loadGate = new CountDownLatch(1);
+		JwksKeyCache cache = cache(60_000, 0);
+		try {
+			cache.getKey(null, SOURCE, "k1", 50);
+			assertTrue("Load timed out", false);
+		} catch (IOException e) {
+			assertTrue("Timeout reported", e.getMessage().contains("timed out"));
+		} finally {
+			loadGate.countDown();
+		}
+	}
+
+	@Test
+	public void testJwksEndpoint() throws Exception {
+		KeyPair ecKeys = PublicKeySignaturesTest.ecKeyPair("secp256r1");
+		JSONWebKeySet jwks = new JSONWebKeySet();
+		jwks.setKeys(new JWK[] { JWKBuilder.create().kid("rsa").rs256(key1), JWKBuilder.create().kid("ec").ec(ecKeys.getPublic()) });
+		String body = JsonSerialization.writeValueAsString(jwks);
+		AtomicInteger requests = new AtomicInteger();
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/jwks", exchange -> {
+			requests.incrementAndGet();
+			SmartLaunchBackchannelClientTest.respond(exchange, 200, body);
+		});
+		server.start();
+		JwksKeyCache cache = new JwksKeyCache();
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			String source = ClientPublicKeyCache.JWKS_SOURCE + "http://127.0.0.1:" + server.getAddress().getPort() + "/jwks";
+
+			assertEquals("RSA key parsed", key1, cache.getKey(httpClient, source, "rsa", 2000));
+			assertArrayEquals("EC key parsed", ecKeys.getPublic().getEncoded(),
+					cache.getKey(httpClient, source, "ec", 2000).getEncoded());
+			assertEquals("JWKS fetched once", 1, requests.get());
+		} finally {
+			cache.close();
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testJwksEndpointChunkedTooLarge() throws Exception {
+		String body = "{\"keys\":[{\"kty\":\"RSA\",\"padding\":\""
+				+ String.join("", Collections.nCopies(JwksKeyCache.MAX_RESPONSE_LENGTH / 8 + 1, "padding.")) + "\"}]}";
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/jwks", exchange -> SmartLaunchBackchannelClientTest.respondChunked(exchange, body));
+		server.start();
+		JwksKeyCache cache = new JwksKeyCache();
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			String source = ClientPublicKeyCache.JWKS_SOURCE + "http://127.0.0.1:" + server.getAddress().getPort() + "/jwks";
+			cache.getKey(httpClient, source, "rsa", 2000);
+			assertTrue("Oversized JWKS rejected", false);
+		} catch (IOException e) {
+			assertTrue("Limit enforced without Content-Length", e.getMessage().contains("larger than"));
+		} finally {
+			cache.close();
+			server.stop(0);
+		}
+	}
+
+	private JwksKeyCache cache(long refreshAfterMillis, long negativeTtlMillis) {
+		return new JwksKeyCache(this::load, executor, refreshAfterMillis, 120_000, 0,
+				negativeTtlMillis == 0 ? 60_000 : negativeTtlMillis);
+	}
+
+	private Map<String, PublicKey> load(Object httpClient, String source) throws IOException {
+		loads.incrementAndGet();
+		CountDownLatch gate = loadGate;
+		if (gate != null) {
+			try {
+				gate.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (failing) {
+			throw new IOException("JWKS endpoint unreachable");
+		}
+		return published;
+	}
+
+	private void awaitLoads(int count) throws InterruptedException {
+		for (int i = 0; i < 100 && loads.get() < count; i++) {
+			Thread.sleep(10);
+		}
+	}
+}
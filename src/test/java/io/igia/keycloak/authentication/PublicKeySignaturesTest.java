@@ -0,0 +1,133 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.representations.JsonWebToken;
+import org.keycloak.util.JsonSerialization;
+
+public class PublicKeySignaturesTest {
+	private static KeyPair rsaKeys;
+	private static KeyPair ecKeys;
+	
+	@BeforeClass
+	public static void setupKeys() throws GeneralSecurityException {
+		rsaKeys = rsaKeyPair();
+		ecKeys = ecKeyPair("secp384r1");
+	}
+	
+	@Test
+	public void testVerifyRsa() throws Exception {
+		for (String algorithm : new String[] { JwsAlgorithms.RS256, JwsAlgorithms.RS384, JwsAlgorithms.RS512 }) {
+			JWSInput jws = new JWSInput(sign(new JsonWebToken().id("1"), algorithm, "k1", rsaKeys.getPrivate()));
+			assertTrue("Valid " + algorithm + " signature", PublicKeySignatures.verify(jws, rsaKeys.getPublic()));
+		}
+	}
+	
+	@Test
+	public void testVerifyEcdsa() throws Exception {
+		JWSInput jws = new JWSInput(sign(new JsonWebToken().id("1"), JwsAlgorithms.ES384, "k1", ecKeys.getPrivate()));
+		assertTrue("Valid ES384 signature", PublicKeySignatures.verify(jws, ecKeys.getPublic()));
+		
+		KeyPair p256 = ecKeyPair("secp256r1");
+		jws = new JWSInput(sign(new JsonWebToken().id("1"), JwsAlgorithms.ES256, "k1", p256.getPrivate()));
+		assertTrue("Valid ES256 signature", PublicKeySignatures.verify(jws, p256.getPublic()));
+		assertTrue("ES256 signature with a P-384 key", !PublicKeySignatures.verify(jws, ecKeys.getPublic()));
+	}
+	
+	@Test
+	public void testVerifyInvalid() throws Exception {
+		String token = sign(new JsonWebToken().id("1"), JwsAlgorithms.RS384, "k1", rsaKeys.getPrivate());
+		
+		assertTrue("Other key", !PublicKeySignatures.verify(new JWSInput(token), rsaKeyPair().getPublic()));
+		assertTrue("Key of another type", !PublicKeySignatures.verify(new JWSInput(token), ecKeys.getPublic()));
+		String tampered = token.substring(0, token.indexOf('.') + 1) + Base64Url.encode("{\"jti\":\"2\"}".getBytes(StandardCharsets.UTF_8))
+				+ token.substring(token.lastIndexOf('.'));
+		assertTrue("Tampered payload", !PublicKeySignatures.verify(new JWSInput(tampered), rsaKeys.getPublic()));
+		String hmac = Base64Url.encode("{\"alg\":\"HS256\"}".getBytes(StandardCharsets.UTF_8)) + token.substring(token.indexOf('.'));
+		assertTrue("Symmetric algorithm", !PublicKeySignatures.verify(new JWSInput(hmac), rsaKeys.getPublic()));
+	}
+	
+	@Test
+	public void testToDer() {
+		byte[] signature = new byte[96];
+		signature[47] = 1;
+		Arrays.fill(signature, 48, 96, (byte) 0xff);
+		byte[] der = PublicKeySignatures.toDer(signature);
+		
+		assertTrue("Sequence", der[0] == 0x30 && der[1] == 3 + 51);
+		assertArrayEquals("Leading zeros stripped from R", new byte[] { 0x02, 1, 1 }, Arrays.copyOfRange(der, 2, 5));
+		assertTrue("S padded to stay positive", der[5] == 0x02 && der[6] == 49 && der[7] == 0 && der[8] == (byte) 0xff);
+		assertArrayEquals("Round trip", signature, toJose(der, 48));
+	}
+	
+	static String sign(Object claims, String algorithm, String kid, PrivateKey key) throws IOException, GeneralSecurityException {
+		String header = "{\"alg\":\"" + algorithm + "\",\"typ\":\"JWT\"" + (kid != null ? ",\"kid\":\"" + kid + "\"" : "") + "}";
+		String input = Base64Url.encode(header.getBytes(StandardCharsets.UTF_8)) + "."
+				+ Base64Url.encode(JsonSerialization.writeValueAsBytes(claims));
+		String javaAlgorithm = "SHA" + algorithm.substring(2) + (algorithm.startsWith("RS") ? "withRSA" : "withECDSA");
+		Signature signer = Signature.getInstance(javaAlgorithm);
+		signer.initSign(key);
+		signer.update(input.getBytes(StandardCharsets.UTF_8));
+		byte[] signature = signer.sign();
+		if (algorithm.startsWith("ES")) {
+			signature = toJose(signature, JwsAlgorithms.ES256.equals(algorithm) ? 32 : JwsAlgorithms.ES384.equals(algorithm) ? 48 : 66);
+		}
+		return input + "." + Base64Url.encode(signature);
+	}
+	
+	static KeyPair rsaKeyPair() throws GeneralSecurityException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		return generator.generateKeyPair();
+	}
+	
+	static KeyPair ecKeyPair(String curve) throws GeneralSecurityException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+		generator.initialize(new ECGenParameterSpec(curve));
+		return generator.generateKeyPair();
+	}
+	
+	private static byte[] toJose(byte[] der, int length) {
+		int offset = der[1] == (byte) 0x81 ? 3 : 2;
+		byte[] jose = new byte[2 * length];
+		for (int i = 0; i < 2; i++) {
+			int size = der[offset + 1];
+			int start = offset + 2;
+			// drop the sign padding, right align in the fixed size field
+			while (size > length) {
+				start++;
+				size--;
+			}
+			System.arraycopy(der, start, jose, (i + 1) * length - size, size);
+			offset = start + size;
+		}
+		return jose;
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+
+import org.junit.Test;
+import org.keycloak.common.VerificationException;
+import org.keycloak.common.util.Base64;
+import org.keycloak.common.util.Time;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.representations.JsonWebToken;
+
+public class SmartAppTokenVerifierTest {
+	private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+	private static final String ISSUER = "http://keycloak/realms/realmName";
+
+	@Test
+	public void testVerify() throws IOException, VerificationException {
+		JsonWebToken token = new JsonWebToken();
+		token.issuedNow().expiration(Time.currentTime() + 60).audience(ISSUER);
+		token.setOtherClaims("patient", "12345");
+
+		JsonWebToken appToken = verifier(SECRET).verify(sign(token, SECRET));
+
+		assertTrue("Token claims returned", appToken.getOtherClaims().get("patient").equals("12345"));
+	}
+
+	@Test
+	public void testVerifyNoAudienceClaim() throws IOException, VerificationException {
+		JsonWebToken token = new JsonWebToken();
+		token.expiration(Time.currentTime() + 60);
+		token.setOtherClaims("patient", "12345");
+
+		JsonWebToken appToken = verifier(SECRET).verify(sign(token, SECRET));
+
+		assertTrue("Token claims returned", appToken.getOtherClaims().get("patient").equals("12345"));
+	}
+
+	@Test
+	public void testVerifyNoExpiration() throws IOException {
+		JsonWebToken token = new JsonWebToken();
+		token.setOtherClaims("patient", "12345");
+
+		try {
+			verifier(SECRET).verify(sign(token, SECRET));
+			assertTrue("Token without exp rejected", false);
+		} catch (VerificationException e) {
+			assertTrue("Token without exp rejected", e.getMessage().contains("expiration"));
+		}
+	}
+
+	@Test
+	public void testVerifyFarFutureExpiration() throws IOException, VerificationException {
+		JsonWebToken token = new JsonWebToken();
+		token.expiration(Integer.MAX_VALUE);
+
+		assertTrue("Token verified", verifier(SECRET).verify(sign(token, SECRET)) != null);
+	}
+
+	@Test(expected = VerificationException.class)
+	public void testVerifyInvalidSignature() throws IOException, VerificationException {
+		JsonWebToken token = new JsonWebToken();
+		token.expiration(Time.currentTime() + 60);
+		token.setOtherClaims("patient", "12345");
+
+		verifier(SECRET).verify(sign(token, "another-secret-another-secret-00".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test(expected = VerificationException.class)
+	public void testVerifyExpired() throws IOException, VerificationException {
+		JsonWebToken token = new JsonWebToken();
+		token.expiration(Time.currentTime() - SmartAppTokenVerifier.ALLOWED_CLOCK_SKEW_SECONDS - 10);
+
+		verifier(SECRET).verify(sign(token, SECRET));
+	}
+
+	@Test(expected = VerificationException.class)
+	public void testVerifyUnexpectedAudience() throws IOException, VerificationException {
+		JsonWebToken token = new JsonWebToken();
+		token.expiration(Time.currentTime() + 60);
+		token.audience("http://other/realms/realmName");
+
+		verifier(SECRET).verify(sign(token, SECRET));
+	}
+
+	@Test(expected = VerificationException.class)
+	public void testVerifyMalformed() throws IOException, VerificationException {
+		verifier(SECRET).verify("not-a-jwt");
+	}
+
+	@Test
+	public void testVerifyKeysetKid() throws IOException, VerificationException {
+		byte[] previous = "previous-secret-previous-secret0".getBytes(StandardCharsets.UTF_8);
+		HmacKeySet keySet = HmacKeySet.compile("current:" + Base64.encodeBytes(SECRET) + " previous:" + Base64.encodeBytes(previous), null);
+		JsonWebToken token = new JsonWebToken();
+		token.expiration(Time.currentTime() + 60);
+		token.setOtherClaims("patient", "12345");
+		
+		String appToken = new JWSBuilder().kid("previous").jsonContent(token).hmac256(previous);
+		assertTrue("Token verified with the key of its kid", new SmartAppTokenVerifier(keySet, ISSUER).verify(appToken) != null);
+		
+		try {
+			new SmartAppTokenVerifier(keySet, ISSUER).verify(new JWSBuilder().kid("retired").jsonContent(token).hmac256(previous));
+			assertTrue("Unknown kid rejected", false);
+		} catch (VerificationException e) {
+			assertTrue("Unknown kid rejected", e.getMessage().contains("key"));
+		}
+	}
+
+	@Test
+	public void testVerifyPublicKeys() throws Exception {
+		KeyPair rsaKeys = PublicKeySignaturesTest.rsaKeyPair();
+		KeyPair ecKeys = PublicKeySignaturesTest.ecKeyPair("secp256r1");
+		SmartAppTokenVerifier verifier = new SmartAppTokenVerifier(null,
+				kid -> "rsa".equals(kid) ? rsaKeys.getPublic() : "ec".equals(kid) ? ecKeys.getPublic() : null, ISSUER);
+		JsonWebToken token = new JsonWebToken();
+		token.issuedNow().expiration(Time.currentTime() + 60).audience(ISSUER);
+		token.setOtherClaims("patient", "12345");
+
+		JsonWebToken appToken = verifier.verify(PublicKeySignaturesTest.sign(token, JwsAlgorithms.RS256, "rsa", rsaKeys.getPrivate()));
+		assertTrue("RS256 token claims returned", appToken.getOtherClaims().get("patient").equals("12345"));
+		appToken = verifier.verify(PublicKeySignaturesTest.sign(token, JwsAlgorithms.ES256, "ec", ecKeys.getPrivate()));
+		assertTrue("ES256 token claims returned", appToken.getOtherClaims().get("patient").equals("12345"));
+
+		try {
+			verifier.verify(PublicKeySignaturesTest.sign(token, JwsAlgorithms.RS256, "ec", rsaKeys.getPrivate()));
+			assertTrue("Token signed with another key rejected", false);
+		} catch (VerificationException e) {
+			assertTrue("Token signed with another key rejected", e.getMessage().contains("signature"));
+		}
+		try {
+			verifier.verify(PublicKeySignaturesTest.sign(token, JwsAlgorithms.RS256, "unknown", rsaKeys.getPrivate()));
+			assertTrue("Unknown kid rejected", false);
+		} catch (VerificationException e) {
+			assertTrue("Unknown kid rejected", e.getMessage().contains("key"));
+		}
+		try {
+			verifier.verify(sign(token, SECRET));
+			assertTrue("HMAC token rejected without secret", false);
+		} catch (VerificationException e) {
+			assertTrue("HMAC token rejected without secret", e.getMessage().contains("not accepted"));
+		}
+	}
+
+	@Test
+	public void testVerifyPublicKeysUnavailable() throws Exception {
+		KeyPair rsaKeys = PublicKeySignaturesTest.rsaKeyPair();
+		SmartAppTokenVerifier verifier = new SmartAppTokenVerifier(HmacKeySet.compile(null, Base64.encodeBytes(SECRET)), kid -> {
+			throw new IOException("JWKS endpoint unreachable");
+		}, ISSUER);
+		JsonWebToken token = new JsonWebToken();
+		token.expiration(Time.currentTime() + 60);
+		token.setOtherClaims("patient", "12345");
+
+		assertTrue("HMAC token verified", verifier.verify(sign(token, SECRET)) != null);
+		try {
+			verifier.verify(PublicKeySignaturesTest.sign(token, JwsAlgorithms.RS256, "rsa", rsaKeys.getPrivate()));
+			assertTrue("Token rejected without keys", false);
+		} catch (VerificationException e) {
+			assertTrue("Token rejected without keys", e.getMessage().contains("not available"));
+		}
+	}
+
+	@Test(expected = VerificationException.class)
+	public void testVerifyAsymmetricWithoutPublicKeys() throws Exception {
+		KeyPair rsaKeys = PublicKeySignaturesTest.rsaKeyPair();
+		JsonWebToken token = new JsonWebToken();
+		token.expiration(Time.currentTime() + 60);
+
+		verifier(SECRET).verify(PublicKeySignaturesTest.sign(token, JwsAlgorithms.RS256, null, rsaKeys.getPrivate()));
+	}
+
+	private SmartAppTokenVerifier verifier(byte[] secret) throws IOException {
+		return new SmartAppTokenVerifier(HmacVerificationKey.fromBase64(Base64.encodeBytes(secret)), ISSUER, "launchClientid");
+	}
+
+	private String sign(JsonWebToken token, byte[] secret) {
+		return new JWSBuilder().jsonContent(token).hmac256(secret);
+	}
+}
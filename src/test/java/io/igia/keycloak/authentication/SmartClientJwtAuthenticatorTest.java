@@ -0,0 +1,205 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+
+import org.jboss.resteasy.specimpl.MultivaluedMapImpl;
+import org.jboss.resteasy.spi.HttpRequest;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.authentication.AuthenticationFlowError;
+import org.keycloak.authentication.ClientAuthenticationFlowContext;
+import org.keycloak.common.util.Time;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.representations.JsonWebToken;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SmartClientJwtAuthenticatorTest {
+	private static final String TOKEN_URL = "http://keycloak/auth/realms/realmName/protocol/smart-openid-connect/token";
+	
+	private static KeyPair rsaKeys;
+	private static KeyPair ecKeys;
+	
+	private final Map<String, PublicKey> clientKeys = new HashMap<>();
+	private final AtomicInteger keyLoads = new AtomicInteger();
+	private SmartClientJwtAuthenticator authenticator;
+	private ClientAuthenticationFlowContext context;
+	private MultivaluedMapImpl<String, String> formParams;
+	private AuthenticationFlowError error;
+	private boolean success;
+	
+	@BeforeClass
+	public static void setupKeys() throws Exception {
+		rsaKeys = PublicKeySignaturesTest.rsaKeyPair();
+		ecKeys = PublicKeySignaturesTest.ecKeyPair("secp384r1");
+	}
+	
+	@Before
+	public void setup() {
+		clientKeys.put("rsa1", rsaKeys.getPublic());
+		clientKeys.put("ec1", ecKeys.getPublic());
+		ClientPublicKeyCache keyCache = new ClientPublicKeyCache((session, source) -> {
+			keyLoads.incrementAndGet();
+			assertEquals("JWKS URL of the client", "jwks:http://backend/jwks", source);
+			return new HashMap<>(clientKeys);
+		});
+		authenticator = new SmartClientJwtAuthenticator(keyCache, new TokenReplayCache("test", 1000));
+		
+		ClientModel client = Mockito.mock(ClientModel.class);
+		Mockito.when(client.getId()).thenReturn("backend-id");
+		Mockito.when(client.getClientId()).thenReturn("backend");
+		Mockito.when(client.isEnabled()).thenReturn(true);
+		Mockito.when(client.getAttribute(ClientPublicKeyCache.JWKS_URL_ATTR)).thenReturn("http://backend/jwks");
+		RealmModel realm = Mockito.mock(RealmModel.class);
+		Mockito.when(realm.getName()).thenReturn("realmName");
+		Mockito.when(realm.getClientByClientId("backend")).thenReturn(client);
+		UriInfo uriInfo = Mockito.mock(UriInfo.class);
+		Mockito.when(uriInfo.getBaseUri()).thenReturn(URI.create("http://keycloak/auth"));
+		Mockito.when(uriInfo.getBaseUriBuilder()).thenAnswer(invocation -> UriBuilder.fromUri("http://keycloak/auth"));
+		formParams = new MultivaluedMapImpl<>();
+		HttpRequest httpRequest = Mockito.mock(HttpRequest.class);
+		Mockito.when(httpRequest.getDecodedFormParameters()).thenReturn(formParams);
+		
+		context = Mockito.mock(ClientAuthenticationFlowContext.class);
+		Mockito.when(context.getHttpRequest()).thenReturn(httpRequest);
+		Mockito.when(context.getRealm()).thenReturn(realm);
+		Mockito.when(context.getUriInfo()).thenReturn(uriInfo);
+		Mockito.when(context.getSession()).thenReturn(Mockito.mock(KeycloakSession.class));
+		Mockito.when(context.getEvent()).thenReturn(Mockito.mock(EventBuilder.class));
+		Mockito.doAnswer(invocation -> success = true).when(context).success();
+		Mockito.doAnswer(invocation -> error = invocation.getArgument(0)).when(context).failure(any(), any());
+	}
+	
+	@Test
+	public void testAuthenticateClient() throws Exception {
+		authenticate(PublicKeySignaturesTest.sign(assertion("jti-1"), JwsAlgorithms.RS384, "rsa1", rsaKeys.getPrivate()));
+		assertTrue("RS384 assertion accepted", success && error == null);
+		
+		success = false;
+		authenticate(PublicKeySignaturesTest.sign(assertion("jti-2"), JwsAlgorithms.ES384, "ec1", ecKeys.getPrivate()));
+		assertTrue("ES384 assertion accepted", success && error == null);
+		assertEquals("Client keys loaded once", 1, keyLoads.get());
+	}
+	
+	@Test
+	public void testAuthenticateClientReplayed() throws Exception {
+		String assertion = PublicKeySignaturesTest.sign(assertion("jti-1"), JwsAlgorithms.RS384, "rsa1", rsaKeys.getPrivate());
+		authenticate(assertion);
+		authenticate(assertion);
+		
+		assertEquals("Replayed assertion rejected", AuthenticationFlowError.INVALID_CLIENT_CREDENTIALS, error);
+	}
+	
+	@Test
+	public void testAuthenticateClientReplayedWithinClockSkew() throws Exception {
+		JsonWebToken expired = assertion("jti-1").expiration(Time.currentTime() - 10);
+		String assertion = PublicKeySignaturesTest.sign(expired, JwsAlgorithms.RS384, "rsa1", rsaKeys.getPrivate());
+		authenticate(assertion);
+		assertTrue("Assertion within the clock skew accepted", success && error == null);
+		
+		authenticate(assertion);
+		assertEquals("Replay within the clock skew rejected", AuthenticationFlowError.INVALID_CLIENT_CREDENTIALS, error);
+	}
+	
+	@Test
+	public void testAuthenticateClientInvalidSignature() throws Exception {
+		authenticate(PublicKeySignaturesTest.sign(assertion("jti-1"), JwsAlgorithms.RS384, "rsa1", PublicKeySignaturesTest.rsaKeyPair().getPrivate()));
+		
+		assertEquals("Invalid signature rejected", AuthenticationFlowError.INVALID_CLIENT_CREDENTIALS, error);
+		
+		// a rejected assertion does not use up its jti
+		error = null;
+		authenticate(PublicKeySignaturesTest.sign(assertion("jti-1"), JwsAlgorithms.RS384, "rsa1", rsaKeys.getPrivate()));
+		assertTrue("Signed assertion with the same jti accepted", success && error == null);
+	}
+	
+	@Test
+	public void testAuthenticateClientInvalidClaims() throws Exception {
+		JsonWebToken longLived = assertion("jti-1").expiration(Time.currentTime() + 3600);
+		authenticate(PublicKeySignaturesTest.sign(longLived, JwsAlgorithms.RS384, "rsa1", rsaKeys.getPrivate()));
+		assertEquals("Lifetime over five minutes rejected", AuthenticationFlowError.INVALID_CLIENT_CREDENTIALS, error);
+		
+		error = null;
+		JsonWebToken otherAudience = assertion("jti-2");
+		otherAudience.audience("http://other/token");
+		authenticate(PublicKeySignaturesTest.sign(otherAudience, JwsAlgorithms.RS384, "rsa1", rsaKeys.getPrivate()));
+		assertEquals("Other audience rejected", AuthenticationFlowError.INVALID_CLIENT_CREDENTIALS, error);
+		
+		error = null;
+		authenticate(PublicKeySignaturesTest.sign(assertion(null), JwsAlgorithms.RS384, "rsa1", rsaKeys.getPrivate()));
+		assertEquals("Missing jti rejected", AuthenticationFlowError.INVALID_CLIENT_CREDENTIALS, error);
+		assertEquals("Keys not loaded for invalid claims", 0, keyLoads.get());
+	}
+	
+	@Test
+	public void testAuthenticateClientRotatedKey() throws Exception {
+		authenticate(PublicKeySignaturesTest.sign(assertion("jti-1"), JwsAlgorithms.RS384, "rsa1", rsaKeys.getPrivate()));
+		
+		KeyPair rotated = PublicKeySignaturesTest.rsaKeyPair();
+		clientKeys.put("rsa2", rotated.getPublic());
+		authenticate(PublicKeySignaturesTest.sign(assertion("jti-2"), JwsAlgorithms.RS384, "rsa2", rotated.getPrivate()));
+		assertTrue("Assertion with a rotated key accepted", success && error == null);
+		assertEquals("Keys reloaded on unknown kid", 2, keyLoads.get());
+		
+		authenticate(PublicKeySignaturesTest.sign(assertion("jti-3"), JwsAlgorithms.RS384, "rsa3", rotated.getPrivate()));
+		assertEquals("Unknown kid rejected", AuthenticationFlowError.INVALID_CLIENT_CREDENTIALS, error);
+		assertEquals("Reload rate limited", 2, keyLoads.get());
+	}
+	
+	@Test
+	public void testAuthenticateClientMissingAssertion() {
+		ClientAuthenticationFlowContext context = Mockito.mock(ClientAuthenticationFlowContext.class);
+		HttpRequest httpRequest = Mockito.mock(HttpRequest.class);
+		Mockito.when(httpRequest.getDecodedFormParameters()).thenReturn(new MultivaluedMapImpl<>());
+		Mockito.when(context.getHttpRequest()).thenReturn(httpRequest);
+		
+		authenticator.authenticateClient(context);
+		
+		Mockito.verify(context).challenge(any());
+		Mockito.verify(context, Mockito.never()).success();
+	}
+	
+	private void authenticate(String assertion) {
+		formParams.putSingle(OAuth2Constants.CLIENT_ASSERTION_TYPE, OAuth2Constants.CLIENT_ASSERTION_TYPE_JWT);
+		formParams.putSingle(OAuth2Constants.CLIENT_ASSERTION, assertion);
+		authenticator.authenticateClient(context);
+	}
+	
+	private static JsonWebToken assertion(String jti) {
+		JsonWebToken token = new JsonWebToken();
+		token.issuer("backend").subject("backend").audience(TOKEN_URL).expiration(Time.currentTime() + 240).id(jti);
+		return token;
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class SmartLaunchBackchannelClientTest {
+	private HttpServer server;
+	private CloseableHttpClient httpClient;
+	private SmartLaunchBackchannelClient client;
+	private volatile String requestBody;
+	private volatile String authorization;
+	
+	@Before
+	public void setup() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/launch", exchange -> {
+			requestBody = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+			authorization = exchange.getRequestHeaders().getFirst("Authorization");
+			respond(exchange, 200, "{\"app-token\":\"signed-app-token\"}");
+		});
+		server.createContext("/error", exchange -> respond(exchange, 500, "{}"));
+		server.createContext("/empty", exchange -> respond(exchange, 200, "{}"));
+		server.createContext("/chunked", exchange -> respondChunked(exchange,
+				"{\"app-token\":\"" + String.join("", Collections.nCopies(SmartLaunchBackchannelClient.MAX_RESPONSE_LENGTH, "a")) + "\"}"));
+		server.createContext("/slow", exchange -> {
+			try {
+				Thread.sleep(2000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			respond(exchange, 200, "{\"app-token\":\"late\"}");
+		});
+		server.start();
+		httpClient = HttpClients.createDefault();
+		client = new SmartLaunchBackchannelClient();
+	}
+	
+	@After
+	public void teardown() throws IOException {
+		client.close();
+		httpClient.close();
+		server.stop(0);
+	}
+	
+	@Test
+	public void testResolveAppToken() throws IOException {
+		Map<String, String> params = new LinkedHashMap<>();
+		params.put("aud", "http://fhirserver.org");
+		params.put("launch", "patient");
+		
+		String appToken = client.resolveAppToken(httpClient, url("/launch"), "accesstoken", params, 1000);
+		
+		assertEquals("App token from response", "signed-app-token", appToken);
+		assertEquals("Params posted", "aud=http%3A%2F%2Ffhirserver.org&launch=patient", requestBody);
+		assertEquals("Access token sent as bearer", "Bearer accesstoken", authorization);
+	}
+	
+	@Test(expected = IOException.class)
+	public void testResolveAppTokenErrorStatus() throws IOException {
+		client.resolveAppToken(httpClient, url("/error"), "accesstoken", new LinkedHashMap<>(), 1000);
+	}
+	
+	@Test(expected = IOException.class)
+	public void testResolveAppTokenMissing() throws IOException {
+		client.resolveAppToken(httpClient, url("/empty"), "accesstoken", new LinkedHashMap<>(), 1000);
+	}
+	
+	@Test
+	public void testResolveAppTokenChunkedTooLarge() {
+		try {
+			client.resolveAppToken(httpClient, url("/chunked"), "accesstoken", new LinkedHashMap<>(), 1000);
+			assertTrue("Oversized response rejected", false);
+		} catch (IOException e) {
+			assertTrue("Limit enforced without Content-Length", e.getMessage().contains("larger than"));
+		}
+	}
+	
+	@Test
+	public void testResolveAppTokenTimeout() {
+		long start = System.nanoTime();
+		try {
+			client.resolveAppToken(httpClient, url("/slow"), "accesstoken", new LinkedHashMap<>(), 200);
+			assertTrue("Timeout expected", false);
+		} catch (IOException e) {
+			assertTrue("Timed out", e.getCause() instanceof TimeoutException);
+		}
+		assertTrue("Returned at the timeout", System.nanoTime() - start < 1_500_000_000L);
+	}
+	
+	private String url(String path) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+	}
+	
+	static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+	
+	// no Content-Length, the body is sent in chunks
+	static void respondChunked(HttpExchange exchange, String body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			// the client aborts once the limit is exceeded
+		}
+	}
+	
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		for (int read; (read = in.read(buffer)) > 0;) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
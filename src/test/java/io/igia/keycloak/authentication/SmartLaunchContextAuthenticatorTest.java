@@ -19,23 +19,40 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.jboss.resteasy.spi.HttpRequest;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.common.ClientConnection;
+import org.keycloak.common.util.Base64;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.httpclient.HttpClientProvider;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.models.ActionTokenStoreProvider;
+import org.keycloak.models.ActionTokenValueModel;
 import org.keycloak.models.AuthenticatedClientSessionModel;
 import org.keycloak.models.AuthenticationExecutionModel;
 import org.keycloak.models.AuthenticatorConfigModel;
@@ -51,6 +68,7 @@ import org.keycloak.models.UserSessionModel;
 import org.keycloak.models.UserSessionProvider;
 import org.keycloak.protocol.oidc.OIDCLoginProtocol;
 import org.keycloak.protocol.oidc.endpoints.AuthorizationEndpoint;
+import org.keycloak.representations.JsonWebToken;
 import org.keycloak.services.managers.AuthenticationManager;
 import org.keycloak.sessions.AuthenticationSessionModel;
 import org.keycloak.sessions.RootAuthenticationSessionModel;
@@ -59,8 +77,12 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
 
+import com.sun.net.httpserver.HttpServer;
+
 import io.igia.keycloak.authentication.SmartLaunchContextAuthenticator;
 import io.igia.keycloak.authentication.SmartLaunchContextAuthenticatorFactory;
+import io.igia.keycloak.protocol.smart.SmartLaunchContext;
+import io.igia.keycloak.protocol.smart.SmartLaunchContextStore;
 
 @RunWith(MockitoJUnitRunner.class)
 public class SmartLaunchContextAuthenticatorTest {
@@ -85,6 +107,8 @@ public class SmartLaunchContextAuthenticatorTest {
 	private Map<String, ClientScopeModel> defaultLaunchClientScopes; 
 	private Map<String, String> authenticatorConfig;
 	
+	private static final byte[] BACKCHANNEL_SECRET = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+	
 	private Response response;
 	private Boolean attempted;
 
@@ -175,6 +199,315 @@ public class SmartLaunchContextAuthenticatorTest {
 		assertTrue("Context attempted.", attempted);
 	}
 	
+	@Test
+	public void testAuthenticateSupportedConfigChanged() throws UnsupportedEncodingException, MalformedURLException, URISyntaxException {		
+		setupDefaultMocks();
+
+		SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+		authenticator.authenticate(context);	
+		assertTrue("Challenge response not null.", response != null);
+		
+		//override mocks
+		authenticatorConfig.put(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SUPPORTED_PARAMS, 
+				"encounter");
+		authenticator.authenticate(context);	
+		
+		assertTrue("Context attempted.", attempted);
+	}
+	
+	@Test
+	public void testAuthenticateDefaultScopeInvalidated() throws UnsupportedEncodingException, MalformedURLException, URISyntaxException {		
+		setupDefaultMocks();
+		//override mocks
+		Mockito.when(sessionModel.getClientNote(OIDCLoginProtocol.SCOPE_PARAM)).thenReturn("launch/encounter");
+		
+		SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+		authenticator.authenticate(context);	
+		assertTrue("Context attempted.", attempted);
+		
+		defaultClientScopes.put("launch/patient", Mockito.mock(ClientScopeModel.class));
+		authenticator.invalidateClient("clientId");
+		authenticator.authenticate(context);	
+		
+		assertTrue("Challenge response not null.", response != null);
+	}
+	
+	@Test
+	public void testAuthenticateStatelessTokenMode() throws UnsupportedEncodingException, MalformedURLException, URISyntaxException {		
+		setupDefaultMocks();
+		//override mocks
+		authenticatorConfig.put(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_TOKEN_MODE, 
+				SmartLaunchContextAuthenticatorFactory.TOKEN_MODE_STATELESS);
+		
+		SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+		authenticator.authenticate(context);	
+		
+		assertTrue("Challenge response not null.", response != null);
+		String location = response.getMetadata().get("Location").get(0).toString();		
+		String access_token = getQueryValue("access_token", URLEncodedUtils.parse(new URI(location), Charset.forName("UTF-8")));
+		assertTrue("Access token query param expected value.", "encodedtoken".equals(access_token));
+		Mockito.verify(userSessionProvider, Mockito.never()).createUserSession(anyString(), any(), any(), anyString(), anyString(), anyString(), eq(false), isNull(), isNull());
+		Mockito.verify(userSessionProvider, Mockito.never()).createClientSession(any(), any(), any());
+	}
+	
+	@Test
+	public void testAuthenticateBackchannel() throws IOException {		
+		setupDefaultMocks();
+		HttpServer server = backchannelServer(200);
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			setupBackchannelMocks(server, httpClient);
+			
+			SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+			authenticator.authenticate(context);
+			
+			assertTrue("No browser redirect.", response == null);
+			Mockito.verify(context).success();
+			Mockito.verify(sessionModel).setClientNote(eq(SmartLaunchContext.LAUNCH_CONTEXT_NOTE), anyString());
+		} finally {
+			server.stop(0);
+		}
+	}
+	
+	@Test
+	public void testAuthenticateBackchannelNonStringClaim() throws IOException {		
+		setupDefaultMocks();
+		HttpServer server = backchannelServer(200, 12345);
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			setupBackchannelMocks(server, httpClient);
+			
+			SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+			authenticator.authenticate(context);
+			
+			Mockito.verify(context).failure(AuthenticationFlowError.INVALID_CLIENT_SESSION);
+			Mockito.verify(context, Mockito.never()).success();
+		} finally {
+			server.stop(0);
+		}
+	}
+	
+	@Test
+	public void testAuthenticateBackchannelFallback() throws IOException {		
+		setupDefaultMocks();
+		HttpServer server = backchannelServer(503);
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			setupBackchannelMocks(server, httpClient);
+			
+			SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+			authenticator.authenticate(context);
+			
+			assertTrue("Browser redirect on backchannel failure.", response != null);
+			Mockito.verify(context, Mockito.never()).success();
+		} finally {
+			server.stop(0);
+		}
+	}
+	
+	@Test
+	public void testAuthenticateEhrLaunch() {		
+		setupDefaultMocks();
+		ActionTokenStoreProvider actionTokenStore = ehrLaunchMocks("clientId", "12345");
+		
+		SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+		authenticator.authenticate(context);
+		
+		assertTrue("No browser redirect.", response == null);
+		Mockito.verify(context).success();
+		Mockito.verify(sessionModel).setClientNote(SmartLaunchContext.LAUNCH_CONTEXT_NOTE, 
+				SmartLaunchContext.of(Collections.singletonMap("patient", "12345")).encoded());
+		Mockito.verify(actionTokenStore).remove(any());
+	}
+	
+	@Test
+	public void testAuthenticateEhrLaunchOtherClient() {		
+		setupDefaultMocks();
+		ActionTokenStoreProvider actionTokenStore = ehrLaunchMocks("otherClientId", "12345");
+		
+		SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+		authenticator.authenticate(context);
+		
+		Mockito.verify(context).failure(AuthenticationFlowError.INVALID_CLIENT_SESSION);
+		Mockito.verify(context, Mockito.never()).success();
+		Mockito.verify(actionTokenStore, Mockito.never()).remove(any());
+	}
+	
+	@Test
+	public void testAuthenticateEhrLaunchMissingParams() {		
+		setupDefaultMocks();
+		ehrLaunchMocks("clientId", null);
+		
+		SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+		authenticator.authenticate(context);
+		
+		Mockito.verify(context).failure(AuthenticationFlowError.INVALID_CLIENT_SESSION);
+		Mockito.verify(context, Mockito.never()).success();
+	}
+	
+	@Test
+	public void testAuthenticateEhrLaunchWithoutLaunchScope() {		
+		setupDefaultMocks();
+		ActionTokenStoreProvider actionTokenStore = ehrLaunchMocks("clientId", "12345");
+		Mockito.when(sessionModel.getClientNote(OIDCLoginProtocol.SCOPE_PARAM)).thenReturn("launch/patient");
+		
+		SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+		authenticator.authenticate(context);
+		
+		assertTrue("Standalone launch redirect.", response != null);
+		Mockito.verifyZeroInteractions(actionTokenStore);
+	}
+	
+	@Test
+	public void testActionFormCopiesFormParams() {		
+		setupDefaultMocks();
+		formMocks("patient", "12345", "login", "");
+		
+		SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+		authenticator.action(context);
+		
+		Map<String, String> launchParams = new HashMap<>();
+		launchParams.put("patient", "12345");
+		launchParams.put("login", "");
+		Mockito.verify(context).success();
+		Mockito.verify(sessionModel).setClientNote(SmartLaunchContext.LAUNCH_CONTEXT_NOTE, 
+				SmartLaunchContext.of(launchParams).encoded());
+	}
+	
+	@Test
+	public void testActionPickerSelection() {		
+		setupDefaultMocks();
+		pickerMocks();
+		formMocks("patient", "12345", "encounter", "67890");
+		
+		SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+		authenticator.action(context);
+		
+		Map<String, String> launchParams = new HashMap<>();
+		launchParams.put("patient", "12345");
+		launchParams.put("encounter", "67890");
+		Mockito.verify(context).success();
+		Mockito.verify(sessionModel).setClientNote(SmartLaunchContext.LAUNCH_CONTEXT_NOTE, 
+				SmartLaunchContext.of(launchParams).encoded());
+	}
+	
+	@Test
+	public void testActionPickerSelectionMissingParams() throws IOException {		
+		setupDefaultMocks();
+		LoginFormsProvider form = pickerMocks();
+		formMocks("patient", "12345");
+		
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			HttpClientProvider httpClientProvider = Mockito.mock(HttpClientProvider.class);
+			Mockito.when(httpClientProvider.getHttpClient()).thenReturn(httpClient);
+			Mockito.when(session.getProvider(HttpClientProvider.class)).thenReturn(httpClientProvider);
+			
+			SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+			authenticator.action(context);
+		}
+		
+		Mockito.verify(form).setAttribute("launchParams", Collections.singletonList("encounter"));
+		Mockito.verify(form).setError("Enter encounter for the SMART application.");
+		Mockito.verify(context).challenge(any());
+		Mockito.verify(context, Mockito.never()).success();
+		Mockito.verify(sessionModel, Mockito.never()).setClientNote(eq(SmartLaunchContext.LAUNCH_CONTEXT_NOTE), anyString());
+	}
+	
+	private LoginFormsProvider pickerMocks() {
+		authenticatorConfig.put(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SUPPORTED_PARAMS, 
+				"patient encounter");
+		authenticatorConfig.put(SmartLaunchContextAuthenticatorFactory.CONFIG_PATIENT_PICKER_FHIR_URL, "http://127.0.0.1:1/fhir");
+		Mockito.when(sessionModel.getClientNote(OIDCLoginProtocol.SCOPE_PARAM)).thenReturn("launch/patient launch/encounter");
+		Mockito.when(sessionModel.getAuthNote("SMART_LAUNCH_PICKER_PATIENTS")).thenReturn("12345 23456");
+		LoginFormsProvider form = Mockito.mock(LoginFormsProvider.class);
+		Mockito.when(context.form()).thenReturn(form);
+		return form;
+	}
+	
+	private void formMocks(String... fields) {
+		MultivaluedMap<String, String> formData = new MultivaluedHashMap<>();
+		for (int i = 0; i < fields.length; i += 2) {
+			formData.add(fields[i], fields[i + 1]);
+		}
+		HttpRequest httpRequest = Mockito.mock(HttpRequest.class);
+		Mockito.when(httpRequest.getDecodedFormParameters()).thenReturn(formData);
+		Mockito.when(context.getHttpRequest()).thenReturn(httpRequest);
+	}
+	
+	private ActionTokenStoreProvider ehrLaunchMocks(String registeredClientId, String patient) {
+		Map<String, String> notes = new HashMap<>();
+		notes.put(SmartLaunchContextStore.CLIENT_ID_NOTE, registeredClientId);
+		notes.put(patient != null ? "patient" : "encounter", patient != null ? patient : "67890");
+		ActionTokenStoreProvider actionTokenStore = Mockito.mock(ActionTokenStoreProvider.class);
+		ActionTokenValueModel launchContext = Mockito.mock(ActionTokenValueModel.class);
+		Mockito.when(launchContext.getNotes()).thenReturn(notes);
+		Mockito.when(launchContext.getNote(anyString())).thenAnswer(invocation -> notes.get(invocation.getArgument(0)));
+		Mockito.when(actionTokenStore.get(any())).thenReturn(launchContext);
+		Mockito.when(actionTokenStore.remove(any())).thenReturn(launchContext);
+		Mockito.when(session.getProvider(ActionTokenStoreProvider.class)).thenReturn(actionTokenStore);
+		Mockito.when(sessionModel.getClientNote(OIDCLoginProtocol.SCOPE_PARAM)).thenReturn("launch launch/patient");
+		Mockito.when(sessionModel.getClientNote(AuthorizationEndpoint.LOGIN_SESSION_NOTE_ADDITIONAL_REQ_PARAMS_PREFIX + "launch"))
+				.thenReturn("launchId");
+		return actionTokenStore;
+	}
+	
+	@Test
+	public void testAuthenticateEhrLaunchUnknown() {		
+		setupDefaultMocks();
+		Mockito.when(session.getProvider(ActionTokenStoreProvider.class)).thenReturn(Mockito.mock(ActionTokenStoreProvider.class));
+		Mockito.when(sessionModel.getClientNote(OIDCLoginProtocol.SCOPE_PARAM)).thenReturn("launch launch/patient");
+		Mockito.when(sessionModel.getClientNote(AuthorizationEndpoint.LOGIN_SESSION_NOTE_ADDITIONAL_REQ_PARAMS_PREFIX + "launch"))
+				.thenReturn("launchId");
+		
+		SmartLaunchContextAuthenticator authenticator = new SmartLaunchContextAuthenticator();
+		authenticator.authenticate(context);
+		
+		Mockito.verify(context).failure(AuthenticationFlowError.INVALID_CLIENT_SESSION);
+		Mockito.verify(context, Mockito.never()).success();
+	}
+	
+	@Test
+	public void testAppTokenReplayIdScoped() {
+		JsonWebToken appToken = new JsonWebToken();
+		appToken.id("jti-1");
+		String id = SmartLaunchContextAuthenticator.appTokenReplayId("realm-1", "launch-app", appToken, "header.claims.signature");
+		assertTrue("Scoped by realm", !id.equals(SmartLaunchContextAuthenticator.appTokenReplayId("realm-2", "launch-app", appToken, "header.claims.signature")));
+		assertTrue("Scoped by launch client", !id.equals(SmartLaunchContextAuthenticator.appTokenReplayId("realm-1", "other-app", appToken, "header.claims.signature")));
+		
+		appToken.issuer("http://launch.example.org");
+		assertTrue("Scoped by issuer", "realm-1:http://launch.example.org:jti-1".equals(
+				SmartLaunchContextAuthenticator.appTokenReplayId("realm-1", "launch-app", appToken, "header.claims.signature")));
+		
+		appToken.id(null);
+		assertTrue("Signature without jti", "realm-1:http://launch.example.org:signature".equals(
+				SmartLaunchContextAuthenticator.appTokenReplayId("realm-1", "launch-app", appToken, "header.claims.signature")));
+	}
+	
+	private HttpServer backchannelServer(int status) throws IOException {
+		return backchannelServer(status, "12345");
+	}
+	
+	private HttpServer backchannelServer(int status, Object patient) throws IOException {
+		JsonWebToken appToken = new JsonWebToken();
+		appToken.id("backchannel-app-token").issuedNow().expiration(Time.currentTime() + 60);
+		appToken.setOtherClaims("patient", patient);
+		String body = "{\"app-token\":\"" + new JWSBuilder().jsonContent(appToken).hmac256(BACKCHANNEL_SECRET) + "\"}";
+		
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/backchannel", exchange -> SmartLaunchBackchannelClientTest.respond(exchange, status, body));
+		server.start();
+		return server;
+	}
+	
+	private void setupBackchannelMocks(HttpServer server, CloseableHttpClient httpClient) {
+		HttpClientProvider httpClientProvider = Mockito.mock(HttpClientProvider.class);
+		Mockito.when(httpClientProvider.getHttpClient()).thenReturn(httpClient);
+		Mockito.when(session.getProvider(HttpClientProvider.class)).thenReturn(httpClientProvider);
+		authenticatorConfig.put(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_BACKCHANNEL_URL,
+				"http://127.0.0.1:" + server.getAddress().getPort() + "/backchannel");
+		authenticatorConfig.put(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_SECRET_KEY,
+				Base64.encodeBytes(BACKCHANNEL_SECRET));
+		authenticatorConfig.put(SmartLaunchContextAuthenticatorFactory.CONFIG_EXTERNAL_SMART_LAUNCH_TOKEN_MODE, 
+				SmartLaunchContextAuthenticatorFactory.TOKEN_MODE_STATELESS);
+	}
+	
 	private void setupDefaultMocks() {
 		context = Mockito.mock(AuthenticationFlowContext.class);
 		sessionModel = Mockito.mock(AuthenticationSessionModel.class);
@@ -0,0 +1,87 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.models.Constants;
+import org.keycloak.services.Urls;
+import org.keycloak.services.resources.LoginActionsService;
+
+import io.igia.keycloak.protocol.smart.SmartOIDCLoginProtocolFactory;
+import io.igia.keycloak.protocol.smart.SmartOIDCLoginProtocolService;
+
+public class SmartLaunchRedirectTemplateTest {
+	private static final URI BASE_URI = URI.create("http://keycloak/auth");
+	
+	@Test
+	public void testBuild() throws Exception {
+		SmartLaunchRedirectTemplate template = SmartLaunchRedirectTemplate.compile(
+				"http://externallaunch.com/launch?token={TOKEN}", BASE_URI, "realmName");
+		
+		String location = template.build("rootSessionId", "accessCode-1.x_y", "clientId", "tabId", "executionId",
+				"http://fhirserver.org", "encodedtoken");
+		
+		assertEquals("Same URL as UriBuilder", uriBuilderLocation("http://externallaunch.com/launch?token={TOKEN}",
+				"rootSessionId", "accessCode-1.x_y", "clientId", "tabId", "executionId", "http://fhirserver.org", "encodedtoken"),
+				location);
+	}
+	
+	@Test
+	public void testBuildEncodesValues() throws Exception {
+		SmartLaunchRedirectTemplate template = SmartLaunchRedirectTemplate.compile(
+				"http://externallaunch.com/launch?token={TOKEN}", BASE_URI, "realmName");
+		
+		String location = template.build("rootSessionId", "code", "client id/é", "tabId", "executionId",
+				"http://fhirserver.org?a=b&c", "encodedtoken");
+		
+		String token = URLEncoder.encode(URLEncoder.encode("client id/é", "UTF-8"), "UTF-8");
+		assertTrue("Client id encoded twice", location.contains(token));
+		assertTrue("Aud encoded once", location.contains("&aud=" + URLEncoder.encode("http://fhirserver.org?a=b&c", "UTF-8") + "&"));
+	}
+	
+	@Test
+	public void testIsFor() {
+		SmartLaunchRedirectTemplate template = SmartLaunchRedirectTemplate.compile(
+				"http://externallaunch.com/launch?token={TOKEN}", BASE_URI, "realmName");
+		
+		assertTrue("Same template", template.isFor("http://externallaunch.com/launch?token={TOKEN}", BASE_URI, "realmName"));
+		assertTrue("Other realm", !template.isFor("http://externallaunch.com/launch?token={TOKEN}", BASE_URI, "other"));
+		assertTrue("Other host", !template.isFor("http://externallaunch.com/launch?token={TOKEN}", URI.create("http://other/auth"), "realmName"));
+		assertTrue("Other launch URL", !template.isFor("http://other.com/launch?token={TOKEN}", BASE_URI, "realmName"));
+	}
+	
+	// the redirect URL as built before templates were compiled
+	private static String uriBuilderLocation(String redirectUrl, String authSessionId, String accessCode, String clientId,
+			String tabId, String executionId, String aud, String accessToken) throws Exception {
+		redirectUrl = redirectUrl + "&aud=" + URLEncoder.encode(aud, StandardCharsets.UTF_8.toString())
+				+ "&" + OAuth2Constants.ACCESS_TOKEN + "=" + accessToken;
+		String externalLaunchToken = Urls.realmBase(BASE_URI).path("{realm}/protocol/" + SmartOIDCLoginProtocolFactory.LOGIN_PROTOCOL)
+				.path(SmartOIDCLoginProtocolService.class, "executeSmartLaunchContext")
+				.replaceQueryParam(LoginActionsService.SESSION_CODE, accessCode)
+				.replaceQueryParam(Constants.CLIENT_ID, clientId)
+				.replaceQueryParam(Constants.TAB_ID, tabId)
+				.replaceQueryParam(LoginActionsService.AUTH_SESSION_ID, authSessionId)
+				.queryParam(Constants.EXECUTION, executionId)
+				.queryParam(SmartLaunchContextAuthenticatorFactory.QUERY_PARAM_APP_TOKEN, "{tokenParameterName}")
+				.build("realmName", "{APP_TOKEN}").toString();
+		return redirectUrl.replace("{TOKEN}", URLEncoder.encode(externalLaunchToken, StandardCharsets.UTF_8.toString()));
+	}
+}
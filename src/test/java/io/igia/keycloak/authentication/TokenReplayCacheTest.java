@@ -0,0 +1,100 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.authentication;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.ActionTokenKeyModel;
+import org.keycloak.models.ActionTokenStoreProvider;
+import org.keycloak.models.ActionTokenValueModel;
+import org.keycloak.models.CodeToTokenStoreProvider;
+import org.keycloak.models.KeycloakSession;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TokenReplayCacheTest {
+	@Test
+	public void testMarkUsed() {
+		TokenReplayCache replayCache = new TokenReplayCache("test", 100);
+		
+		assertTrue("First use accepted", replayCache.markUsed(null, "jti-1", Time.currentTime() + 60));
+		assertFalse("Replay rejected", replayCache.markUsed(null, "jti-1", Time.currentTime() + 60));
+		assertTrue("Other token accepted", replayCache.markUsed(null, "jti-2", Time.currentTime() + 60));
+		assertTrue("Replay counted", replayCache.getReplays() == 1);
+		assertTrue("Accepted counted", replayCache.getAccepted() == 2);
+	}
+	
+	@Test
+	public void testMarkUsedAfterExpiration() {
+		TokenReplayCache replayCache = new TokenReplayCache("test", 100);
+		
+		assertTrue("First use accepted", replayCache.markUsed(null, "jti-1", Time.currentTime() - 1));
+		assertTrue("Expired entry replaced", replayCache.markUsed(null, "jti-1", Time.currentTime() + 60));
+	}
+	
+	@Test
+	public void testMarkUsedWithoutExpiration() {
+		TokenReplayCache replayCache = new TokenReplayCache("test", 100);
+		
+		assertFalse("Token without expiration rejected", replayCache.markUsed(null, "jti-1", 0));
+		assertTrue("Nothing recorded", replayCache.size() == 0);
+	}
+	
+	@Test
+	public void testBounded() {
+		TokenReplayCache replayCache = new TokenReplayCache("test", 100);
+		
+		for (int i = 0; i < 1000; i++) {
+			replayCache.markUsed(null, "jti-" + i, Time.currentTime() + 60);
+		}
+		
+		assertTrue("Cache size bounded", replayCache.size() <= 101);
+		assertTrue("Evictions counted", replayCache.getEvictions() > 0);
+	}
+	
+	@Test
+	public void testMarkUsedOnOtherNode() {
+		KeycloakSession session = Mockito.mock(KeycloakSession.class);
+		ActionTokenStoreProvider store = Mockito.mock(ActionTokenStoreProvider.class);
+		Mockito.when(session.getProvider(ActionTokenStoreProvider.class)).thenReturn(store);
+		Mockito.when(store.get(ArgumentMatchers.any(ActionTokenKeyModel.class))).thenReturn(Mockito.mock(ActionTokenValueModel.class));
+		TokenReplayCache replayCache = new TokenReplayCache("test", 100);
+		
+		assertFalse("Token seen by the cluster store rejected", replayCache.markUsed(session, "jti-1", Time.currentTime() + 60));
+		Mockito.verify(store, Mockito.never()).put(ArgumentMatchers.any(ActionTokenKeyModel.class), ArgumentMatchers.<Map<String, String>>any());
+	}
+	
+	@Test
+	public void testMarkUsedConcurrentlyOnOtherNode() {
+		KeycloakSession session = Mockito.mock(KeycloakSession.class);
+		ActionTokenStoreProvider store = Mockito.mock(ActionTokenStoreProvider.class);
+		CodeToTokenStoreProvider codeStore = Mockito.mock(CodeToTokenStoreProvider.class);
+		Mockito.when(session.getProvider(ActionTokenStoreProvider.class)).thenReturn(store);
+		Mockito.when(session.getProvider(CodeToTokenStoreProvider.class)).thenReturn(codeStore);
+		Mockito.when(codeStore.putIfAbsent(ArgumentMatchers.any(UUID.class))).thenReturn(true, false);
+		
+		assertTrue("First use accepted", new TokenReplayCache("test", 100).markUsed(session, "jti-1", Time.currentTime() + 60));
+		assertFalse("Use claimed by the other node rejected", 
+				new TokenReplayCache("test", 100).markUsed(session, "jti-1", Time.currentTime() + 60));
+		Mockito.verify(store, Mockito.times(1)).put(ArgumentMatchers.any(ActionTokenKeyModel.class), ArgumentMatchers.<Map<String, String>>any());
+	}
+}
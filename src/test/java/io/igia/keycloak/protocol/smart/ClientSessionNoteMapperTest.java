@@ -14,12 +14,16 @@ package io.igia.keycloak.protocol.smart;
 
 import static org.junit.Assert.assertTrue;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.keycloak.models.AuthenticatedClientSessionModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.ProtocolMapperModel;
 import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
 import org.keycloak.representations.AccessToken;
 import org.keycloak.representations.IDToken;
 import org.mockito.Mockito;
@@ -132,4 +136,85 @@ public class ClientSessionNoteMapperTest {
 		assertTrue("No other claim with claim name", 
 				token.getOtherClaims().get("tokenClaimName") == null);
 	}
+
+	@Test
+	public void testSetClaimCompactLaunchContext() {		
+		IDToken token = new AccessToken();		
+		UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+		KeycloakSession session = Mockito.mock(KeycloakSession.class);
+		AuthenticatedClientSessionModel clientSession = Mockito.mock(AuthenticatedClientSessionModel.class);	
+		
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("patient", "12345");
+		Mockito.when(clientSession.getNote(SmartLaunchContext.LAUNCH_CONTEXT_NOTE)).thenReturn(SmartLaunchContext.of(params).encoded());
+		
+		ClientSessionNoteMapper clientSessionNoteMapper = new ClientSessionNoteMapper();
+		ProtocolMapperModel mappingModel = 
+				ClientSessionNoteMapper.createClaimMapper("name", "launch/patient", "patient", "String", true, true);
+		clientSessionNoteMapper.setClaim(token, mappingModel, userSession, session, clientSession);
+	
+		assertTrue("Token claim read from compact launch context", 
+				token.getOtherClaims().get("patient").equals("12345"));
+	}
+
+	@Test
+	public void testSetClaimMatchesAttributeMapperHelper() {		
+		UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+		KeycloakSession session = Mockito.mock(KeycloakSession.class);
+		AuthenticatedClientSessionModel clientSession = Mockito.mock(AuthenticatedClientSessionModel.class);	
+		
+		Mockito.when(clientSession.getNote("clientSessionNote")).thenReturn("42");
+		
+		ClientSessionNoteMapper clientSessionNoteMapper = new ClientSessionNoteMapper();
+		for (String jsonType : new String[] { "String", "long", "int", "boolean", "JSON", null }) {
+			ProtocolMapperModel mappingModel = 
+					ClientSessionNoteMapper.createClaimMapper(String.valueOf(jsonType), "clientSessionNote", "smart.launch\\.context.value", jsonType, true, true);
+			mappingModel.setId("mapper-" + jsonType);
+			IDToken token = new AccessToken();
+			IDToken expected = new AccessToken();
+			clientSessionNoteMapper.setClaim(token, mappingModel, userSession, session, clientSession);
+			OIDCAttributeMapperHelper.mapClaim(expected, mappingModel, "42");
+		
+			assertTrue("Token claims match core mapper for " + jsonType, 
+					token.getOtherClaims().equals(expected.getOtherClaims()));
+		}
+	}
+
+	@Test
+	public void testSetClaimUnknownJsonType() {		
+		IDToken token = new AccessToken();
+		UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+		KeycloakSession session = Mockito.mock(KeycloakSession.class);
+		AuthenticatedClientSessionModel clientSession = Mockito.mock(AuthenticatedClientSessionModel.class);	
+		Mockito.when(clientSession.getNote("clientSessionNote")).thenReturn("42");
+		
+		ClientSessionNoteMapper clientSessionNoteMapper = new ClientSessionNoteMapper();
+		ProtocolMapperModel mappingModel = 
+				ClientSessionNoteMapper.createClaimMapper("name", "clientSessionNote", "tokenClaimName", "double", true, true);
+		clientSessionNoteMapper.setClaim(token, mappingModel, userSession, session, clientSession);
+	
+		assertTrue("Note value of unknown type passed through as is", "42".equals(token.getOtherClaims().get("tokenClaimName")));
+	}
+
+	@Test
+	public void testNoteClaimCompiledOnce() {
+		ClientSessionNoteMapper clientSessionNoteMapper = new ClientSessionNoteMapper();
+		ProtocolMapperModel mappingModel = 
+				ClientSessionNoteMapper.createClaimMapper("name", "clientSessionNote", "tokenClaimName", "String", true, true);
+		mappingModel.setId("mapperId");
+		
+		ClientSessionNoteMapper.NoteClaim noteClaim = clientSessionNoteMapper.getNoteClaim(mappingModel);
+		assertTrue("Compiled config reused", noteClaim == clientSessionNoteMapper.getNoteClaim(mappingModel));
+		
+		// updated mapper models come with a new config map
+		Map<String, String> config = new HashMap<>(mappingModel.getConfig());
+		assertTrue("Equal config reused", noteClaim == clientSessionNoteMapper.getNoteClaim(withConfig(mappingModel, config)));
+		config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "false");
+		assertTrue("Recompiled on config change", noteClaim != clientSessionNoteMapper.getNoteClaim(withConfig(mappingModel, config)));
+	}
+
+	private static ProtocolMapperModel withConfig(ProtocolMapperModel mappingModel, Map<String, String> config) {
+		mappingModel.setConfig(new HashMap<>(config));
+		return mappingModel;
+	}
 }
@@ -0,0 +1,57 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import static org.junit.Assert.assertTrue;
+
+import javax.ws.rs.core.Context;
+
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.keycloak.models.KeycloakSession;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EndpointInjectorTest {
+	@After
+	public void clearContext() {
+		ResteasyProviderFactory.clearContextData();
+	}
+	
+	@Test
+	public void testInjectBindsCurrentRequest() {
+		KeycloakSession firstSession = Mockito.mock(KeycloakSession.class);
+		KeycloakSession secondSession = Mockito.mock(KeycloakSession.class);
+		
+		ResteasyProviderFactory.pushContext(KeycloakSession.class, firstSession);
+		ContextEndpoint first = EndpointInjector.inject(new ContextEndpoint());
+		assertTrue("Context injected", first.session != null);
+		first.session.getTransactionManager();
+		Mockito.verify(firstSession).getTransactionManager();
+		
+		// the injector resolved for the first request is reused for the second one
+		ResteasyProviderFactory.pushContext(KeycloakSession.class, secondSession);
+		ContextEndpoint second = EndpointInjector.inject(new ContextEndpoint());
+		second.session.getTransactionManager();
+		Mockito.verify(secondSession).getTransactionManager();
+		Mockito.verify(firstSession, Mockito.times(1)).getTransactionManager();
+	}
+	
+	public static class ContextEndpoint {
+		@Context
+		private KeycloakSession session;
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class IntrospectionCacheTest {
+	private static final byte[] RESPONSE = "{\"active\":true}".getBytes(StandardCharsets.UTF_8);
+	private static final long NOW = 1_000_000L;
+
+	@Test
+	public void testExpiry() {
+		IntrospectionCache cache = new IntrospectionCache();
+		String key = IntrospectionCache.key("realm", "token");
+		cache.put(key, "realm", "session", RESPONSE, SmartScopes.EMPTY, 0, NOW);
+
+		assertTrue("Cached", response(cache, key, NOW + 1) == RESPONSE);
+		assertTrue("Expired after the TTL", response(cache, key, NOW + IntrospectionCache.DEFAULT_TTL_MILLIS) == null);
+
+		cache.put(key, "realm", "session", RESPONSE, SmartScopes.EMPTY, NOW + 1000, NOW);
+		assertTrue("Cached until the token expires", response(cache, key, NOW + 999) == RESPONSE);
+		assertTrue("Expired with the token", response(cache, key, NOW + 1000) == null);
+
+		cache.put(key, "realm", "session", RESPONSE, SmartScopes.EMPTY, NOW, NOW);
+		assertTrue("Expired token not cached", cache.size() == 0);
+	}
+
+	@Test
+	public void testKeys() {
+		String key = IntrospectionCache.key("realm", "token");
+		assertTrue("Stable key", key.equals(IntrospectionCache.key("realm", "token")));
+		assertTrue("Token not in key", !key.contains("token"));
+		assertTrue("Realm scoped", !key.equals(IntrospectionCache.key("other", "token")));
+		assertTrue("Token scoped", !key.equals(IntrospectionCache.key("realm", "other")));
+	}
+
+	@Test
+	public void testBounded() {
+		IntrospectionCache cache = new IntrospectionCache();
+		cache.configure(IntrospectionCache.DEFAULT_TTL_MILLIS, 64);
+		String first = IntrospectionCache.key("realm", "token-0");
+		cache.put(first, "realm", "session", RESPONSE, SmartScopes.EMPTY, 0, NOW);
+		for (int i = 1; i < 10000; i++) {
+			cache.get(first, NOW);
+			cache.put(IntrospectionCache.key("realm", "token-" + i), "realm", "session", RESPONSE, SmartScopes.EMPTY, 0, NOW);
+		}
+		assertTrue("Bounded size", cache.size() <= 64);
+		assertTrue("Recently used entry kept", response(cache, first, NOW) == RESPONSE);
+
+		cache.configure(0, 64);
+		cache.put(first, "realm", "session", RESPONSE, SmartScopes.EMPTY, 0, NOW);
+		assertTrue("Disabled with zero TTL", cache.size() == 0);
+	}
+
+	@Test
+	public void testEviction() {
+		IntrospectionCache cache = new IntrospectionCache();
+		IntrospectionCacheEventListener listener = new IntrospectionCacheEventListener(cache);
+		String first = IntrospectionCache.key("realm", "first");
+		String second = IntrospectionCache.key("realm", "second");
+		String other = IntrospectionCache.key("other", "first");
+		cache.put(first, "realm", "session-1", RESPONSE, SmartScopes.EMPTY, 0, NOW);
+		cache.put(second, "realm", "session-2", RESPONSE, SmartScopes.EMPTY, 0, NOW);
+		cache.put(other, "other", "session-1", RESPONSE, SmartScopes.EMPTY, 0, NOW);
+
+		Event logout = new Event();
+		logout.setType(EventType.LOGOUT);
+		logout.setRealmId("realm");
+		logout.setSessionId("session-1");
+		listener.onEvent(logout);
+		assertTrue("Logged out session evicted", response(cache, first, NOW) == null);
+		assertTrue("Other session kept", response(cache, second, NOW) == RESPONSE);
+		assertTrue("Other realm kept", response(cache, other, NOW) == RESPONSE);
+
+		AdminEvent created = adminEvent(ResourceType.USER, OperationType.CREATE);
+		listener.onEvent(created, false);
+		assertTrue("User creation ignored", response(cache, second, NOW) == RESPONSE);
+
+		listener.onEvent(adminEvent(ResourceType.CLIENT_SCOPE, OperationType.UPDATE), false);
+		assertTrue("Unrelated change ignored", response(cache, second, NOW) == RESPONSE);
+
+		listener.onEvent(adminEvent(ResourceType.USER, OperationType.UPDATE), false);
+		assertTrue("Realm evicted on user update", response(cache, second, NOW) == null);
+		assertTrue("Other realm kept on user update", response(cache, other, NOW) == RESPONSE);
+	}
+
+	private static AdminEvent adminEvent(ResourceType resourceType, OperationType operationType) {
+		AdminEvent event = new AdminEvent();
+		event.setRealmId("realm");
+		event.setResourceType(resourceType);
+		event.setOperationType(operationType);
+		return event;
+	}
+
+	private static byte[] response(IntrospectionCache cache, String key, long nowMillis) {
+		IntrospectionCache.Entry entry = cache.get(key, nowMillis);
+		return entry == null ? null : entry.getResponse();
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.ClientScopeModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.util.JsonSerialization;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SmartConfigurationCacheTest {
+	private static final URI BASE_URI = URI.create("http://localhost:9080/auth");
+	
+	@After
+	public void resetTime() {
+		Time.setOffset(0);
+	}
+	
+	@Test
+	public void testConfiguration() throws Exception {
+		RealmModel realm = realm("configuration-realm");
+		
+		SmartConfigurationCache.Document document = new SmartConfigurationCache().get(realm, BASE_URI);
+		JsonNode configuration = JsonSerialization.readValue(document.getJson(), JsonNode.class);
+		
+		assertTrue("Authorization endpoint", "http://localhost:9080/auth/realms/igia/protocol/openid-connect/auth"
+				.equals(configuration.get("authorization_endpoint").asText()));
+		assertTrue("SMART token endpoint", "http://localhost:9080/auth/realms/igia/protocol/smart-openid-connect/token"
+				.equals(configuration.get("token_endpoint").asText()));
+		assertTrue("SMART introspection endpoint", "http://localhost:9080/auth/realms/igia/protocol/smart-openid-connect/token/introspect"
+				.equals(configuration.get("introspection_endpoint").asText()));
+		assertTrue("Realm scopes", configuration.get("scopes_supported").toString()
+				.equals("[\"launch/patient\",\"offline_access\",\"openid\",\"patient/*.read\"]"));
+		List<String> capabilities = Arrays.asList(JsonSerialization.readValue(configuration.get("capabilities").toString(), String[].class));
+		assertTrue("Standalone patient context", capabilities.contains("context-standalone-patient"));
+		assertTrue("No standalone encounter context", !capabilities.contains("context-standalone-encounter"));
+		assertTrue("Patient and offline permissions", capabilities.contains("permission-patient") && capabilities.contains("permission-offline"));
+		assertTrue("Only S256 PKCE", configuration.get("code_challenge_methods_supported").toString().equals("[\"S256\"]"));
+	}
+	
+	@Test
+	public void testBounded() {
+		RealmModel realm = realm("bounded-realm");
+		SmartConfigurationCache cache = new SmartConfigurationCache();
+		
+		for (int i = 0; i < 3 * SmartConfigurationCache.MAX_ENTRIES; i++) {
+			cache.get(realm, URI.create("http://host" + i + ":9080/auth"));
+		}
+		
+		assertTrue("Documents bounded", cache.size() <= SmartConfigurationCache.MAX_ENTRIES);
+	}
+	
+	@Test
+	public void testDocumentCached() {
+		RealmModel realm = realm("cached-realm");
+		SmartConfigurationCache cache = new SmartConfigurationCache();
+		
+		SmartConfigurationCache.Document document = cache.get(realm, BASE_URI);
+		assertTrue("Document reused", document == cache.get(realm, BASE_URI));
+		Mockito.verify(realm, Mockito.times(1)).getClientScopes();
+		
+		assertTrue("Other base URI", document != cache.get(realm, URI.create("https://keycloak/auth")));
+		cache.removeRealm("cached-realm");
+		assertTrue("Rebuilt after realm removal", document != cache.get(realm, BASE_URI));
+	}
+	
+	@Test
+	public void testRevalidate() {
+		RealmModel realm = realm("revalidated-realm");
+		SmartConfigurationCache cache = new SmartConfigurationCache();
+		SmartConfigurationCache.Document document = cache.get(realm, BASE_URI);
+		
+		Time.setOffset((int) (SmartConfigurationCache.REVALIDATE_MILLIS / 1000) + 1);
+		SmartConfigurationCache.Document revalidated = cache.get(realm, BASE_URI);
+		assertTrue("Unchanged document keeps its ETag", document != revalidated && document.getEtag().equals(revalidated.getEtag()));
+		
+		ClientScopeModel encounter = clientScope("launch/encounter");
+		Mockito.when(realm.getClientScopes()).thenReturn(Arrays.asList(encounter));
+		Time.setOffset(2 * ((int) (SmartConfigurationCache.REVALIDATE_MILLIS / 1000) + 1));
+		assertTrue("Changed document gets a new ETag", !document.getEtag().equals(cache.get(realm, BASE_URI).getEtag()));
+	}
+	
+	@Test
+	public void testMatches() {
+		SmartConfigurationCache.Document document = new SmartConfigurationCache().get(realm("matches-realm"), BASE_URI);
+		String etag = document.getEtag();
+		
+		assertTrue("Strong ETag", etag.startsWith("\"") && etag.endsWith("\""));
+		assertTrue("No header", !document.matches(null));
+		assertTrue("Same ETag", document.matches(etag));
+		assertTrue("Weak ETag", document.matches("W/" + etag));
+		assertTrue("ETag list", document.matches("\"other\", " + etag));
+		assertTrue("Any", document.matches("*"));
+		assertTrue("Other ETag", !document.matches("\"other\""));
+	}
+	
+	private static RealmModel realm(String id) {
+		RealmModel realm = Mockito.mock(RealmModel.class);
+		Mockito.when(realm.getId()).thenReturn(id);
+		Mockito.when(realm.getName()).thenReturn("igia");
+		List<ClientScopeModel> clientScopes = Arrays.asList(clientScope("launch/patient"), clientScope("patient/*.read"), 
+				clientScope("offline_access"));
+		Mockito.when(realm.getClientScopes()).thenReturn(clientScopes);
+		return realm;
+	}
+	
+	private static ClientScopeModel clientScope(String name) {
+		ClientScopeModel clientScope = Mockito.mock(ClientScopeModel.class);
+		Mockito.when(clientScope.getName()).thenReturn(name);
+		Mockito.when(clientScope.getProtocol()).thenReturn("openid-connect");
+		return clientScope;
+	}
+}
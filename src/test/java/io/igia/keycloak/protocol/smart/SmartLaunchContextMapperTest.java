@@ -0,0 +1,154 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.IDToken;
+import org.keycloak.util.JsonSerialization;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SmartLaunchContextMapperTest {
+	@Test
+	public void testTransformAccessTokenAllParams() {
+		AccessToken token = new AccessToken();
+		AuthenticatedClientSessionModel clientSession = clientSession();
+		
+		SmartLaunchContextMapper mapper = new SmartLaunchContextMapper();
+		ProtocolMapperModel mappingModel = SmartLaunchContextMapper.createLaunchContextMapper("launch", null, true, false, false);
+		mapper.transformAccessToken(token, mappingModel, Mockito.mock(KeycloakSession.class), Mockito.mock(UserSessionModel.class), clientSession);
+		
+		assertTrue("Patient claim", "12345".equals(token.getOtherClaims().get("patient")));
+		assertTrue("Encounter claim", "67890".equals(token.getOtherClaims().get("encounter")));
+		assertTrue("Boolean param as String", "true".equals(token.getOtherClaims().get("need_patient_banner")));
+		assertTrue("Empty param not mapped", !token.getOtherClaims().containsKey("intent"));
+	}
+	
+	@Test
+	public void testTransformAccessTokenAllowlist() {
+		AccessToken token = new AccessToken();
+		AuthenticatedClientSessionModel clientSession = clientSession();
+		
+		SmartLaunchContextMapper mapper = new SmartLaunchContextMapper();
+		ProtocolMapperModel mappingModel = SmartLaunchContextMapper.createLaunchContextMapper("launch", 
+				"patient need_patient_banner:boolean fhirContext:JSON missing:long", true, false, false);
+		mapper.transformAccessToken(token, mappingModel, Mockito.mock(KeycloakSession.class), Mockito.mock(UserSessionModel.class), clientSession);
+		
+		assertTrue("Patient claim", "12345".equals(token.getOtherClaims().get("patient")));
+		assertTrue("Encounter not in allowlist", !token.getOtherClaims().containsKey("encounter"));
+		assertTrue("Boolean claim", Boolean.TRUE.equals(token.getOtherClaims().get("need_patient_banner")));
+		assertTrue("JSON claim", token.getOtherClaims().get("fhirContext") instanceof JsonNode);
+		assertTrue("Missing param not mapped", !token.getOtherClaims().containsKey("missing"));
+	}
+	
+	@Test
+	public void testTransformIDTokenNotIncluded() {
+		IDToken token = new IDToken();
+		AuthenticatedClientSessionModel clientSession = Mockito.mock(AuthenticatedClientSessionModel.class);
+		
+		SmartLaunchContextMapper mapper = new SmartLaunchContextMapper();
+		ProtocolMapperModel mappingModel = SmartLaunchContextMapper.createLaunchContextMapper("launch", null, true, false, false);
+		mapper.transformIDToken(token, mappingModel, Mockito.mock(KeycloakSession.class), Mockito.mock(UserSessionModel.class), clientSession);
+		
+		assertTrue("No claims in ID token", token.getOtherClaims().isEmpty());
+		Mockito.verifyZeroInteractions(clientSession);
+	}
+	
+	@Test
+	public void testTransformAccessTokenReservedClaims() throws IOException {
+		Map<String, String> params = new LinkedHashMap<>();
+		params.put("patient", "12345");
+		params.put("sub", "admin");
+		params.put("scope", "system/*.*");
+		params.put("custom", "value");
+		AuthenticatedClientSessionModel clientSession = Mockito.mock(AuthenticatedClientSessionModel.class);
+		Mockito.when(clientSession.getNote(SmartLaunchContext.LAUNCH_CONTEXT_NOTE)).thenReturn(SmartLaunchContext.of(params).encoded());
+		SmartLaunchContextMapper mapper = new SmartLaunchContextMapper();
+		
+		for (String launchClaims : new String[] { null, "patient sub scope custom" }) {
+			AccessToken token = new AccessToken();
+			token.subject("real-user");
+			token.setScope("openid");
+			ProtocolMapperModel mappingModel = SmartLaunchContextMapper.createLaunchContextMapper("launch", launchClaims, true, false, false);
+			mapper.transformAccessToken(token, mappingModel, Mockito.mock(KeycloakSession.class), Mockito.mock(UserSessionModel.class), clientSession);
+			
+			assertTrue("Patient claim", "12345".equals(token.getOtherClaims().get("patient")));
+			assertTrue("Form supplied sub not mapped", !token.getOtherClaims().containsKey("sub"));
+			assertTrue("Form supplied scope not mapped", !token.getOtherClaims().containsKey("scope"));
+			AccessToken parsed = JsonSerialization.readValue(JsonSerialization.writeValueAsString(token), AccessToken.class);
+			assertTrue("Subject kept", "real-user".equals(parsed.getSubject()));
+			assertTrue("Scope kept", "openid".equals(parsed.getScope()));
+		}
+	}
+	
+	@Test
+	public void testTransformAccessTokenDefaultOnlyLaunchParams() {
+		Map<String, String> params = new LinkedHashMap<>();
+		params.put("patient", "12345");
+		params.put("custom", "value");
+		AuthenticatedClientSessionModel clientSession = Mockito.mock(AuthenticatedClientSessionModel.class);
+		Mockito.when(clientSession.getNote(SmartLaunchContext.LAUNCH_CONTEXT_NOTE)).thenReturn(SmartLaunchContext.of(params).encoded());
+		AccessToken token = new AccessToken();
+		
+		SmartLaunchContextMapper mapper = new SmartLaunchContextMapper();
+		ProtocolMapperModel mappingModel = SmartLaunchContextMapper.createLaunchContextMapper("launch", null, true, false, false);
+		mapper.transformAccessToken(token, mappingModel, Mockito.mock(KeycloakSession.class), Mockito.mock(UserSessionModel.class), clientSession);
+		
+		assertTrue("Patient claim", "12345".equals(token.getOtherClaims().get("patient")));
+		assertTrue("Unknown param needs the allowlist", !token.getOtherClaims().containsKey("custom"));
+	}
+	
+	@Test
+	public void testLaunchClaimsCompiledOnce() {
+		SmartLaunchContextMapper mapper = new SmartLaunchContextMapper();
+		ProtocolMapperModel mappingModel = SmartLaunchContextMapper.createLaunchContextMapper("launch", "patient", true, false, false);
+		mappingModel.setId("mapperId");
+		
+		SmartLaunchContextMapper.LaunchClaims launchClaims = mapper.getLaunchClaims(mappingModel);
+		assertTrue("Compiled config reused", launchClaims == mapper.getLaunchClaims(mappingModel));
+		
+		// updated mapper models come with a new config map
+		Map<String, String> config = new HashMap<>(mappingModel.getConfig());
+		config.put(SmartLaunchContextMapper.LAUNCH_CLAIMS, "patient encounter");
+		mappingModel.setConfig(config);
+		assertTrue("Recompiled on config change", launchClaims != mapper.getLaunchClaims(mappingModel));
+	}
+	
+	private static AuthenticatedClientSessionModel clientSession() {
+		AuthenticatedClientSessionModel clientSession = Mockito.mock(AuthenticatedClientSessionModel.class);
+		Map<String, String> params = new LinkedHashMap<>();
+		params.put("patient", "12345");
+		params.put("encounter", "67890");
+		params.put("need_patient_banner", "true");
+		params.put("fhirContext", "[{\"reference\":\"Observation/1\"}]");
+		params.put("intent", "");
+		Mockito.when(clientSession.getNote(SmartLaunchContext.LAUNCH_CONTEXT_NOTE)).thenReturn(SmartLaunchContext.of(params).encoded());
+		return clientSession;
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.ActionTokenKeyModel;
+import org.keycloak.models.ActionTokenStoreProvider;
+import org.keycloak.models.ActionTokenValueModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SmartLaunchContextStoreTest {
+	private KeycloakSession session;
+	private ActionTokenStoreProvider actionTokenStore;
+	private RealmModel realm;
+	private Map<String, Map<String, String>> entries;
+	
+	@Before
+	public void setup() {
+		session = Mockito.mock(KeycloakSession.class);
+		actionTokenStore = Mockito.mock(ActionTokenStoreProvider.class);
+		realm = Mockito.mock(RealmModel.class);
+		entries = new HashMap<>();
+		Mockito.when(session.getProvider(ActionTokenStoreProvider.class)).thenReturn(actionTokenStore);
+		Mockito.when(realm.getId()).thenReturn("realmId");
+		Mockito.doAnswer(invocation -> {
+			ActionTokenKeyModel key = invocation.getArgument(0);
+			entries.put(key.getActionId() + key.getActionVerificationNonce(), invocation.getArgument(1));
+			return null;
+		}).when(actionTokenStore).put(ArgumentMatchers.any(ActionTokenKeyModel.class), ArgumentMatchers.<Map<String, String>>any());
+		Mockito.when(actionTokenStore.get(ArgumentMatchers.any(ActionTokenKeyModel.class))).thenAnswer(invocation -> {
+			ActionTokenKeyModel key = invocation.getArgument(0);
+			Map<String, String> notes = entries.get(key.getActionId() + key.getActionVerificationNonce());
+			if (notes == null) {
+				return null;
+			}
+			return value(notes);
+		});
+		Mockito.when(actionTokenStore.remove(ArgumentMatchers.any(ActionTokenKeyModel.class))).thenAnswer(invocation -> {
+			ActionTokenKeyModel key = invocation.getArgument(0);
+			Map<String, String> notes = entries.remove(key.getActionId() + key.getActionVerificationNonce());
+			return notes == null ? null : value(notes);
+		});
+	}
+	
+	private static ActionTokenValueModel value(Map<String, String> notes) {
+		ActionTokenValueModel value = Mockito.mock(ActionTokenValueModel.class);
+		Mockito.when(value.getNotes()).thenReturn(notes);
+		Mockito.when(value.getNote(ArgumentMatchers.anyString())).thenAnswer(invocation -> notes.get(invocation.getArgument(0)));
+		return value;
+	}
+	
+	@Test
+	public void testRegisterAndResolve() {
+		SmartLaunchContextStore store = new SmartLaunchContextStore(session);
+		Map<String, String> context = new LinkedHashMap<>();
+		context.put("patient", "12345");
+		context.put("encounter", "67890");
+		
+		String launchId = store.register(realm, "app", null, context, 0);
+		SmartLaunchContext resolved = store.resolve(realm, launchId, "app", "http://fhirserver.org");
+		
+		assertTrue("Launch id generated", launchId != null && launchId.length() >= 22);
+		assertTrue("Launch ids random", !launchId.equals(store.register(realm, "app", null, context, 0)));
+		assertEquals("Patient resolved", "12345", resolved.get("patient"));
+		assertEquals("Encounter resolved", "67890", resolved.get("encounter"));
+		assertTrue("Binding notes not in the context", resolved.asMap().size() == 2);
+		assertTrue("Launch id used once", store.resolve(realm, launchId, "app", "http://fhirserver.org") == null);
+		assertTrue("Unknown launch id", store.resolve(realm, "unknown", "app", null) == null);
+	}
+	
+	@Test
+	public void testResolveOtherClient() {
+		SmartLaunchContextStore store = new SmartLaunchContextStore(session);
+		Map<String, String> context = new LinkedHashMap<>();
+		context.put("patient", "12345");
+		String launchId = store.register(realm, "app", "http://fhirserver.org", context, 0);
+		
+		assertTrue("Other client rejected", store.resolve(realm, launchId, "other-app", "http://fhirserver.org") == null);
+		assertTrue("Other FHIR server rejected", store.resolve(realm, launchId, "app", "http://other.org") == null);
+		assertTrue("Not used up by a rejected client", store.resolve(realm, launchId, "app", "http://fhirserver.org") != null);
+	}
+	
+	@Test
+	public void testRegisterLifespan() {
+		SmartLaunchContextStore store = new SmartLaunchContextStore(session);
+		Map<String, String> context = new LinkedHashMap<>();
+		context.put("patient", "12345");
+		
+		store.register(realm, "app", null, context, 0);
+		store.register(realm, "app", null, context, 100_000);
+		
+		ArgumentCaptor<ActionTokenKeyModel> keys = ArgumentCaptor.forClass(ActionTokenKeyModel.class);
+		Mockito.verify(actionTokenStore, Mockito.times(2)).put(keys.capture(), ArgumentMatchers.<Map<String, String>>any());
+		int now = Time.currentTime();
+		assertTrue("Default lifespan", keys.getAllValues().get(0).getExpiration() - now <= SmartLaunchContextStore.DEFAULT_LIFESPAN_SECONDS);
+		assertTrue("Lifespan capped", keys.getAllValues().get(1).getExpiration() - now <= SmartLaunchContextStore.MAX_LIFESPAN_SECONDS);
+	}
+	
+	@Test
+	public void testResolveOtherRealm() {
+		SmartLaunchContextStore store = new SmartLaunchContextStore(session);
+		Map<String, String> context = new LinkedHashMap<>();
+		context.put("patient", "12345");
+		String launchId = store.register(realm, "app", null, context, 0);
+		
+		RealmModel otherRealm = Mockito.mock(RealmModel.class);
+		Mockito.when(otherRealm.getId()).thenReturn("otherRealmId");
+		
+		assertTrue("Launch ids are per realm", store.resolve(otherRealm, launchId, "app", null) == null);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testRegisterTooManyParams() {
+		Map<String, String> context = new LinkedHashMap<>();
+		for (int i = 0; i <= SmartLaunchContextStore.MAX_PARAMS; i++) {
+			context.put("param" + i, "value");
+		}
+		new SmartLaunchContextStore(session).register(realm, "app", null, context, 0);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testRegisterReservedParam() {
+		new SmartLaunchContextStore(session).register(realm, "app", null,
+				Collections.singletonMap(SmartLaunchContextStore.CLIENT_ID_NOTE, "other-app"), 0);
+	}
+}
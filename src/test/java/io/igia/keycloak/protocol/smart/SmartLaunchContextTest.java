@@ -0,0 +1,94 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import io.igia.keycloak.authentication.SmartLaunchContextAuthenticator;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SmartLaunchContextTest {
+	@Test
+	public void testEncodeDecode() {
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		params.put("patient", "12345");
+		params.put("fhirContext", "[{\"reference\":\"Observation/1:2\"}]");
+		params.put("intent", "");
+		params.put("encounter", "éncounter:42");
+		
+		String encoded = SmartLaunchContext.of(params).encoded();
+		SmartLaunchContext decoded = SmartLaunchContext.decode(encoded);
+		
+		assertTrue("Decoded launch context matches encoded params", decoded.asMap().equals(params));
+		assertTrue("Encoding is versioned", encoded.startsWith("1:"));
+	}
+	
+	@Test
+	public void testDecodeMalformed() {
+		assertTrue("Malformed note decodes to empty context", SmartLaunchContext.decode("1:7:pat").isEmpty());
+		assertTrue("Unknown version decodes to empty context", SmartLaunchContext.decode("9:7:patient5:12345").isEmpty());
+		assertTrue("Missing note decodes to empty context", SmartLaunchContext.decode(null).isEmpty());
+	}
+	
+	@Test
+	public void testFromClientSessionLegacyNotes() {
+		AuthenticatedClientSessionModel clientSession = Mockito.mock(AuthenticatedClientSessionModel.class);
+		Map<String, String> notes = new LinkedHashMap<String, String>();
+		notes.put(SmartLaunchContextAuthenticator.LAUNCH_SCOPE_PREFIX + "patient", "12345");
+		notes.put("scope", "openid launch/patient");
+		Mockito.when(clientSession.getNotes()).thenReturn(notes);
+		
+		SmartLaunchContext launchContext = SmartLaunchContext.fromClientSession(clientSession);
+		
+		assertTrue("Legacy launch note read", launchContext.get("patient").equals("12345"));
+		assertTrue("Only launch notes read", launchContext.asMap().size() == 1);
+		Mockito.verify(clientSession, Mockito.never()).setNote(Mockito.anyString(), Mockito.anyString());
+	}
+	
+	@Test
+	public void testSnapshot() {
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		params.put("patient", "12345");
+		params.put("intent", "");
+		String encoded = SmartLaunchContext.of(params).encoded();
+		
+		SmartLaunchContext snapshot = SmartLaunchContext.snapshot(encoded);
+		
+		assertTrue("Snapshot shared for equal note values", snapshot == SmartLaunchContext.snapshot(new String(encoded)));
+		assertTrue("Claims without empty values", snapshot.claims().size() == 1 && "12345".equals(snapshot.claims().get("patient")));
+		assertTrue("Empty note", SmartLaunchContext.snapshot(null).claims().isEmpty());
+	}
+	
+	@Test
+	public void testGetLaunchNote() {
+		AuthenticatedClientSessionModel clientSession = Mockito.mock(AuthenticatedClientSessionModel.class);
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		params.put("patient", "12345");
+		Mockito.when(clientSession.getNote(SmartLaunchContext.LAUNCH_CONTEXT_NOTE))
+			.thenReturn(SmartLaunchContext.of(params).encoded());
+		
+		assertTrue("Launch note read from compact note", 
+				"12345".equals(SmartLaunchContext.getLaunchNote(clientSession, SmartLaunchContextAuthenticator.LAUNCH_SCOPE_PREFIX + "patient")));
+		assertTrue("Missing launch param", 
+				SmartLaunchContext.getLaunchNote(clientSession, SmartLaunchContextAuthenticator.LAUNCH_SCOPE_PREFIX + "encounter") == null);
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.Constants;
+import org.keycloak.representations.AccessToken;
+
+import io.igia.keycloak.authentication.TokenReplayCache;
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Outcome;
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Stage;
+
+public class SmartLaunchMetricsTest {
+	@Test
+	public void testRecord() {
+		SmartLaunchMetrics metrics = new SmartLaunchMetrics();
+		
+		long start = System.nanoTime();
+		metrics.record("igia", Stage.ACTION, Outcome.SUCCESS, start);
+		metrics.record("igia", Stage.ACTION, Outcome.SUCCESS, start);
+		metrics.record("igia", Stage.ACTION, Outcome.REPLAYED_APP_TOKEN, start);
+		metrics.record("other", Stage.AUTHENTICATE, Outcome.ATTEMPTED, start);
+		
+		assertTrue("Success counted", metrics.getCount("igia", Stage.ACTION, Outcome.SUCCESS) == 2);
+		assertTrue("Failure reason counted", metrics.getCount("igia", Stage.ACTION, Outcome.REPLAYED_APP_TOKEN) == 1);
+		assertTrue("Realms counted apart", metrics.getCount("igia", Stage.AUTHENTICATE, Outcome.ATTEMPTED) == 0);
+		assertTrue("Latency recorded", metrics.getLatency("igia", Stage.ACTION).getCount() == 3);
+	}
+	
+	@Test
+	public void testExport() {
+		SmartLaunchMetrics metrics = new SmartLaunchMetrics();
+		metrics.record("igia", Stage.ACTION, Outcome.SUCCESS, System.nanoTime());
+		metrics.record("other", Stage.AUTHENTICATE, Outcome.ATTEMPTED, System.nanoTime());
+		
+		String exported = metrics.export("igia");
+		
+		assertTrue("Counter exported", exported.contains("smart_launch_stage_total{realm=\"igia\",stage=\"action\",outcome=\"success\"} 1\n"));
+		assertTrue("Histogram exported", exported.contains("# TYPE smart_launch_stage_duration_seconds histogram\n"));
+		assertTrue("Bucket exported", exported.contains("smart_launch_stage_duration_seconds_bucket{realm=\"igia\",stage=\"action\",le=\"30\"} 1\n"));
+		assertTrue("Inf bucket exported", exported.contains("smart_launch_stage_duration_seconds_bucket{realm=\"igia\",stage=\"action\",le=\"+Inf\"} 1\n"));
+		assertTrue("Count exported", exported.contains("smart_launch_stage_duration_seconds_count{realm=\"igia\",stage=\"action\"} 1\n"));
+		assertTrue("Other realm not exported", !exported.contains("realm=\"other\""));
+		assertTrue("All realms exported", metrics.export(null).contains("realm=\"other\""));
+	}
+	
+	@Test
+	public void testExportReplayCache() {
+		SmartLaunchMetrics metrics = new SmartLaunchMetrics();
+		TokenReplayCache replayCache = new TokenReplayCache("test-replay", 100);
+		replayCache.markUsed(null, "jti-1", Time.currentTime() + 60);
+		replayCache.markUsed(null, "jti-1", Time.currentTime() + 60);
+		metrics.registerReplayCache(replayCache);
+		
+		String exported = metrics.export("igia");
+		
+		assertTrue("Accepted exported", exported.contains("smart_token_replay_total{cache=\"test-replay\",result=\"accepted\"} 1\n"));
+		assertTrue("Replays exported", exported.contains("smart_token_replay_total{cache=\"test-replay\",result=\"replayed\"} 1\n"));
+		assertTrue("Evictions exported", exported.contains("smart_token_replay_cache_removed_total{cache=\"test-replay\",reason=\"evicted\"} 0\n"));
+		assertTrue("Size exported", exported.contains("smart_token_replay_cache_entries{cache=\"test-replay\"} 1\n"));
+	}
+	
+	@Test
+	public void testMayReadMetrics() {
+		AccessToken monitoring = new AccessToken();
+		monitoring.setRealmAccess(new AccessToken.Access().addRole(SmartLaunchMetrics.METRICS_ROLE));
+		AccessToken admin = new AccessToken();
+		admin.addAccess(Constants.REALM_MANAGEMENT_CLIENT_ID).addRole(AdminRoles.VIEW_REALM);
+		AccessToken user = new AccessToken();
+		user.setRealmAccess(new AccessToken.Access().addRole("user"));
+		
+		assertTrue("Monitoring role allowed", SmartOIDCLoginProtocolService.mayReadMetrics(monitoring));
+		assertTrue("Realm viewer allowed", SmartOIDCLoginProtocolService.mayReadMetrics(admin));
+		assertTrue("Other users denied", !SmartOIDCLoginProtocolService.mayReadMetrics(user));
+		assertTrue("Anonymous denied", !SmartOIDCLoginProtocolService.mayReadMetrics(null));
+	}
+	
+	@Test
+	public void testLatencyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		
+		long median = histogram.quantileNanos(0.5);
+		long p99 = histogram.quantileNanos(0.99);
+		assertTrue("Median within bucket precision " + median, median >= 500_000 && median <= 500_000 * 1.13);
+		assertTrue("p99 within bucket precision " + p99, p99 >= 990_000 && p99 <= 990_000 * 1.13);
+		assertTrue("Sum recorded", histogram.getSumNanos() == 500_500_000L);
+		assertTrue("Empty histogram", new LatencyHistogram().quantileNanos(0.5) == 0);
+	}
+	
+	@Test
+	public void testLatencyHistogramCumulativeCounts() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(500_000L);
+		histogram.record(2_000_000L);
+		histogram.record(2_000_000L);
+		histogram.record(60_000_000_000L);
+		
+		long[] counts = histogram.cumulativeCounts(new long[] { 1_000_000L, 10_000_000L, 1_000_000_000L });
+		
+		assertTrue("At or below 1 ms", counts[0] == 1);
+		assertTrue("At or below 10 ms", counts[1] == 3);
+		assertTrue("At or below 1 s", counts[2] == 3);
+		assertTrue("Total", counts[3] == 4);
+	}
+	
+	@Test
+	public void testLatencyHistogramBuckets() {
+		for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 1023, 1024, 123_456_789L }) {
+			int index = LatencyHistogram.bucketIndex(value);
+			assertTrue("Value within its bucket " + value, value <= LatencyHistogram.bucketUpperBound(index)
+					&& (index == 0 || value > LatencyHistogram.bucketUpperBound(index - 1)));
+		}
+		assertTrue("Slow values in last bucket", LatencyHistogram.bucketIndex(Long.MAX_VALUE) == LatencyHistogram.BUCKET_COUNT - 1);
+	}
+}
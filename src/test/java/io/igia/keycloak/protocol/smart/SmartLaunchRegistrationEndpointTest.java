@@ -0,0 +1,71 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.igia.keycloak.protocol.smart.SmartLaunchRegistrationEndpoint.LaunchRegistration;
+
+public class SmartLaunchRegistrationEndpointTest {
+	@Test
+	public void testParseSingle() throws IOException {
+		List<LaunchRegistration> registrations = SmartLaunchRegistrationEndpoint.parse(
+				json("{\"client_id\":\"app\",\"aud\":\"http://fhirserver.org\",\"expires_in\":60,\"context\":{\"patient\":\"12345\",\"need_patient_banner\":false}}"));
+		
+		assertEquals("One registration", 1, registrations.size());
+		assertEquals("Client id", "app", registrations.get(0).clientId);
+		assertEquals("Aud", "http://fhirserver.org", registrations.get(0).aud);
+		assertEquals("Lifespan", 60, registrations.get(0).lifespan);
+		assertEquals("Patient", "12345", registrations.get(0).context.get("patient"));
+		assertEquals("Boolean as text", "false", registrations.get(0).context.get("need_patient_banner"));
+	}
+	
+	@Test
+	public void testParseBulk() throws IOException {
+		List<LaunchRegistration> registrations = SmartLaunchRegistrationEndpoint.parse(
+				json("[{\"context\":{\"patient\":\"1\"}},{\"context\":{\"patient\":\"2\"}}]"));
+		
+		assertEquals("Two registrations", 2, registrations.size());
+		assertTrue("Client id of the registering token", registrations.get(1).clientId == null);
+		assertEquals("Default lifespan", SmartLaunchContextStore.DEFAULT_LIFESPAN_SECONDS, registrations.get(1).lifespan);
+		assertEquals("Patient", "2", registrations.get(1).context.get("patient"));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseLaunchId() throws IOException {
+		SmartLaunchRegistrationEndpoint.parse(json("{\"launch\":\"abc\",\"context\":{\"patient\":\"1\"}}"));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseMissingContext() throws IOException {
+		SmartLaunchRegistrationEndpoint.parse(json("[{\"context\":{\"patient\":\"1\"}},{\"launch\":\"abc\"}]"));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseNestedContext() throws IOException {
+		SmartLaunchRegistrationEndpoint.parse(json("{\"context\":{\"patient\":{\"id\":\"1\"}}}"));
+	}
+	
+	private static JsonNode json(String value) throws IOException {
+		return JsonSerialization.readValue(value, JsonNode.class);
+	}
+}
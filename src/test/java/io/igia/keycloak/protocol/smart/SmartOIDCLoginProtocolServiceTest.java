@@ -0,0 +1,33 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import static org.junit.Assert.assertTrue;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.junit.Test;
+
+import io.igia.keycloak.protocol.smart.SmartLaunchMetrics.Outcome;
+
+public class SmartOIDCLoginProtocolServiceTest {
+
+	@Test
+	public void testCallbackOutcome() {
+		assertTrue("Redirect to the app", SmartOIDCLoginProtocolService.callbackOutcome(Response.status(Status.FOUND).build()) == Outcome.SUCCESS);
+		assertTrue("Form shown", SmartOIDCLoginProtocolService.callbackOutcome(Response.ok().build()) == Outcome.CHALLENGED);
+		assertTrue("Authenticator failed", SmartOIDCLoginProtocolService.callbackOutcome(Response.status(Status.UNAUTHORIZED).build()) == Outcome.ERROR);
+		assertTrue("Error page", SmartOIDCLoginProtocolService.callbackOutcome(Response.status(Status.BAD_REQUEST).build()) == Outcome.ERROR);
+	}
+}
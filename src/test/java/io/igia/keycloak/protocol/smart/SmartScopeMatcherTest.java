@@ -0,0 +1,74 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import io.igia.keycloak.protocol.smart.SmartScope.Compartment;
+import io.igia.keycloak.protocol.smart.SmartScope.Permission;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SmartScopeMatcherTest {
+
+	@Test
+	public void testUnconditionalGrants() {
+		SmartScopeMatcher matcher = SmartScopes.parse("patient/*.rs patient/Observation.cu user/Patient.read").getMatcher();
+
+		assertTrue("Wildcard search", matcher.isAllowed(Compartment.PATIENT, "Condition", Permission.SEARCH));
+		assertTrue("Wildcard merged into resource grant", matcher.isAllowed(Compartment.PATIENT, "Observation", Permission.READ)
+				&& matcher.isAllowed(Compartment.PATIENT, "Observation", Permission.UPDATE));
+		assertTrue("No delete", !matcher.isAllowed(Compartment.PATIENT, "Observation", Permission.DELETE));
+		assertTrue("No create on other types", !matcher.isAllowed(Compartment.PATIENT, "Condition", Permission.CREATE));
+		assertTrue("User compartment", matcher.isAllowed(Compartment.USER, "Patient", Permission.SEARCH)
+				&& !matcher.isAllowed(Compartment.USER, "Observation", Permission.READ));
+		assertTrue("No system grants", matcher.getPermissions(Compartment.SYSTEM, "Patient") == 0);
+		assertTrue("Any compartment", matcher.mayAllow("Patient", Permission.READ) && !matcher.mayAllow("Patient", Permission.DELETE));
+		assertTrue("Nothing granted by default", !SmartScopeMatcher.EMPTY.mayAllow("Patient", Permission.READ));
+		assertTrue("In the compartment", matcher.mayAllow(Compartment.USER, "Patient", Permission.READ)
+				&& !matcher.mayAllow(Compartment.SYSTEM, "Patient", Permission.READ));
+	}
+
+	@Test
+	public void testConstrainedGrants() {
+		SmartScopeMatcher matcher = SmartScopes.parse("patient/Observation.rs?category=laboratory"
+				+ " patient/Observation.rs?category=vital-signs&status=final patient/Condition.s").getMatcher();
+
+		assertTrue("Not granted on every observation", !matcher.isAllowed(Compartment.PATIENT, "Observation", Permission.READ));
+		assertTrue("Granted on some observations", matcher.mayAllow("Observation", Permission.SEARCH));
+		assertTrue("Laboratory observation", matcher.isAllowed(Compartment.PATIENT, "Observation", Permission.READ,
+				Collections.singletonMap("category", "laboratory")));
+		assertTrue("Other category", !matcher.isAllowed(Compartment.PATIENT, "Observation", Permission.READ,
+				Collections.singletonMap("category", "imaging")));
+
+		Map<String, String> vitalSigns = new HashMap<>();
+		vitalSigns.put("category", "vital-signs");
+		assertTrue("All constraints must match", !matcher.isAllowed(Compartment.PATIENT, "Observation", Permission.READ, vitalSigns));
+		vitalSigns.put("status", "final");
+		assertTrue("Final vital signs", matcher.isAllowed(Compartment.PATIENT, "Observation", Permission.READ, vitalSigns));
+		assertTrue("Constraints do not extend permissions", !matcher.isAllowed(Compartment.PATIENT, "Observation", Permission.UPDATE, vitalSigns));
+		assertTrue("Unconditional grant ignores params", matcher.isAllowed(Compartment.PATIENT, "Condition", Permission.SEARCH, null));
+
+		List<Map<String, String>> constraints = matcher.getConstraints(Compartment.PATIENT, "Observation", Permission.SEARCH);
+		assertTrue("Search constraints", constraints.size() == 2 && "laboratory".equals(constraints.get(0).get("category")));
+		assertTrue("No constraints on unconditional grants", matcher.getConstraints(Compartment.PATIENT, "Condition", Permission.SEARCH).isEmpty());
+	}
+}
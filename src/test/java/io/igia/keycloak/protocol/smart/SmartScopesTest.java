@@ -0,0 +1,110 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import io.igia.keycloak.protocol.smart.SmartScope.Compartment;
+import io.igia.keycloak.protocol.smart.SmartScope.Permission;
+import io.igia.keycloak.protocol.smart.SmartScope.Type;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SmartScopesTest {
+
+	@Test
+	public void testScopeGrammar() {
+		assertTrue("openid", SmartScope.of("openid").getType() == Type.OPENID);
+		assertTrue("fhirUser", SmartScope.of("fhirUser").getType() == Type.FHIR_USER);
+		assertTrue("offline_access", SmartScope.of("offline_access").getType() == Type.OFFLINE_ACCESS);
+		assertTrue("launch", SmartScope.of("launch").getType() == Type.LAUNCH);
+
+		SmartScope launchPatient = SmartScope.of("launch/patient");
+		assertTrue("launch context", launchPatient.getType() == Type.LAUNCH_CONTEXT && "patient".equals(launchPatient.getLaunchContext()));
+
+		SmartScope observationRead = SmartScope.of("patient/Observation.read");
+		assertTrue("Resource scope", observationRead.getType() == Type.RESOURCE
+				&& observationRead.getCompartment() == Compartment.PATIENT
+				&& "Observation".equals(observationRead.getResourceType()));
+		assertTrue("v1 read grants read and search", observationRead.isPermitted(Permission.READ)
+				&& observationRead.isPermitted(Permission.SEARCH) && !observationRead.isPermitted(Permission.UPDATE));
+
+		SmartScope allWrite = SmartScope.of("user/*.write");
+		assertTrue("Wildcard write", allWrite.getCompartment() == Compartment.USER
+				&& SmartScope.WILDCARD_RESOURCE.equals(allWrite.getResourceType())
+				&& allWrite.isPermitted(Permission.CREATE) && allWrite.isPermitted(Permission.DELETE)
+				&& !allWrite.isPermitted(Permission.READ));
+		assertTrue("Wildcard permission", SmartScope.of("system/Patient.*").getPermissions() == Permission.ALL);
+
+		for (String other : Arrays.asList("email", "launch/", "patient/Observation", "patient/Observation.delete",
+				"patient/.read", "group/Patient.read", "patient/Obs-ervation.read")) {
+			assertTrue("Other scope " + other, SmartScope.of(other).getType() == Type.OTHER);
+		}
+	}
+
+	@Test
+	public void testV2Scopes() {
+		SmartScope readSearch = SmartScope.of("patient/Observation.rs");
+		assertTrue("v2 read and search", readSearch.isV2() && readSearch.getPermissions() == (Permission.READ.bit | Permission.SEARCH.bit));
+		assertTrue("v2 all", SmartScope.of("user/*.cruds").getPermissions() == Permission.ALL);
+		assertTrue("v1 not v2", !SmartScope.of("patient/Observation.read").isV2());
+
+		SmartScope laboratory = SmartScope.of("patient/Observation.rs?category=http://terminology.hl7.org/CodeSystem/observation-category|laboratory&status=final");
+		assertTrue("Constrained resource", laboratory.getType() == Type.RESOURCE && "Observation".equals(laboratory.getResourceType()));
+		assertTrue("Constraints", laboratory.getConstraints().size() == 2
+				&& "http://terminology.hl7.org/CodeSystem/observation-category|laboratory".equals(laboratory.getConstraints().get("category"))
+				&& "final".equals(laboratory.getConstraints().get("status")));
+
+		for (String other : Arrays.asList("patient/Observation.sr", "patient/Observation.rr", "patient/Observation.rx",
+				"patient/Observation.read?category=laboratory", "patient/Observation.rs?category", "patient/Observation.rs?a=1&a=2",
+				"patient/Observation.rs?")) {
+			assertTrue("Other scope " + other, SmartScope.of(other).getType() == Type.OTHER);
+		}
+		assertTrue("Permission letters", Permission.of("c") == Permission.CREATE && Permission.of("s") == Permission.SEARCH
+				&& Permission.of("x") == null && Permission.of("rs") == null && Permission.of(null) == null);
+	}
+
+	@Test
+	public void testInterned() {
+		assertTrue("Scope interned", SmartScope.of("patient/Patient.read") == SmartScope.of("patient/Patient.read"));
+		assertTrue("Scopes interned", SmartScopes.parse("openid launch/patient") == SmartScopes.parse("openid launch/patient"));
+		assertTrue("Empty scope", SmartScopes.parse(null) == SmartScopes.EMPTY && SmartScopes.parse("").isEmpty());
+	}
+
+	@Test
+	public void testScopes() {
+		SmartScopes scopes = SmartScopes.parse(" openid  launch/patient launch/encounter\tpatient/Observation.read"
+				+ " patient/*.read patient/Observation.write user/Patient.read openid custom");
+
+		assertTrue("Duplicates dropped", scopes.getScopes().size() == 8);
+		assertTrue("Contains", scopes.contains("custom") && scopes.contains("launch/patient") && !scopes.contains("launch"));
+		assertTrue("Types", scopes.has(Type.OPENID) && scopes.has(Type.LAUNCH_CONTEXT) && scopes.has(Type.OTHER)
+				&& !scopes.has(Type.LAUNCH) && !scopes.has(Type.OFFLINE_ACCESS));
+		assertTrue("Launch contexts", scopes.getLaunchContexts().equals(
+				new LinkedHashSet<>(Arrays.asList("patient", "encounter"))));
+		assertTrue("Launch context", scopes.hasLaunchContext("encounter") && !scopes.hasLaunchContext("location"));
+
+		assertTrue("Resource and wildcard permissions", scopes.getPermissions(Compartment.PATIENT, "Observation") == Permission.ALL);
+		assertTrue("Wildcard read", scopes.isPermitted(Compartment.PATIENT, "Condition", Permission.SEARCH)
+				&& !scopes.isPermitted(Compartment.PATIENT, "Condition", Permission.CREATE));
+		assertTrue("User compartment", scopes.isPermitted(Compartment.USER, "Patient", Permission.READ)
+				&& scopes.getPermissions(Compartment.USER, "Observation") == 0);
+		assertTrue("No system scopes", scopes.getPermissions(Compartment.SYSTEM, "Patient") == 0);
+	}
+}
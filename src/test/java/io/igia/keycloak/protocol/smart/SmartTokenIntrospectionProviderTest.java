@@ -0,0 +1,190 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.keycloak.protocol.smart;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.ActionTokenKeyModel;
+import org.keycloak.models.ActionTokenStoreProvider;
+import org.keycloak.models.ActionTokenValueModel;
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.UserSessionProvider;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.util.JsonSerialization;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SmartTokenIntrospectionProviderTest {
+
+	@Test
+	public void testIntrospectCached() throws Exception {
+		RealmModel realm = Mockito.mock(RealmModel.class);
+		Mockito.when(realm.getId()).thenReturn("realm-id");
+		KeycloakContext context = Mockito.mock(KeycloakContext.class);
+		Mockito.when(context.getRealm()).thenReturn(realm);
+		KeycloakSession session = Mockito.mock(KeycloakSession.class);
+		Mockito.when(session.getContext()).thenReturn(context);
+
+		ClientModel client = Mockito.mock(ClientModel.class);
+		Mockito.when(client.getId()).thenReturn("client-id");
+		Mockito.when(realm.getClientByClientId("smart-app")).thenReturn(client);
+		AuthenticatedClientSessionModel clientSession = Mockito.mock(AuthenticatedClientSessionModel.class);
+		Mockito.when(clientSession.getNote(SmartLaunchContext.LAUNCH_CONTEXT_NOTE))
+				.thenReturn(SmartLaunchContext.of(Collections.singletonMap("patient", "123")).encoded());
+		UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+		Mockito.when(userSession.getAuthenticatedClientSessionByClient("client-id")).thenReturn(clientSession);
+		UserSessionProvider sessions = Mockito.mock(UserSessionProvider.class);
+		Mockito.when(sessions.getUserSession(realm, "session-id")).thenReturn(userSession);
+		Mockito.when(session.sessions()).thenReturn(sessions);
+
+		AccessToken accessToken = new AccessToken();
+		accessToken.issuedFor("smart-app");
+		accessToken.setSessionState("session-id");
+		accessToken.setScope("openid launch/patient patient/Observation.rs");
+		accessToken.expiration(Time.currentTime() + 300);
+		VerifiedTokenProvider provider = new VerifiedTokenProvider(session, new IntrospectionCache(), accessToken);
+
+		SmartTokenIntrospectionProvider.Introspection introspection = provider.introspectCached("token");
+		JsonNode response = JsonSerialization.readValue(introspection.response, JsonNode.class);
+		assertTrue("Not cached", !introspection.cached);
+		assertTrue("Active", response.get("active").asBoolean());
+		assertTrue("Client", "smart-app".equals(response.get("client_id").asText()));
+		assertTrue("Launch context", "123".equals(response.get("patient").asText()));
+
+		SmartTokenIntrospectionProvider.Introspection cached = provider.introspectCached("token");
+		assertTrue("Cached", cached.cached && cached.response == introspection.response);
+		assertTrue("Cached scopes", cached.isActive() && cached.scopes.getMatcher().mayAllow("Observation", SmartScope.Permission.SEARCH));
+		assertTrue("Verified once", provider.verifications == 1);
+	}
+
+	@Test
+	public void testCachedSessionLoggedOut() throws Exception {
+		RealmModel realm = Mockito.mock(RealmModel.class);
+		Mockito.when(realm.getId()).thenReturn("realm-id");
+		KeycloakContext context = Mockito.mock(KeycloakContext.class);
+		Mockito.when(context.getRealm()).thenReturn(realm);
+		KeycloakSession session = Mockito.mock(KeycloakSession.class);
+		Mockito.when(session.getContext()).thenReturn(context);
+		UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+		UserSessionProvider sessions = Mockito.mock(UserSessionProvider.class);
+		Mockito.when(sessions.getUserSession(realm, "session-id")).thenReturn(userSession);
+		Mockito.when(session.sessions()).thenReturn(sessions);
+
+		AccessToken accessToken = new AccessToken();
+		accessToken.issuedFor("smart-app");
+		accessToken.setSessionState("session-id");
+		accessToken.setScope("openid patient/Observation.rs");
+		accessToken.expiration(Time.currentTime() + 300);
+		IntrospectionCache cache = new IntrospectionCache();
+		VerifiedTokenProvider provider = new VerifiedTokenProvider(session, cache, accessToken);
+		assertTrue("Active", provider.introspectCached("token").isActive());
+		assertTrue("Cached", provider.introspectCached("token").cached);
+
+		// logged out on another node, so no event reached this cache
+		Mockito.when(sessions.getUserSession(realm, "session-id")).thenReturn(null);
+		SmartTokenIntrospectionProvider.Introspection introspection = provider.introspectCached("token");
+		assertTrue("Verified again", !introspection.cached && provider.verifications == 2);
+		Mockito.verify(sessions, Mockito.atLeastOnce()).getOfflineUserSession(realm, "session-id");
+	}
+
+	@Test
+	public void testInactiveNotCached() throws Exception {
+		RealmModel realm = Mockito.mock(RealmModel.class);
+		Mockito.when(realm.getId()).thenReturn("realm-id");
+		KeycloakContext context = Mockito.mock(KeycloakContext.class);
+		Mockito.when(context.getRealm()).thenReturn(realm);
+		KeycloakSession session = Mockito.mock(KeycloakSession.class);
+		Mockito.when(session.getContext()).thenReturn(context);
+
+		IntrospectionCache cache = new IntrospectionCache();
+		VerifiedTokenProvider provider = new VerifiedTokenProvider(session, cache, null);
+
+		JsonNode response = JsonSerialization.readValue(provider.introspectCached("token").response, JsonNode.class);
+		assertTrue("Inactive", !response.get("active").asBoolean() && !provider.introspectCached("token").isActive());
+		assertTrue("Not cached", cache.size() == 0);
+	}
+
+	@Test
+	public void testIntrospectReferenceToken() throws Exception {
+		RealmModel realm = Mockito.mock(RealmModel.class);
+		Mockito.when(realm.getId()).thenReturn("realm-id");
+		KeycloakContext context = Mockito.mock(KeycloakContext.class);
+		Mockito.when(context.getRealm()).thenReturn(realm);
+		KeycloakSession session = Mockito.mock(KeycloakSession.class);
+		Mockito.when(session.getContext()).thenReturn(context);
+		ActionTokenStoreProvider actionTokenStore = Mockito.mock(ActionTokenStoreProvider.class);
+		Mockito.when(session.getProvider(ActionTokenStoreProvider.class)).thenReturn(actionTokenStore);
+		ActionTokenValueModel value = Mockito.mock(ActionTokenValueModel.class);
+		Mockito.when(value.getNotes()).thenReturn(Collections.singletonMap("token", "header.claims.signature"));
+		Mockito.when(actionTokenStore.get(ArgumentMatchers.any(ActionTokenKeyModel.class))).thenReturn(value);
+
+		AccessToken accessToken = new AccessToken();
+		accessToken.issuedFor("smart-app");
+		accessToken.setScope("openid patient/Observation.rs");
+		accessToken.expiration(Time.currentTime() + 300);
+		VerifiedTokenProvider provider = new VerifiedTokenProvider(session, new IntrospectionCache(), accessToken);
+		String reference = "abcdefghijklmnopqrstuvwxyz012345";
+
+		SmartTokenIntrospectionProvider.Introspection introspection = provider.introspectCached(reference);
+		assertTrue("Active", introspection.isActive());
+		assertTrue("Signed token verified", "header.claims.signature".equals(provider.verifiedToken));
+		assertTrue("Cached", provider.introspectCached(reference).cached);
+		Mockito.verify(actionTokenStore, Mockito.times(1)).get(ArgumentMatchers.any(ActionTokenKeyModel.class));
+
+		Mockito.when(actionTokenStore.get(ArgumentMatchers.any(ActionTokenKeyModel.class))).thenReturn(null);
+		assertTrue("Unknown reference inactive", !provider.introspectCached("0123456789abcdefghijklmnopqrstuv").isActive());
+		assertTrue("Unknown reference not verified", provider.verifications == 1);
+	}
+
+	private static class VerifiedTokenProvider extends SmartTokenIntrospectionProvider {
+		private final AccessToken accessToken;
+		private int verifications;
+		private String verifiedToken;
+
+		VerifiedTokenProvider(KeycloakSession session, IntrospectionCache cache, AccessToken accessToken) {
+			super(session, cache);
+			this.accessToken = accessToken;
+		}
+
+		@Override
+		protected AccessToken verifyAccessToken(String token) {
+			verifications++;
+			verifiedToken = token;
+			return accessToken;
+		}
+	}
+	
+	@Test
+	public void testWithPermitted() throws Exception {
+		byte[] response = JsonSerialization.writeValueAsBytes(Collections.singletonMap("active", true));
+		
+		JsonNode permitted = JsonSerialization.readValue(SmartTokenIntrospectionEndpoint.withPermitted(response, false), JsonNode.class);
+		
+		assertTrue("Still active", permitted.get("active").asBoolean());
+		assertTrue("Permission in its own field", !permitted.get(SmartTokenIntrospectionEndpoint.PERMITTED).asBoolean());
+	}
+}
@@ -12,21 +12,39 @@
  */
 package io.igia.keycloak.protocol.smart;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+
+import org.jboss.resteasy.spi.HttpRequest;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.TokenCategory;
+import org.keycloak.common.util.Time;
 import org.keycloak.events.EventBuilder;
+import org.keycloak.jose.jws.crypto.HashProvider;
+import org.keycloak.models.ActionTokenKeyModel;
+import org.keycloak.models.ActionTokenStoreProvider;
 import org.keycloak.models.AuthenticatedClientSessionModel;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.ClientSessionContext;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.TokenManager;
 import org.keycloak.models.UserSessionModel;
 import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -112,4 +130,122 @@ public class SmartTokenManagerTest {
 		AccessTokenResponse res = spy.build();
 		assertTrue("AccessTokenResponse does not contain null claim value", res.getOtherClaims().get("note1") == null);
 	}
+
+	@Test
+	public void testBuildCompactLaunchContext() {
+		RealmModel realm = Mockito.mock(RealmModel.class);
+		ClientModel client = Mockito.mock(ClientModel.class);
+		EventBuilder event = Mockito.mock(EventBuilder.class);
+		KeycloakSession session = Mockito.mock(KeycloakSession.class);
+		UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+		ClientSessionContext clientSessionCtx = Mockito.mock(ClientSessionContext.class);
+		AuthenticatedClientSessionModel authenticatedClientSessionModel = Mockito.mock(AuthenticatedClientSessionModel.class);
+		
+		SmartTokenManager smartTokenManager = Mockito.spy(new SmartTokenManager());
+		SmartAccessTokenResponseBuilder spy = Mockito.spy(
+				smartTokenManager.new SmartAccessTokenResponseBuilder(realm, client, event, session, userSession, clientSessionCtx));	
+		
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("note1", "note1value");
+		params.put("note2", "");
+		
+		Mockito.doReturn(new AccessTokenResponse()).when(spy).buildAccessTokenResponse();
+		Mockito.when(clientSessionCtx.getClientSession()).thenReturn(authenticatedClientSessionModel);
+		Mockito.when(authenticatedClientSessionModel.getNote(SmartLaunchContext.LAUNCH_CONTEXT_NOTE))
+			.thenReturn(SmartLaunchContext.of(params).encoded());
+		
+		AccessTokenResponse res = spy.build();
+		assertTrue("AccessTokenResponse contains note1 correct value", res.getOtherClaims().get("note1").equals("note1value"));
+		assertTrue("AccessTokenResponse does not contain empty claim value", res.getOtherClaims().get("note2") == null);
+	}
+
+	@Test
+	public void testBuildReferenceToken() {
+		RealmModel realm = Mockito.mock(RealmModel.class);
+		ClientModel client = Mockito.mock(ClientModel.class);
+		EventBuilder event = Mockito.mock(EventBuilder.class);
+		KeycloakSession session = Mockito.mock(KeycloakSession.class);
+		UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+		ClientSessionContext clientSessionCtx = Mockito.mock(ClientSessionContext.class);
+		AuthenticatedClientSessionModel authenticatedClientSessionModel = Mockito.mock(AuthenticatedClientSessionModel.class);
+		ActionTokenStoreProvider actionTokenStore = Mockito.mock(ActionTokenStoreProvider.class);
+		
+		SmartTokenManager smartTokenManager = Mockito.spy(new SmartTokenManager());
+		SmartAccessTokenResponseBuilder spy = Mockito.spy(
+				smartTokenManager.new SmartAccessTokenResponseBuilder(realm, client, event, session, userSession, clientSessionCtx));	
+		
+		AccessTokenResponse signed = new AccessTokenResponse();
+		signed.setToken("header.claims.signature");
+		signed.setExpiresIn(300);
+		Mockito.doReturn(signed).when(spy).buildAccessTokenResponse();
+		Mockito.when(clientSessionCtx.getClientSession()).thenReturn(authenticatedClientSessionModel);
+		Mockito.when(client.getAttribute(SmartReferenceTokenStore.CLIENT_ATTR)).thenReturn(SmartReferenceTokenStore.FORMAT_REFERENCE);
+		Mockito.when(session.getProvider(ActionTokenStoreProvider.class)).thenReturn(actionTokenStore);
+		Mockito.when(realm.getId()).thenReturn("realmId");
+		
+		AccessTokenResponse res = spy.build();
+		
+		ArgumentCaptor<ActionTokenKeyModel> key = ArgumentCaptor.forClass(ActionTokenKeyModel.class);
+		Mockito.verify(actionTokenStore).put(key.capture(), ArgumentMatchers.eq(Collections.singletonMap("token", "header.claims.signature")));
+		assertTrue("Reference token returned", SmartReferenceTokenStore.isReference(res.getToken()));
+		assertTrue("Stored until the token expires", Math.abs(key.getValue().getExpiration() - Time.currentTime() - 300) <= 1);
+	}
+	
+	@Test
+	public void testBuildReferenceTokenAccessTokenHash() {
+		RealmModel realm = Mockito.mock(RealmModel.class);
+		ClientModel client = Mockito.mock(ClientModel.class);
+		KeycloakSession session = Mockito.mock(KeycloakSession.class);
+		ClientSessionContext clientSessionCtx = Mockito.mock(ClientSessionContext.class);
+		TokenManager tokens = Mockito.mock(TokenManager.class);
+		
+		SmartAccessTokenResponseBuilder spy = Mockito.spy(new SmartTokenManager().new SmartAccessTokenResponseBuilder(realm, client,
+				Mockito.mock(EventBuilder.class), session, Mockito.mock(UserSessionModel.class), clientSessionCtx));
+		
+		AccessTokenResponse signed = new AccessTokenResponse();
+		signed.setToken("header.claims.signature");
+		signed.setExpiresIn(300);
+		IDToken idToken = new IDToken();
+		Mockito.doReturn(signed).when(spy).buildAccessTokenResponse();
+		Mockito.doReturn(idToken).when(spy).getIdToken();
+		Mockito.when(clientSessionCtx.getClientSession()).thenReturn(Mockito.mock(AuthenticatedClientSessionModel.class));
+		Mockito.when(client.getAttribute(SmartReferenceTokenStore.CLIENT_ATTR)).thenReturn(SmartReferenceTokenStore.FORMAT_REFERENCE);
+		Mockito.when(session.getProvider(ActionTokenStoreProvider.class)).thenReturn(Mockito.mock(ActionTokenStoreProvider.class));
+		Mockito.when(session.tokens()).thenReturn(tokens);
+		Mockito.when(tokens.signatureAlgorithm(TokenCategory.ID)).thenReturn("RS256");
+		Mockito.when(realm.getId()).thenReturn("realmId");
+		
+		AccessTokenResponse res = spy.generateAccessTokenHash().build();
+		
+		assertEquals("at_hash computed over the reference", HashProvider.oidcHash("RS256", res.getToken()), idToken.getAccessTokenHash());
+	}
+	
+	@Test
+	public void testResolveReferenceTokenForUserInfo() {
+		RealmModel realm = Mockito.mock(RealmModel.class);
+		SmartReferenceTokenStore store = Mockito.mock(SmartReferenceTokenStore.class);
+		Mockito.when(store.resolve(realm, "reference")).thenReturn("header.claims.signature");
+		MultivaluedMap<String, String> headers = new MultivaluedHashMap<>();
+		headers.putSingle(HttpHeaders.AUTHORIZATION, "Bearer reference");
+		HttpRequest request = Mockito.mock(HttpRequest.class);
+		Mockito.when(request.getMutableHeaders()).thenReturn(headers);
+		
+		SmartOIDCLoginProtocolService.resolveReferenceToken(request, store, realm);
+		assertEquals("Reference replaced by the signed token", "Bearer header.claims.signature", headers.getFirst(HttpHeaders.AUTHORIZATION));
+		
+		headers.putSingle(HttpHeaders.AUTHORIZATION, "Bearer unknown");
+		SmartOIDCLoginProtocolService.resolveReferenceToken(request, store, realm);
+		assertEquals("Unknown token left for the endpoint to reject", "Bearer unknown", headers.getFirst(HttpHeaders.AUTHORIZATION));
+		
+		MultivaluedMap<String, String> form = new MultivaluedHashMap<>();
+		form.putSingle(OAuth2Constants.ACCESS_TOKEN, "reference");
+		HttpHeaders httpHeaders = Mockito.mock(HttpHeaders.class);
+		Mockito.when(httpHeaders.getMediaType()).thenReturn(MediaType.APPLICATION_FORM_URLENCODED_TYPE);
+		Mockito.when(request.getHttpHeaders()).thenReturn(httpHeaders);
+		Mockito.when(request.getDecodedFormParameters()).thenReturn(form);
+		headers.clear();
+		
+		SmartOIDCLoginProtocolService.resolveReferenceToken(request, store, realm);
+		assertEquals("Reference form param replaced", "header.claims.signature", form.getFirst(OAuth2Constants.ACCESS_TOKEN));
+	}
 }